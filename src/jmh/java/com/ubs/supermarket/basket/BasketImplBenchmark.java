@@ -0,0 +1,125 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add then remove the same products on a basket shared by all benchmark threads,
+ * the thread count variants show how the basket scales under contention.
+ * With mailbox=true the basket applies the calls one writer at a time, coalescing the ones queued together.
+ * The single product variant changes one line in place without a snapshot of the basket, run with -prof gc
+ * to compare the bytes allocated per call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BasketImplBenchmark
+{
+
+    @State(Scope.Benchmark)
+    public static class SharedBasket
+    {
+        /**
+         * distinct products the threads pick from, fewer products means more contention per line
+         */
+        @Param({"1", "16"})
+        int productCount;
+
+        @Param({"false", "true"})
+        boolean mailbox;
+
+        Basket basket;
+
+        Product[] catalog;
+
+        @Setup
+        public void setUp() throws InvalidAttributesException
+        {
+            basket = new BasketImpl(new ConcurrentHashMap<>());
+            if(mailbox)
+                basket = new MailboxBasket(basket, ForkJoinPool.commonPool());
+            catalog = new Product[productCount];
+            for(int i = 0; i < productCount; i++)
+                catalog[i] = new ProductImpl("P" + i, 10 + i);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Order
+    {
+        /**
+         * products added and removed per call
+         */
+        @Param({"1", "10"})
+        int orderSize;
+
+        List<Product> products;
+
+        @Setup
+        public void setUp(SharedBasket shared)
+        {
+            products = new ArrayList<>(orderSize);
+            for(int i = 0; i < orderSize; i++)
+                products.add(shared.catalog[ThreadLocalRandom.current().nextInt(shared.catalog.length)]);
+        }
+    }
+
+    private static Map<Product, Long> addAndRemove(SharedBasket shared, Order order)
+    {
+        shared.basket.addProducts(order.products);
+        return shared.basket.removeProducts(order.products);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Map<Product, Long> addAndRemove_1Thread(SharedBasket shared, Order order)
+    {
+        return addAndRemove(shared, order);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Map<Product, Long> addAndRemove_4Threads(SharedBasket shared, Order order)
+    {
+        return addAndRemove(shared, order);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Map<Product, Long> addAndRemove_maxThreads(SharedBasket shared, Order order)
+    {
+        return addAndRemove(shared, order);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long addAndRemoveProduct_1Thread(SharedBasket shared, Order order)
+    {
+        Product product = order.products.get(0);
+        shared.basket.addProduct(product, order.orderSize);
+        return shared.basket.removeProduct(product, order.orderSize);
+    }
+}
@@ -0,0 +1,95 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates and replaces random baskets among many small ones, on and off the heap.
+ * Run with -prof gc to compare allocation rates and collection times of the two storages.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class BasketStorageBenchmark
+{
+
+    @Param({"heap", "off-heap"})
+    String storage;
+
+    @Param({"1000000"})
+    int basketCount;
+
+    BasketFactory factory;
+
+    Basket[] baskets;
+
+    List<Product>[] orders;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws InvalidAttributesException
+    {
+        ProductCatalog catalog = new ProductCatalog();
+        factory = "heap".equals(storage) ? BasketFactory.onHeap(catalog) : new OffHeapBasketFactory(catalog, 16 << 20);
+
+        orders = new List[200];
+        for(int i = 0; i < orders.length; i++)
+            orders[i] = Collections.singletonList(new ProductImpl("P" + i, 1 + i % 7));
+
+        baskets = new Basket[basketCount];
+        for(int i = 0; i < basketCount; i++)
+        {
+            baskets[i] = factory.create();
+            for(int line = 0; line < 3; line++)
+                baskets[i].addProducts(order());
+        }
+    }
+
+    private List<Product> order()
+    {
+        return orders[ThreadLocalRandom.current().nextInt(orders.length)];
+    }
+
+    @Benchmark
+    public Map<Product, Long> addAndRemove()
+    {
+        Basket basket = baskets[ThreadLocalRandom.current().nextInt(basketCount)];
+        List<Product> order = order();
+        basket.addProducts(order);
+        return basket.removeProducts(order);
+    }
+
+    @Benchmark
+    public Basket replace()
+    {
+        int index = ThreadLocalRandom.current().nextInt(basketCount);
+        baskets[index].release();
+
+        Basket basket = factory.create();
+        basket.addProducts(order());
+        basket.addProducts(order());
+        return baskets[index] = basket;
+    }
+}
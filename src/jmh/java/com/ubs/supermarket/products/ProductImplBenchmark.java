@@ -0,0 +1,65 @@
+package com.ubs.supermarket.products;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of pricing a product line for different special price tables and quantities.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProductImplBenchmark
+{
+
+    @Param({"0", "1", "4", "16"})
+    int tierCount;
+
+    @Param({"1", "10", "1000", "100000"})
+    long quantity;
+
+    private Product product;
+
+    private Long boxedQuantity;
+
+    @Setup
+    public void setUp() throws InvalidAttributesException
+    {
+        product = new ProductImpl("P1", 10);
+
+        // bundles of 2, 3, 5, 7 ... products, larger bundles are cheaper per product
+        Map<Long, Double> specialPrices = new HashMap<>();
+        long bundleSize = 2;
+        for(int i = 0; i < tierCount; i++)
+        {
+            specialPrices.put(bundleSize, 10.0 - 9.0 * (i + 1) / (tierCount + 1));
+            bundleSize = bundleSize * 3 / 2 + 1;
+        }
+        product.addSpecialPrice(specialPrices);
+
+        boxedQuantity = quantity;
+    }
+
+    @Benchmark
+    public double getPrice()
+    {
+        return product.getPrice(boxedQuantity);
+    }
+}
@@ -0,0 +1,122 @@
+package com.ubs.supermarket.rest;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.persistence.BasketStore;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.BasketBatchService;
+import com.ubs.supermarket.service.BasketService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response building of the basket endpoints, dominated by the JSON serialization of the basket lines.
+ * basketDetailsNotModified revalidates a basket the client already holds, which skips serialization.
+ * addProducts and addProductsDelta add and remove one product, answering with the whole basket or with its line only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BasketSerializationBenchmark
+{
+
+    @Param({"1", "10", "100"})
+    int lineCount;
+
+    private RestBasketController controller;
+
+    private UUID basketID;
+
+    private String eTag;
+
+    private ProductWrapper change;
+
+    @Setup
+    public void setUp() throws InvalidAttributesException, IOException
+    {
+        BasketService basketService = new BasketService();
+        ProductCatalog catalog = new ProductCatalog();
+        controller = new RestBasketController(basketService, new BasketStore(basketService, catalog), new BasketBatchService(basketService));
+
+        Basket basket = new BasketImpl(catalog);
+        List<Product> products = new ArrayList<>();
+        for(int i = 0; i < lineCount; i++)
+        {
+            ProductImpl product = new ProductImpl("Product " + i, 10 + i);
+            product.addSpecialPrice(Collections.singletonMap(3L, 5.0 + i));
+            products.add(product);
+            products.add(product);
+        }
+        basket.addProducts(products);
+        change = new ProductWrapper(Collections.singletonList((ProductImpl) products.get(0)));
+
+        basketService.addBasket(basket);
+        basketID = basket.getBasketID();
+        eTag = basketDetails().getHeader("ETag");
+    }
+
+    @Benchmark
+    public MockHttpServletResponse basketDetails() throws IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.basketDetails(basketID, false, null, response);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse basketDetailsNotModified() throws IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.basketDetails(basketID, false, eTag, response);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse checkTotalPrice() throws IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.checkTotalPrice(basketID, false, null, response);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse addProducts() throws IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.addProducts(basketID, change, false, null, false, response);
+        controller.removeProducts(basketID, change, false, null, false, response);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse addProductsDelta() throws IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.addProducts(basketID, change, false, null, true, response);
+        controller.removeProducts(basketID, change, false, null, true, response);
+        return response;
+    }
+}
@@ -0,0 +1,96 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and writing of basket bodies in every wire format. parseProductList reads the body of an add or remove
+ * call holding productCount units of 10 products, writeProductList encodes it and writeBasket encodes the basket
+ * they make.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BasketWireFormatBenchmark
+{
+
+    @Param({"JSON", "CBOR", "SMILE"})
+    String format;
+
+    @Param({"1", "10", "100"})
+    int productCount;
+
+    private ObjectReader productListReader;
+
+    private ObjectWriter writer;
+
+    private ProductWrapper productList;
+
+    private byte[] encodedProductList;
+
+    private Basket basket;
+
+    @Setup
+    public void setUp() throws InvalidAttributesException, IOException
+    {
+        List<ProductImpl> products = new ArrayList<>();
+        for(int i = 0; i < productCount; i++)
+        {
+            ProductImpl product = new ProductImpl("Product " + i % 10, 10 + i % 10);
+            product.addSpecialPrice(Collections.singletonMap(3L, 5.0 + i % 10));
+            products.add(product);
+        }
+        productList = new ProductWrapper(products);
+
+        basket = new BasketImpl(new ProductCatalog());
+        basket.addProducts(products);
+
+        BasketWireFormat wireFormat = BasketWireFormat.valueOf(format);
+        productListReader = wireFormat.getObjectMapper().readerFor(ProductWrapper.class);
+        writer = wireFormat.getObjectMapper().writer();
+        encodedProductList = writer.writeValueAsBytes(productList);
+    }
+
+    @Benchmark
+    public ProductWrapper parseProductList() throws IOException
+    {
+        return productListReader.readValue(encodedProductList);
+    }
+
+    @Benchmark
+    public byte[] writeProductList() throws IOException
+    {
+        return writer.writeValueAsBytes(productList);
+    }
+
+    @Benchmark
+    public byte[] writeBasket() throws IOException
+    {
+        return writer.writeValueAsBytes(basket);
+    }
+}
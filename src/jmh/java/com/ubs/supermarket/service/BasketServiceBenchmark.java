@@ -0,0 +1,62 @@
+package com.ubs.supermarket.service;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.products.ProductCatalog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Basket lookup by id for registries of different sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class BasketServiceBenchmark
+{
+
+    @Param({"10000", "100000", "1000000"})
+    int basketCount;
+
+    private BasketService basketService;
+
+    private UUID[] basketIDs;
+
+    @Setup
+    public void setUp()
+    {
+        basketService = new BasketService();
+        basketIDs = new UUID[basketCount];
+        ProductCatalog catalog = new ProductCatalog();
+
+        for(int i = 0; i < basketCount; i++)
+        {
+            Basket basket = new BasketImpl(catalog);
+            basketService.addBasket(basket);
+            basketIDs[i] = basket.getBasketID();
+        }
+    }
+
+    @Benchmark
+    public Optional<Basket> getBasketByID()
+    {
+        return basketService.getBasketByID(basketIDs[ThreadLocalRandom.current().nextInt(basketCount)]);
+    }
+}
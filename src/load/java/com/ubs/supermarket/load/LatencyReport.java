@@ -0,0 +1,105 @@
+package com.ubs.supermarket.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of the operations of a load run, one histogram per operation.
+ *
+ * Latencies are recorded in microseconds, from 1us to one minute at 3 significant digits. Recording does not
+ * lock, the histograms are only read once the run is over.
+ */
+final class LatencyReport
+{
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    enum Operation
+    {
+        CREATE, ADD, REMOVE, TOTAL
+    }
+
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+
+    private final Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+
+    private final Map<Operation, Long> errors = new EnumMap<>(Operation.class);
+
+    LatencyReport()
+    {
+        for(Operation operation : Operation.values())
+        {
+            recorders.put(operation, new Recorder(1, MAX_LATENCY_MICROS, 3));
+            errors.put(operation, 0L);
+        }
+    }
+
+    /**
+     * @param operation
+     * @param latencyNanos from the time the request was due to the response
+     */
+    void record(Operation operation, long latencyNanos)
+    {
+        long micros = Math.max(1, Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        recorders.get(operation).recordValue(micros);
+    }
+
+    synchronized void error(Operation operation)
+    {
+        errors.merge(operation, 1L, Long::sum);
+    }
+
+    /**
+     * Drops what has been recorded so far, at the end of the warm up
+     */
+    void reset()
+    {
+        recorders.values().forEach(Recorder::reset);
+    }
+
+    /**
+     * Takes what has been recorded since the last reset, once the threads recording are done
+     */
+    void close()
+    {
+        recorders.forEach((operation, recorder) -> histograms.put(operation, recorder.getIntervalHistogram()));
+    }
+
+    /**
+     * Prints throughput and latency percentiles per operation and over all of them
+     * @param out
+     * @param elapsedNanos length of the measured run
+     */
+    synchronized void print(PrintStream out, long elapsedNanos)
+    {
+        double seconds = elapsedNanos / 1e9;
+        out.printf("%-8s %10s %10s %9s %9s %9s %9s %9s %8s%n",
+                "op", "count", "ops/s", "mean us", "p50 us", "p99 us", "p999 us", "max us", "errors");
+
+        Histogram all = new Histogram(1, MAX_LATENCY_MICROS, 3);
+        long allErrors = 0;
+        for(Operation operation : Operation.values())
+        {
+            Histogram histogram = histograms.get(operation);
+            if(histogram.getTotalCount() == 0 && errors.get(operation) == 0)
+                continue;
+
+            print(out, operation.name().toLowerCase(), histogram, seconds, errors.get(operation));
+            all.add(histogram);
+            allErrors += errors.get(operation);
+        }
+        print(out, "all", all, seconds, allErrors);
+    }
+
+    private static void print(PrintStream out, String name, Histogram histogram, double seconds, long errors)
+    {
+        out.printf("%-8s %10d %10.0f %9.0f %9d %9d %9d %9d %8d%n", name, histogram.getTotalCount(),
+                histogram.getTotalCount() / seconds, histogram.getMean(),
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9), histogram.getMaxValue(), errors);
+    }
+}
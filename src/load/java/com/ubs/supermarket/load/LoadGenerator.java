@@ -0,0 +1,288 @@
+package com.ubs.supermarket.load;
+
+import com.ubs.supermarket.SuperMarketApplication;
+import com.ubs.supermarket.load.LatencyReport.Operation;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for the basket REST API.
+ *
+ * Starts the application on a random port, unless url points at a running server, creates the baskets and fills
+ * each of them with its lines, then has every thread send create, add, remove and total requests in the
+ * configured mix for the warm up and the measured duration. Throughput and latency percentiles per operation
+ * are printed at the end.
+ *
+ * Without a rate every thread sends its next request once the last one answered. With a rate requests are due
+ * at fixed intervals and their latency is counted from the time they were due, so that a stalled server shows
+ * in the percentiles instead of slowing the load down.
+ *
+ * Run with: mvn -Pload verify -DskipTests -Dload.args="threads=16 reads=0.8 --basket.storage=off-heap"
+ */
+public final class LoadGenerator
+{
+    private static final String PRODUCT = "{\"productlist\":[{\"name\":\"P%d\",\"price\":%d.5,\"specialPriceMap\":{\"3\":%d}}]}";
+
+    private final LoadOptions options;
+
+    private final String baseUrl;
+
+    private final LatencyReport report = new LatencyReport();
+
+    /**
+     * ids of the baskets under load, a created basket takes the place of another one
+     */
+    private final AtomicReferenceArray<String> basketIDs;
+
+    private volatile boolean measuring;
+
+    private volatile boolean stopped;
+
+    private LoadGenerator(LoadOptions options, String baseUrl)
+    {
+        this.options = options;
+        this.baseUrl = baseUrl;
+        this.basketIDs = new AtomicReferenceArray<>(options.baskets);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        LoadOptions options = LoadOptions.parse(args);
+
+        // one keep-alive connection per thread
+        System.setProperty("http.maxConnections", Integer.toString(options.threads));
+
+        ConfigurableApplicationContext application = null;
+        String baseUrl = options.url;
+        if(baseUrl.isEmpty())
+        {
+            application = start(options.applicationArgs);
+            baseUrl = "http://localhost:" + ((WebServerApplicationContext) application).getWebServer().getPort();
+        }
+
+        try
+        {
+            new LoadGenerator(options, baseUrl).run();
+        }
+        finally
+        {
+            if(application != null)
+                application.close();
+        }
+    }
+
+    /**
+     * Starts the application in memory, on a random port and without its non-blocking server,
+     * arguments given for the run take precedence
+     */
+    private static ConfigurableApplicationContext start(List<String> applicationArgs)
+    {
+        // empty values cannot be given as arguments, system properties still take precedence over the configuration
+        if(System.getProperty("basket.journal.directory") == null)
+            System.setProperty("basket.journal.directory", "");
+
+        List<String> args = new ArrayList<>();
+        args.add("--server.port=0");
+        args.add("--basket.reactive.port=-1");
+        args.add("--logging.level.root=WARN");
+        args.addAll(applicationArgs);
+        return SpringApplication.run(SuperMarketApplication.class, args.toArray(new String[0]));
+    }
+
+    private void run() throws Exception
+    {
+        System.out.println("Loading " + baseUrl + " with " + options);
+
+        ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+        try
+        {
+            fill(executor);
+
+            List<Future<?>> workers = new ArrayList<>();
+            for(int i = 0; i < options.threads; i++)
+                workers.add(executor.submit(this::work));
+
+            TimeUnit.SECONDS.sleep(options.warmupSeconds);
+            report.reset();
+            measuring = true;
+            long start = System.nanoTime();
+
+            TimeUnit.SECONDS.sleep(options.durationSeconds);
+            stopped = true;
+            for(Future<?> worker : workers)
+                worker.get();
+            long elapsed = System.nanoTime() - start;
+
+            report.close();
+            report.print(System.out, elapsed);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the baskets and adds their lines, spread over the threads
+     */
+    private void fill(ExecutorService executor) throws Exception
+    {
+        long start = System.nanoTime();
+        List<Future<?>> fillers = new ArrayList<>();
+        for(int t = 0; t < options.threads; t++)
+        {
+            int first = t;
+            fillers.add(executor.submit(() ->
+            {
+                for(int i = first; i < options.baskets; i += options.threads)
+                {
+                    String basketID = create();
+                    for(int line = 0; line < options.lines; line++)
+                        send("PUT", "/basket/" + basketID + "/addProducts", product(line));
+                    basketIDs.set(i, basketID);
+                }
+                return null;
+            }));
+        }
+        for(Future<?> filler : fillers)
+            filler.get();
+
+        System.out.printf("Filled %d baskets with %d lines in %d ms%n", options.baskets, options.lines,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Sends requests until stopped, paced by the rate if there is one
+     */
+    private void work()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = options.rate == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) * options.threads / options.rate);
+        long due = System.nanoTime();
+
+        while(!stopped)
+        {
+            if(interval > 0)
+            {
+                long wait = due - System.nanoTime();
+                if(wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            else
+            {
+                due = System.nanoTime();
+            }
+
+            double draw = random.nextDouble();
+            Operation operation = draw < options.reads ? Operation.TOTAL
+                    : draw < options.reads + options.creates ? Operation.CREATE
+                    : random.nextBoolean() ? Operation.ADD : Operation.REMOVE;
+
+            int slot = random.nextInt(options.baskets);
+            try
+            {
+                perform(operation, slot, random.nextInt(options.lines));
+                if(measuring)
+                    report.record(operation, System.nanoTime() - due);
+            }
+            catch(IOException e)
+            {
+                if(measuring)
+                    report.error(operation);
+            }
+            due += interval;
+        }
+    }
+
+    private void perform(Operation operation, int slot, int line) throws IOException
+    {
+        switch(operation)
+        {
+            case CREATE:
+                basketIDs.set(slot, create());
+                break;
+            case ADD:
+                send("PUT", "/basket/" + basketIDs.get(slot) + "/addProducts", product(line));
+                break;
+            case REMOVE:
+                send("PUT", "/basket/" + basketIDs.get(slot) + "/removeProducts", product(line));
+                break;
+            case TOTAL:
+                send("GET", "/basket/" + basketIDs.get(slot) + "/total", null);
+                break;
+        }
+    }
+
+    /**
+     * @return id of the created basket, the last segment of its location
+     */
+    private String create() throws IOException
+    {
+        String location = send("POST", "/basket", null);
+        return location.substring(location.lastIndexOf('/') + 1);
+    }
+
+    private static String product(int line)
+    {
+        return String.format(PRODUCT, line, line + 1, line + 1);
+    }
+
+    /**
+     * Sends a request and reads the whole response, so that the connection is kept alive
+     * @return the Location header of the response, null if none
+     * @throws IOException on a failed request or an error status
+     */
+    private String send(String method, String path, String body) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        if(body != null)
+        {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setFixedLengthStreamingMode(bytes.length);
+            try(OutputStream out = connection.getOutputStream())
+            {
+                out.write(bytes);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        try(InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream())
+        {
+            if(in != null)
+                drain(in);
+        }
+        if(status >= 400)
+            throw new IOException(method + " " + path + " answered " + status);
+
+        return connection.getHeaderField("Location");
+    }
+
+    private static void drain(InputStream in) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+        while(in.read(buffer) >= 0)
+        {
+            // the body itself is not checked
+        }
+    }
+}
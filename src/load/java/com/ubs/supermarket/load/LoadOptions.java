@@ -0,0 +1,128 @@
+package com.ubs.supermarket.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Options of a load run, given as key=value arguments.
+ *
+ * Arguments starting with -- are passed to the application started for the run, for instance
+ * --basket.storage=off-heap.
+ */
+final class LoadOptions
+{
+    private static final Map<String, String> DEFAULTS = new TreeMap<>();
+
+    static
+    {
+        DEFAULTS.put("url", "");
+        DEFAULTS.put("baskets", "1000");
+        DEFAULTS.put("lines", "10");
+        DEFAULTS.put("threads", "8");
+        DEFAULTS.put("reads", "0.5");
+        DEFAULTS.put("creates", "0.01");
+        DEFAULTS.put("rate", "0");
+        DEFAULTS.put("warmup", "10");
+        DEFAULTS.put("duration", "30");
+    }
+
+    /**
+     * server under load, empty to start the application in this JVM
+     */
+    final String url;
+
+    /**
+     * baskets created before the run
+     */
+    final int baskets;
+
+    /**
+     * distinct products in a basket, baskets are filled with them before the run
+     */
+    final int lines;
+
+    final int threads;
+
+    /**
+     * share of the operations reading a total, the operations neither reading nor creating add or remove a product
+     */
+    final double reads;
+
+    /**
+     * share of the operations creating a basket, which then takes the place of a random one
+     */
+    final double creates;
+
+    /**
+     * operations per second over all threads, 0 to send the next request as soon as the last one answered
+     */
+    final double rate;
+
+    final int warmupSeconds;
+
+    final int durationSeconds;
+
+    final List<String> applicationArgs;
+
+    private LoadOptions(Map<String, String> values, List<String> applicationArgs)
+    {
+        this.url = values.get("url");
+        this.baskets = positive(values, "baskets");
+        this.lines = positive(values, "lines");
+        this.threads = positive(values, "threads");
+        this.reads = Double.parseDouble(values.get("reads"));
+        this.creates = Double.parseDouble(values.get("creates"));
+        this.rate = Double.parseDouble(values.get("rate"));
+        this.warmupSeconds = Integer.parseInt(values.get("warmup"));
+        this.durationSeconds = positive(values, "duration");
+        this.applicationArgs = applicationArgs;
+
+        if(reads < 0 || creates < 0 || reads + creates > 1)
+            throw new IllegalArgumentException("reads and creates must be shares adding up to at most 1");
+        if(rate < 0)
+            throw new IllegalArgumentException("rate must not be negative");
+    }
+
+    /**
+     * @param args key=value options and --application arguments
+     * @return
+     * @throws IllegalArgumentException on an unknown or invalid option
+     */
+    static LoadOptions parse(String[] args)
+    {
+        Map<String, String> values = new TreeMap<>(DEFAULTS);
+        List<String> applicationArgs = new ArrayList<>();
+        for(String arg : args)
+        {
+            if(arg.startsWith("--"))
+            {
+                applicationArgs.add(arg);
+                continue;
+            }
+
+            int separator = arg.indexOf('=');
+            if(separator < 0 || !DEFAULTS.containsKey(arg.substring(0, separator)))
+                throw new IllegalArgumentException("Unknown option " + arg + ", options are " + DEFAULTS);
+
+            values.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return new LoadOptions(values, applicationArgs);
+    }
+
+    private static int positive(Map<String, String> values, String key)
+    {
+        int value = Integer.parseInt(values.get(key));
+        if(value <= 0)
+            throw new IllegalArgumentException(key + " must be positive");
+        return value;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "baskets=" + baskets + " lines=" + lines + " threads=" + threads + " reads=" + reads + " creates=" + creates
+                + " rate=" + (rate == 0 ? "unbounded" : rate + "/s") + " warmup=" + warmupSeconds + "s duration=" + durationSeconds + "s";
+    }
+}
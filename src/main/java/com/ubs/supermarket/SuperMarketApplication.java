@@ -1,7 +1,12 @@
 
 package com.ubs.supermarket;
 
+import com.ubs.supermarket.cluster.ClusterMembership;
 import com.ubs.supermarket.config.SwaggerConfig;
+import com.ubs.supermarket.graphql.BasketContextBuilder;
+import com.ubs.supermarket.metrics.BasketMetrics;
+import com.ubs.supermarket.persistence.BasketStore;
+import com.ubs.supermarket.products.ProductCatalog;
 import com.ubs.supermarket.rest.RestBasketController;
 import com.ubs.supermarket.service.BasketService;
 import org.springframework.boot.SpringApplication;
@@ -9,7 +14,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
 
 @SpringBootApplication
-@ComponentScan(basePackageClasses = {SwaggerConfig.class, BasketService.class, RestBasketController.class})
+@ComponentScan(basePackageClasses = {SwaggerConfig.class, BasketService.class, RestBasketController.class, ProductCatalog.class, BasketStore.class, BasketMetrics.class, BasketContextBuilder.class, ClusterMembership.class})
 public class SuperMarketApplication {
 
 	public static void main(String[] args) {
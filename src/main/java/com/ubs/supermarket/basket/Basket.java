@@ -3,8 +3,10 @@ package com.ubs.supermarket.basket;
 import com.ubs.supermarket.products.Product;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface should be implemented by various types of baskets
@@ -13,6 +15,10 @@ import java.util.UUID;
  */
 public interface Basket
 {
+    /**
+     * expected version of a change applied whatever the version of the basket
+     */
+    long ANY_VERSION = -1;
 
     /**
      * Returns id to uniquely identify a basket
@@ -32,6 +38,192 @@ public interface Basket
      */
     Map<Product, Long> removeProducts(Collection<? extends Product> products);
 
+    /**
+     * Adds units of a single product without taking a snapshot of the basket, one change of the basket.
+     * Baskets holding their own lines allocate nothing, baskets decorating another one go through addProducts
+     * @param product
+     * @param count units to add, nothing is changed if not positive
+     * @return quantity of the product right after the change
+     */
+    default long addProduct(Product product, long count)
+    {
+        Map<Product, Long> lines = count > 0
+                ? addProducts(Collections.nCopies(Math.toIntExact(count), product))
+                : getQuantities(Collections.singletonList(product));
+        return lines.getOrDefault(product, 0L);
+    }
+
+    /**
+     * Removes units of a single product without taking a snapshot of the basket, one change of the basket.
+     * Baskets holding their own lines allocate nothing, baskets decorating another one go through removeProducts
+     * @param product
+     * @param count units to remove, nothing is changed if not positive
+     * @return quantity of the product right after the change
+     */
+    default long removeProduct(Product product, long count)
+    {
+        Map<Product, Long> lines = count > 0
+                ? removeProducts(Collections.nCopies(Math.toIntExact(count), product))
+                : getQuantities(Collections.singletonList(product));
+        return lines.getOrDefault(product, 0L);
+    }
+
+    /**
+     * Adds products only if the basket is still at the expected version, the basket is not locked meanwhile
+     * @param products
+     * @param expectedVersion
+     * @return
+     * @throws com.ubs.supermarket.exception.VersionConflictException if the basket has changed since
+     */
+    Map<Product, Long> addProducts(Collection<? extends Product> products, long expectedVersion);
+
+    /**
+     * Removes products only if the basket is still at the expected version, the basket is not locked meanwhile
+     * @param products
+     * @param expectedVersion
+     * @return
+     * @throws com.ubs.supermarket.exception.VersionConflictException if the basket has changed since
+     */
+    Map<Product, Long> removeProducts(Collection<? extends Product> products, long expectedVersion);
+
+    /**
+     * Adds products without taking a snapshot of the basket, the change requests make.
+     * Baskets holding their own lines allocate nothing once the products and their quotes are known,
+     * baskets decorating another one pass the change on
+     * @param products
+     * @param expectedVersion version the basket must still be at, ANY_VERSION for an unconditional change
+     * @throws com.ubs.supermarket.exception.VersionConflictException if the basket has changed since
+     */
+    default void addAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        if(expectedVersion == ANY_VERSION)
+            addProducts(products);
+        else
+            addProducts(products, expectedVersion);
+    }
+
+    /**
+     * Removes products without taking a snapshot of the basket, the change requests make.
+     * Baskets holding their own lines allocate nothing once the products are known,
+     * baskets decorating another one pass the change on
+     * @param products
+     * @param expectedVersion version the basket must still be at, ANY_VERSION for an unconditional change
+     * @throws com.ubs.supermarket.exception.VersionConflictException if the basket has changed since
+     */
+    default void removeAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        if(expectedVersion == ANY_VERSION)
+            removeProducts(products);
+        else
+            removeProducts(products, expectedVersion);
+    }
+
+    /**
+     * Adds products as addAll does without blocking the caller, completes once the change is durable.
+     * In memory baskets complete immediately.
+     * @param products
+     * @param expectedVersion version the basket must still be at, ANY_VERSION for an unconditional change
+     * @return completed exceptionally with a VersionConflictException if the basket has changed since
+     */
+    default CompletableFuture<Void> addAllAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try
+        {
+            addAll(products, expectedVersion);
+            result.complete(null);
+        }
+        catch(RuntimeException e)
+        {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Removes products as removeAll does without blocking the caller, completes once the change is durable.
+     * In memory baskets complete immediately.
+     * @param products
+     * @param expectedVersion version the basket must still be at, ANY_VERSION for an unconditional change
+     * @return completed exceptionally with a VersionConflictException if the basket has changed since
+     */
+    default CompletableFuture<Void> removeAllAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try
+        {
+            removeAll(products, expectedVersion);
+            result.complete(null);
+        }
+        catch(RuntimeException e)
+        {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Adds products without blocking the caller, completes with the lines of the basket
+     * once the change is durable. In memory baskets complete immediately.
+     * @param products
+     * @return
+     */
+    default CompletableFuture<Map<Product, Long>> addProductsAsync(Collection<? extends Product> products)
+    {
+        return CompletableFuture.completedFuture(addProducts(products));
+    }
+
+    /**
+     * Removes products without blocking the caller, completes with the lines of the basket
+     * once the change is durable. In memory baskets complete immediately.
+     * @param products
+     * @return
+     */
+    default CompletableFuture<Map<Product, Long>> removeProductsAsync(Collection<? extends Product> products)
+    {
+        return CompletableFuture.completedFuture(removeProducts(products));
+    }
+
+    /**
+     * Adds products if the basket is still at the expected version, without blocking the caller
+     * @param products
+     * @param expectedVersion
+     * @return completed exceptionally with a VersionConflictException if the basket has changed since
+     */
+    default CompletableFuture<Map<Product, Long>> addProductsAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        CompletableFuture<Map<Product, Long>> result = new CompletableFuture<>();
+        try
+        {
+            result.complete(addProducts(products, expectedVersion));
+        }
+        catch(RuntimeException e)
+        {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Removes products if the basket is still at the expected version, without blocking the caller
+     * @param products
+     * @param expectedVersion
+     * @return completed exceptionally with a VersionConflictException if the basket has changed since
+     */
+    default CompletableFuture<Map<Product, Long>> removeProductsAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        CompletableFuture<Map<Product, Long>> result = new CompletableFuture<>();
+        try
+        {
+            result.complete(removeProducts(products, expectedVersion));
+        }
+        catch(RuntimeException e)
+        {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     /**
      * Returns total getPrice of the com.ubs.supermarket.basket
      * @return
@@ -45,4 +237,32 @@ public interface Basket
      */
     Map<Product, Long> getAllProducts();
 
+    /**
+     * Returns the quantity of each given product, zero for products not in the basket
+     * @param products
+     * @return
+     */
+    Map<Product, Long> getQuantities(Collection<? extends Product> products);
+
+    /**
+     * Returns the number of distinct products in the basket
+     * @return
+     */
+    int getLineCount();
+
+    /**
+     * Version of the basket content, increased by every change.
+     * The content read after the version holds at least the changes it counts.
+     * @return
+     */
+    long getVersion();
+
+    /**
+     * Frees the memory the basket holds outside the heap and the catalog SKUs of its lines once it has been removed,
+     * the basket is empty and ignores changes afterwards.
+     */
+    default void release()
+    {
+    }
+
 }
@@ -0,0 +1,54 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Creates the baskets of a store, deciding where their lines are kept
+ */
+public interface BasketFactory
+{
+
+    /**
+     * Creates a basket under its id, holding the given products at the given version
+     * @param basketID
+     * @param lines initial product quantities
+     * @param version version the basket had when its lines were saved, 0 for a new basket
+     * @return
+     */
+    Basket create(UUID basketID, Map<? extends Product, Long> lines, long version);
+
+    /**
+     * Creates a basket under its id, holding the given products
+     * @param basketID
+     * @param lines initial product quantities
+     * @return
+     */
+    default Basket create(UUID basketID, Map<? extends Product, Long> lines)
+    {
+        return create(basketID, lines, 0);
+    }
+
+    /**
+     * Creates an empty basket under a new id
+     * @return
+     */
+    default Basket create()
+    {
+        return create(UUID.randomUUID(), Collections.emptyMap());
+    }
+
+    /**
+     * Baskets keeping their lines on the heap
+     * @param catalog
+     * @return
+     */
+    static BasketFactory onHeap(ProductCatalog catalog)
+    {
+        return (basketID, lines, version) -> new BasketImpl(catalog, basketID, lines, version);
+    }
+}
@@ -1,19 +1,21 @@
 package com.ubs.supermarket.basket;
 
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.exception.VersionConflictException;
 import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.springframework.util.CollectionUtils;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-
-import static java.util.stream.Collectors.groupingBy;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Thread safe Basket implementation of the following methods
@@ -26,27 +28,102 @@ import static java.util.stream.Collectors.groupingBy;
  *
  * 4. public Map<Product, Long> getAllProducts()
  *
+ * Products are stored as catalog SKUs with their quantities in a primitive line table.
+ * Every line is updated with compare and set, so concurrent updates of a basket
+ * never take a basket wide lock and only contend on the same line.
+ * Each line caches the price of its quantity and every update adds the price change
+ * to a running total, so reading the total does not re-price the basket unless
+ * catalog prices have been republished since.
+ * The special prices carried by the latest unit added to a line apply to that line only,
+ * the catalog product of the SKU is left as it is for the other baskets.
+ * Lines hold the SKUs of their products until they are emptied or the basket is released.
+ *
+ * The version counts changes and is bumped once a change is applied. A conditional change
+ * claims the expected version with compare and set and holds a pending bit while it is applied,
+ * version reads wait for it, so a version never counts a change its reader cannot see yet.
+ * A change of several products is grouped and checked before any of its lines is updated, a change
+ * that fails leaves the lines and the version as they were.
+ *
  * @author saumadip mazumder
  */
 public class BasketImpl implements Basket
 {
+    /**
+     * low bit of the version state, set while a conditional change is applied
+     */
+    private static final long PENDING = 1L;
+
+    /**
+     * version stored in the upper bits, one change adds 2
+     */
+    private static final long CHANGE = 2L;
 
     /**
      * In memory datastructure for storing basket information
      */
-    //@JsonSerialize(keyUsing = ProductSerializer.class)
-    private final ConcurrentHashMap<Product,Long> basketCollection;
+    private final LineTable basketCollection;
+
+    /**
+     * SKUs of the basket products
+     */
+    private final ProductCatalog catalog;
 
     /**
      * uniquely identifies a basket
      */
     private final UUID basketID;
 
+    private final AtomicLong versionState = new AtomicLong();
+
 
+    /**
+     * Creates an empty basket for products of the catalog
+     * @param catalog
+     */
+    public BasketImpl(ProductCatalog catalog)
+    {
+        this(catalog, UUID.randomUUID(), Collections.emptyMap());
+    }
+
+    /**
+     * Creates a basket with its own product catalog, holding the given products
+     * @param basketCollection initial product quantities
+     */
     public BasketImpl(ConcurrentHashMap<Product, Long> basketCollection)
     {
-        this.basketCollection = basketCollection;
-        this.basketID = UUID.randomUUID();
+        this(new ProductCatalog(), UUID.randomUUID(), basketCollection);
+    }
+
+    /**
+     * Restores a basket of the catalog under its id, holding the given products
+     * @param catalog
+     * @param basketID
+     * @param basketCollection initial product quantities
+     */
+    public BasketImpl(ProductCatalog catalog, UUID basketID, Map<? extends Product, Long> basketCollection)
+    {
+        this(catalog, basketID, basketCollection, 0);
+    }
+
+    /**
+     * Restores a basket of the catalog under its id, holding the given products at the given version
+     * @param catalog
+     * @param basketID
+     * @param basketCollection initial product quantities
+     * @param version version the basket had when its products were saved
+     */
+    public BasketImpl(ProductCatalog catalog, UUID basketID, Map<? extends Product, Long> basketCollection, long version)
+    {
+        this.catalog = catalog;
+        this.basketCollection = new LineTable(catalog);
+        this.basketID = basketID;
+        this.versionState.set(version * CHANGE);
+
+        basketCollection.forEach((product, count) ->
+        {
+            if(count > 0)
+                this.basketCollection.add(catalog.acquire(product, true), product, count);
+        });
     }
 
 
@@ -67,12 +144,49 @@ public class BasketImpl implements Basket
     @Override
     public Map<Product, Long> addProducts(Collection<? extends Product> products)
     {
-        if(!CollectionUtils.isEmpty(products))
-        {
-            products.forEach(this::updateLatestPromotionToBasket);
+        addAll(products, ANY_VERSION);
+        return getAllProducts();
+    }
 
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        conditionally(products, checked(expectedVersion), true);
+        return getAllProducts();
+    }
+
+    /**
+     * Adds the products without taking a snapshot, allocating nothing once the products and their quotes are known
+     * @param products
+     * @param expectedVersion
+     */
+    @Override
+    public void addAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        if(expectedVersion != ANY_VERSION)
+            conditionally(products, checked(expectedVersion), true);
+        else if(!CollectionUtils.isEmpty(products))
+        {
+            addGrouped(products);
+            versionState.addAndGet(CHANGE);
         }
-        return Collections.unmodifiableMap(basketCollection);
+    }
+
+    /**
+     * Adds to the line of the product in place, allocating nothing once the product and its quote are known
+     * @param product
+     * @param count
+     * @return
+     */
+    @Override
+    public long addProduct(Product product, long count)
+    {
+        if(count <= 0)
+            return quantity(product);
+
+        long quantity = basketCollection.add(catalog.acquire(product, true), product, count);
+        versionState.addAndGet(CHANGE);
+        return quantity;
     }
 
     /**
@@ -84,75 +198,256 @@ public class BasketImpl implements Basket
     @Override
     public Map<Product, Long> removeProducts(Collection<? extends Product> products)
     {
-        if(!CollectionUtils.isEmpty(products)) {
+        removeAll(products, ANY_VERSION);
+        return getAllProducts();
+    }
 
-            Map<? extends Product, Long> groupedProductcollection = products.stream().collect(groupingBy(Function.identity(), Collectors.counting()));
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        conditionally(products, checked(expectedVersion), false);
+        return getAllProducts();
+    }
 
-            synchronized (basketCollection) {
-                groupedProductcollection.forEach((key, val) ->
-                {
-                    Long oldVal = basketCollection.get(key);
-                    if(oldVal != null)
-                    {
-                        long newVal = (oldVal - val) < 0 ? 0 : oldVal - val;
+    /**
+     * Removes the products without taking a snapshot, allocating nothing once the products are known
+     * @param products
+     * @param expectedVersion
+     */
+    @Override
+    public void removeAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        if(expectedVersion != ANY_VERSION)
+            conditionally(products, checked(expectedVersion), false);
+        else if(!CollectionUtils.isEmpty(products))
+        {
+            removeGrouped(products);
+            versionState.addAndGet(CHANGE);
+        }
+    }
 
-                        if(newVal > 0)
-                            basketCollection.replace(key, oldVal, newVal);
-                        else
-                            basketCollection.remove(key,oldVal);
-                    }
-                });
-            }
+    /**
+     * Removes from the line of the product in place, a product not in the basket is ignored but still counts as
+     * a change like it does for removeProducts
+     * @param product
+     * @param count
+     * @return
+     */
+    @Override
+    public long removeProduct(Product product, long count)
+    {
+        if(count <= 0)
+            return quantity(product);
+
+        int sku = catalog.acquire(product, false);
+        try
+        {
+            long quantity = sku == ProductCatalog.NO_SKU ? 0 : basketCollection.remove(sku, count);
+            versionState.addAndGet(CHANGE);
+            return quantity;
+        }
+        finally
+        {
+            catalog.release(sku);
         }
-        return Collections.unmodifiableMap(basketCollection);
     }
 
     /**
-     * Total price of the basket
+     * Total price of the basket, read from the running total.
+     * A line is priced when it is updated. Once the catalog publishes new prices and bumps its price version,
+     * the first read of the total re-prices every line priced before that version, later reads use the running
+     * total again.
      * @return
      */
     @Override
     public double getTotalPrice()
     {
-        return basketCollection.entrySet()
-                .stream()
-                .map(entry -> entry.getKey().getPrice(entry.getValue()))
-                .mapToDouble(Double::doubleValue)
-                .sum();
+        return basketCollection.getTotalPrice();
     }
 
     /**
-     * Returns all the products in the basket
+     * Returns a snapshot of all the products in the basket
      * @return
      */
     @Override
     public Map<Product, Long> getAllProducts()
     {
-        return Collections.unmodifiableMap(basketCollection);
+        Map<Product, Long> products = new HashMap<>();
+        basketCollection.forEach(products::put);
+        return Collections.unmodifiableMap(products);
     }
 
-
     /**
-     * Updates the latest promotion that came with the new Product in the basket.
-     * Applying promotion to all products of the same name or category
-     * @param prods
+     * Reads the lines of the products only, products in the basket are returned as held by the basket
+     * @param products
+     * @return
      */
-    private void updateLatestPromotionToBasket(Product prods)
+    @Override
+    public Map<Product, Long> getQuantities(Collection<? extends Product> products)
     {
-        synchronized (basketCollection)
+        Map<Product, Long> quantities = new LinkedHashMap<>();
+        for(Product product : products)
         {
-            if (basketCollection.containsKey(prods))
+            // held meanwhile, so that the SKU is not reclaimed and assigned to another product of the basket
+            int sku = catalog.acquire(product, false);
+            try
             {
-                Long oldVal = basketCollection.get(prods);
-                basketCollection.remove(prods);
-                basketCollection.putIfAbsent(prods,oldVal + 1);
+                if(sku == ProductCatalog.NO_SKU)
+                    quantities.put(product, 0L);
+                else
+                    quantities.put(basketCollection.getProduct(sku), basketCollection.get(sku));
             }
-            else
+            finally
             {
-                basketCollection.putIfAbsent(prods, 1L);
+                catalog.release(sku);
             }
         }
+        return Collections.unmodifiableMap(quantities);
+    }
+
+    /**
+     * Number of lines, read without taking a snapshot of the basket
+     * @return
+     */
+    @Override
+    public int getLineCount()
+    {
+        return basketCollection.getLineCount();
+    }
+
+
+    /**
+     * Waits for a pending conditional change to be applied
+     * @return
+     */
+    @Override
+    public long getVersion()
+    {
+        for(;;)
+        {
+            long state = versionState.get();
+            if((state & PENDING) == 0)
+                return state / CHANGE;
+
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Clears the lines, releasing their SKUs in the catalog. The basket is empty and ignores changes afterwards
+     */
+    @Override
+    public void release()
+    {
+        basketCollection.clear();
+    }
+
+    private long quantity(Product product)
+    {
+        int sku = catalog.acquire(product, false);
+        try
+        {
+            return sku == ProductCatalog.NO_SKU ? 0 : basketCollection.get(sku);
+        }
+        finally
+        {
+            catalog.release(sku);
+        }
+    }
+
+    private static long checked(long expectedVersion)
+    {
+        if(expectedVersion < 0)
+            throw new VersionConflictException("Basket has changed since version " + expectedVersion);
+        return expectedVersion;
+    }
+
+    /**
+     * Adds or removes the products if the basket is at the expected version, an empty change only checks the version
+     */
+    private void conditionally(Collection<? extends Product> products, long expectedVersion, boolean add)
+    {
+        if(CollectionUtils.isEmpty(products))
+        {
+            if(getVersion() != expectedVersion)
+                throw new VersionConflictException("Basket has changed since version " + expectedVersion);
+            return;
+        }
+
+        if(!versionState.compareAndSet(expectedVersion * CHANGE, expectedVersion * CHANGE + PENDING))
+            throw new VersionConflictException("Basket has changed since version " + expectedVersion);
 
+        try
+        {
+            if(add)
+                addGrouped(products);
+            else
+                removeGrouped(products);
+        }
+        catch(RuntimeException e)
+        {
+            // nothing was changed, only the pending bit is cleared
+            versionState.addAndGet(-PENDING);
+            throw e;
+        }
+        // clears the pending bit and counts the change
+        versionState.addAndGet(CHANGE - PENDING);
+    }
+
+    private void removeGrouped(Collection<? extends Product> products)
+    {
+        SkuCounts counts = SkuCounts.acquire();
+        try
+        {
+            counts.addAll(products, catalog, false);
+            for(int i = 0; i < counts.size(); i++)
+                basketCollection.remove(counts.sku(i), counts.count(i));
+        }
+        finally
+        {
+            counts.release();
+        }
+    }
+
+    /**
+     * Registers every new product, then adds every product with its count at once, so that a line is re-priced once
+     * per change however many units of its product the change holds. The line is priced with the special prices
+     * of the latest of those units.
+     * No line is added to if the count of one would overflow. A line filled by a concurrent change in the meantime
+     * takes the units back from the lines already added to.
+     * Promotions across products of the same category are applied by the rules of com.ubs.supermarket.promotions
+     * @param products
+     * @throws InvalidRequestException if the count of a line would overflow
+     */
+    private void addGrouped(Collection<? extends Product> products)
+    {
+        SkuCounts counts = SkuCounts.acquire();
+        try
+        {
+            counts.addAll(products, catalog, true);
+            for(int i = 0; i < counts.size(); i++)
+            {
+                if(counts.count(i) > Long.MAX_VALUE - basketCollection.get(counts.sku(i)))
+                    throw LineTable.tooMany(counts.sku(i));
+            }
+
+            int added = 0;
+            try
+            {
+                for(; added < counts.size(); added++)
+                    basketCollection.add(counts.take(added), counts.unit(added), counts.count(added));
+            }
+            catch(RuntimeException e)
+            {
+                for(int i = 0; i < added; i++)
+                    basketCollection.remove(counts.sku(i), counts.count(i));
+                throw e;
+            }
+        }
+        finally
+        {
+            counts.release();
+        }
     }
 
     @Override
@@ -0,0 +1,32 @@
+package com.ubs.supermarket.basket;
+
+/**
+ * Amounts of money held as a whole number of cents.
+ *
+ * Line amounts are rounded to the cent once, when the line is priced, and totals are sums of cents,
+ * so adding and removing the same products any number of times brings a total back exactly.
+ */
+final class Cents
+{
+    private Cents()
+    {
+    }
+
+    /**
+     * @param amount
+     * @return the amount rounded to the nearest cent
+     */
+    static long of(double amount)
+    {
+        return Math.round(amount * 100);
+    }
+
+    /**
+     * @param cents
+     * @return the amount of the cents
+     */
+    static double toAmount(long cents)
+    {
+        return cents / 100.0;
+    }
+}
@@ -0,0 +1,621 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Product lines of a basket, an open addressing table from product SKU to quantity.
+ *
+ * Quantities and the priced amount of every line are kept in primitive arrays. A writer claims a line
+ * by setting the CLAIMED bit of its quantity with compare and set, re-prices the line and adds the price
+ * change to the running total before releasing it. Writers of different lines never contend, readers never wait.
+ * Amounts are held in Cents and the total is a single atomic counter of cents: it never drifts, and a read
+ * of the total sees every line change entirely or not at all.
+ * A line at quantity zero is not part of the basket, its slot is dropped when the table is rebuilt.
+ * A line with a positive quantity holds its SKU in the catalog, so that the SKU is not reclaimed and assigned
+ * to another product while the line is in the basket. Clearing the table releases them all.
+ *
+ * A line is priced with the special prices of the latest unit added to it, as the product of that unit replaced
+ * the one held by the basket. The line only keeps the unit when its special prices differ from those of the
+ * catalog product, until a feed replaces the catalog product: the line then follows the catalog again.
+ *
+ * Every amount is tagged with the price version it was priced at. A read of the total after prices are
+ * republished first re-prices the lines priced at an older version, claiming them as writers do, so the total
+ * is never built from a mix of prices before and after a feed.
+ *
+ * When a new SKU would fill the table past its load factor, the table is rebuilt: the resizing writer seals
+ * every free slot and claims every line of the current table, copies the live lines to a new table and publishes it.
+ * Writers finding a sealed slot or a claimed line of a retired table start over on the new one.
+ *
+ * Waits on a claimed line and restarts after a rebuild are counted, both are rare unless writers contend on a basket.
+ */
+final class LineTable
+{
+    /**
+     * Receives the product and quantity of a line
+     */
+    interface LineConsumer
+    {
+        void accept(Product product, long count);
+    }
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final int FREE = 0;
+
+    private static final int SEALED = -1;
+
+    private static final long CLAIMED = Long.MIN_VALUE;
+
+    /**
+     * find result when the SKU is not in the table
+     */
+    private static final int ABSENT = -1;
+
+    /**
+     * find or claim result when the table has been retired
+     */
+    private static final int RETIRED = -2;
+
+    private static final Counter CLAIM_WAITS = Counter.builder("basket.line.claim.waits")
+            .description("Times a writer yielded because another writer held the basket line")
+            .register(Metrics.globalRegistry);
+
+    private static final Counter RETRIES = Counter.builder("basket.line.retries")
+            .description("Basket line updates started over because the line table was rebuilt")
+            .register(Metrics.globalRegistry);
+
+    private final ProductCatalog catalog;
+
+    /**
+     * price version every line has been priced at or after
+     */
+    private volatile long pricedVersion;
+
+    /**
+     * sum of the line amounts, in cents
+     */
+    private final AtomicLong totalCents = new AtomicLong();
+
+    /**
+     * number of lines with a positive quantity
+     */
+    private final AtomicInteger lineCount = new AtomicInteger();
+
+    private volatile Slots slots = new Slots(INITIAL_CAPACITY);
+
+    /**
+     * set once the table is cleared, changes are ignored afterwards
+     */
+    private volatile boolean cleared;
+
+    /**
+     * @param catalog products of the SKUs, their prices are republished with a new price version
+     */
+    LineTable(ProductCatalog catalog)
+    {
+        this.catalog = catalog;
+        this.pricedVersion = catalog.getPriceVersion();
+    }
+
+    /**
+     * Adds quantity to the line of the SKU, creating the line if needed
+     * @param sku held by the caller, the line keeps the hold if it is created, else it is released
+     * @param unit latest unit of the quantity, the line is priced with its special prices from now on
+     * @param quantity
+     * @return quantity of the line after the change
+     */
+    long add(int sku, Product unit, long quantity)
+    {
+        return update(sku, unit, quantity, true);
+    }
+
+    /**
+     * Removes quantity from the line of the SKU, never below zero.
+     * Ignored if the basket has no line for the SKU.
+     * @param sku
+     * @param quantity
+     * @return quantity of the line after the change
+     */
+    long remove(int sku, long quantity)
+    {
+        return update(sku, null, -quantity, false);
+    }
+
+    /**
+     * Empties every line and releases their SKUs, changes are ignored afterwards
+     */
+    void clear()
+    {
+        cleared = true;
+
+        Slots table = slots;
+        for(int i = 0; i < table.capacity(); i++)
+        {
+            int sku = table.skus.get(i);
+            if(sku <= FREE)
+                continue;
+
+            long count = claim(table, i);
+            if(count == RETIRED)
+            {
+                // lines already cleared are not copied to the new table
+                RETRIES.increment();
+                table = slots;
+                i = -1;
+                continue;
+            }
+
+            if(count > 0)
+            {
+                totalCents.addAndGet(-table.amounts[i]);
+                table.amounts[i] = 0;
+                table.units.set(i, null);
+                lineCount.decrementAndGet();
+                catalog.release(sku);
+            }
+            table.counts.set(i, 0);
+        }
+    }
+
+    /**
+     * Reads the quantity of the SKU without waiting for writers
+     * @param sku
+     * @return 0 if the basket has no line for the SKU
+     */
+    long get(int sku)
+    {
+        Slots table = slots;
+        int mask = table.capacity() - 1;
+        for(int index = spread(sku) & mask, probes = 0; probes <= mask; index = (index + 1) & mask, probes++)
+        {
+            int current = table.skus.get(index);
+            if(current == sku)
+                return table.counts.get(index) & ~CLAIMED;
+
+            // a sealed slot was free when the table was retired
+            if(current == FREE || current == SEALED)
+                return 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the product a line is priced with, without waiting for writers
+     * @param sku
+     * @return the catalog product if the basket has no line for the SKU
+     */
+    Product getProduct(int sku)
+    {
+        refresh();
+
+        Slots table = slots;
+        int mask = table.capacity() - 1;
+        for(int index = spread(sku) & mask, probes = 0; probes <= mask; index = (index + 1) & mask, probes++)
+        {
+            int current = table.skus.get(index);
+            if(current == sku)
+            {
+                Product unit = table.units.get(index);
+                return unit != null ? unit : catalog.getProduct(sku);
+            }
+
+            if(current == FREE || current == SEALED)
+                break;
+        }
+        return catalog.getProduct(sku);
+    }
+
+    /**
+     * @return sum of the priced amounts of all lines, at the current prices
+     */
+    double getTotalPrice()
+    {
+        refresh();
+
+        return Cents.toAmount(totalCents.get());
+    }
+
+    /**
+     * @return number of lines with a positive quantity
+     */
+    int getLineCount()
+    {
+        return lineCount.get();
+    }
+
+    /**
+     * Visits every line with a positive quantity
+     * @param consumer
+     */
+    void forEach(LineConsumer consumer)
+    {
+        refresh();
+
+        Slots table = slots;
+        for(int i = 0; i < table.capacity(); i++)
+        {
+            int sku = table.skus.get(i);
+            if(sku > FREE)
+            {
+                long count = table.counts.get(i) & ~CLAIMED;
+                if(count > 0)
+                {
+                    Product unit = table.units.get(i);
+                    consumer.accept(unit != null ? unit : catalog.getProduct(sku), count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-prices the lines if prices have been republished since they were priced
+     */
+    private void refresh()
+    {
+        long version = catalog.getPriceVersion();
+        if(version != pricedVersion)
+            reprice(version);
+    }
+
+    /**
+     * @param unit latest unit added, null for a removal
+     * @param insert adds a held SKU, the hold is released unless the change creates the line
+     * @return quantity of the line after the change
+     * @throws InvalidRequestException if the count of the line would overflow
+     */
+    private long update(int sku, Product unit, long change, boolean insert)
+    {
+        boolean held = insert;
+        try
+        {
+            for(;;)
+            {
+                Slots table = slots;
+                if(cleared)
+                    return 0;
+
+                int index = find(table, sku, insert);
+                if(index == ABSENT)
+                    return 0;
+                if(index == RETIRED)
+                {
+                    RETRIES.increment();
+                    continue;
+                }
+
+                long count = claim(table, index);
+                if(count == RETIRED)
+                {
+                    RETRIES.increment();
+                    continue;
+                }
+
+                // checked again under the claim, a clear claims every line after setting it
+                if(cleared)
+                {
+                    table.counts.set(index, count);
+                    return 0;
+                }
+
+                long updated = apply(table, index, sku, unit, count, change, insert);
+                if(count == 0 && updated > 0)
+                    held = false;
+                else if(count > 0 && updated == 0)
+                    catalog.release(sku);
+                return updated;
+            }
+        }
+        finally
+        {
+            if(held)
+                catalog.release(sku);
+        }
+    }
+
+    /**
+     * Changes the claimed line and releases its claim
+     * @return quantity of the line after the change
+     */
+    private long apply(Slots table, int index, int sku, Product unit, long count, long change, boolean insert)
+    {
+        long updated;
+        try
+        {
+            updated = Math.max(0, Math.addExact(count, change));
+        }
+        catch(ArithmeticException e)
+        {
+            table.counts.set(index, count);
+            throw tooMany(sku);
+        }
+        if(updated == count)
+        {
+            table.counts.set(index, count);
+            return count;
+        }
+
+        try
+        {
+            // read before pricing, the line is at worst re-priced once more
+            long version = catalog.getPriceVersion();
+            Product registered = catalog.getProduct(sku);
+            Product kept = !insert ? unit(table, index, registered)
+                    : catalog.carriesCatalogPrices(sku, unit) ? null : unit;
+            long amount = updated == 0 ? 0 : Cents.of((kept != null ? kept : registered).getPrice(updated));
+            totalCents.addAndGet(amount - table.amounts[index]);
+            table.amounts[index] = amount;
+            table.priceVersions[index] = version;
+            table.units.set(index, updated == 0 ? null : kept);
+            table.published[index] = registered;
+        }
+        catch(RuntimeException e)
+        {
+            table.counts.set(index, count);
+            throw e;
+        }
+
+        if(count == 0)
+            lineCount.incrementAndGet();
+        else if(updated == 0)
+            lineCount.decrementAndGet();
+
+        table.counts.set(index, updated);
+        return updated;
+    }
+
+    /**
+     * @return rejection of a change taking the count of the line of the SKU past Long.MAX_VALUE
+     */
+    static InvalidRequestException tooMany(int sku)
+    {
+        return new InvalidRequestException("Basket line of SKU " + sku + " cannot hold more than " + Long.MAX_VALUE + " units");
+    }
+
+    /**
+     * Re-prices the lines priced before the version, one claimed line at a time
+     */
+    private void reprice(long version)
+    {
+        Slots table = slots;
+        for(int i = 0; i < table.capacity(); i++)
+        {
+            int sku = table.skus.get(i);
+            if(sku <= FREE)
+                continue;
+
+            long count = claim(table, i);
+            if(count == RETIRED)
+            {
+                // lines already re-priced are skipped on the new table
+                RETRIES.increment();
+                table = slots;
+                i = -1;
+                continue;
+            }
+
+            try
+            {
+                if(count > 0 && table.priceVersions[i] < version)
+                {
+                    Product registered = catalog.getProduct(sku);
+                    Product unit = unit(table, i, registered);
+                    long amount = Cents.of((unit != null ? unit : registered).getPrice(count));
+                    totalCents.addAndGet(amount - table.amounts[i]);
+                    table.amounts[i] = amount;
+                    table.priceVersions[i] = version;
+                    table.units.set(i, unit);
+                }
+            }
+            finally
+            {
+                table.counts.set(i, count);
+            }
+        }
+
+        if(pricedVersion < version)
+            pricedVersion = version;
+    }
+
+    /**
+     * Unit the claimed line is priced with, if it is still in force
+     * @param registered current catalog product of the line
+     * @return null if the line follows the catalog product, or a feed has replaced the one its unit was added against
+     */
+    private Product unit(Slots table, int index, Product registered)
+    {
+        Product unit = table.units.get(index);
+        return unit != null && table.published[index] == registered ? unit : null;
+    }
+
+    /**
+     * Finds the slot of the SKU, inserting it into a free slot if asked to
+     * @return slot index, ABSENT or RETIRED
+     */
+    private int find(Slots table, int sku, boolean insert)
+    {
+        int mask = table.capacity() - 1;
+        for(int index = spread(sku) & mask, probes = 0; probes <= mask; index = (index + 1) & mask, probes++)
+        {
+            int current = table.skus.get(index);
+            if(current == sku)
+                return index;
+
+            if(current == SEALED)
+                return awaitResize(table);
+
+            if(current == FREE)
+            {
+                if(!insert)
+                    return ABSENT;
+
+                if(table.used.get() >= table.capacity() - (table.capacity() >>> 2))
+                {
+                    resize(table);
+                    return RETIRED;
+                }
+
+                if(table.skus.compareAndSet(index, FREE, sku))
+                {
+                    table.used.incrementAndGet();
+                    return index;
+                }
+
+                // lost the slot, look at it again
+                index = (index - 1) & mask;
+                probes--;
+            }
+        }
+
+        if(!insert)
+            return ABSENT;
+
+        resize(table);
+        return RETIRED;
+    }
+
+    /**
+     * Claims the line at index
+     * @return quantity of the line before the claim, or RETIRED
+     */
+    private long claim(Slots table, int index)
+    {
+        for(;;)
+        {
+            long count = table.counts.get(index);
+            if((count & CLAIMED) == 0)
+            {
+                if(table.counts.compareAndSet(index, count, count | CLAIMED))
+                    return count;
+            }
+            else if(slots != table)
+            {
+                return RETIRED;
+            }
+            else
+            {
+                CLAIM_WAITS.increment();
+                Thread.yield();
+            }
+        }
+    }
+
+    private void resize(Slots table)
+    {
+        if(!table.retiring.compareAndSet(false, true))
+        {
+            awaitResize(table);
+            return;
+        }
+
+        int live = 0;
+        for(int i = 0; i < table.capacity(); i++)
+        {
+            if(!table.skus.compareAndSet(i, FREE, SEALED))
+            {
+                while(claim(table, i) == RETIRED)
+                    Thread.yield();
+                if(table.counts.get(i) != CLAIMED)
+                    live++;
+            }
+        }
+
+        int capacity = INITIAL_CAPACITY;
+        while(capacity < (live + 1) * 2)
+            capacity <<= 1;
+
+        Slots rebuilt = new Slots(capacity);
+        int mask = capacity - 1;
+        for(int i = 0; i < table.capacity(); i++)
+        {
+            int sku = table.skus.get(i);
+            long count = table.counts.get(i) & ~CLAIMED;
+            if(sku > FREE && count > 0)
+            {
+                int index = spread(sku) & mask;
+                while(rebuilt.skus.get(index) != FREE)
+                    index = (index + 1) & mask;
+
+                rebuilt.skus.set(index, sku);
+                rebuilt.counts.set(index, count);
+                rebuilt.amounts[index] = table.amounts[i];
+                rebuilt.priceVersions[index] = table.priceVersions[i];
+                rebuilt.units.set(index, table.units.get(i));
+                rebuilt.published[index] = table.published[i];
+                rebuilt.used.incrementAndGet();
+            }
+        }
+
+        slots = rebuilt;
+    }
+
+    private int awaitResize(Slots table)
+    {
+        while(slots == table)
+            Thread.yield();
+        return RETIRED;
+    }
+
+    private static int spread(int sku)
+    {
+        int hash = sku * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Slots
+    {
+        final AtomicIntegerArray skus;
+
+        final AtomicLongArray counts;
+
+        /**
+         * priced amount per line in cents, only accessed by the writer holding the claim of the line
+         */
+        final long[] amounts;
+
+        /**
+         * price version of every amount, accessed as the amounts
+         */
+        final long[] priceVersions;
+
+        /**
+         * latest unit of every line whose special prices differ from those of the catalog product, else null,
+         * written by the writer holding the claim of the line
+         */
+        final AtomicReferenceArray<Product> units;
+
+        /**
+         * catalog product of the SKU when the unit was added, accessed as the amounts
+         */
+        final Product[] published;
+
+        final AtomicInteger used = new AtomicInteger();
+
+        final AtomicBoolean retiring = new AtomicBoolean();
+
+        Slots(int capacity)
+        {
+            this.skus = new AtomicIntegerArray(capacity);
+            this.counts = new AtomicLongArray(capacity);
+            this.amounts = new long[capacity];
+            this.priceVersions = new long[capacity];
+            this.units = new AtomicReferenceArray<>(capacity);
+            this.published = new Product[capacity];
+        }
+
+        int capacity()
+        {
+            return amounts.length;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.products.Product;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Basket applying its mutations from a queue, one writer at a time.
+ *
+ * A mutation is queued and the caller that finds no writer at work becomes the writer. It drains the queue, then
+ * hands the rest over to the executor after MAX_BATCHES_PER_TURN changes so that no caller drains for others forever.
+ * Consecutive unconditional mutations of the same kind are coalesced into a single change of the basket, so lines
+ * are re-priced and journaled once for all of them, and every caller of the change asking for lines gets the lines
+ * after it. A change none of whose callers asks for lines is applied without taking a snapshot.
+ * A change therefore counts as one version however many mutations it coalesced. A coalesced change rejected before
+ * it changed the basket is applied again one mutation at a time, so that a faulty mutation fails alone. Conditional
+ * mutations are applied one by one against their expected version.
+ *
+ * The decorated basket never sees two writers, its monitors are taken without contention. Reads go straight to it.
+ */
+public final class MailboxBasket implements Basket
+{
+    static final int MAX_COALESCED = 256;
+
+    static final int MAX_BATCHES_PER_TURN = 64;
+
+    private static final DistributionSummary COALESCED = DistributionSummary.builder("basket.mailbox.coalesced")
+            .description("Mutations applied by one change of a basket")
+            .register(Metrics.globalRegistry);
+
+    private final Basket basket;
+
+    private final Executor executor;
+
+    private final Queue<Mutation> mailbox = new ConcurrentLinkedQueue<>();
+
+    /**
+     * set while a writer drains the mailbox
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * @param basket the basket the mutations are applied to
+     * @param executor continues draining when a writer has done its share
+     */
+    public MailboxBasket(Basket basket, Executor executor)
+    {
+        this.basket = basket;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the basket the mutations are applied to
+     */
+    public Basket getBasket()
+    {
+        return basket;
+    }
+
+    @Override
+    public UUID getBasketID()
+    {
+        return basket.getBasketID();
+    }
+
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products)
+    {
+        return join(addProductsAsync(products));
+    }
+
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products)
+    {
+        return join(removeProductsAsync(products));
+    }
+
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        return join(addProductsAsync(products, expectedVersion));
+    }
+
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        return join(removeProductsAsync(products, expectedVersion));
+    }
+
+    @Override
+    public void addAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        join(addAllAsync(products, expectedVersion));
+    }
+
+    @Override
+    public void removeAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        join(removeAllAsync(products, expectedVersion));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> addProductsAsync(Collection<? extends Product> products)
+    {
+        return submit(new Mutation(true, products, ANY_VERSION, true));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> removeProductsAsync(Collection<? extends Product> products)
+    {
+        return submit(new Mutation(false, products, ANY_VERSION, true));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> addProductsAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return submit(new Mutation(true, products, checked(expectedVersion), true));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> removeProductsAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return submit(new Mutation(false, products, checked(expectedVersion), true));
+    }
+
+    @Override
+    public CompletableFuture<Void> addAllAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        long checkedVersion = expectedVersion == ANY_VERSION ? ANY_VERSION : checked(expectedVersion);
+        return submit(new Mutation(true, products, checkedVersion, false)).thenApply(lines -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> removeAllAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        long checkedVersion = expectedVersion == ANY_VERSION ? ANY_VERSION : checked(expectedVersion);
+        return submit(new Mutation(false, products, checkedVersion, false)).thenApply(lines -> null);
+    }
+
+    @Override
+    public double getTotalPrice()
+    {
+        return basket.getTotalPrice();
+    }
+
+    @Override
+    public Map<Product, Long> getAllProducts()
+    {
+        return basket.getAllProducts();
+    }
+
+    @Override
+    public Map<Product, Long> getQuantities(Collection<? extends Product> products)
+    {
+        return basket.getQuantities(products);
+    }
+
+    @Override
+    public int getLineCount()
+    {
+        return basket.getLineCount();
+    }
+
+    @Override
+    public long getVersion()
+    {
+        return basket.getVersion();
+    }
+
+    @Override
+    public void release()
+    {
+        basket.release();
+    }
+
+    private static long checked(long expectedVersion)
+    {
+        if(expectedVersion < 0)
+            throw new VersionConflictException("Basket has changed since version " + expectedVersion);
+        return expectedVersion;
+    }
+
+    private CompletableFuture<Map<Product, Long>> submit(Mutation mutation)
+    {
+        mailbox.add(mutation);
+        if(draining.compareAndSet(false, true))
+            drain();
+        return mutation.result;
+    }
+
+    /**
+     * Applies the queued mutations until the mailbox is empty or the turn is over, the writer then either
+     * leaves or hands over to the executor
+     */
+    private void drain()
+    {
+        int batches = 0;
+        for(;;)
+        {
+            if(batches++ == MAX_BATCHES_PER_TURN)
+            {
+                executor.execute(this::drain);
+                return;
+            }
+
+            Mutation first = mailbox.poll();
+            if(first == null)
+            {
+                draining.set(false);
+                // a mutation queued after the last poll but before the flag was cleared has no writer yet
+                if(mailbox.isEmpty() || !draining.compareAndSet(false, true))
+                    return;
+                continue;
+            }
+
+            if(first.expectedVersion != ANY_VERSION)
+                apply(first);
+            else
+                applyCoalesced(first);
+        }
+    }
+
+    private void apply(Mutation mutation)
+    {
+        CompletableFuture<?> applied;
+        try
+        {
+            applied = apply(mutation.add, mutation.products, mutation.expectedVersion, mutation.lines);
+        }
+        catch(RuntimeException e)
+        {
+            mutation.result.completeExceptionally(e);
+            return;
+        }
+        COALESCED.record(1);
+        applied.whenComplete((lines, failure) -> complete(mutation, lines, failure));
+    }
+
+    /**
+     * Applies the mutation with the unconditional mutations of the same kind queued right after it.
+     * A change failing before it changed the basket, such as one holding a null product, is down to some of its
+     * mutations only: each mutation is then applied alone so that only the faulty ones fail
+     */
+    private void applyCoalesced(Mutation first)
+    {
+        List<Mutation> batch = new ArrayList<>();
+        List<Product> products = new ArrayList<>();
+        batch.add(first);
+        append(products, first.products);
+        boolean lines = first.lines;
+
+        Mutation next;
+        while(batch.size() < MAX_COALESCED && (next = mailbox.peek()) != null
+                && next.add == first.add && next.expectedVersion == ANY_VERSION)
+        {
+            // the single writer is the only one polling, the peeked mutation is still the head
+            mailbox.poll();
+            batch.add(next);
+            append(products, next.products);
+            lines |= next.lines;
+        }
+
+        long version = basket.getVersion();
+        CompletableFuture<?> applied;
+        try
+        {
+            applied = apply(first.add, products, ANY_VERSION, lines);
+        }
+        catch(RuntimeException e)
+        {
+            applied = new CompletableFuture<>();
+            applied.completeExceptionally(e);
+        }
+
+        // a failure once the basket changed, such as a journal write, belongs to every mutation of the change
+        if(applied.isCompletedExceptionally() && batch.size() > 1 && basket.getVersion() == version)
+        {
+            batch.forEach(this::apply);
+            return;
+        }
+        COALESCED.record(batch.size());
+        applied.whenComplete((changed, failure) -> batch.forEach(mutation -> complete(mutation, changed, failure)));
+    }
+
+    /**
+     * Applies a change to the basket, taking a snapshot of its lines only if asked to
+     */
+    private CompletableFuture<?> apply(boolean add, Collection<? extends Product> products, long expectedVersion, boolean lines)
+    {
+        if(!lines)
+            return add ? basket.addAllAsync(products, expectedVersion) : basket.removeAllAsync(products, expectedVersion);
+
+        if(expectedVersion == ANY_VERSION)
+            return add ? basket.addProductsAsync(products) : basket.removeProductsAsync(products);
+        return add ? basket.addProductsAsync(products, expectedVersion) : basket.removeProductsAsync(products, expectedVersion);
+    }
+
+    private static void append(List<Product> products, Collection<? extends Product> added)
+    {
+        if(added != null)
+            products.addAll(added);
+    }
+
+    /**
+     * @param lines lines of the basket after the change, null if no caller of the change asked for them
+     */
+    @SuppressWarnings("unchecked")
+    private static void complete(Mutation mutation, Object lines, Throwable failure)
+    {
+        if(failure == null)
+            mutation.result.complete((Map<Product, Long>) lines);
+        else
+            mutation.result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause() : failure);
+    }
+
+    /**
+     * Waits for an asynchronous result, rethrowing its failure unwrapped
+     */
+    private static <T> T join(CompletableFuture<T> result)
+    {
+        try
+        {
+            return result.join();
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+
+        if(!(o instanceof MailboxBasket)) return false;
+
+        return getBasketID().equals(((MailboxBasket) o).getBasketID());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return basket.hashCode();
+    }
+
+    private static final class Mutation
+    {
+        private final boolean add;
+
+        private final Collection<? extends Product> products;
+
+        private final long expectedVersion;
+
+        /**
+         * set if the caller gets the lines after the change
+         */
+        private final boolean lines;
+
+        private final CompletableFuture<Map<Product, Long>> result = new CompletableFuture<>();
+
+        private Mutation(boolean add, Collection<? extends Product> products, long expectedVersion, boolean lines)
+        {
+            this.add = add;
+            this.products = products;
+            this.expectedVersion = expectedVersion;
+            this.lines = lines;
+        }
+    }
+}
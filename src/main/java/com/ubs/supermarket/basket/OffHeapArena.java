@@ -0,0 +1,177 @@
+package com.ubs.supermarket.basket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Off-heap memory for basket lines, carved out of direct buffers the garbage collector never scans.
+ *
+ * Memory is handed out as slots of a power of two number of lines. A slot is addressed by a handle packing
+ * its chunk index and byte offset, freed slots are kept on a free list per size and reused before any new
+ * memory is taken. Chunks are never returned to the operating system.
+ *
+ * Slot layout, offsets in bytes
+ *   0   int     table entries in use, lines emptied by a removal included
+ *   4   int     lines with a positive quantity
+ *   8   long    total price of the lines in cents
+ *   16  lines of LINE_BYTES: int SKU (NO_SKU when the entry is free), long quantity at 8, long price in cents at 16
+ */
+final class OffHeapArena
+{
+    static final long NO_SLOT = -1;
+
+    static final int HEADER_BYTES = 16;
+
+    static final int LINE_BYTES = 24;
+
+    static final int MIN_CAPACITY = 4;
+
+    private static final int SIZE_CLASSES = 32;
+
+    private final int chunkSize;
+
+    /**
+     * replaced on growth, read without locking by the baskets
+     */
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    /**
+     * next free byte of the last chunk, guarded by this
+     */
+    private int chunkOffset;
+
+    /**
+     * freed slot handles per size class, guarded by this
+     */
+    private final long[][] freeSlots = new long[SIZE_CLASSES][];
+
+    private final int[] freeCounts = new int[SIZE_CLASSES];
+
+    private long usedBytes;
+
+    /**
+     * @param chunkSize bytes of every direct buffer, bounds the lines of a single basket
+     */
+    OffHeapArena(int chunkSize)
+    {
+        if(chunkSize < slotBytes(MIN_CAPACITY))
+            throw new IllegalArgumentException("Chunk size must hold at least one slot");
+
+        this.chunkSize = chunkSize;
+        this.chunkOffset = chunkSize;
+    }
+
+    /**
+     * Returns a zeroed slot for the given number of lines
+     * @param capacity power of two, at least MIN_CAPACITY
+     * @return slot handle
+     */
+    synchronized long allocate(int capacity)
+    {
+        int bytes = slotBytes(capacity);
+        if(bytes > chunkSize)
+            throw new IllegalStateException("Basket exceeds the off-heap line limit of " + maxCapacity() + " lines");
+
+        int sizeClass = sizeClass(capacity);
+        long slot;
+        if(freeCounts[sizeClass] > 0)
+        {
+            slot = freeSlots[sizeClass][--freeCounts[sizeClass]];
+            clear(slot, bytes);
+        }
+        else
+        {
+            if(chunkOffset + bytes > chunkSize)
+                addChunk();
+
+            slot = handle(chunks.length - 1, chunkOffset);
+            chunkOffset += bytes;
+        }
+
+        usedBytes += bytes;
+        return slot;
+    }
+
+    /**
+     * Returns a slot to its free list, the caller must not touch it anymore
+     * @param slot
+     * @param capacity the capacity it was allocated with
+     */
+    synchronized void free(long slot, int capacity)
+    {
+        int sizeClass = sizeClass(capacity);
+        long[] free = freeSlots[sizeClass];
+        if(free == null)
+            free = freeSlots[sizeClass] = new long[16];
+        else if(freeCounts[sizeClass] == free.length)
+            free = freeSlots[sizeClass] = Arrays.copyOf(free, free.length * 2);
+
+        free[freeCounts[sizeClass]++] = slot;
+        usedBytes -= slotBytes(capacity);
+    }
+
+    ByteBuffer chunk(long slot)
+    {
+        return chunks[(int) (slot >>> 32)];
+    }
+
+    static int offset(long slot)
+    {
+        return (int) slot;
+    }
+
+    /**
+     * @return largest number of lines a slot can hold
+     */
+    int maxCapacity()
+    {
+        return Integer.highestOneBit((chunkSize - HEADER_BYTES) / LINE_BYTES);
+    }
+
+    /**
+     * @return off-heap bytes reserved so far
+     */
+    synchronized long getReservedBytes()
+    {
+        return (long) chunks.length * chunkSize;
+    }
+
+    /**
+     * @return off-heap bytes held by live slots
+     */
+    synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    static int slotBytes(int capacity)
+    {
+        return HEADER_BYTES + capacity * LINE_BYTES;
+    }
+
+    private void addChunk()
+    {
+        ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[chunks.length] = ByteBuffer.allocateDirect(chunkSize);
+        chunks = grown;
+        chunkOffset = 0;
+    }
+
+    private void clear(long slot, int bytes)
+    {
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        for(int i = 0; i < bytes; i += Long.BYTES)
+            chunk.putLong(offset + i, 0L);
+    }
+
+    private static long handle(int chunk, int offset)
+    {
+        return ((long) chunk << 32) | offset;
+    }
+
+    private static int sizeClass(int capacity)
+    {
+        return Integer.numberOfTrailingZeros(capacity / MIN_CAPACITY);
+    }
+}
@@ -0,0 +1,682 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import org.springframework.util.CollectionUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Basket keeping its lines in an off-heap slot, keyed by catalog SKU.
+ *
+ * The heap only holds this small object, the lines, their prices and the running total live in an open
+ * addressing table inside the slot, amounts in Cents. Empty baskets take no slot, a full table moves to a slot twice its
+ * size. Updates and reads are serialized on the basket monitor, which also guards slot moves and the version.
+ * A read of the total after prices are republished re-prices every line first.
+ *
+ * A line is priced with the special prices of its latest unit. The heap only keeps that unit for the lines
+ * whose latest unit carries special prices other than those of the catalog product, until a feed replaces it.
+ *
+ * Lines hold the SKUs of their products while their quantity is positive.
+ * A released basket has given its slot and SKUs back and behaves as an empty basket ignoring every change.
+ */
+final class OffHeapBasket implements Basket
+{
+    private static final int SKU = 0;
+
+    private static final int COUNT = 8;
+
+    private static final int AMOUNT = 16;
+
+    private static final int USED = 0;
+
+    private static final int LINES = 4;
+
+    private static final int TOTAL = 8;
+
+    private final OffHeapArena arena;
+
+    private final ProductCatalog catalog;
+
+    private final long mostSigBits;
+
+    private final long leastSigBits;
+
+    /**
+     * NO_SLOT until the first line is added, guarded by this
+     */
+    private long slot = OffHeapArena.NO_SLOT;
+
+    private int capacity;
+
+    private boolean released;
+
+    private long version;
+
+    /**
+     * units of the lines priced with their own special prices, by SKU, guarded by this
+     */
+    private final Map<Integer, Unit> units = new HashMap<>();
+
+    /**
+     * price version every line has been priced at or after
+     */
+    private long pricedVersion;
+
+    /**
+     * @param version version the basket had when its lines were saved, 0 for a new basket
+     */
+    OffHeapBasket(OffHeapArena arena, ProductCatalog catalog, UUID basketID, long version)
+    {
+        this.arena = arena;
+        this.catalog = catalog;
+        this.version = version;
+        this.pricedVersion = catalog.getPriceVersion();
+        this.mostSigBits = basketID.getMostSignificantBits();
+        this.leastSigBits = basketID.getLeastSignificantBits();
+    }
+
+    @Override
+    public UUID getBasketID()
+    {
+        return new UUID(mostSigBits, leastSigBits);
+    }
+
+    @Override
+    public synchronized Map<Product, Long> addProducts(Collection<? extends Product> products)
+    {
+        addIfVersion(products, ANY_VERSION);
+        return getAllProducts();
+    }
+
+    @Override
+    public synchronized Map<Product, Long> addProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        addIfVersion(products, checked(expectedVersion));
+        return getAllProducts();
+    }
+
+    /**
+     * Adds the products without taking a snapshot, allocating nothing once the products and their quotes are known
+     * and their lines have room
+     * @param products
+     * @param expectedVersion
+     */
+    @Override
+    public void addAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        addIfVersion(products, expectedVersion == ANY_VERSION ? ANY_VERSION : checked(expectedVersion));
+    }
+
+    /**
+     * Adds the units of a product at once, re-pricing its line a single time.
+     * The lines are checked and given room first, a change that fails adds to no line
+     */
+    private synchronized void addIfVersion(Collection<? extends Product> products, long expectedVersion)
+    {
+        checkVersion(expectedVersion);
+        if(!CollectionUtils.isEmpty(products))
+        {
+            SkuCounts counts = SkuCounts.acquire();
+            try
+            {
+                counts.addAll(products, catalog, true);
+                reserve(counts);
+                for(int i = 0; i < counts.size(); i++)
+                    addHeld(counts.take(i), counts.unit(i), counts.count(i));
+            }
+            finally
+            {
+                counts.release();
+            }
+            version++;
+        }
+    }
+
+    /**
+     * Adds to the line of the product in place, allocating nothing once the product and its quote are known
+     * and the line has room
+     * @param product
+     * @param count
+     * @return
+     */
+    @Override
+    public synchronized long addProduct(Product product, long count)
+    {
+        if(count <= 0)
+            return quantity(product);
+
+        int sku = catalog.acquire(product, true);
+        addHeld(sku, product, count);
+        version++;
+        return quantity(sku);
+    }
+
+    /**
+     * Adds a quantity of a product at once, pricing its line a single time
+     * @param product
+     * @param count
+     */
+    synchronized void add(Product product, long count)
+    {
+        addHeld(catalog.acquire(product, true), product, count);
+    }
+
+    /**
+     * Ignores products that are not in the basket
+     */
+    @Override
+    public synchronized Map<Product, Long> removeProducts(Collection<? extends Product> products)
+    {
+        removeIfVersion(products, ANY_VERSION);
+        return getAllProducts();
+    }
+
+    @Override
+    public synchronized Map<Product, Long> removeProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        removeIfVersion(products, checked(expectedVersion));
+        return getAllProducts();
+    }
+
+    /**
+     * Removes the products without taking a snapshot, allocating nothing once the products are known
+     * @param products
+     * @param expectedVersion
+     */
+    @Override
+    public void removeAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        removeIfVersion(products, expectedVersion == ANY_VERSION ? ANY_VERSION : checked(expectedVersion));
+    }
+
+    private void removeIfVersion(Collection<? extends Product> products, long expectedVersion)
+    {
+        if(CollectionUtils.isEmpty(products))
+        {
+            synchronized(this)
+            {
+                checkVersion(expectedVersion);
+                return;
+            }
+        }
+
+        SkuCounts counts = SkuCounts.acquire();
+        try
+        {
+            counts.addAll(products, catalog, false);
+            synchronized(this)
+            {
+                checkVersion(expectedVersion);
+                for(int i = 0; i < counts.size(); i++)
+                    update(counts.sku(i), null, -counts.count(i));
+                version++;
+            }
+        }
+        finally
+        {
+            counts.release();
+        }
+    }
+
+    /**
+     * Removes from the line of the product in place, a product not in the basket is ignored but still counts as
+     * a change like it does for removeProducts
+     * @param product
+     * @param count
+     * @return
+     */
+    @Override
+    public synchronized long removeProduct(Product product, long count)
+    {
+        int sku = catalog.acquire(product, false);
+        try
+        {
+            if(count > 0)
+            {
+                if(sku != ProductCatalog.NO_SKU)
+                    update(sku, null, -count);
+                version++;
+            }
+            return quantity(sku);
+        }
+        finally
+        {
+            catalog.release(sku);
+        }
+    }
+
+    @Override
+    public synchronized double getTotalPrice()
+    {
+        if(slot == OffHeapArena.NO_SLOT)
+            return 0;
+
+        refresh();
+        return Cents.toAmount(arena.chunk(slot).getLong(OffHeapArena.offset(slot) + TOTAL));
+    }
+
+    @Override
+    public synchronized Map<Product, Long> getAllProducts()
+    {
+        if(slot == OffHeapArena.NO_SLOT)
+            return Collections.emptyMap();
+
+        refresh();
+        ByteBuffer chunk = arena.chunk(slot);
+        int line = OffHeapArena.offset(slot) + OffHeapArena.HEADER_BYTES;
+        Map<Product, Long> products = new HashMap<>();
+        for(int i = 0; i < capacity; i++, line += OffHeapArena.LINE_BYTES)
+        {
+            long count = chunk.getLong(line + COUNT);
+            if(count > 0)
+                products.put(priced(chunk.getInt(line + SKU)), count);
+        }
+        return Collections.unmodifiableMap(products);
+    }
+
+    @Override
+    public synchronized Map<Product, Long> getQuantities(Collection<? extends Product> products)
+    {
+        if(slot != OffHeapArena.NO_SLOT)
+            refresh();
+
+        Map<Product, Long> quantities = new LinkedHashMap<>();
+        for(Product product : products)
+        {
+            // held meanwhile, so that the SKU is not reclaimed and assigned to another product of the basket
+            int sku = catalog.acquire(product, false);
+            try
+            {
+                if(sku == ProductCatalog.NO_SKU)
+                    quantities.put(product, 0L);
+                else
+                    quantities.put(priced(sku), quantity(sku));
+            }
+            finally
+            {
+                catalog.release(sku);
+            }
+        }
+        return Collections.unmodifiableMap(quantities);
+    }
+
+    @Override
+    public synchronized int getLineCount()
+    {
+        if(slot == OffHeapArena.NO_SLOT)
+            return 0;
+
+        return arena.chunk(slot).getInt(OffHeapArena.offset(slot) + LINES);
+    }
+
+    @Override
+    public synchronized long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Gives the slot back to the arena and the SKUs of the lines to the catalog
+     */
+    @Override
+    public synchronized void release()
+    {
+        released = true;
+        units.clear();
+        if(slot == OffHeapArena.NO_SLOT)
+            return;
+
+        ByteBuffer chunk = arena.chunk(slot);
+        int line = OffHeapArena.offset(slot) + OffHeapArena.HEADER_BYTES;
+        for(int i = 0; i < capacity; i++, line += OffHeapArena.LINE_BYTES)
+        {
+            if(chunk.getLong(line + COUNT) > 0)
+                catalog.release(chunk.getInt(line + SKU));
+        }
+
+        arena.free(slot, capacity);
+        slot = OffHeapArena.NO_SLOT;
+    }
+
+    /**
+     * @param expectedVersion ANY_VERSION for an unconditional change
+     */
+    private void checkVersion(long expectedVersion)
+    {
+        if(expectedVersion != ANY_VERSION && expectedVersion != version)
+            throw new VersionConflictException("Basket has changed since version " + expectedVersion);
+    }
+
+    private static long checked(long expectedVersion)
+    {
+        if(expectedVersion < 0)
+            throw new VersionConflictException("Basket has changed since version " + expectedVersion);
+        return expectedVersion;
+    }
+
+    private long quantity(Product product)
+    {
+        int sku = catalog.acquire(product, false);
+        try
+        {
+            return quantity(sku);
+        }
+        finally
+        {
+            catalog.release(sku);
+        }
+    }
+
+    private long quantity(int sku)
+    {
+        if(slot == OffHeapArena.NO_SLOT || sku == ProductCatalog.NO_SKU)
+            return 0;
+
+        ByteBuffer chunk = arena.chunk(slot);
+        int line = find(chunk, OffHeapArena.offset(slot), sku);
+        return chunk.getInt(line + SKU) == sku ? chunk.getLong(line + COUNT) : 0;
+    }
+
+    /**
+     * Re-prices the lines if prices have been republished since they were priced
+     */
+    private void refresh()
+    {
+        long priceVersion = catalog.getPriceVersion();
+        if(priceVersion != pricedVersion)
+            reprice(priceVersion);
+    }
+
+    /**
+     * Product the line of the SKU is priced with, a unit is dropped once a feed has replaced the catalog product
+     * it was added against
+     */
+    private Product priced(int sku)
+    {
+        Product registered = catalog.getProduct(sku);
+        // looked up only if a line has a unit, so that SKUs are not boxed for the others
+        if(units.isEmpty())
+            return registered;
+
+        Unit unit = units.get(sku);
+        if(unit == null)
+            return registered;
+
+        if(unit.published != registered)
+        {
+            units.remove(sku);
+            return registered;
+        }
+        return unit.product;
+    }
+
+    /**
+     * Checks that the lines of the grouped SKUs can take their counts and moves to a slot with room for the lines
+     * they create, so that adding them cannot fail halfway
+     * @throws InvalidRequestException if the count of a line would overflow
+     * @throws IllegalStateException if the lines would exceed the off-heap line limit
+     */
+    private void reserve(SkuCounts counts)
+    {
+        if(released)
+            return;
+
+        int created = 0;
+        for(int i = 0; i < counts.size(); i++)
+        {
+            long quantity = quantity(counts.sku(i));
+            if(counts.count(i) > Long.MAX_VALUE - quantity)
+                throw LineTable.tooMany(counts.sku(i));
+            if(quantity == 0)
+                created++;
+        }
+        if(created == 0)
+            return;
+
+        if(slot == OffHeapArena.NO_SLOT)
+        {
+            resize(capacityFor(created));
+            return;
+        }
+
+        ByteBuffer chunk = arena.chunk(slot);
+        int header = OffHeapArena.offset(slot);
+        if((chunk.getInt(header + USED) + created) * 4 > capacity * 3)
+            resize(capacityFor(chunk.getInt(header + LINES) + created));
+    }
+
+    /**
+     * Adds to the line of a SKU held by the caller, the line keeps the hold if the change creates it
+     * @throws InvalidRequestException if the count of the line would overflow
+     */
+    private void addHeld(int sku, Product unit, long count)
+    {
+        boolean created = false;
+        try
+        {
+            created = update(sku, unit, count);
+        }
+        finally
+        {
+            if(!created)
+                catalog.release(sku);
+        }
+    }
+
+    /**
+     * Adds a quantity change to the line of the SKU, the quantity never goes below zero.
+     * An emptied line releases its SKU
+     * @param unit latest unit added, null for a removal
+     * @return true if the change created the line
+     * @throws InvalidRequestException if the count of the line would overflow
+     */
+    private boolean update(int sku, Product unit, long change)
+    {
+        if(released || (change < 0 && slot == OffHeapArena.NO_SLOT))
+            return false;
+
+        if(slot == OffHeapArena.NO_SLOT)
+            resize(OffHeapArena.MIN_CAPACITY);
+
+        ByteBuffer chunk = arena.chunk(slot);
+        int header = OffHeapArena.offset(slot);
+        int line = find(chunk, header, sku);
+        if(chunk.getInt(line + SKU) == ProductCatalog.NO_SKU)
+        {
+            if(change < 0)
+                return false;
+
+            int used = chunk.getInt(header + USED);
+            if((used + 1) * 4 > capacity * 3)
+            {
+                resize(capacityFor(chunk.getInt(header + LINES) + 1));
+                return update(sku, unit, change);
+            }
+            chunk.putInt(line + SKU, sku);
+            chunk.putInt(header + USED, used + 1);
+        }
+
+        long count = chunk.getLong(line + COUNT);
+        long updated;
+        try
+        {
+            updated = Math.max(0L, Math.addExact(count, change));
+        }
+        catch(ArithmeticException e)
+        {
+            throw LineTable.tooMany(sku);
+        }
+        if(updated == count)
+            return false;
+
+        Product product;
+        if(unit == null)
+        {
+            product = priced(sku);
+        }
+        else if(catalog.carriesCatalogPrices(sku, unit))
+        {
+            product = catalog.getProduct(sku);
+            if(!units.isEmpty())
+                units.remove(sku);
+        }
+        else
+        {
+            product = unit;
+            units.put(sku, new Unit(unit, catalog.getProduct(sku)));
+        }
+
+        long amount = chunk.getLong(line + AMOUNT);
+        long updatedAmount = updated == 0 ? 0 : Cents.of(product.getPrice(updated));
+        if(updated == 0 && !units.isEmpty())
+            units.remove(sku);
+
+        chunk.putLong(line + COUNT, updated);
+        chunk.putLong(line + AMOUNT, updatedAmount);
+        chunk.putLong(header + TOTAL, chunk.getLong(header + TOTAL) + updatedAmount - amount);
+        if(count == 0)
+        {
+            chunk.putInt(header + LINES, chunk.getInt(header + LINES) + 1);
+            return true;
+        }
+        if(updated == 0)
+        {
+            chunk.putInt(header + LINES, chunk.getInt(header + LINES) - 1);
+            catalog.release(sku);
+        }
+        return false;
+    }
+
+    /**
+     * @return offset of the line holding the SKU, or of the free entry where it belongs
+     */
+    private int find(ByteBuffer chunk, int header, int sku)
+    {
+        int mask = capacity - 1;
+        int index = sku * 0x9E3779B9 & mask;
+        for(;;)
+        {
+            int line = header + OffHeapArena.HEADER_BYTES + index * OffHeapArena.LINE_BYTES;
+            int current = chunk.getInt(line + SKU);
+            if(current == sku || current == ProductCatalog.NO_SKU)
+                return line;
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Prices every line again and sums the total from them, with the prices of the version or later
+     */
+    private void reprice(long priceVersion)
+    {
+        ByteBuffer chunk = arena.chunk(slot);
+        int header = OffHeapArena.offset(slot);
+        int line = header + OffHeapArena.HEADER_BYTES;
+        long total = 0;
+        for(int i = 0; i < capacity; i++, line += OffHeapArena.LINE_BYTES)
+        {
+            long count = chunk.getLong(line + COUNT);
+            if(count == 0)
+                continue;
+
+            long amount = Cents.of(priced(chunk.getInt(line + SKU)).getPrice(count));
+            chunk.putLong(line + AMOUNT, amount);
+            total += amount;
+        }
+        chunk.putLong(header + TOTAL, total);
+        pricedVersion = priceVersion;
+    }
+
+    /**
+     * Moves the lines with a positive quantity to a new slot, dropping the emptied ones
+     */
+    private void resize(int newCapacity)
+    {
+        long newSlot = arena.allocate(newCapacity);
+        ByteBuffer newChunk = arena.chunk(newSlot);
+        int newHeader = OffHeapArena.offset(newSlot);
+
+        long oldSlot = slot;
+        int oldCapacity = capacity;
+        slot = newSlot;
+        capacity = newCapacity;
+        if(oldSlot == OffHeapArena.NO_SLOT)
+            return;
+
+        ByteBuffer oldChunk = arena.chunk(oldSlot);
+        int oldLine = OffHeapArena.offset(oldSlot) + OffHeapArena.HEADER_BYTES;
+        int lines = 0;
+        for(int i = 0; i < oldCapacity; i++, oldLine += OffHeapArena.LINE_BYTES)
+        {
+            long count = oldChunk.getLong(oldLine + COUNT);
+            if(count == 0)
+                continue;
+
+            int sku = oldChunk.getInt(oldLine + SKU);
+            int line = find(newChunk, newHeader, sku);
+            newChunk.putInt(line + SKU, sku);
+            newChunk.putLong(line + COUNT, count);
+            newChunk.putLong(line + AMOUNT, oldChunk.getLong(oldLine + AMOUNT));
+            lines++;
+        }
+        newChunk.putInt(newHeader + USED, lines);
+        newChunk.putInt(newHeader + LINES, lines);
+        newChunk.putLong(newHeader + TOTAL, oldChunk.getLong(OffHeapArena.offset(oldSlot) + TOTAL));
+
+        arena.free(oldSlot, oldCapacity);
+    }
+
+    /**
+     * Smallest capacity keeping the table at most half full
+     */
+    private int capacityFor(int lines)
+    {
+        int newCapacity = OffHeapArena.MIN_CAPACITY;
+        while(newCapacity < lines * 2)
+            newCapacity <<= 1;
+        return newCapacity;
+    }
+
+    /**
+     * Latest unit of a line with the catalog product it was added against
+     */
+    private static final class Unit
+    {
+        final Product product;
+
+        final Product published;
+
+        Unit(Product product, Product published)
+        {
+            this.product = product;
+            this.published = published;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+
+        if(!(o instanceof OffHeapBasket)) return false;
+
+        OffHeapBasket basket = (OffHeapBasket) o;
+        return mostSigBits == basket.mostSigBits && leastSigBits == basket.leastSigBits;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return getBasketID().hashCode();
+    }
+}
@@ -0,0 +1,58 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Creates baskets whose lines are stored off-heap in shared direct buffers.
+ *
+ * Each basket leaves a few dozen bytes on the heap, so millions of open baskets add little to what the
+ * garbage collector has to trace. Baskets must be released once removed for their memory to be reused.
+ */
+public class OffHeapBasketFactory implements BasketFactory
+{
+    private final ProductCatalog catalog;
+
+    private final OffHeapArena arena;
+
+    /**
+     * @param catalog
+     * @param chunkSize bytes of every direct buffer allocated, bounds the lines of a single basket
+     */
+    public OffHeapBasketFactory(ProductCatalog catalog, int chunkSize)
+    {
+        this.catalog = catalog;
+        this.arena = new OffHeapArena(chunkSize);
+    }
+
+    @Override
+    public Basket create(UUID basketID, Map<? extends Product, Long> lines, long version)
+    {
+        OffHeapBasket basket = new OffHeapBasket(arena, catalog, basketID, version);
+        lines.forEach((product, count) ->
+        {
+            if(count > 0)
+                basket.add(product, count);
+        });
+        return basket;
+    }
+
+    /**
+     * @return off-heap bytes taken from the operating system
+     */
+    public long getReservedBytes()
+    {
+        return arena.getReservedBytes();
+    }
+
+    /**
+     * @return off-heap bytes held by live baskets
+     */
+    public long getUsedBytes()
+    {
+        return arena.getUsedBytes();
+    }
+}
@@ -0,0 +1,244 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Products of a change grouped by SKU with their unit counts and latest unit, in the order of their first unit.
+ *
+ * A change prices each of its lines once with its total count, grouping it used to take a map of boxed counts per
+ * change. Every thread groups into its own instance instead, whose primitive arrays are kept from one change to
+ * the next, so grouping allocates nothing once a thread has grouped a change of as many distinct products.
+ * Arrays grown past MAX_RETAINED_SKUS are dropped on release so that a huge change does not pin them to its thread.
+ *
+ * Every grouped SKU is held once in the catalog, so that it is not reclaimed while the change is applied.
+ * The basket line a SKU is taken for keeps or releases its hold, release drops the holds of the SKUs not taken.
+ */
+final class SkuCounts
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final int MAX_RETAINED_SKUS = 1024;
+
+    private static final ThreadLocal<SkuCounts> LOCAL = ThreadLocal.withInitial(SkuCounts::new);
+
+    /**
+     * distinct SKUs in the order of their first unit
+     */
+    private int[] skus;
+
+    private long[] counts;
+
+    /**
+     * latest unit of every SKU, whose special prices the line of the SKU is priced with
+     */
+    private Product[] units;
+
+    /**
+     * slot of the index holding the SKU at the same position
+     */
+    private int[] slots;
+
+    /**
+     * open addressing index of the SKUs, position + 1 of a SKU, 0 for a free slot
+     */
+    private int[] index;
+
+    private int size;
+
+    /**
+     * catalog holding the grouped SKUs, null if none is held
+     */
+    private ProductCatalog holder;
+
+    /**
+     * SKUs before this position have been taken with their hold
+     */
+    private int taken;
+
+    private boolean acquired;
+
+    private SkuCounts()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the instance of the calling thread, or a new one if the thread is already grouping a change
+     */
+    static SkuCounts acquire()
+    {
+        SkuCounts local = LOCAL.get();
+        if(local.acquired)
+            return new SkuCounts();
+
+        local.acquired = true;
+        return local;
+    }
+
+    /**
+     * Groups every unit of the products, holding their SKUs.
+     * Lists with random access are walked by index, other collections by their iterator
+     * @param products
+     * @param catalog
+     * @param register registers new products if true, else skips the products the catalog does not know
+     * @return this
+     */
+    SkuCounts addAll(Collection<? extends Product> products, ProductCatalog catalog, boolean register)
+    {
+        if(products instanceof List && products instanceof RandomAccess)
+        {
+            List<? extends Product> list = (List<? extends Product>) products;
+            for(int i = 0, n = list.size(); i < n; i++)
+                add(list.get(i), catalog, register);
+        }
+        else
+        {
+            for(Product product : products)
+                add(product, catalog, register);
+        }
+        return this;
+    }
+
+    /**
+     * Adds units of a SKU
+     * @param sku
+     * @param unit latest of the units
+     * @param count
+     * @return true if the SKU is new to the grouping
+     */
+    boolean add(int sku, Product unit, long count)
+    {
+        int mask = index.length - 1;
+        int slot = spread(sku) & mask;
+        for(int position; (position = index[slot]) != 0; slot = (slot + 1) & mask)
+        {
+            if(skus[position - 1] == sku)
+            {
+                counts[position - 1] += count;
+                units[position - 1] = unit;
+                return false;
+            }
+        }
+
+        if(size == skus.length)
+        {
+            grow();
+            return add(sku, unit, count);
+        }
+
+        skus[size] = sku;
+        counts[size] = count;
+        units[size] = unit;
+        slots[size] = slot;
+        index[slot] = ++size;
+        return true;
+    }
+
+    /**
+     * @return number of distinct SKUs
+     */
+    int size()
+    {
+        return size;
+    }
+
+    int sku(int position)
+    {
+        return skus[position];
+    }
+
+    /**
+     * Takes the SKU at the position with its hold, SKUs are taken in order
+     * @param position
+     * @return
+     */
+    int take(int position)
+    {
+        taken = position + 1;
+        return skus[position];
+    }
+
+    long count(int position)
+    {
+        return counts[position];
+    }
+
+    Product unit(int position)
+    {
+        return units[position];
+    }
+
+    /**
+     * Empties the grouping and gives it back to its thread
+     */
+    void release()
+    {
+        if(holder != null)
+        {
+            for(int i = taken; i < size; i++)
+                holder.release(skus[i]);
+            holder = null;
+        }
+        taken = 0;
+
+        if(skus.length > MAX_RETAINED_SKUS)
+        {
+            allocate(INITIAL_CAPACITY);
+        }
+        else
+        {
+            for(int i = 0; i < size; i++)
+                index[slots[i]] = 0;
+            // units are not kept reachable from the thread
+            Arrays.fill(units, 0, size, null);
+        }
+        size = 0;
+        acquired = false;
+    }
+
+    private void add(Product product, ProductCatalog catalog, boolean register)
+    {
+        int sku = catalog.acquire(product, register);
+        if(sku == ProductCatalog.NO_SKU)
+            return;
+
+        holder = catalog;
+        // held once per grouped SKU
+        if(!add(sku, product, 1))
+            catalog.release(sku);
+    }
+
+    private void grow()
+    {
+        int[] skus = this.skus;
+        long[] counts = this.counts;
+        Product[] units = this.units;
+        int size = this.size;
+
+        allocate(skus.length * 2);
+        for(int i = 0; i < size; i++)
+            add(skus[i], units[i], counts[i]);
+    }
+
+    private void allocate(int capacity)
+    {
+        skus = new int[capacity];
+        counts = new long[capacity];
+        units = new Product[capacity];
+        slots = new int[capacity];
+        index = new int[capacity * 2];
+        size = 0;
+    }
+
+    private static int spread(int sku)
+    {
+        int hash = sku * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
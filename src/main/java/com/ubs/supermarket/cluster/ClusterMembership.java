@@ -0,0 +1,219 @@
+package com.ubs.supermarket.cluster;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.products.Product;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Nodes sharing the baskets, and the node owning each basket.
+ *
+ * Nodes are named by their base URL, basket.cluster.nodes lists them all and basket.cluster.self is this node.
+ * Without nodes the application runs alone and owns every basket. The ring is replaced as a whole when the
+ * membership changes, lookups never wait for a change.
+ *
+ * Nodes prove they are peers with the basket.cluster.secret they share, sent in SECRET_HEADER. Only requests
+ * carrying it may change the membership or hand a basket over, and FORWARDED_HEADER is ignored on any other request.
+ * Without a secret the node accepts no request from peers, so it cannot share baskets.
+ */
+@Component
+public class ClusterMembership
+{
+    /**
+     * set on requests sent by another node, which are always served locally so that nodes disagreeing on
+     * the membership never forward a request back and forth
+     */
+    public static final String FORWARDED_HEADER = "X-Basket-Forwarded-By";
+
+    /**
+     * carries the cluster secret on requests between nodes
+     */
+    public static final String SECRET_HEADER = "X-Basket-Cluster-Secret";
+
+    private final String self;
+
+    /**
+     * empty when no secret is configured
+     */
+    private final String secret;
+
+    private volatile HashRing ring;
+
+    /**
+     * @param self base URL of this node, for instance http://localhost:8080
+     * @param nodes base URLs of every node, this one included, comma separated, empty to run alone
+     * @param secret shared by every node, empty to accept no request from peers
+     */
+    @Autowired
+    public ClusterMembership(@Value("${basket.cluster.self:}") String self,
+                             @Value("${basket.cluster.nodes:}") String nodes,
+                             @Value("${basket.cluster.secret:}") String secret)
+    {
+        this(self, parse(nodes), secret);
+    }
+
+    /**
+     * @param self
+     * @param nodes
+     * @param secret
+     * @throws IllegalArgumentException if this node is not one of the nodes, or nodes are given without a secret
+     */
+    public ClusterMembership(String self, List<String> nodes, String secret)
+    {
+        this.self = normalize(self);
+        this.secret = secret == null ? "" : secret;
+        this.ring = ring(nodes);
+
+        if(!isMember())
+            throw new IllegalArgumentException("Cluster nodes " + ring.getNodes() + " do not include this node " + this.self);
+        if(!ring.isEmpty() && this.secret.isEmpty())
+            throw new IllegalArgumentException("basket.cluster.secret is required to share baskets between nodes");
+    }
+
+    /**
+     * @return true if the baskets are shared with other nodes
+     */
+    public boolean isClustered()
+    {
+        return !ring.isEmpty();
+    }
+
+    public String getSelf()
+    {
+        return self;
+    }
+
+    public List<String> getNodes()
+    {
+        return ring.getNodes();
+    }
+
+    /**
+     * @return false once this node has left the cluster, it then owns no basket
+     */
+    public boolean isMember()
+    {
+        HashRing current = ring;
+        return current.isEmpty() || current.getNodes().contains(self);
+    }
+
+    /**
+     * @param basketID
+     * @return base URL of the node owning the basket, this node when running alone
+     */
+    public String owner(UUID basketID)
+    {
+        HashRing current = ring;
+        return current.isEmpty() ? self : current.owner(basketID);
+    }
+
+    /**
+     * @param basketID
+     * @return true if this node owns the basket
+     */
+    public boolean isLocal(UUID basketID)
+    {
+        HashRing current = ring;
+        return current.isEmpty() || current.owner(basketID).equals(self);
+    }
+
+    /**
+     * @param secret value of SECRET_HEADER on a request, null if absent
+     * @return true if the request was sent by another node of the cluster
+     */
+    public boolean isPeer(String secret)
+    {
+        return !this.secret.isEmpty() && secret != null
+                && MessageDigest.isEqual(this.secret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Marks a request to another node as sent by this node, replacing any such header passed on from a client
+     * @param headers
+     */
+    public void sign(HttpHeaders headers)
+    {
+        headers.set(FORWARDED_HEADER, self);
+        headers.set(SECRET_HEADER, secret);
+    }
+
+    /**
+     * Replaces the nodes of the cluster
+     * @param nodes base URLs of every node, without this one if it leaves the cluster, empty to run alone
+     * @return the nodes before the change
+     */
+    public synchronized List<String> update(List<String> nodes)
+    {
+        List<String> previous = ring.getNodes();
+        ring = ring(nodes);
+        return previous;
+    }
+
+    /**
+     * Makes the baskets created without an id take an id this node owns, so that a basket is created on the
+     * node receiving the request. About one id in as many as there are nodes is kept. A node that left the
+     * cluster keeps any id.
+     * @param storage
+     * @return
+     */
+    public BasketFactory decorate(BasketFactory storage)
+    {
+        return new BasketFactory()
+        {
+            @Override
+            public Basket create(UUID basketID, Map<? extends Product, Long> lines, long version)
+            {
+                return storage.create(basketID, lines, version);
+            }
+
+            @Override
+            public Basket create()
+            {
+                UUID basketID = UUID.randomUUID();
+                while(!isLocal(basketID) && isMember())
+                    basketID = UUID.randomUUID();
+                return storage.create(basketID, Collections.emptyMap());
+            }
+        };
+    }
+
+    private HashRing ring(List<String> nodes)
+    {
+        List<String> normalized = new ArrayList<>(nodes.size());
+        for(String node : nodes)
+            normalized.add(normalize(node));
+        return new HashRing(normalized);
+    }
+
+    private static List<String> parse(String nodes)
+    {
+        List<String> parsed = new ArrayList<>();
+        for(String node : StringUtils.commaDelimitedListToStringArray(nodes))
+        {
+            if(!node.trim().isEmpty())
+                parsed.add(node.trim());
+        }
+        return parsed;
+    }
+
+    /**
+     * Base URLs without trailing slash, so that every node names a node the same way
+     */
+    private static String normalize(String node)
+    {
+        String trimmed = node.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+}
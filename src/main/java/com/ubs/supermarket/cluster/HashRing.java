@@ -0,0 +1,146 @@
+package com.ubs.supermarket.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Consistent hash ring placing baskets on nodes.
+ *
+ * Every node owns a number of points on a 64 bit ring, a basket belongs to the node of the first point at or after
+ * the hash of its id. Adding a node only moves to it the baskets falling just before its points, removing a node
+ * only moves its own baskets, about one node's share of the baskets either way. Points are spread by hashing the
+ * node name, so every node computes the same ring from the same node list whatever its order.
+ *
+ * Rings are immutable.
+ */
+public final class HashRing
+{
+    static final int DEFAULT_POINTS_PER_NODE = 256;
+
+    private final List<String> nodes;
+
+    /**
+     * point positions in ascending order
+     */
+    private final long[] points;
+
+    /**
+     * node owning the point at the same index
+     */
+    private final String[] owners;
+
+    /**
+     * @param nodes node names, duplicates are ignored
+     * @param pointsPerNode
+     */
+    public HashRing(List<String> nodes, int pointsPerNode)
+    {
+        if(pointsPerNode <= 0)
+            throw new IllegalArgumentException("Points per node must be positive");
+
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes)));
+
+        Point[] placed = new Point[this.nodes.size() * pointsPerNode];
+        int i = 0;
+        for(String node : this.nodes)
+        {
+            for(int point = 0; point < pointsPerNode; point++)
+                placed[i++] = new Point(pointHash(node, point), node);
+        }
+        // equal positions are ordered by node name so that every ring built from the same nodes agrees
+        Arrays.sort(placed, (a, b) -> a.position != b.position ? Long.compare(a.position, b.position) : a.node.compareTo(b.node));
+
+        this.points = new long[placed.length];
+        this.owners = new String[placed.length];
+        for(i = 0; i < placed.length; i++)
+        {
+            points[i] = placed[i].position;
+            owners[i] = placed[i].node;
+        }
+    }
+
+    public HashRing(List<String> nodes)
+    {
+        this(nodes, DEFAULT_POINTS_PER_NODE);
+    }
+
+    /**
+     * @return the nodes of the ring, in the order given
+     */
+    public List<String> getNodes()
+    {
+        return nodes;
+    }
+
+    public boolean isEmpty()
+    {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * @param basketID
+     * @return the node owning the basket
+     * @throws IllegalStateException if the ring has no node
+     */
+    public String owner(UUID basketID)
+    {
+        if(points.length == 0)
+            throw new IllegalStateException("No node in the ring");
+
+        int index = Arrays.binarySearch(points, hash(basketID));
+        if(index < 0)
+            index = -index - 1;
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Position of a basket id on the ring. Random ids are already uniform, the bits are still mixed so that
+     * ids made by other means spread as well
+     */
+    static long hash(UUID basketID)
+    {
+        long h = basketID.getMostSignificantBits() ^ Long.rotateLeft(basketID.getLeastSignificantBits(), 32);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long pointHash(String node, int point)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest((node + "#" + point).getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for(int i = 0; i < 8; i++)
+                h = h << 8 | (digest[i] & 0xff);
+            return h;
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static final class Point
+    {
+        private final long position;
+
+        private final String node;
+
+        private Point(long position, String node)
+        {
+            this.position = position;
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.ubs.supermarket.config;
+
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.basket.OffHeapBasketFactory;
+import com.ubs.supermarket.cluster.ClusterMembership;
+import com.ubs.supermarket.products.ProductCatalog;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+/**
+ * Chooses where basket lines are kept, basket.storage is heap (default) or off-heap,
+ * applies the promotions of basket.promotions to the baskets made and gives new baskets ids this node owns
+ */
+@Configuration
+@EnableConfigurationProperties(PromotionProperties.class)
+public class BasketStorageConfig
+{
+
+    @Bean
+    public BasketFactory basketStorage(ProductCatalog catalog,
+                                       @Value("${basket.storage:heap}") String storage,
+                                       @Value("${basket.off-heap.chunk-size:16777216}") int chunkSize)
+    {
+        switch(storage)
+        {
+            case "heap":
+                return BasketFactory.onHeap(catalog);
+
+            case "off-heap":
+                return new OffHeapBasketFactory(catalog, chunkSize);
+
+            default:
+                throw new IllegalArgumentException("Unknown basket storage " + storage + ", expected heap or off-heap");
+        }
+    }
+
+    @Bean
+    @Primary
+    public BasketFactory basketFactory(@Qualifier("basketStorage") BasketFactory storage, PromotionProperties promotions,
+                                       ClusterMembership membership, ProductCatalog catalog)
+    {
+        return membership.decorate(promotions.toEngine().decorate(storage, catalog));
+    }
+}
@@ -0,0 +1,22 @@
+package com.ubs.supermarket.config;
+
+import com.ubs.supermarket.graphql.BasketSchema;
+import graphql.schema.GraphQLSchema;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+
+/**
+ * GraphQL endpoint, served on /graphql with the DataLoaders of BasketContextBuilder
+ */
+@Configuration
+public class GraphQLConfig
+{
+
+    @Bean
+    public GraphQLSchema graphQLSchema() throws IOException
+    {
+        return BasketSchema.load();
+    }
+}
@@ -0,0 +1,200 @@
+package com.ubs.supermarket.config;
+
+import com.ubs.supermarket.promotions.BuyXGetY;
+import com.ubs.supermarket.promotions.CategoryDiscount;
+import com.ubs.supermarket.promotions.MixAndMatch;
+import com.ubs.supermarket.promotions.PromotionEngine;
+import com.ubs.supermarket.promotions.PromotionRule;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Promotion rules of the store, read from basket.promotions properties
+ *
+ * basket.promotions.categories.dairy=Milk,Cheese
+ * basket.promotions.category-discounts.dairy=10
+ * basket.promotions.buy-get[0].product=Milk
+ * basket.promotions.buy-get[0].buy=2
+ * basket.promotions.buy-get[0].free=1
+ * basket.promotions.mix-and-match[0].name=meal deal
+ * basket.promotions.mix-and-match[0].categories=sandwiches,drinks
+ * basket.promotions.mix-and-match[0].size=2
+ * basket.promotions.mix-and-match[0].price=4.5
+ */
+@ConfigurationProperties(prefix = "basket.promotions")
+public class PromotionProperties
+{
+    /**
+     * product names by category
+     */
+    private Map<String, List<String>> categories = new HashMap<>();
+
+    /**
+     * percentage off by category
+     */
+    private Map<String, Double> categoryDiscounts = new HashMap<>();
+
+    private List<BuyGet> buyGet = new ArrayList<>();
+
+    private List<Bundle> mixAndMatch = new ArrayList<>();
+
+    public Map<String, List<String>> getCategories()
+    {
+        return categories;
+    }
+
+    public void setCategories(Map<String, List<String>> categories)
+    {
+        this.categories = categories;
+    }
+
+    public Map<String, Double> getCategoryDiscounts()
+    {
+        return categoryDiscounts;
+    }
+
+    public void setCategoryDiscounts(Map<String, Double> categoryDiscounts)
+    {
+        this.categoryDiscounts = categoryDiscounts;
+    }
+
+    public List<BuyGet> getBuyGet()
+    {
+        return buyGet;
+    }
+
+    public void setBuyGet(List<BuyGet> buyGet)
+    {
+        this.buyGet = buyGet;
+    }
+
+    public List<Bundle> getMixAndMatch()
+    {
+        return mixAndMatch;
+    }
+
+    public void setMixAndMatch(List<Bundle> mixAndMatch)
+    {
+        this.mixAndMatch = mixAndMatch;
+    }
+
+    /**
+     * @return the engine of the configured rules
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    public PromotionEngine toEngine()
+    {
+        List<PromotionRule> rules = new ArrayList<>();
+        categoryDiscounts.forEach((category, percent) -> rules.add(new CategoryDiscount(category, percent)));
+        buyGet.forEach(rule -> rules.add(new BuyXGetY(rule.product, rule.buy, rule.free)));
+        mixAndMatch.forEach(rule -> rules.add(new MixAndMatch(rule.name, rule.products, rule.categories, rule.size, rule.price)));
+
+        return new PromotionEngine(categories, rules);
+    }
+
+    public static class BuyGet
+    {
+        private String product;
+
+        private long buy;
+
+        private long free;
+
+        public String getProduct()
+        {
+            return product;
+        }
+
+        public void setProduct(String product)
+        {
+            this.product = product;
+        }
+
+        public long getBuy()
+        {
+            return buy;
+        }
+
+        public void setBuy(long buy)
+        {
+            this.buy = buy;
+        }
+
+        public long getFree()
+        {
+            return free;
+        }
+
+        public void setFree(long free)
+        {
+            this.free = free;
+        }
+    }
+
+    public static class Bundle
+    {
+        private String name;
+
+        private List<String> products = new ArrayList<>();
+
+        private List<String> categories = new ArrayList<>();
+
+        private long size;
+
+        private double price;
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        public List<String> getProducts()
+        {
+            return products;
+        }
+
+        public void setProducts(List<String> products)
+        {
+            this.products = products;
+        }
+
+        public List<String> getCategories()
+        {
+            return categories;
+        }
+
+        public void setCategories(List<String> categories)
+        {
+            this.categories = categories;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public void setSize(long size)
+        {
+            this.size = size;
+        }
+
+        public double getPrice()
+        {
+            return price;
+        }
+
+        public void setPrice(double price)
+        {
+            this.price = price;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.ubs.supermarket.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.FORBIDDEN)
+public class ForbiddenRequestException extends RuntimeException
+{
+    public ForbiddenRequestException() {
+    }
+
+    public ForbiddenRequestException(String message) {
+        super(message);
+    }
+}
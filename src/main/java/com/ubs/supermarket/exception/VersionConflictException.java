@@ -0,0 +1,19 @@
+package com.ubs.supermarket.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.PRECONDITION_FAILED)
+public class VersionConflictException extends RuntimeException
+{
+    public VersionConflictException() {
+    }
+
+    public VersionConflictException(String message) {
+        super(message);
+    }
+
+    public VersionConflictException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
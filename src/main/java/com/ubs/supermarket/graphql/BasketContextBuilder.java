@@ -0,0 +1,94 @@
+package com.ubs.supermarket.graphql;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.service.BasketService;
+import graphql.servlet.GraphQLContext;
+import graphql.servlet.GraphQLContextBuilder;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.websocket.Session;
+import javax.websocket.server.HandshakeRequest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Gives every GraphQL request its own DataLoaders.
+ *
+ * The basket loader is dispatched once per level of the query: it looks up every basket asked for at that
+ * level in one batch and reads each of them once. Its cache lives as long as the request, a basket asked for
+ * twice in a query is the same read, and no later request is served from it.
+ */
+@Component
+public class BasketContextBuilder implements GraphQLContextBuilder
+{
+    static final String BASKET_LOADER = "basket";
+
+    private final BasketService basketService;
+
+    @Autowired
+    public BasketContextBuilder(BasketService basketService)
+    {
+        this.basketService = basketService;
+    }
+
+    @Override
+    public GraphQLContext build(HttpServletRequest request, HttpServletResponse response)
+    {
+        return withLoaders(new GraphQLContext(request, response));
+    }
+
+    @Override
+    public GraphQLContext build(Session session, HandshakeRequest handshakeRequest)
+    {
+        return withLoaders(new GraphQLContext(session, handshakeRequest));
+    }
+
+    @Override
+    public GraphQLContext build()
+    {
+        return withLoaders(new GraphQLContext());
+    }
+
+    /**
+     * @return loaders for a single request
+     */
+    public DataLoaderRegistry newRegistry()
+    {
+        DataLoader<UUID, BasketView> baskets = DataLoader.newMappedDataLoader(basketIDs ->
+        {
+            Map<UUID, BasketView> loaded = new HashMap<>();
+            for(UUID basketID : basketIDs)
+            {
+                Optional<Basket> basket = basketService.pinBasket(basketID);
+                if(!basket.isPresent())
+                    continue;
+
+                try
+                {
+                    loaded.put(basketID, BasketView.of(basket.get()));
+                }
+                finally
+                {
+                    basketService.unpin(basketID);
+                }
+            }
+            return CompletableFuture.completedFuture(loaded);
+        });
+
+        return new DataLoaderRegistry().register(BASKET_LOADER, baskets);
+    }
+
+    private GraphQLContext withLoaders(GraphQLContext context)
+    {
+        context.setDataLoaderRegistry(newRegistry());
+        return context;
+    }
+}
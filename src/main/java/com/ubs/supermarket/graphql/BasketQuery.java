@@ -0,0 +1,80 @@
+package com.ubs.supermarket.graphql;
+
+import graphql.schema.DataFetchingEnvironment;
+import org.dataloader.DataLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Basket queries.
+ *
+ * Baskets are loaded through the basket DataLoader of the request, the baskets of a whole query are looked up
+ * in one batch and each of them once, however many times the query asks for it.
+ */
+final class BasketQuery
+{
+    private BasketQuery()
+    {
+    }
+
+    /**
+     * @param environment basketID argument
+     * @return completes with null if no basket has the id
+     */
+    static CompletableFuture<BasketView> basket(DataFetchingEnvironment environment)
+    {
+        UUID basketID = parse(environment.getArgument("basketID"));
+        if(basketID == null)
+            return CompletableFuture.completedFuture(null);
+
+        return loader(environment).load(basketID);
+    }
+
+    /**
+     * @param environment basketIDs argument
+     * @return completes with the baskets in the order of the ids, null for the ids no basket has
+     */
+    static CompletableFuture<List<BasketView>> baskets(DataFetchingEnvironment environment)
+    {
+        List<String> basketIDs = environment.getArgument("basketIDs");
+        DataLoader<UUID, BasketView> loader = loader(environment);
+
+        List<CompletableFuture<BasketView>> pending = new ArrayList<>(basketIDs.size());
+        for(String id : basketIDs)
+        {
+            UUID basketID = parse(id);
+            pending.add(basketID == null ? CompletableFuture.completedFuture(null) : loader.load(basketID));
+        }
+
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(loaded ->
+        {
+            List<BasketView> baskets = new ArrayList<>(pending.size());
+            for(CompletableFuture<BasketView> basket : pending)
+                baskets.add(basket.join());
+            return baskets;
+        });
+    }
+
+    private static DataLoader<UUID, BasketView> loader(DataFetchingEnvironment environment)
+    {
+        return environment.getDataLoader(BasketContextBuilder.BASKET_LOADER);
+    }
+
+    /**
+     * @return null if the id is not a basket id
+     */
+    private static UUID parse(String basketID)
+    {
+        try
+        {
+            return UUID.fromString(basketID);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+}
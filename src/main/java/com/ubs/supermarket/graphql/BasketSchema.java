@@ -0,0 +1,103 @@
+package com.ubs.supermarket.graphql;
+
+import com.ubs.supermarket.products.Product;
+import graphql.Scalars;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * GraphQL schema of the baskets, read from graphql/basket.graphqls.
+ *
+ * Query fields load baskets through the DataLoaders of the request, every other field is a getter of the
+ * basket as read for the query, of its lines or of their products.
+ */
+public final class BasketSchema
+{
+    static final String SCHEMA = "graphql/basket.graphqls";
+
+    private BasketSchema()
+    {
+    }
+
+    /**
+     * Builds the executable schema
+     * @return
+     * @throws IOException if the schema cannot be read
+     */
+    public static GraphQLSchema load() throws IOException
+    {
+        TypeDefinitionRegistry types;
+        try(InputStream schema = BasketSchema.class.getClassLoader().getResourceAsStream(SCHEMA))
+        {
+            if(schema == null)
+                throw new IOException("GraphQL schema " + SCHEMA + " not found");
+
+            try(Reader reader = new InputStreamReader(schema, StandardCharsets.UTF_8))
+            {
+                types = new SchemaParser().parse(reader);
+            }
+        }
+
+        RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
+                .scalar(Scalars.GraphQLLong)
+                .type("Query", query -> query
+                        .dataFetcher("basket", BasketQuery::basket)
+                        .dataFetcher("baskets", BasketQuery::baskets))
+                .type("Product", product -> product
+                        .dataFetcher("specialPrices", environment -> specialPrices(environment.getSource()))
+                        .dataFetcher("price", environment -> environment.<Product>getSource()
+                                .getPrice(environment.<Number>getArgument("quantity").longValue())))
+                .build();
+
+        return new SchemaGenerator().makeExecutableSchema(types, wiring);
+    }
+
+    /**
+     * @return special prices by ascending quantity
+     */
+    private static List<SpecialPrice> specialPrices(Product product)
+    {
+        List<SpecialPrice> specialPrices = new ArrayList<>();
+        product.getSpecialPriceMap().forEach((quantity, price) -> specialPrices.add(new SpecialPrice(quantity, price)));
+        specialPrices.sort(Comparator.comparingLong(SpecialPrice::getQuantity));
+        return specialPrices;
+    }
+
+    /**
+     * Price per product when bought by quantity
+     */
+    public static class SpecialPrice
+    {
+        private final long quantity;
+
+        private final double price;
+
+        SpecialPrice(long quantity, double price)
+        {
+            this.quantity = quantity;
+            this.price = price;
+        }
+
+        public long getQuantity()
+        {
+            return quantity;
+        }
+
+        public double getPrice()
+        {
+            return price;
+        }
+    }
+}
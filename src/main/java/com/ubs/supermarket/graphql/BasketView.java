@@ -0,0 +1,78 @@
+package com.ubs.supermarket.graphql;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.products.Product;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A basket as read for a query.
+ *
+ * The basket is read once: the version first, then its lines and total, so that the version never claims
+ * changes the lines do not hold. Every field a query selects on the basket is served from this read.
+ */
+public class BasketView
+{
+    private final UUID basketID;
+
+    private final long version;
+
+    private final List<LineView> lines;
+
+    private final double total;
+
+    private BasketView(UUID basketID, long version, List<LineView> lines, double total)
+    {
+        this.basketID = basketID;
+        this.version = version;
+        this.lines = lines;
+        this.total = total;
+    }
+
+    /**
+     * Reads the basket
+     * @param basket
+     * @return
+     */
+    static BasketView of(Basket basket)
+    {
+        long version = basket.getVersion();
+        Map<Product, Long> products = basket.getAllProducts();
+        double total = basket.getTotalPrice();
+
+        List<LineView> lines = new ArrayList<>(products.size());
+        products.forEach((product, quantity) -> lines.add(new LineView(product, quantity)));
+        lines.sort(Comparator.comparing(line -> line.getProduct().getName()));
+
+        return new BasketView(basket.getBasketID(), version, lines, total);
+    }
+
+    public UUID getBasketID()
+    {
+        return basketID;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public int getLineCount()
+    {
+        return lines.size();
+    }
+
+    public List<LineView> getLines()
+    {
+        return lines;
+    }
+
+    public double getTotal()
+    {
+        return total;
+    }
+}
@@ -0,0 +1,40 @@
+package com.ubs.supermarket.graphql;
+
+import com.ubs.supermarket.products.Product;
+
+/**
+ * A line of a basket as read for a query, priced when read
+ */
+public class LineView
+{
+    private final Product product;
+
+    private final long quantity;
+
+    private final double price;
+
+    LineView(Product product, long quantity)
+    {
+        this.product = product;
+        this.quantity = quantity;
+        this.price = product.getPrice(quantity);
+    }
+
+    public Product getProduct()
+    {
+        return product;
+    }
+
+    public long getQuantity()
+    {
+        return quantity;
+    }
+
+    /**
+     * @return price of the quantity before promotions
+     */
+    public double getPrice()
+    {
+        return price;
+    }
+}
@@ -0,0 +1,92 @@
+package com.ubs.supermarket.metrics;
+
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.basket.OffHeapBasketFactory;
+import com.ubs.supermarket.service.BasketService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gauges of the basket registry.
+ *
+ * Request latencies are timed by Spring MVC as http.server.requests, they include the pricing of the basket lines a
+ * request changes. Pricing runs on every line change, a sample of it is timed as product.price by ProductImpl.
+ * Quote cache hits and misses are counted as product.price.quotes and basket line contention
+ * is counted by the basket line table.
+ */
+@Component
+public class BasketMetrics implements MeterBinder
+{
+    private final BasketService basketService;
+
+    private final BasketFactory basketFactory;
+
+    /**
+     * Metrics of heap baskets
+     * @param basketService
+     */
+    public BasketMetrics(BasketService basketService)
+    {
+        this(basketService, null);
+    }
+
+    /**
+     * @param basketService
+     * @param basketFactory storage of the baskets, off-heap memory gauges are added for off-heap baskets
+     */
+    @Autowired
+    public BasketMetrics(BasketService basketService, @Qualifier("basketStorage") BasketFactory basketFactory)
+    {
+        this.basketService = basketService;
+        this.basketFactory = basketFactory;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry)
+    {
+        Gauge.builder("baskets.active", basketService, BasketService::size)
+                .description("Baskets in the registry, in memory")
+                .register(registry);
+
+        Gauge.builder("baskets.spilled", basketService, BasketService::spilledSize)
+                .description("Idle baskets spilled to disk")
+                .register(registry);
+
+        Gauge.builder("baskets.lines", basketService, BasketMetrics::lineCount)
+                .description("Product lines over all baskets")
+                .register(registry);
+
+        if(basketFactory instanceof OffHeapBasketFactory)
+        {
+            OffHeapBasketFactory offHeap = (OffHeapBasketFactory) basketFactory;
+            Gauge.builder("baskets.off-heap.used", offHeap, OffHeapBasketFactory::getUsedBytes)
+                    .description("Off-heap memory held by basket lines")
+                    .baseUnit("bytes")
+                    .register(registry);
+
+            Gauge.builder("baskets.off-heap.reserved", offHeap, OffHeapBasketFactory::getReservedBytes)
+                    .description("Off-heap memory allocated for basket lines")
+                    .baseUnit("bytes")
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Visits every basket in memory, only read when the gauge is scraped.
+     * Gauges hold their object weakly, the gauge is kept on the basket service rather than this binder
+     * @param basketService
+     * @return
+     */
+    private static double lineCount(BasketService basketService)
+    {
+        LongAdder lines = new LongAdder();
+        basketService.forEach(basket -> lines.add(basket.getLineCount()));
+        return lines.sum();
+    }
+}
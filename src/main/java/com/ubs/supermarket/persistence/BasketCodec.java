@@ -0,0 +1,176 @@
+package com.ubs.supermarket.persistence;
+
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductImpl;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary encoding of products and basket lines shared by the journal and the snapshots
+ */
+final class BasketCodec
+{
+    private BasketCodec()
+    {
+    }
+
+    /**
+     * Encodes products as runs of consecutive equal products with their special prices,
+     * so that replaying the runs in order applies the same promotions as the original call
+     * @param products
+     * @return
+     */
+    static byte[] encodeProducts(Collection<? extends Product> products)
+    {
+        List<Map.Entry<Product, Long>> runs = new ArrayList<>();
+
+        Product current = null;
+        long count = 0;
+        for(Product product : products)
+        {
+            if(current != null && !sameOffer(current, product))
+            {
+                runs.add(new AbstractMap.SimpleImmutableEntry<>(current, count));
+                count = 0;
+            }
+            current = product;
+            count++;
+        }
+        if(current != null)
+            runs.add(new AbstractMap.SimpleImmutableEntry<>(current, count));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * runs.size());
+        try
+        {
+            writeLines(new DataOutputStream(bytes), runs);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes units of a single product as one run, decoded by decodeProducts
+     * @param product
+     * @param count
+     * @return
+     */
+    static byte[] encodeRun(Product product, long count)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        try
+        {
+            writeLines(new DataOutputStream(bytes), Collections.singletonList(new AbstractMap.SimpleImmutableEntry<>(product, count)));
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes product runs written by encodeProducts
+     * @param payload
+     * @return product and quantity of every run, in order
+     * @throws IOException
+     */
+    static List<Map.Entry<Product, Long>> decodeProducts(byte[] payload) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int size = in.readInt();
+
+        List<Map.Entry<Product, Long>> runs = new ArrayList<>(size);
+        for(int i = 0; i < size; i++)
+            runs.add(new AbstractMap.SimpleImmutableEntry<>(readProduct(in), in.readLong()));
+        return runs;
+    }
+
+    static void writeLines(DataOutput out, Collection<? extends Map.Entry<Product, Long>> lines) throws IOException
+    {
+        out.writeInt(lines.size());
+        for(Map.Entry<Product, Long> line : lines)
+        {
+            writeProduct(out, line.getKey());
+            out.writeLong(line.getValue());
+        }
+    }
+
+    static Map<Product, Long> readLines(DataInput in) throws IOException
+    {
+        int size = in.readInt();
+
+        Map<Product, Long> lines = new HashMap<>();
+        for(int i = 0; i < size; i++)
+            lines.merge(readProduct(in), in.readLong(), Long::sum);
+        return lines;
+    }
+
+    static void writeUUID(DataOutput out, UUID id) throws IOException
+    {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    static UUID readUUID(DataInput in) throws IOException
+    {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeProduct(DataOutput out, Product product) throws IOException
+    {
+        out.writeUTF(product.getName());
+        out.writeDouble(product.getBasePrice());
+
+        Map<Long, Double> specialPrices = product.getSpecialPriceMap();
+        out.writeInt(specialPrices.size());
+        for(Map.Entry<Long, Double> specialPrice : specialPrices.entrySet())
+        {
+            out.writeLong(specialPrice.getKey());
+            out.writeDouble(specialPrice.getValue());
+        }
+    }
+
+    private static Product readProduct(DataInput in) throws IOException
+    {
+        String name = in.readUTF();
+        double price = in.readDouble();
+
+        int size = in.readInt();
+        Map<Long, Double> specialPrices = new HashMap<>();
+        for(int i = 0; i < size; i++)
+            specialPrices.put(in.readLong(), in.readDouble());
+
+        try
+        {
+            return new ProductImpl(name, price, specialPrices);
+        }
+        catch(InvalidAttributesException e)
+        {
+            throw new IOException("Invalid product " + name, e);
+        }
+    }
+
+    private static boolean sameOffer(Product a, Product b)
+    {
+        return a == b || (a.equals(b) && a.getSpecialPriceMap().equals(b.getSpecialPriceMap()));
+    }
+}
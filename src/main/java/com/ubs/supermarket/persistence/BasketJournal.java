@@ -0,0 +1,492 @@
+package com.ubs.supermarket.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of basket mutations, written to memory mapped segment files.
+ *
+ * Every record is given the next sequence number when it is appended. A single writer thread copies the
+ * pending records into the current segment and forces the segment to disk once per batch, so that concurrent
+ * writers share one fsync. Records appended while a batch is being forced go into the next batch.
+ *
+ * Segment files are named after the sequence of their first record. Every record is framed by the length
+ * and the CRC32 of its body, reading a segment stops at the first empty or corrupt frame, which is where
+ * a crash can leave the tail of the journal torn.
+ */
+final class BasketJournal implements Closeable
+{
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * body length and CRC32 of the body
+     */
+    private static final int FRAME_HEADER = 8;
+
+    /**
+     * sequence, type and basket id
+     */
+    private static final int RECORD_HEADER = 8 + 1 + 16;
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition appended = lock.newCondition();
+
+    private final Condition forced = lock.newCondition();
+
+    /**
+     * records waiting for the writer, guarded by lock
+     */
+    private List<Pending> pending = new ArrayList<>();
+
+    /**
+     * last sequence given to a record, guarded by lock
+     */
+    private long lastSequence;
+
+    /**
+     * last sequence forced to disk, guarded by lock
+     */
+    private long durableSequence;
+
+    /**
+     * completed when the pending records are on disk, guarded by lock
+     */
+    private CompletableFuture<Void> pendingForced = new CompletableFuture<>();
+
+    /**
+     * completed when the batch being written is on disk, guarded by lock
+     */
+    private CompletableFuture<Void> writingForced = CompletableFuture.completedFuture(null);
+
+    /**
+     * last sequence of the batch being written, guarded by lock
+     */
+    private long writingSequence;
+
+    /**
+     * sequence of the last segment roll done by the writer, guarded by lock
+     */
+    private long rolledSequence;
+
+    /**
+     * guarded by lock
+     */
+    private boolean closed;
+
+    /**
+     * write error that stopped the writer, guarded by lock
+     */
+    private IOException failure;
+
+    private final Thread writer;
+
+    /**
+     * segment being written, only accessed by the writer thread
+     */
+    private FileChannel channel;
+
+    private MappedByteBuffer segment;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens the journal for appending after the given sequence
+     * @param directory
+     * @param segmentSize size of a segment file in bytes
+     * @param lastSequence last sequence already in the journal or in a snapshot
+     */
+    BasketJournal(Path directory, int segmentSize, long lastSequence)
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lastSequence = lastSequence;
+        this.durableSequence = lastSequence;
+
+        this.writer = new Thread(this::writeLoop, "basket-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a record for the next batch
+     * @param type
+     * @param basketId
+     * @param payload
+     * @return sequence of the record, to wait on with whenDurable
+     */
+    long append(JournalRecord.Type type, UUID basketId, byte[] payload)
+    {
+        lock.lock();
+        try
+        {
+            if(closed)
+                throw new IllegalStateException("Journal is closed");
+            if(failure != null)
+                throw new UncheckedIOException("Journal write failed", failure);
+
+            long sequence = ++lastSequence;
+            pending.add(new Pending(sequence, type, basketId, payload == null ? NO_PAYLOAD : payload));
+            appended.signal();
+            return sequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes once the record of the sequence has been forced to disk, without blocking the caller.
+     * The future is completed by the writer thread, dependent work should move to another thread.
+     * @param sequence
+     * @return
+     */
+    CompletableFuture<Void> whenDurable(long sequence)
+    {
+        lock.lock();
+        try
+        {
+            if(durableSequence >= sequence)
+                return CompletableFuture.completedFuture(null);
+
+            if(failure != null)
+            {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new UncheckedIOException("Journal write failed", failure));
+                return failed;
+            }
+
+            return sequence <= writingSequence ? writingForced : pendingForced;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the writer start a new segment for the records appended from now on,
+     * returns once the current segment has been closed
+     * @return last sequence of the records before the new segment
+     */
+    long roll()
+    {
+        lock.lock();
+        try
+        {
+            if(closed)
+                throw new IllegalStateException("Journal is closed");
+
+            long sequence = lastSequence;
+            pending.add(new Pending(sequence, null, null, NO_PAYLOAD));
+            appended.signal();
+
+            while(rolledSequence < sequence)
+            {
+                if(failure != null)
+                    throw new UncheckedIOException("Journal write failed", failure);
+                forced.awaitUninterruptibly();
+            }
+            return sequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments rolled before the sequence, they only hold records up to the sequence
+     * @param sequence returned by roll
+     * @throws IOException
+     */
+    void deleteSegmentsUpTo(long sequence) throws IOException
+    {
+        for(Path segment : segments(directory).headMap(sequence, true).values())
+            Files.deleteIfExists(segment);
+    }
+
+    /**
+     * Writes the pending records and stops the writer
+     */
+    @Override
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            appended.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        try
+        {
+            writer.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the records of every segment of the directory in sequence order
+     * @param directory
+     * @param afterSequence records up to this sequence are skipped
+     * @param consumer
+     * @return last sequence read, afterSequence if there was none
+     * @throws IOException
+     */
+    static long replay(Path directory, long afterSequence, Consumer<JournalRecord> consumer) throws IOException
+    {
+        long last = afterSequence;
+
+        for(Path file : segments(directory).values())
+        {
+            try(FileChannel segmentChannel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                ByteBuffer buffer = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+                CRC32 checksum = new CRC32();
+
+                while(buffer.remaining() >= FRAME_HEADER)
+                {
+                    int bodyLength = buffer.getInt();
+                    int bodyCrc = buffer.getInt();
+                    if(bodyLength < RECORD_HEADER || bodyLength > buffer.remaining())
+                        break;
+
+                    byte[] body = new byte[bodyLength];
+                    buffer.get(body);
+
+                    checksum.reset();
+                    checksum.update(body);
+                    if((int) checksum.getValue() != bodyCrc)
+                        break;
+
+                    ByteBuffer record = ByteBuffer.wrap(body);
+                    long sequence = record.getLong();
+                    byte type = record.get();
+                    UUID basketId = new UUID(record.getLong(), record.getLong());
+                    if(sequence <= last || type < 0 || type >= JournalRecord.Type.values().length)
+                        continue;
+
+                    byte[] payload = new byte[record.remaining()];
+                    record.get(payload);
+
+                    consumer.accept(new JournalRecord(sequence, JournalRecord.Type.values()[type], basketId, payload));
+                    last = sequence;
+                }
+            }
+        }
+        return last;
+    }
+
+    private static TreeMap<Long, Path> segments(Path directory) throws IOException
+    {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+        {
+            for(Path file : files)
+            {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        return segments;
+    }
+
+    private void writeLoop()
+    {
+        for(;;)
+        {
+            List<Pending> batch;
+
+            lock.lock();
+            try
+            {
+                while(pending.isEmpty() && !closed)
+                    appended.awaitUninterruptibly();
+
+                if(pending.isEmpty())
+                    break;
+
+                batch = pending;
+                pending = new ArrayList<>();
+
+                writingForced = pendingForced;
+                writingSequence = batch.get(batch.size() - 1).sequence;
+                pendingForced = new CompletableFuture<>();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            try
+            {
+                write(batch);
+            }
+            catch(IOException | RuntimeException e)
+            {
+                UncheckedIOException error;
+                lock.lock();
+                try
+                {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    error = new UncheckedIOException("Journal write failed", failure);
+                    forced.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                writingForced.completeExceptionally(error);
+                pendingForced.completeExceptionally(error);
+                break;
+            }
+
+            lock.lock();
+            try
+            {
+                for(Pending entry : batch)
+                {
+                    if(entry.type == null)
+                        rolledSequence = entry.sequence;
+                }
+                durableSequence = batch.get(batch.size() - 1).sequence;
+                forced.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            writingForced.complete(null);
+        }
+
+        try
+        {
+            closeSegment();
+        }
+        catch(IOException e)
+        {
+            // every written record has been forced already
+        }
+    }
+
+    /**
+     * Writes a batch and forces it to disk
+     */
+    private void write(List<Pending> batch) throws IOException
+    {
+        for(Pending entry : batch)
+        {
+            if(entry.type == null)
+            {
+                closeSegment();
+                continue;
+            }
+
+            int bodyLength = RECORD_HEADER + entry.payload.length;
+            if(segment != null && segment.remaining() < FRAME_HEADER + bodyLength)
+                closeSegment();
+            if(segment == null)
+                openSegment(entry.sequence, Math.max(segmentSize, FRAME_HEADER + bodyLength));
+
+            int frame = segment.position();
+            segment.position(frame + FRAME_HEADER);
+
+            ByteBuffer body = segment.slice();
+            body.putLong(entry.sequence);
+            body.put((byte) entry.type.ordinal());
+            body.putLong(entry.basketId.getMostSignificantBits());
+            body.putLong(entry.basketId.getLeastSignificantBits());
+            body.put(entry.payload);
+            body.flip();
+
+            crc.reset();
+            crc.update(body);
+
+            segment.putInt(frame, bodyLength);
+            segment.putInt(frame + 4, (int) crc.getValue());
+            segment.position(frame + FRAME_HEADER + bodyLength);
+        }
+
+        if(segment != null)
+            segment.force();
+    }
+
+    private void openSegment(long firstSequence, int size) throws IOException
+    {
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+
+        // a segment of this name can only be left over from a crash before its first record was written
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        // forcing the segment does not make its name durable, its records would be lost with it after a crash
+        BasketSnapshot.syncDirectory(directory);
+    }
+
+    private void closeSegment() throws IOException
+    {
+        if(segment == null)
+            return;
+
+        segment.force();
+        channel.close();
+        segment = null;
+        channel = null;
+    }
+
+    private static final class Pending
+    {
+        private final long sequence;
+
+        /**
+         * null for a segment roll
+         */
+        private final JournalRecord.Type type;
+
+        private final UUID basketId;
+
+        private final byte[] payload;
+
+        private Pending(long sequence, JournalRecord.Type type, UUID basketId, byte[] payload)
+        {
+            this.sequence = sequence;
+            this.type = type;
+            this.basketId = basketId;
+            this.payload = payload;
+        }
+    }
+}
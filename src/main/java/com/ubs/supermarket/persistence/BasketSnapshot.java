@@ -0,0 +1,230 @@
+package com.ubs.supermarket.persistence;
+
+import com.ubs.supermarket.products.Product;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact snapshot of every basket, taken at a journal sequence.
+ *
+ * A snapshot holds the lines of every basket with the sequence of the last journal record applied to it,
+ * records up to that sequence are already part of the snapshot and are skipped when replaying the journal.
+ * Snapshots are written to a temporary file, synced and renamed, so a snapshot file is always complete.
+ */
+final class BasketSnapshot implements Closeable
+{
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x42534e50;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Receives a basket read from a snapshot
+     */
+    interface BasketConsumer
+    {
+        void accept(UUID basketId, long sequence, Map<Product, Long> lines);
+    }
+
+    /**
+     * Writes the lines of a basket with the last journal record applied to them, to a snapshot or a basket tier
+     */
+    interface BasketWriter
+    {
+        void write(UUID basketId, long sequence, Map<Product, Long> lines) throws IOException;
+    }
+
+    private final Path file;
+
+    private final Path temporary;
+
+    private final FileOutputStream fileOut;
+
+    private final CheckedOutputStream checkedOut;
+
+    private final DataOutputStream out;
+
+    private boolean committed;
+
+    private BasketSnapshot(Path directory, long sequence) throws IOException
+    {
+        this.file = directory.resolve(fileName(sequence));
+        this.temporary = directory.resolve(fileName(sequence) + TEMPORARY_SUFFIX);
+        this.fileOut = new FileOutputStream(temporary.toFile());
+        this.checkedOut = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), new CRC32());
+        this.out = new DataOutputStream(checkedOut);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(sequence);
+    }
+
+    /**
+     * Starts a snapshot of the journal up to the sequence
+     * @param directory
+     * @param sequence
+     * @return
+     * @throws IOException
+     */
+    static BasketSnapshot create(Path directory, long sequence) throws IOException
+    {
+        return new BasketSnapshot(directory, sequence);
+    }
+
+    /**
+     * Adds a basket to the snapshot
+     * @param basketId
+     * @param sequence last journal record applied to the basket
+     * @param lines
+     * @throws IOException
+     */
+    void write(UUID basketId, long sequence, Map<Product, Long> lines) throws IOException
+    {
+        out.writeBoolean(true);
+        BasketCodec.writeUUID(out, basketId);
+        out.writeLong(sequence);
+        BasketCodec.writeLines(out, lines.entrySet());
+    }
+
+    /**
+     * Syncs the snapshot to disk and makes it the latest snapshot
+     * @throws IOException
+     */
+    void commit() throws IOException
+    {
+        out.writeBoolean(false);
+        out.writeLong(checkedOut.getChecksum().getValue());
+        out.flush();
+        fileOut.getFD().sync();
+        out.close();
+
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.getParent());
+        committed = true;
+    }
+
+    /**
+     * Discards the snapshot if it has not been committed
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(committed)
+            return;
+
+        out.close();
+        Files.deleteIfExists(temporary);
+    }
+
+    /**
+     * Reads the latest snapshot of the directory
+     * @param directory
+     * @param consumer
+     * @return journal sequence of the snapshot, 0 if there is no snapshot
+     * @throws IOException
+     */
+    static long load(Path directory, BasketConsumer consumer) throws IOException
+    {
+        TreeMap<Long, Path> snapshots = snapshots(directory);
+        if(snapshots.isEmpty())
+            return 0;
+
+        Path latest = snapshots.lastEntry().getValue();
+        CheckedInputStream checkedIn = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(latest), 1 << 16), new CRC32());
+        try(DataInputStream in = new DataInputStream(checkedIn))
+        {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a basket snapshot " + latest);
+
+            long sequence = in.readLong();
+            while(in.readBoolean())
+            {
+                UUID basketId = BasketCodec.readUUID(in);
+                long basketSequence = in.readLong();
+                consumer.accept(basketId, basketSequence, BasketCodec.readLines(in));
+            }
+
+            long checksum = checkedIn.getChecksum().getValue();
+            if(in.readLong() != checksum)
+                throw new IOException("Corrupt basket snapshot " + latest);
+
+            return sequence;
+        }
+    }
+
+    /**
+     * Deletes the snapshots taken before the sequence and unfinished snapshots
+     * @param directory
+     * @param sequence
+     * @throws IOException
+     */
+    static void deleteBefore(Path directory, long sequence) throws IOException
+    {
+        for(Map.Entry<Long, Path> snapshot : snapshots(directory).headMap(sequence).entrySet())
+            Files.deleteIfExists(snapshot.getValue());
+
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + TEMPORARY_SUFFIX))
+        {
+            for(Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    private static TreeMap<Long, Path> snapshots(Path directory) throws IOException
+    {
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX))
+        {
+            for(Path file : files)
+            {
+                String name = file.getFileName().toString();
+                snapshots.put(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length())), file);
+            }
+        }
+        return snapshots;
+    }
+
+    private static String fileName(long sequence)
+    {
+        return String.format("%s%020d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Makes the files created or renamed in the directory durable, not supported on every platform
+     */
+    static void syncDirectory(Path directory)
+    {
+        try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch(IOException e)
+        {
+            // the files themselves are synced, their names may be replayed by the file system
+        }
+    }
+}
@@ -0,0 +1,690 @@
+package com.ubs.supermarket.persistence;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.basket.MailboxBasket;
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.service.BasketService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Creates and deletes baskets, and keeps them across restarts when a journal directory is configured.
+ *
+ * Basket creation, mutations and deletion are logged to an append-only journal. A snapshot of every
+ * basket is taken periodically and on shutdown, after which the journal segments it covers are deleted.
+ * On startup the latest snapshot is loaded and only the journal written after it is replayed, once the persisted
+ * catalog prices are published so that baskets are restored with them.
+ *
+ * Without a journal directory baskets only live in memory.
+ *
+ * With basket.mailbox.enabled every registered basket applies its mutations from a MailboxBasket, in front of
+ * its journal so that coalesced mutations are journaled as one record. Every registered basket sits behind a
+ * FencedBasket, in front of its mailbox, which moveOut closes before sending the basket so that no change
+ * reaching it is lost.
+ *
+ * With basket.tier.directory idle baskets are periodically spilled to a ColdBasketStore and reloaded on their
+ * next lookup, behind their journal and mailbox again. The baskets of the snapshot restored on start are written to
+ * the tier rather than kept in memory, unless the journal replayed changes them. Spills, those of reloads past the
+ * maximum count included, never run during a snapshot, which writes the
+ * spilled baskets first and then the ones in memory, so that a basket reloaded meanwhile is written again with
+ * its latest lines.
+ *
+ * With basket.expiry.idle-seconds baskets not used for that long, spilled ones included, are periodically deleted
+ * and their deletion journaled, so that abandoned baskets neither pile up nor come back on restart.
+ */
+@Component
+@DependsOn("priceImportService")
+public class BasketStore
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BasketStore.class);
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * time between two expiry sweeps at most
+     */
+    private static final long EXPIRY_INTERVAL_SECONDS = 60;
+
+    private final BasketService basketService;
+
+    private final BasketFactory basketFactory;
+
+    /**
+     * null when baskets are only kept in memory
+     */
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final long snapshotIntervalSeconds;
+
+    /**
+     * baskets apply their mutations from a mailbox if true
+     */
+    private final boolean mailboxes;
+
+    /**
+     * null when baskets are never spilled
+     */
+    private final ColdBasketStore coldStore;
+
+    /**
+     * idle time after which a basket is deleted, baskets never expire if 0
+     */
+    private final long expirySeconds;
+
+    private BasketJournal journal;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Store keeping baskets in memory only
+     * @param basketService
+     * @param catalog
+     */
+    public BasketStore(BasketService basketService, ProductCatalog catalog)
+    {
+        this(basketService, BasketFactory.onHeap(catalog), "", DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * @param basketService
+     * @param basketFactory creates the baskets, on or off the heap
+     * @param directory journal and snapshot directory, baskets are kept in memory only if empty
+     * @param segmentSize size of a journal segment file in bytes
+     * @param snapshotIntervalSeconds time between snapshots, no periodic snapshot if 0
+     */
+    public BasketStore(BasketService basketService, BasketFactory basketFactory, String directory, int segmentSize,
+                       long snapshotIntervalSeconds)
+    {
+        this(basketService, basketFactory, directory, segmentSize, snapshotIntervalSeconds, false);
+    }
+
+    /**
+     * @param basketService
+     * @param basketFactory creates the baskets, on or off the heap
+     * @param directory journal and snapshot directory, baskets are kept in memory only if empty
+     * @param segmentSize size of a journal segment file in bytes
+     * @param snapshotIntervalSeconds time between snapshots, no periodic snapshot if 0
+     * @param mailboxes every basket applies its mutations from a mailbox, coalescing the ones queued together
+     */
+    public BasketStore(BasketService basketService, BasketFactory basketFactory, String directory, int segmentSize,
+                       long snapshotIntervalSeconds, boolean mailboxes)
+    {
+        this(basketService, basketFactory, directory, segmentSize, snapshotIntervalSeconds, mailboxes, null);
+    }
+
+    /**
+     * @param basketService
+     * @param basketFactory creates the baskets, on or off the heap
+     * @param directory journal and snapshot directory, baskets are kept in memory only if empty
+     * @param segmentSize size of a journal segment file in bytes
+     * @param snapshotIntervalSeconds time between snapshots, no periodic snapshot if 0
+     * @param mailboxes every basket applies its mutations from a mailbox, coalescing the ones queued together
+     * @param coldStore tier idle baskets are spilled to if enabled, may be null
+     */
+    public BasketStore(BasketService basketService, BasketFactory basketFactory, String directory, int segmentSize,
+                       long snapshotIntervalSeconds, boolean mailboxes, ColdBasketStore coldStore)
+    {
+        this(basketService, basketFactory, directory, segmentSize, snapshotIntervalSeconds, mailboxes, coldStore, 0);
+    }
+
+    /**
+     * @param basketService
+     * @param basketFactory creates the baskets, on or off the heap
+     * @param directory journal and snapshot directory, baskets are kept in memory only if empty
+     * @param segmentSize size of a journal segment file in bytes
+     * @param snapshotIntervalSeconds time between snapshots, no periodic snapshot if 0
+     * @param mailboxes every basket applies its mutations from a mailbox, coalescing the ones queued together
+     * @param coldStore tier idle baskets are spilled to if enabled, may be null
+     * @param expirySeconds idle time after which a basket is deleted, baskets never expire if 0
+     */
+    @Autowired
+    public BasketStore(BasketService basketService, BasketFactory basketFactory,
+                       @Value("${basket.journal.directory:}") String directory,
+                       @Value("${basket.journal.segment-size:" + DEFAULT_SEGMENT_SIZE + "}") int segmentSize,
+                       @Value("${basket.snapshot.interval-seconds:300}") long snapshotIntervalSeconds,
+                       @Value("${basket.mailbox.enabled:false}") boolean mailboxes,
+                       ColdBasketStore coldStore,
+                       @Value("${basket.expiry.idle-seconds:0}") long expirySeconds)
+    {
+        if(segmentSize <= 0)
+            throw new IllegalArgumentException("Journal segment size must be positive");
+        if(expirySeconds < 0)
+            throw new IllegalArgumentException("Basket expiry idle time must not be negative");
+
+        this.basketService = basketService;
+        this.basketFactory = basketFactory;
+        this.directory = directory.isEmpty() ? null : Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+        this.mailboxes = mailboxes;
+        this.coldStore = coldStore != null && coldStore.isEnabled() ? coldStore : null;
+        this.expirySeconds = expirySeconds;
+    }
+
+    /**
+     * Restores the baskets of the latest snapshot and journal, then opens the journal for writing
+     * @throws IOException
+     */
+    @PostConstruct
+    public void open() throws IOException
+    {
+        if(coldStore != null)
+        {
+            coldStore.open(this::restoreSpilled);
+            basketService.setTier(coldStore, coldStore.getMaxHotBaskets());
+            long interval = coldStore.getSweepIntervalSeconds();
+            scheduler().scheduleWithFixedDelay(this::scheduledSpill, interval, interval, TimeUnit.SECONDS);
+        }
+
+        if(directory == null)
+        {
+            scheduleExpiry();
+            return;
+        }
+
+        Files.createDirectories(directory);
+
+        Map<UUID, Basket> baskets = new HashMap<>();
+        Map<UUID, Long> snapshotSequences = new HashMap<>();
+
+        long lastSequence;
+        try
+        {
+            long snapshotSequence = BasketSnapshot.load(directory, (basketId, sequence, lines) ->
+            {
+                // with a tier, baskets stay on disk until they are looked up or the journal changes them
+                if(coldStore != null)
+                {
+                    store(basketId, sequence, lines);
+                    return;
+                }
+                baskets.put(basketId, basketFactory.create(basketId, lines));
+                snapshotSequences.put(basketId, sequence);
+            });
+
+            lastSequence = BasketJournal.replay(directory, snapshotSequence, record ->
+            {
+                if(coldStore != null && !baskets.containsKey(record.getBasketId()))
+                    takeFromTier(baskets, snapshotSequences, record.getBasketId());
+
+                Long applied = snapshotSequences.get(record.getBasketId());
+                if(applied == null || applied < record.getSequence())
+                    apply(baskets, record);
+            });
+        }
+        catch(UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        journal = new BasketJournal(directory, segmentSize, lastSequence);
+        baskets.forEach((basketId, basket) -> register(new JournaledBasket(basket, journal, lastSequence)));
+
+        if(snapshotIntervalSeconds > 0)
+            scheduler().scheduleWithFixedDelay(this::scheduledSnapshot, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        scheduleExpiry();
+    }
+
+    /**
+     * Creates and registers an empty basket
+     * @return
+     */
+    public Basket create()
+    {
+        return JournaledBasket.join(createAsync());
+    }
+
+    /**
+     * Creates and registers an empty basket without blocking the caller
+     * @return completed once the creation is durable
+     */
+    public CompletableFuture<Basket> createAsync()
+    {
+        Basket basket = basketFactory.create();
+        if(journal == null)
+            return CompletableFuture.completedFuture(register(basket));
+
+        JournaledBasket journaled = new JournaledBasket(basket, journal, 0);
+        Basket registered = register(journaled);
+        return journaled.journal(JournalRecord.Type.CREATE).thenApply(durable -> registered);
+    }
+
+    /**
+     * Registers a basket under its id with its lines, replacing a basket already registered under the id.
+     * Used for baskets moved from another node, every line is added and journaled as one run whatever its count
+     * @param basketId
+     * @param lines
+     * @return
+     * @throws InvalidRequestException if a count is missing or negative
+     */
+    public Basket restore(UUID basketId, Map<? extends Product, Long> lines)
+    {
+        lines.forEach((product, count) ->
+        {
+            if(count == null || count < 0)
+                throw new InvalidRequestException("Invalid count " + count + " of product " + product.getName());
+        });
+
+        delete(basketId);
+
+        if(journal == null)
+            return register(basketFactory.create(basketId, lines));
+
+        JournaledBasket journaled = new JournaledBasket(basketFactory.create(basketId, Collections.emptyMap()), journal, 0);
+        JournaledBasket.join(journaled.journal(JournalRecord.Type.CREATE));
+        lines.forEach(journaled::addProduct);
+
+        return register(journaled);
+    }
+
+    /**
+     * Hands a basket over to another owner: the basket is unregistered and fenced first, so that mutations still
+     * holding it are rejected and the ones in flight are done before it is sent. It is then deleted once the
+     * transfer succeeded, or registered again if it failed
+     * @param basketId
+     * @param transfer sends the basket to its new owner, returns false if it could not
+     * @return true if the basket was handed over
+     */
+    public boolean moveOut(UUID basketId, Predicate<Basket> transfer)
+    {
+        Optional<Basket> removed = basketService.removeBasket(basketId);
+        if(!removed.isPresent())
+            return false;
+
+        Basket basket = removed.get();
+        FencedBasket fenced = fenceOf(basket);
+        if(fenced != null)
+            fenced.fence();
+
+        long version;
+        do
+        {
+            version = basket.getVersion();
+            if(!transfer.test(basket))
+            {
+                if(fenced != null)
+                    fenced.lift();
+                basketService.addBasket(basket);
+                return false;
+            }
+        }
+        // only a basket registered without a fence can still change, it is sent again with the change
+        while(basket.getVersion() != version);
+
+        basket.release();
+        if(unwrap(basket) instanceof JournaledBasket)
+            JournaledBasket.join(((JournaledBasket) unwrap(basket)).journal(JournalRecord.Type.DELETE));
+        return true;
+    }
+
+    /**
+     * Removes and releases the basket
+     * @param basketId
+     * @return the removed basket, empty if there is no such basket
+     */
+    public Optional<Basket> delete(UUID basketId)
+    {
+        return JournaledBasket.join(deleteAsync(basketId));
+    }
+
+    /**
+     * Removes and releases the basket without blocking the caller
+     * @param basketId
+     * @return completed with the removed basket once the removal is durable, empty if there is no such basket
+     */
+    public CompletableFuture<Optional<Basket>> deleteAsync(UUID basketId)
+    {
+        return deleted(basketService.removeBasket(basketId));
+    }
+
+    /**
+     * Deletes the baskets that have not been used within the given idle time, in memory or spilled to the tier.
+     * Each deletion is journaled like a DELETE request, an expired basket does not come back on restart
+     * @param maxIdle
+     * @param unit
+     * @return number of baskets deleted
+     */
+    public int expireIdleBaskets(long maxIdle, TimeUnit unit)
+    {
+        List<CompletableFuture<Optional<Basket>>> deletions = new ArrayList<>();
+        for(Basket basket : basketService.removeIdleBaskets(maxIdle, unit))
+            deletions.add(deleted(Optional.of(basket)));
+
+        if(coldStore != null)
+            coldStore.forEachIdleId(unit.toMillis(maxIdle),
+                    basketId -> deletions.add(deleted(basketService.removeSpilledBasket(basketId))));
+
+        int expired = 0;
+        for(CompletableFuture<Optional<Basket>> deletion : deletions)
+        {
+            if(JournaledBasket.join(deletion).isPresent())
+                expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * Releases the basket removed from the registry and journals its deletion
+     * @return completed with the removed basket once the removal is durable
+     */
+    private static CompletableFuture<Optional<Basket>> deleted(Optional<Basket> removed)
+    {
+        removed.ifPresent(Basket::release);
+        if(removed.isPresent() && unwrap(removed.get()) instanceof JournaledBasket)
+            return ((JournaledBasket) unwrap(removed.get())).journal(JournalRecord.Type.DELETE).thenApply(durable -> removed);
+
+        return CompletableFuture.completedFuture(removed);
+    }
+
+    /**
+     * Writes a snapshot of every basket and deletes the journal segments it covers
+     */
+    public synchronized void snapshot()
+    {
+        if(journal == null)
+            return;
+
+        long sequence = journal.roll();
+        try
+        {
+            try(BasketSnapshot snapshot = BasketSnapshot.create(directory, sequence))
+            {
+                // a basket spilled by a reload between the two writes would be missed
+                basketService.withoutSpills(() -> writeBaskets(snapshot));
+                snapshot.commit();
+            }
+
+            BasketSnapshot.deleteBefore(directory, sequence);
+            journal.deleteSegmentsUpTo(sequence);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException("Basket snapshot failed", e);
+        }
+    }
+
+    /**
+     * Spills the baskets idle past the configured time, and the least recently used ones past the configured count
+     * @return number of baskets spilled
+     */
+    public synchronized int spillIdleBaskets()
+    {
+        if(coldStore == null)
+            return 0;
+
+        return basketService.spillIdleBaskets(coldStore.getIdleSeconds(), TimeUnit.SECONDS, coldStore.getMaxHotBaskets());
+    }
+
+    /**
+     * Takes a last snapshot so that the next start has no journal to replay
+     */
+    @PreDestroy
+    public void close()
+    {
+        if(scheduler != null)
+            scheduler.shutdownNow();
+
+        if(journal == null)
+            return;
+
+        snapshot();
+        journal.close();
+    }
+
+    /**
+     * A failed snapshot leaves the previous snapshot and the journal in place, the next one is still scheduled
+     */
+    private void scheduledSnapshot()
+    {
+        try
+        {
+            snapshot();
+        }
+        catch(RuntimeException e)
+        {
+            LOGGER.warn("Basket snapshot failed, the journal is kept until the next snapshot", e);
+        }
+    }
+
+    /**
+     * Sweeps the idle baskets every idle time, at least every EXPIRY_INTERVAL_SECONDS
+     */
+    private void scheduleExpiry()
+    {
+        if(expirySeconds == 0)
+            return;
+
+        long interval = Math.min(expirySeconds, EXPIRY_INTERVAL_SECONDS);
+        scheduler().scheduleWithFixedDelay(this::scheduledExpiry, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A failed expiry keeps the remaining baskets until the next one, which is still scheduled
+     */
+    private void scheduledExpiry()
+    {
+        try
+        {
+            expireIdleBaskets(expirySeconds, TimeUnit.SECONDS);
+        }
+        catch(RuntimeException e)
+        {
+            LOGGER.warn("Expiring idle baskets failed, they are kept until the next sweep", e);
+        }
+    }
+
+    /**
+     * A failed spill keeps the baskets in memory, the next one is still scheduled
+     */
+    private void scheduledSpill()
+    {
+        try
+        {
+            spillIdleBaskets();
+        }
+        catch(RuntimeException e)
+        {
+            LOGGER.warn("Spilling idle baskets failed, they are kept in memory until the next sweep", e);
+        }
+    }
+
+    private ScheduledExecutorService scheduler()
+    {
+        if(scheduler == null)
+        {
+            scheduler = Executors.newSingleThreadScheduledExecutor(task ->
+            {
+                Thread thread = new Thread(task, "basket-store");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Writes the spilled baskets then the ones in memory
+     */
+    private void writeBaskets(BasketSnapshot snapshot)
+    {
+        try
+        {
+            if(coldStore != null)
+                coldStore.writeTo(snapshot);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException("Basket snapshot failed", e);
+        }
+        basketService.forEach(basket -> write(snapshot, basket));
+    }
+
+    private static void write(BasketSnapshot snapshot, Basket basket)
+    {
+        try
+        {
+            if(unwrap(basket) instanceof JournaledBasket)
+                ((JournaledBasket) unwrap(basket)).writeTo(snapshot::write);
+            else
+                snapshot.write(basket.getBasketID(), 0, basket.getAllProducts());
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Registers the basket, behind its fence and a mailbox if configured
+     * @return the registered basket
+     */
+    private Basket register(Basket basket)
+    {
+        Basket registered = wrap(basket);
+        basketService.addBasket(registered);
+        return registered;
+    }
+
+    /**
+     * @return the basket behind its fence, and a mailbox if configured, so that the mutations queued in the
+     * mailbox are counted by the fence
+     */
+    private Basket wrap(Basket basket)
+    {
+        return new FencedBasket(mailboxes ? new MailboxBasket(basket, ForkJoinPool.commonPool()) : basket);
+    }
+
+    /**
+     * Rebuilds a basket reloaded from the tier at the version it was spilled with, the registry registers it
+     */
+    private Basket restoreSpilled(UUID basketId, long sequence, long version, Map<Product, Long> lines)
+    {
+        Basket basket = basketFactory.create(basketId, lines, version);
+        return wrap(journal == null ? basket : new JournaledBasket(basket, journal, sequence));
+    }
+
+    /**
+     * @return the basket behind its mailbox and fence
+     */
+    static Basket unwrap(Basket basket)
+    {
+        FencedBasket fenced = fenceOf(basket);
+        Basket behind = fenced != null ? fenced.getBasket() : basket;
+        return behind instanceof MailboxBasket ? ((MailboxBasket) behind).getBasket() : behind;
+    }
+
+    /**
+     * @return the fence of a registered basket, null if it has none
+     */
+    private static FencedBasket fenceOf(Basket basket)
+    {
+        return basket instanceof FencedBasket ? (FencedBasket) basket : null;
+    }
+
+    /**
+     * Writes a basket of the snapshot to the tier
+     */
+    private void store(UUID basketId, long sequence, Map<Product, Long> lines)
+    {
+        try
+        {
+            coldStore.store(basketId, sequence, 0, lines);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads a basket of the snapshot back from the tier, for the journal records to be applied to it
+     */
+    private void takeFromTier(Map<UUID, Basket> baskets, Map<UUID, Long> snapshotSequences, UUID basketId)
+    {
+        try
+        {
+            coldStore.load(basketId, (id, sequence, version, lines) ->
+            {
+                snapshotSequences.put(id, sequence);
+                return basketFactory.create(id, lines, version);
+            }).ifPresent(basket -> baskets.put(basketId, basket));
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void apply(Map<UUID, Basket> baskets, JournalRecord record)
+    {
+        UUID basketId = record.getBasketId();
+        switch(record.getType())
+        {
+            case CREATE:
+                baskets.computeIfAbsent(basketId, id -> basketFactory.create(id, Collections.emptyMap()));
+                break;
+
+            case DELETE:
+                Basket deleted = baskets.remove(basketId);
+                if(deleted != null)
+                    deleted.release();
+                break;
+
+            default:
+                Basket basket = baskets.get(basketId);
+                if(basket == null)
+                    return;
+
+                // every run is applied at once, whatever its count
+                for(Map.Entry<Product, Long> run : decode(record))
+                {
+                    if(record.getType() == JournalRecord.Type.ADD)
+                        basket.addProduct(run.getKey(), run.getValue());
+                    else
+                        basket.removeProduct(run.getKey(), run.getValue());
+                }
+        }
+    }
+
+    private static List<Map.Entry<Product, Long>> decode(JournalRecord record)
+    {
+        try
+        {
+            return BasketCodec.decodeProducts(record.getPayload());
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException("Unreadable journal record " + record.getSequence(), e);
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.ubs.supermarket.persistence;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.service.BasketTier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Local disk tier of the baskets idle for too long, enabled by basket.tier.directory.
+ *
+ * Every spilled basket is a file of its lines, in the encoding of the snapshots, with the last journal record
+ * applied to them, the basket version and a checksum. A reloaded basket carries on from its version, so that the
+ * entity tags handed out before the spill never match another content of the basket. Files are spread over 256 directories by the first byte of the basket id and
+ * written to a temporary file then renamed, so a basket file is always complete. A basket file is deleted when
+ * the basket is reloaded.
+ *
+ * The tier only holds baskets spilled since the last start, the journal and snapshots keep the baskets across
+ * restarts: the basket files are deleted on open and every snapshot includes the spilled baskets. The baskets of
+ * the snapshot restored on start are written back to the tier, they are only read into memory on their lookup.
+ */
+@Component
+public class ColdBasketStore implements BasketTier
+{
+    private static final String BASKET_SUFFIX = ".bin";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x4253504c;
+
+    private static final int VERSION = 2;
+
+    /**
+     * Rebuilds a basket read from the tier, ready to be registered
+     */
+    interface BasketRestorer
+    {
+        Basket restore(UUID basketId, long sequence, long version, Map<Product, Long> lines);
+    }
+
+    /**
+     * Writes the lines of a basket with the last journal record applied to them and the basket version
+     */
+    interface SpilledBasketWriter
+    {
+        void write(UUID basketId, long sequence, long version, Map<Product, Long> lines) throws IOException;
+    }
+
+    /**
+     * null when every basket stays in memory
+     */
+    private final Path directory;
+
+    private final long idleSeconds;
+
+    private final int maxHotBaskets;
+
+    private final long sweepIntervalSeconds;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private BasketRestorer restorer;
+
+    /**
+     * @param directory directory of the spilled baskets, baskets stay in memory if empty
+     * @param idleSeconds idle time after which a basket is spilled
+     * @param maxHotBaskets baskets kept in memory at most, the least recently used ones are spilled first
+     * @param sweepIntervalSeconds time between two spills of the idle baskets
+     */
+    @Autowired
+    public ColdBasketStore(@Value("${basket.tier.directory:}") String directory,
+                           @Value("${basket.tier.idle-seconds:600}") long idleSeconds,
+                           @Value("${basket.tier.max-hot-baskets:100000}") int maxHotBaskets,
+                           @Value("${basket.tier.sweep-interval-seconds:10}") long sweepIntervalSeconds)
+    {
+        if(idleSeconds < 0 || maxHotBaskets < 0)
+            throw new IllegalArgumentException("Basket tier idle time and maximum baskets must not be negative");
+        if(sweepIntervalSeconds <= 0)
+            throw new IllegalArgumentException("Basket tier sweep interval must be positive");
+
+        this.directory = directory.isEmpty() ? null : Paths.get(directory);
+        this.idleSeconds = idleSeconds;
+        this.maxHotBaskets = maxHotBaskets;
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    /**
+     * @return true if a directory is configured
+     */
+    public boolean isEnabled()
+    {
+        return directory != null;
+    }
+
+    public long getIdleSeconds()
+    {
+        return idleSeconds;
+    }
+
+    public int getMaxHotBaskets()
+    {
+        return maxHotBaskets;
+    }
+
+    public long getSweepIntervalSeconds()
+    {
+        return sweepIntervalSeconds;
+    }
+
+    /**
+     * Deletes the baskets spilled before the last stop, other files of the directory are left alone
+     * @param restorer rebuilds the reloaded baskets
+     * @throws IOException
+     */
+    void open(BasketRestorer restorer) throws IOException
+    {
+        this.restorer = restorer;
+        Files.createDirectories(directory);
+        try(Stream<Path> files = Files.find(directory, 2, (file, attributes) -> attributes.isRegularFile()
+                && file.getParent().getFileName().toString().length() == 2
+                && (file.toString().endsWith(BASKET_SUFFIX) || file.toString().endsWith(TEMPORARY_SUFFIX))))
+        {
+            files.forEach(ColdBasketStore::delete);
+        }
+        size.set(0);
+    }
+
+    @Override
+    public void spill(Basket basket) throws IOException
+    {
+        Basket unwrapped = BasketStore.unwrap(basket);
+        if(unwrapped instanceof JournaledBasket)
+            ((JournaledBasket) unwrapped).spillTo(this::write);
+        else
+            write(basket.getBasketID(), 0, basket.getVersion(), basket.getAllProducts());
+    }
+
+    @Override
+    public Optional<Basket> load(UUID basketID) throws IOException
+    {
+        return load(basketID, restorer);
+    }
+
+    /**
+     * Reads a basket back from the tier and removes it from the tier
+     * @param basketID
+     * @param restorer rebuilds the basket read
+     * @return empty if the tier has no such basket
+     * @throws IOException
+     */
+    Optional<Basket> load(UUID basketID, BasketRestorer restorer) throws IOException
+    {
+        Path file = fileOf(basketID);
+        Basket[] restored = new Basket[1];
+        if(!read(file, (basketId, sequence, version, lines) -> restored[0] = restorer.restore(basketId, sequence, version, lines)))
+            return Optional.empty();
+
+        discard(basketID);
+        return Optional.of(restored[0]);
+    }
+
+    /**
+     * Writes a basket that is not in memory to the tier, such as a basket of a snapshot
+     * @param basketId
+     * @param sequence sequence of the last journal record applied to the lines
+     * @param version
+     * @param lines
+     * @throws IOException
+     */
+    void store(UUID basketId, long sequence, long version, Map<Product, Long> lines) throws IOException
+    {
+        write(basketId, sequence, version, lines);
+    }
+
+    @Override
+    public void discard(UUID basketID) throws IOException
+    {
+        if(Files.deleteIfExists(fileOf(basketID)))
+            size.decrementAndGet();
+    }
+
+    @Override
+    public void forEachId(Consumer<UUID> action)
+    {
+        try
+        {
+            forEachFile(file ->
+            {
+                String name = file.getFileName().toString();
+                action.accept(UUID.fromString(name.substring(0, name.length() - BASKET_SUFFIX.length())));
+            });
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException("Basket tier could not be listed", e);
+        }
+    }
+
+    /**
+     * Visits the id of every basket spilled longer ago than the given idle time, a spilled basket was last used
+     * before it was written so it has been idle at least that long
+     * @param idleMillis
+     * @param action
+     */
+    void forEachIdleId(long idleMillis, Consumer<UUID> action)
+    {
+        long deadline = System.currentTimeMillis() - idleMillis;
+        try
+        {
+            forEachFile(file ->
+            {
+                try
+                {
+                    if(Files.getLastModifiedTime(file).toMillis() >= deadline)
+                        return;
+                }
+                catch(NoSuchFileException e)
+                {
+                    // reloaded meanwhile
+                    return;
+                }
+
+                String name = file.getFileName().toString();
+                action.accept(UUID.fromString(name.substring(0, name.length() - BASKET_SUFFIX.length())));
+            });
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException("Basket tier could not be listed", e);
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * Adds every spilled basket to the snapshot, a basket reloaded meanwhile may or may not be written
+     * @param snapshot
+     * @throws IOException
+     */
+    void writeTo(BasketSnapshot snapshot) throws IOException
+    {
+        try
+        {
+            forEachFile(file -> read(file, (basketId, sequence, version, lines) ->
+            {
+                try
+                {
+                    snapshot.write(basketId, sequence, lines);
+                }
+                catch(IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        catch(UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    private void write(UUID basketId, long sequence, long version, Map<Product, Long> lines) throws IOException
+    {
+        Path file = fileOf(basketId);
+        Path temporary = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+        Files.createDirectories(file.getParent());
+
+        CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), new CRC32());
+        try(DataOutputStream out = new DataOutputStream(checkedOut))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            BasketCodec.writeUUID(out, basketId);
+            out.writeLong(sequence);
+            out.writeLong(version);
+            BasketCodec.writeLines(out, lines.entrySet());
+            out.writeLong(checkedOut.getChecksum().getValue());
+        }
+        catch(IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        // the tier is rebuilt from the journal on restart, the file need not be synced
+        boolean replaced = Files.exists(file);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if(!replaced)
+            size.incrementAndGet();
+    }
+
+    /**
+     * @return false if there is no such file, it was reloaded meanwhile
+     */
+    private static boolean read(Path file, SpilledBasketConsumer consumer) throws IOException
+    {
+        CheckedInputStream checkedIn;
+        try
+        {
+            checkedIn = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), new CRC32());
+        }
+        catch(NoSuchFileException e)
+        {
+            return false;
+        }
+
+        try(DataInputStream in = new DataInputStream(checkedIn))
+        {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a spilled basket " + file);
+
+            UUID basketId = BasketCodec.readUUID(in);
+            long sequence = in.readLong();
+            long version = in.readLong();
+            Map<Product, Long> lines = BasketCodec.readLines(in);
+
+            long checksum = checkedIn.getChecksum().getValue();
+            if(in.readLong() != checksum)
+                throw new IOException("Corrupt spilled basket " + file);
+
+            consumer.accept(basketId, sequence, version, lines);
+            return true;
+        }
+    }
+
+    private void forEachFile(FileAction action) throws IOException
+    {
+        try(DirectoryStream<Path> shards = Files.newDirectoryStream(directory, Files::isDirectory))
+        {
+            for(Path shard : shards)
+            {
+                try(DirectoryStream<Path> files = Files.newDirectoryStream(shard, "*" + BASKET_SUFFIX))
+                {
+                    for(Path file : files)
+                        action.accept(file);
+                }
+            }
+        }
+    }
+
+    private Path fileOf(UUID basketId)
+    {
+        String name = basketId.toString();
+        return directory.resolve(name.substring(0, 2)).resolve(name + BASKET_SUFFIX);
+    }
+
+    private static void delete(Path file)
+    {
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException("Stale spilled basket could not be deleted " + file, e);
+        }
+    }
+
+    private interface SpilledBasketConsumer
+    {
+        void accept(UUID basketId, long sequence, long version, Map<Product, Long> lines);
+    }
+
+    private interface FileAction
+    {
+        void accept(Path file) throws IOException;
+    }
+}
@@ -0,0 +1,334 @@
+package com.ubs.supermarket.persistence;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.exception.DataNotFoundException;
+import com.ubs.supermarket.products.Product;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Basket counting the mutations in flight, so that it can be fenced before being handed over to another owner.
+ *
+ * Once fenced every new mutation is rejected as if the basket was not found, and fence() returns only when the
+ * mutations already admitted are done, asynchronous ones included. The basket then no longer changes until the
+ * fence is lifted. Reads go straight to the basket.
+ */
+final class FencedBasket implements Basket
+{
+    /**
+     * sign bit of the state, the other bits count the mutations in flight
+     */
+    private static final long FENCED = Long.MIN_VALUE;
+
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Basket basket;
+
+    private final AtomicLong state = new AtomicLong();
+
+    FencedBasket(Basket basket)
+    {
+        this.basket = basket;
+    }
+
+    /**
+     * @return the basket the mutations are applied to
+     */
+    Basket getBasket()
+    {
+        return basket;
+    }
+
+    /**
+     * Rejects the mutations from now on and waits until the ones in flight are done
+     */
+    void fence()
+    {
+        state.addAndGet(FENCED);
+        while(state.get() != FENCED)
+            LockSupport.parkNanos(WAIT_NANOS);
+    }
+
+    /**
+     * Admits the mutations again
+     */
+    void lift()
+    {
+        state.addAndGet(FENCED);
+    }
+
+    @Override
+    public UUID getBasketID()
+    {
+        return basket.getBasketID();
+    }
+
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products)
+    {
+        enter();
+        try
+        {
+            return basket.addProducts(products);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products)
+    {
+        enter();
+        try
+        {
+            return basket.removeProducts(products);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public long addProduct(Product product, long count)
+    {
+        enter();
+        try
+        {
+            return basket.addProduct(product, count);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public long removeProduct(Product product, long count)
+    {
+        enter();
+        try
+        {
+            return basket.removeProduct(product, count);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        enter();
+        try
+        {
+            return basket.addProducts(products, expectedVersion);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        enter();
+        try
+        {
+            return basket.removeProducts(products, expectedVersion);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void addAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        enter();
+        try
+        {
+            basket.addAll(products, expectedVersion);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        enter();
+        try
+        {
+            basket.removeAll(products, expectedVersion);
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> addProductsAsync(Collection<? extends Product> products)
+    {
+        return mutate(() -> basket.addProductsAsync(products));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> removeProductsAsync(Collection<? extends Product> products)
+    {
+        return mutate(() -> basket.removeProductsAsync(products));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> addProductsAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return mutate(() -> basket.addProductsAsync(products, expectedVersion));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> removeProductsAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return mutate(() -> basket.removeProductsAsync(products, expectedVersion));
+    }
+
+    @Override
+    public CompletableFuture<Void> addAllAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return mutate(() -> basket.addAllAsync(products, expectedVersion));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeAllAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return mutate(() -> basket.removeAllAsync(products, expectedVersion));
+    }
+
+    @Override
+    public double getTotalPrice()
+    {
+        return basket.getTotalPrice();
+    }
+
+    @Override
+    public Map<Product, Long> getAllProducts()
+    {
+        return basket.getAllProducts();
+    }
+
+    @Override
+    public Map<Product, Long> getQuantities(Collection<? extends Product> products)
+    {
+        return basket.getQuantities(products);
+    }
+
+    @Override
+    public int getLineCount()
+    {
+        return basket.getLineCount();
+    }
+
+    @Override
+    public long getVersion()
+    {
+        return basket.getVersion();
+    }
+
+    @Override
+    public void release()
+    {
+        basket.release();
+    }
+
+    /**
+     * Counts the mutation in flight
+     * @throws DataNotFoundException if the basket is fenced
+     */
+    private void enter()
+    {
+        // a fenced state stays negative whatever the count, the count is taken back below
+        if(state.incrementAndGet() < 0)
+        {
+            exit();
+            throw new DataNotFoundException("Basket has moved to another node");
+        }
+    }
+
+    private void exit()
+    {
+        state.decrementAndGet();
+    }
+
+    /**
+     * Keeps the asynchronous mutation counted until it completes
+     * @param change starts the mutation of the wrapped basket
+     * @return completed with the outcome of the mutation
+     */
+    private <T> CompletableFuture<T> mutate(Supplier<CompletableFuture<T>> change)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try
+        {
+            enter();
+        }
+        catch(RuntimeException e)
+        {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        CompletableFuture<T> applied;
+        try
+        {
+            applied = change.get();
+        }
+        catch(RuntimeException e)
+        {
+            exit();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        applied.whenComplete((lines, failure) ->
+        {
+            exit();
+            if(failure == null)
+                result.complete(lines);
+            else
+                result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+                        ? failure.getCause() : failure);
+        });
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+
+        if(!(o instanceof FencedBasket)) return false;
+
+        return getBasketID().equals(((FencedBasket) o).getBasketID());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return basket.hashCode();
+    }
+}
@@ -0,0 +1,53 @@
+package com.ubs.supermarket.persistence;
+
+import java.util.UUID;
+
+/**
+ * A basket mutation read back from the journal
+ */
+final class JournalRecord
+{
+    enum Type
+    {
+        CREATE, ADD, REMOVE, DELETE
+    }
+
+    private final long sequence;
+
+    private final Type type;
+
+    private final UUID basketId;
+
+    /**
+     * encoded product runs of ADD and REMOVE records, empty otherwise
+     */
+    private final byte[] payload;
+
+    JournalRecord(long sequence, Type type, UUID basketId, byte[] payload)
+    {
+        this.sequence = sequence;
+        this.type = type;
+        this.basketId = basketId;
+        this.payload = payload;
+    }
+
+    long getSequence()
+    {
+        return sequence;
+    }
+
+    Type getType()
+    {
+        return type;
+    }
+
+    UUID getBasketId()
+    {
+        return basketId;
+    }
+
+    byte[] getPayload()
+    {
+        return payload;
+    }
+}
@@ -0,0 +1,341 @@
+package com.ubs.supermarket.persistence;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.products.Product;
+import org.springframework.util.CollectionUtils;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Basket whose mutations are written to the journal.
+ *
+ * A mutation is applied and appended to the journal under the basket monitor, so the journal holds the
+ * mutations of a basket in the order they were applied. The caller then waits outside the monitor until
+ * its record is on disk, sharing the fsync with the writers of other baskets. The asynchronous mutations
+ * return instead a future completed by the journal writer once the record is on disk.
+ */
+final class JournaledBasket implements Basket
+{
+    private final Basket basket;
+
+    private final BasketJournal journal;
+
+    /**
+     * sequence of the last journal record applied to the basket, guarded by this
+     */
+    private long lastSequence;
+
+    JournaledBasket(Basket basket, BasketJournal journal, long lastSequence)
+    {
+        this.basket = basket;
+        this.journal = journal;
+        this.lastSequence = lastSequence;
+    }
+
+    @Override
+    public UUID getBasketID()
+    {
+        return basket.getBasketID();
+    }
+
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products)
+    {
+        return join(addProductsAsync(products));
+    }
+
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products)
+    {
+        return join(removeProductsAsync(products));
+    }
+
+    /**
+     * Journals the units as one run, replayed at once too
+     * @param product
+     * @param count
+     * @return
+     */
+    @Override
+    public long addProduct(Product product, long count)
+    {
+        return mutate(JournalRecord.Type.ADD, product, count, basket -> basket.addProduct(product, count));
+    }
+
+    /**
+     * Journals the units as one run, replayed at once too
+     * @param product
+     * @param count
+     * @return
+     */
+    @Override
+    public long removeProduct(Product product, long count)
+    {
+        return mutate(JournalRecord.Type.REMOVE, product, count, basket -> basket.removeProduct(product, count));
+    }
+
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        return join(addProductsAsync(products, expectedVersion));
+    }
+
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        return join(removeProductsAsync(products, expectedVersion));
+    }
+
+    @Override
+    public void addAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        join(addAllAsync(products, expectedVersion));
+    }
+
+    @Override
+    public void removeAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        join(removeAllAsync(products, expectedVersion));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> addProductsAsync(Collection<? extends Product> products)
+    {
+        return mutate(JournalRecord.Type.ADD, products, basket -> basket.addProducts(products));
+    }
+
+    @Override
+    public CompletableFuture<Map<Product, Long>> removeProductsAsync(Collection<? extends Product> products)
+    {
+        return mutate(JournalRecord.Type.REMOVE, products, basket -> basket.removeProducts(products));
+    }
+
+    /**
+     * Nothing is journaled when the version does not match
+     */
+    @Override
+    public CompletableFuture<Map<Product, Long>> addProductsAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return mutate(JournalRecord.Type.ADD, products, basket -> basket.addProducts(products, expectedVersion));
+    }
+
+    /**
+     * Nothing is journaled when the version does not match
+     */
+    @Override
+    public CompletableFuture<Map<Product, Long>> removeProductsAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return mutate(JournalRecord.Type.REMOVE, products, basket -> basket.removeProducts(products, expectedVersion));
+    }
+
+    /**
+     * Nothing is journaled when the version does not match
+     */
+    @Override
+    public CompletableFuture<Void> addAllAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return mutate(JournalRecord.Type.ADD, products, basket ->
+        {
+            basket.addAll(products, expectedVersion);
+            return null;
+        });
+    }
+
+    /**
+     * Nothing is journaled when the version does not match
+     */
+    @Override
+    public CompletableFuture<Void> removeAllAsync(Collection<? extends Product> products, long expectedVersion)
+    {
+        return mutate(JournalRecord.Type.REMOVE, products, basket ->
+        {
+            basket.removeAll(products, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public double getTotalPrice()
+    {
+        return basket.getTotalPrice();
+    }
+
+    @Override
+    public Map<Product, Long> getAllProducts()
+    {
+        return basket.getAllProducts();
+    }
+
+    @Override
+    public Map<Product, Long> getQuantities(Collection<? extends Product> products)
+    {
+        return basket.getQuantities(products);
+    }
+
+    @Override
+    public int getLineCount()
+    {
+        return basket.getLineCount();
+    }
+
+    @Override
+    public long getVersion()
+    {
+        return basket.getVersion();
+    }
+
+    @Override
+    public synchronized void release()
+    {
+        basket.release();
+    }
+
+    /**
+     * Writes the basket lines with the sequence they include
+     * @param writer
+     * @throws IOException
+     */
+    void writeTo(BasketSnapshot.BasketWriter writer) throws IOException
+    {
+        spillTo((basketId, sequence, version, lines) -> writer.write(basketId, sequence, lines));
+    }
+
+    /**
+     * Writes the basket lines with the sequence they include and the version they make
+     * @param writer
+     * @throws IOException
+     */
+    void spillTo(ColdBasketStore.SpilledBasketWriter writer) throws IOException
+    {
+        Map<Product, Long> lines;
+        long sequence;
+        long version;
+        synchronized(this)
+        {
+            lines = basket.getAllProducts();
+            sequence = lastSequence;
+            version = basket.getVersion();
+        }
+        writer.write(getBasketID(), sequence, version, lines);
+    }
+
+    /**
+     * Appends a lifecycle record of the basket
+     * @param type CREATE or DELETE
+     * @return completed once the record is on disk
+     */
+    CompletableFuture<Void> journal(JournalRecord.Type type)
+    {
+        synchronized(this)
+        {
+            lastSequence = journal.append(type, getBasketID(), null);
+            return journal.whenDurable(lastSequence);
+        }
+    }
+
+    /**
+     * @param type
+     * @param products
+     * @param change applies the products to the wrapped basket
+     * @return completed with the result of the change once it is on disk
+     */
+    private <T> CompletableFuture<T> mutate(JournalRecord.Type type, Collection<? extends Product> products,
+                                            Function<Basket, T> change)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try
+        {
+            if(CollectionUtils.isEmpty(products))
+            {
+                result.complete(change.apply(basket));
+                return result;
+            }
+
+            byte[] payload = BasketCodec.encodeProducts(products);
+
+            T lines;
+            long sequence;
+            synchronized(this)
+            {
+                lines = change.apply(basket);
+                sequence = journal.append(type, getBasketID(), payload);
+                lastSequence = sequence;
+            }
+
+            return journal.whenDurable(sequence).thenApply(durable -> lines);
+        }
+        catch(RuntimeException e)
+        {
+            result.completeExceptionally(e);
+            return result;
+        }
+    }
+
+    /**
+     * Applies and journals units of a single product, waiting until the record is on disk
+     * @param type
+     * @param product
+     * @param count
+     * @param change applies the units to the wrapped basket
+     * @return quantity of the product after the change
+     */
+    private long mutate(JournalRecord.Type type, Product product, long count, ToLongFunction<Basket> change)
+    {
+        if(count <= 0)
+            return change.applyAsLong(basket);
+
+        byte[] payload = BasketCodec.encodeRun(product, count);
+
+        long quantity;
+        long sequence;
+        synchronized(this)
+        {
+            quantity = change.applyAsLong(basket);
+            sequence = journal.append(type, getBasketID(), payload);
+            lastSequence = sequence;
+        }
+
+        join(journal.whenDurable(sequence));
+        return quantity;
+    }
+
+    /**
+     * Waits for an asynchronous result, rethrowing its failure unwrapped
+     */
+    static <T> T join(CompletableFuture<T> result)
+    {
+        try
+        {
+            return result.join();
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+
+        if(!(o instanceof JournaledBasket)) return false;
+
+        return getBasketID().equals(((JournaledBasket) o).getBasketID());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return basket.hashCode();
+    }
+}
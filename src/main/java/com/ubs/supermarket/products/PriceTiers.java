@@ -0,0 +1,301 @@
+package com.ubs.supermarket.products;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Immutable special price table of a product, compiled from its base price and special price map.
+ *
+ * A quantity is priced at the cheapest combination of bundles, products in no bundle being charged the
+ * base price, whatever the order the special prices were added in. The base price counts as a bundle of
+ * one and the bundle with the lowest price per product is the period. Every combination costs the period
+ * price per product plus the surcharges of its bundles other than the period, and period bundles fill any
+ * quantity of the same remainder modulo the period. So a quantity is priced at the least surcharge of the
+ * combinations of its remainder holding no more products than it.
+ *
+ * Compilation keeps, for every remainder, the combinations cheaper than any smaller one of the remainder,
+ * found smallest first, and a quantity is priced from the largest one it holds. Each holds fewer than period
+ * other bundles, so a remainder has no more combinations than the largest bundle holds products. Special prices
+ * needing more than MAX_TABLE_SIZE combinations are rejected, check tells without compiling when they cannot.
+ *
+ * Every compiled table carries a version, one more than the table it replaces.
+ */
+final class PriceTiers
+{
+    /**
+     * combinations kept at most, special prices needing more are rejected
+     */
+    static final int MAX_TABLE_SIZE = 1 << 16;
+
+    private final double basePrice;
+
+    private final long version;
+
+    private final int period;
+
+    private final double periodUnitPrice;
+
+    /**
+     * index of the first combination of every remainder, then the number of combinations
+     */
+    private final int[] firstCombinations;
+
+    /**
+     * products of every combination, ascending within a remainder
+     */
+    private final long[] quantities;
+
+    /**
+     * price above periodUnitPrice per product of the combination at the same index, descending within a remainder
+     */
+    private final double[] surcharges;
+
+    private PriceTiers(double basePrice, int period, double periodUnitPrice, int[] firstCombinations,
+                       long[] quantities, double[] surcharges, long version)
+    {
+        this.basePrice = basePrice;
+        this.period = period;
+        this.periodUnitPrice = periodUnitPrice;
+        this.firstCombinations = firstCombinations;
+        this.quantities = quantities;
+        this.surcharges = surcharges;
+        this.version = version;
+    }
+
+    /**
+     * @param basePrice
+     * @return the table of a product without special prices
+     */
+    static PriceTiers none(double basePrice)
+    {
+        return new PriceTiers(basePrice, 1, basePrice, new int[]{0, 1}, new long[1], new double[1], 0);
+    }
+
+    /**
+     * Compiles the special prices, entries with a non positive bundle size or price are ignored
+     * @param specialPrices bundle size to per product price
+     * @param previous the table replaced by the compiled one, holding the base price
+     * @return
+     * @throws IllegalArgumentException if the special prices need more than MAX_TABLE_SIZE combinations
+     */
+    static PriceTiers compile(Map<Long, Double> specialPrices, PriceTiers previous)
+    {
+        return compile(specialPrices, previous.basePrice, previous.version + 1);
+    }
+
+    /**
+     * Compiles the special prices as compile(specialPrices, previous) does, under the given version
+     * @param specialPrices bundle size to per product price
+     * @param basePrice
+     * @param version version of the special prices, greater than the one of the table replaced
+     * @return
+     * @throws IllegalArgumentException if the special prices need more than MAX_TABLE_SIZE combinations
+     */
+    static PriceTiers compile(Map<Long, Double> specialPrices, double basePrice, long version)
+    {
+        TreeMap<Long, Double> bundles = bundles(specialPrices, basePrice);
+        long period = period(bundles);
+        // every remainder has a combination
+        if(period > MAX_TABLE_SIZE)
+            throw tooManyCombinations();
+
+        double periodUnitPrice = bundles.get(period);
+        long[] sizes = new long[bundles.size() - 1];
+        double[] bundleSurcharges = new double[sizes.length];
+        int i = 0;
+        for(Map.Entry<Long, Double> tier : bundles.entrySet())
+        {
+            if(tier.getKey() == period)
+                continue;
+            sizes[i] = tier.getKey();
+            // never below zero, rounding must not make a bundle look cheaper than the period
+            bundleSurcharges[i++] = Math.max(0, tier.getKey() * tier.getValue() - tier.getKey() * periodUnitPrice);
+        }
+        return cheapestCombinations(basePrice, (int) period, periodUnitPrice, sizes, bundleSurcharges, version);
+    }
+
+    /**
+     * Tells if the special prices can be compiled, compiling them only when their bundles are large enough
+     * to need more than MAX_TABLE_SIZE combinations
+     * @param specialPrices bundle size to per product price
+     * @param basePrice
+     * @throws IllegalArgumentException if the special prices need more than MAX_TABLE_SIZE combinations
+     */
+    static void check(Map<Long, Double> specialPrices, double basePrice)
+    {
+        TreeMap<Long, Double> bundles = bundles(specialPrices, basePrice);
+        long period = period(bundles);
+
+        // every remainder holds no more combinations than the products of the largest bundle
+        if(period <= MAX_TABLE_SIZE && bundles.lastKey() <= MAX_TABLE_SIZE / period)
+            return;
+
+        compile(specialPrices, basePrice, 0);
+    }
+
+    /**
+     * @return the bundles cheaper per product than the base price and the single product, by size
+     */
+    private static TreeMap<Long, Double> bundles(Map<Long, Double> specialPrices, double basePrice)
+    {
+        TreeMap<Long, Double> bundles = new TreeMap<>();
+        bundles.put(1L, basePrice);
+        specialPrices.forEach((size, unitPrice) ->
+        {
+            // a bundle not cheaper than the base price is never part of the cheapest combination
+            if(size != null && unitPrice != null && size > 0 && unitPrice > 0 && unitPrice < basePrice)
+                bundles.put(size, unitPrice);
+        });
+        return bundles;
+    }
+
+    /**
+     * @return size of the bundle with the lowest price per product, the smallest one of those priced the same
+     */
+    private static long period(TreeMap<Long, Double> bundles)
+    {
+        long period = 1;
+        for(Map.Entry<Long, Double> tier : bundles.entrySet())
+        {
+            if(tier.getValue() < bundles.get(period))
+                period = tier.getKey();
+        }
+        return period;
+    }
+
+    /**
+     * Shortest paths between remainders modulo the period, taken smallest quantity first, adding a bundle moves from
+     * a remainder to another at its surcharge. A combination is kept if it is cheaper than every smaller one of its
+     * remainder, the ones it extends are then kept as well
+     */
+    private static PriceTiers cheapestCombinations(double basePrice, int period, double periodUnitPrice,
+                                                   long[] sizes, double[] bundleSurcharges, long version)
+    {
+        double[] leastSurcharges = new double[period];
+        Arrays.fill(leastSurcharges, Double.POSITIVE_INFINITY);
+
+        int[] remainders = new int[Math.min(period * 2, MAX_TABLE_SIZE)];
+        long[] quantities = new long[remainders.length];
+        double[] surcharges = new double[remainders.length];
+        int count = 0;
+
+        PriorityQueue<Combination> queue = new PriorityQueue<>();
+        queue.add(new Combination(0, 0, 0));
+        while(!queue.isEmpty())
+        {
+            Combination combination = queue.poll();
+            int remainder = combination.remainder;
+            if(combination.surcharge >= leastSurcharges[remainder])
+                continue;
+
+            if(count == remainders.length)
+            {
+                if(count == MAX_TABLE_SIZE)
+                    throw tooManyCombinations();
+                int length = Math.min(count * 2, MAX_TABLE_SIZE);
+                remainders = Arrays.copyOf(remainders, length);
+                quantities = Arrays.copyOf(quantities, length);
+                surcharges = Arrays.copyOf(surcharges, length);
+            }
+            leastSurcharges[remainder] = combination.surcharge;
+            remainders[count] = remainder;
+            quantities[count] = combination.quantity;
+            surcharges[count++] = combination.surcharge;
+
+            for(int i = 0; i < sizes.length; i++)
+            {
+                // larger combinations hold more products than any quantity priced
+                if(sizes[i] > Long.MAX_VALUE - combination.quantity)
+                    continue;
+
+                double surcharge = combination.surcharge + bundleSurcharges[i];
+                int next = (int) ((remainder + sizes[i] % period) % period);
+                if(surcharge < leastSurcharges[next])
+                    queue.add(new Combination(next, surcharge, combination.quantity + sizes[i]));
+            }
+        }
+
+        // combinations are found smallest first, so they stay ascending within their remainder
+        int[] firstCombinations = new int[period + 1];
+        for(int i = 0; i < count; i++)
+            firstCombinations[remainders[i] + 1]++;
+        for(int remainder = 0; remainder < period; remainder++)
+            firstCombinations[remainder + 1] += firstCombinations[remainder];
+
+        int[] next = Arrays.copyOf(firstCombinations, period);
+        long[] sortedQuantities = new long[count];
+        double[] sortedSurcharges = new double[count];
+        for(int i = 0; i < count; i++)
+        {
+            int index = next[remainders[i]]++;
+            sortedQuantities[index] = quantities[i];
+            sortedSurcharges[index] = surcharges[i];
+        }
+        return new PriceTiers(basePrice, period, periodUnitPrice, firstCombinations, sortedQuantities, sortedSurcharges, version);
+    }
+
+    private static IllegalArgumentException tooManyCombinations()
+    {
+        return new IllegalArgumentException("Special prices need more than " + MAX_TABLE_SIZE
+                + " combinations of bundles to be priced exactly");
+    }
+
+    /**
+     * @return version of the special prices the table was compiled from
+     */
+    long version()
+    {
+        return version;
+    }
+
+    /**
+     * Prices the products at the cheapest combination of bundles
+     * @param productCount
+     * @return
+     */
+    double price(long productCount)
+    {
+        if(productCount <= 0)
+            return 0;
+
+        int remainder = (int) (productCount % period);
+        int low = firstCombinations[remainder];
+        int high = firstCombinations[remainder + 1] - 1;
+
+        // the cheapest combination of the remainder is the largest one, the one of its products alone the smallest
+        while(low < high)
+        {
+            int middle = (low + high + 1) >>> 1;
+            if(quantities[middle] <= productCount)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return productCount * periodUnitPrice + surcharges[low];
+    }
+
+    private static final class Combination implements Comparable<Combination>
+    {
+        private final int remainder;
+
+        private final double surcharge;
+
+        private final long quantity;
+
+        private Combination(int remainder, double surcharge, long quantity)
+        {
+            this.remainder = remainder;
+            this.surcharge = surcharge;
+            this.quantity = quantity;
+        }
+
+        @Override
+        public int compareTo(Combination other)
+        {
+            int byQuantity = Long.compare(quantity, other.quantity);
+            return byQuantity != 0 ? byQuantity : Double.compare(surcharge, other.surcharge);
+        }
+    }
+}
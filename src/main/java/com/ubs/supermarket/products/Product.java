@@ -14,6 +14,12 @@ public interface Product
 
     String getName();
 
+    /**
+     * Price of a single product, without special prices
+     * @return
+     */
+    double getBasePrice();
+
     /**
      * Return the individual getPrice of the product,
      *  or Returns the special getPrice if exists for the the product based on number of products purchased
@@ -22,6 +28,16 @@ public interface Product
      */
     double getPrice(Long productCount);
 
+    /**
+     * Price of the quantity without boxing it, for pricing on the basket mutation path
+     * @param productCount
+     * @return
+     */
+    default double getPrice(long productCount)
+    {
+        return getPrice(Long.valueOf(productCount));
+    }
+
 
     /**
      * GEt special price map
@@ -38,6 +54,7 @@ public interface Product
      *
      * @return
      * @param specialPrice
+     * @throws IllegalArgumentException if the special prices once added cannot be priced exactly
      */
     Map<Long, Double> addSpecialPrice(Map<Long, Double> specialPrice);
 
@@ -0,0 +1,431 @@
+package com.ubs.supermarket.products;
+
+import com.ubs.supermarket.exception.InvalidRequestException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Catalog of the products held in baskets.
+ *
+ * Every distinct product is given a compact integer SKU the first time it is registered,
+ * the catalog holds one canonical instance per SKU so that baskets only need to store SKUs and quantities.
+ *
+ * Products are identified by their name and base price only. The first registration of a product makes it the
+ * catalog product of its SKU, registering an equal product later returns the SKU and leaves the catalog product as it is.
+ * Special prices carried by a product added to a basket only apply to the line of that basket, baskets keep them
+ * per line and check them with carriesCatalogPrices, so a basket change never re-prices the products of other baskets.
+ * Products registered or published stay in the catalog. Products first seen in a basket change are acquired instead:
+ * every basket line holds its SKU, and a SKU no line holds any more is reclaimed, its product removed and the SKU
+ * assigned again, once acquisitions fill the catalog up to its maximum number of products. Requests can therefore
+ * not fill the catalog for good, only while their baskets hold the products. The last release of a SKU queues it
+ * as a candidate, once, and a full catalog takes its candidates in that order instead of scanning its SKUs, skipping
+ * those held again since.
+ *
+ * Price feeds replace the canonical instances of many products at once: the new instances are set in a copy
+ * of the product table which is then published with a single write. Readers see either the table before
+ * or after the feed, never a part of it, and the table before the last feed is kept to roll it back.
+ */
+@Component
+public class ProductCatalog
+{
+    /**
+     * never assigned to a product
+     */
+    public static final int NO_SKU = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    public static final int DEFAULT_MAX_PRODUCTS = 1000000;
+
+    /**
+     * holds of a SKU being reclaimed
+     */
+    private static final int RECLAIMED = -1;
+
+    private final ConcurrentHashMap<Product, Integer> skus = new ConcurrentHashMap<>();
+
+    /**
+     * canonical product per SKU, only written under the catalog lock, read without locking
+     */
+    private volatile AtomicReferenceArray<Product> products = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    /**
+     * holders of every acquired SKU, null for the SKUs of registered or published products which are never reclaimed.
+     * A holder is set to RECLAIMED before its SKU is reclaimed and never used again, the array is only written
+     * under the catalog lock
+     */
+    private volatile AtomicReferenceArray<Holder> holders = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    private int lastSku = NO_SKU;
+
+    /**
+     * holders released by every basket line, in the order they were, possibly held again since
+     */
+    private final ConcurrentLinkedQueue<Holder> candidates = new ConcurrentLinkedQueue<>();
+
+    /**
+     * product table replaced by the last published feed, null once rolled back, guarded by this
+     */
+    private AtomicReferenceArray<Product> previous;
+
+    private volatile long priceVersion;
+
+    private final int maxProducts;
+
+    public ProductCatalog()
+    {
+        this(DEFAULT_MAX_PRODUCTS);
+    }
+
+    /**
+     * @param maxProducts number of products registrations and acquisitions may add, products of published feeds
+     *                    are not limited
+     */
+    @Autowired
+    public ProductCatalog(@Value("${basket.catalog.max-products:" + DEFAULT_MAX_PRODUCTS + "}") int maxProducts)
+    {
+        this.maxProducts = maxProducts;
+    }
+
+    /**
+     * Returns the SKU of the product, assigning one if the product is new, the product is never reclaimed.
+     * The special prices of a product already registered are left as they are
+     * @param product
+     * @return
+     * @throws InvalidRequestException if the product is new and the catalog holds its maximum number of products
+     */
+    public int register(Product product)
+    {
+        Integer sku = skus.get(product);
+        if(sku != null && holders.get(sku) == null)
+            return sku;
+
+        return assign(product, false);
+    }
+
+    /**
+     * Returns the SKU of the product holding it, the SKU is not reclaimed until every holder released it.
+     * The special prices of a product already registered are left as they are
+     * @param product
+     * @param register assigns a SKU if the product is new, else returns NO_SKU for it
+     * @return
+     * @throws InvalidRequestException if the product is new and the catalog holds its maximum number of products,
+     * none of them reclaimable
+     */
+    public int acquire(Product product, boolean register)
+    {
+        for(;;)
+        {
+            Integer sku = skus.get(product);
+            if(sku == null)
+                return register ? assign(product, true) : NO_SKU;
+
+            Holder holder = holders.get(sku);
+            if(holder == null || hold(holder))
+            {
+                // else reclaimed meanwhile and maybe assigned again to another product
+                if(sku.equals(skus.get(product)))
+                    return sku;
+                if(holder != null)
+                    unhold(holder);
+            }
+        }
+    }
+
+    /**
+     * Releases a SKU returned by acquire, the last release queues it to be reclaimed
+     * @param sku
+     */
+    public void release(int sku)
+    {
+        if(sku == NO_SKU)
+            return;
+
+        Holder holder = holders.get(sku);
+        if(holder != null)
+            unhold(holder);
+    }
+
+    /**
+     * Returns the SKU of the product without registering it
+     * @param product
+     * @return NO_SKU if the product has never been registered
+     */
+    public int getSku(Product product)
+    {
+        Integer sku = skus.get(product);
+        return sku == null ? NO_SKU : sku;
+    }
+
+    /**
+     * Returns the canonical product of a SKU returned by this catalog
+     * @param sku
+     * @return
+     */
+    public Product getProduct(int sku)
+    {
+        return products.get(sku);
+    }
+
+    /**
+     * Tells if a product carries the special prices of the catalog product of its SKU
+     * @param sku SKU of the product
+     * @param product
+     * @return
+     */
+    public boolean carriesCatalogPrices(int sku, Product product)
+    {
+        Product registered = products.get(sku);
+        if(registered == product)
+            return true;
+
+        // compared without iterating when both are empty, the common case of products without special prices
+        Map<Long, Double> specialPrices = product.getSpecialPriceMap();
+        Map<Long, Double> registeredPrices = registered.getSpecialPriceMap();
+        return specialPrices.isEmpty() ? registeredPrices.isEmpty() : specialPrices.equals(registeredPrices);
+    }
+
+    /**
+     * Number of registered products
+     * @return
+     */
+    public int size()
+    {
+        return skus.size();
+    }
+
+    /**
+     * Makes the products the canonical instances of their SKUs at once, registering the new ones.
+     * Published products are never reclaimed
+     * @param feed products with their new special prices, built and validated by the caller
+     * @return the price version of the published table
+     */
+    public synchronized long publish(Collection<? extends Product> feed)
+    {
+        AtomicReferenceArray<Product> current = products;
+        int size = lastSku + 1;
+        for(Product product : feed)
+        {
+            if(!skus.containsKey(product))
+                size++;
+        }
+
+        AtomicReferenceArray<Product> next = new AtomicReferenceArray<>(Math.max(current.length(), Integer.highestOneBit(size) << 1));
+        for(int i = 0; i <= lastSku; i++)
+            next.set(i, current.get(i));
+
+        Map<Product, Integer> added = new HashMap<>();
+        for(Product product : feed)
+        {
+            Integer sku = skus.get(product);
+            if(sku == null)
+                sku = added.computeIfAbsent(product, newProduct -> ++lastSku);
+            else
+                holders.set(sku, null);
+            next.set(sku, product);
+        }
+
+        growHolders(next.length());
+        previous = current;
+        products = next;
+        skus.putAll(added);
+        return ++priceVersion;
+    }
+
+    /**
+     * Restores the canonical products replaced by the last published feed, products registered since keep
+     * their SKU and their current instance
+     * @return the price version of the restored table
+     * @throws IllegalStateException if no feed has been published since the last rollback
+     */
+    public synchronized long rollback()
+    {
+        if(previous == null)
+            throw new IllegalStateException("No published prices to roll back");
+
+        AtomicReferenceArray<Product> current = products;
+        AtomicReferenceArray<Product> restored = new AtomicReferenceArray<>(current.length());
+        for(int i = 0; i <= lastSku; i++)
+        {
+            Product before = i < previous.length() ? previous.get(i) : null;
+            restored.set(i, before != null ? before : current.get(i));
+        }
+
+        previous = null;
+        products = restored;
+        return ++priceVersion;
+    }
+
+    /**
+     * Publishes the feed prices persisted before a restart, before any basket acquires products
+     * @param replaced feed prices in force before the last feed, null if it was rolled back since
+     * @param published feed prices in force
+     * @param version price version the catalog had when the prices were persisted
+     */
+    public synchronized void restore(Collection<? extends Product> replaced, Collection<? extends Product> published, long version)
+    {
+        if(replaced != null)
+            publish(replaced);
+        publish(published);
+        if(replaced == null)
+            previous = null;
+        priceVersion = version;
+    }
+
+    /**
+     * Number of price tables published or rolled back
+     * @return
+     */
+    public long getPriceVersion()
+    {
+        return priceVersion;
+    }
+
+    /**
+     * @param held the SKU is returned held, else the product is never reclaimed
+     */
+    private synchronized int assign(Product product, boolean held)
+    {
+        Integer existing = skus.get(product);
+        if(existing != null)
+        {
+            Holder holder = holders.get(existing);
+            if(holder == null)
+                return existing;
+            if(!held)
+            {
+                holders.set(existing, null);
+                return existing;
+            }
+            // never reclaimed while the catalog lock is held
+            holder.incrementAndGet();
+            return existing;
+        }
+
+        int sku = skus.size() >= maxProducts ? reclaim() : ++lastSku;
+        if(sku == NO_SKU)
+            throw new InvalidRequestException("The catalog already holds " + maxProducts + " products");
+
+        AtomicReferenceArray<Product> current = products;
+        if(sku >= current.length())
+        {
+            AtomicReferenceArray<Product> grown = new AtomicReferenceArray<>(current.length() * 2);
+            for(int i = 0; i < current.length(); i++)
+                grown.set(i, current.get(i));
+            current = grown;
+        }
+        current.set(sku, product);
+        products = current;
+
+        growHolders(current.length());
+        holders.set(sku, held ? new Holder(sku) : null);
+
+        skus.put(product, sku);
+        return sku;
+    }
+
+    /**
+     * Removes the product of the first candidate no basket line holds any more, its SKU is assigned again.
+     * Candidates held again since their release are dropped, their next last release queues them again
+     * @return the SKU reclaimed, NO_SKU if no candidate is left
+     */
+    private int reclaim()
+    {
+        for(Holder holder; (holder = candidates.poll()) != null; )
+        {
+            // cleared first, a release after the check below queues the holder again
+            holder.dequeue();
+            // registered or published since, never reclaimed
+            if(holders.get(holder.sku) != holder || !holder.compareAndSet(0, RECLAIMED))
+                continue;
+
+            AtomicReferenceArray<Product> current = products;
+            skus.remove(current.get(holder.sku), holder.sku);
+            current.set(holder.sku, null);
+            if(previous != null && holder.sku < previous.length())
+                previous.set(holder.sku, null);
+            return holder.sku;
+        }
+        return NO_SKU;
+    }
+
+    /**
+     * Releases a hold, queuing the holder as a candidate on its last release unless it is queued already
+     */
+    private void unhold(Holder holder)
+    {
+        if(holder.decrementAndGet() == 0 && holder.enqueue())
+            candidates.add(holder);
+    }
+
+    private void growHolders(int length)
+    {
+        AtomicReferenceArray<Holder> current = holders;
+        if(length <= current.length())
+            return;
+
+        AtomicReferenceArray<Holder> grown = new AtomicReferenceArray<>(length);
+        for(int i = 0; i < current.length(); i++)
+            grown.set(i, current.get(i));
+        holders = grown;
+    }
+
+    /**
+     * @return false if the SKU of the holder has been reclaimed
+     */
+    private static boolean hold(Holder holder)
+    {
+        for(;;)
+        {
+            int holds = holder.get();
+            if(holds == RECLAIMED)
+                return false;
+            if(holder.compareAndSet(holds, holds + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Holds of an acquired SKU, with whether it is queued as a candidate
+     */
+    private static final class Holder extends AtomicInteger
+    {
+        private static final AtomicIntegerFieldUpdater<Holder> QUEUED = AtomicIntegerFieldUpdater.newUpdater(Holder.class, "queued");
+
+        private final int sku;
+
+        private volatile int queued;
+
+        /**
+         * held once by the acquisition assigning the SKU
+         */
+        private Holder(int sku)
+        {
+            super(1);
+            this.sku = sku;
+        }
+
+        /**
+         * @return false if the holder is queued already
+         */
+        private boolean enqueue()
+        {
+            return QUEUED.compareAndSet(this, 0, 1);
+        }
+
+        private void dequeue()
+        {
+            queued = 0;
+        }
+    }
+}
@@ -1,16 +1,23 @@
 package com.ubs.supermarket.products;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import org.apache.commons.lang3.builder.EqualsBuilder;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Metrics;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
-import org.springframework.util.CollectionUtils;
 
 import javax.naming.directory.InvalidAttributesException;
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -22,10 +29,37 @@ import java.util.concurrent.ConcurrentHashMap;
  *
  * 3. public int addSpecialPrice(Map<Integer, Double> specialPriceList)
  *
+ * Special prices are compiled into an immutable tier table when the product is first priced
+ * after an update, pricing reads the current table without locking. A product that is never priced,
+ * such as a basket unit carrying the special prices of the catalog product, never compiles them.
+ * Special prices needing too large a table to be priced exactly are rejected when they are added,
+ * which only compiles them when their bundles are large.
+ * A quantity is charged the cheapest combination of special price bundles and single products.
+ * Prices are cached by quantity for the current special prices, the cache is only
+ * created when the product is first priced.
+ * One pricing in PRICE_SAMPLING is recorded by the product.price timer, timing every one would cost
+ * more than a cached quote. The timer reads sums kept by the products, so recording a sample allocates nothing.
+ *
  * @author saumadip mazumder
  */
 public class ProductImpl implements Product
 {
+    /**
+     * one pricing in this many is timed, a power of 2
+     */
+    static final int PRICE_SAMPLING = 64;
+
+    private static final LongAdder PRICINGS_TIMED = new LongAdder();
+
+    private static final LongAdder PRICING_NANOS = new LongAdder();
+
+    static
+    {
+        FunctionTimer.builder("product.price", PRICINGS_TIMED, LongAdder::sum, adder -> PRICING_NANOS.sum(), TimeUnit.NANOSECONDS)
+                .description("Pricing of a product quantity, sampled one in " + PRICE_SAMPLING)
+                .register(Metrics.globalRegistry);
+    }
+
     @JsonProperty("name")
     private final String name;
 
@@ -35,9 +69,28 @@ public class ProductImpl implements Product
     @JsonProperty("specialPriceMap")
     private final ConcurrentHashMap<Long, Double> specialPriceMap;
 
+    /**
+     * number of updates of the specialPriceMap, the version the tier table is compiled for
+     */
+    private final transient AtomicLong specialPriceVersion = new AtomicLong();
 
-    @JsonCreator
-    public ProductImpl(@JsonProperty("name") String name, @JsonProperty("price") double price) throws InvalidAttributesException
+    /**
+     * compiled form of the specialPriceMap, replaced as a whole when it is older than the specialPriceVersion
+     */
+    private final transient AtomicReference<PriceTiers> priceTiers;
+
+    /**
+     * prices by quantity, null until the product is first priced
+     */
+    private transient volatile QuoteCache quotes;
+
+    /**
+     * name and price never change, the hash is computed once
+     */
+    private final transient int hashCode;
+
+
+    public ProductImpl(String name, double price) throws InvalidAttributesException
     {
 
         this.name = name;
@@ -49,6 +102,31 @@ public class ProductImpl implements Product
 
         this.specialPriceMap = new ConcurrentHashMap<>();
 
+        this.priceTiers = new AtomicReference<>(PriceTiers.none(price));
+
+        this.hashCode = new HashCodeBuilder(17, 37)
+                .append(name)
+                .append(price)
+                .toHashCode();
+    }
+
+    @JsonCreator
+    public ProductImpl(@JsonProperty("name") String name, @JsonProperty("price") double price,
+                       @JsonProperty("specialPriceMap") Map<Long, Double> specialPriceMap) throws InvalidAttributesException
+    {
+        this(name, price);
+
+        if(specialPriceMap != null)
+        {
+            try
+            {
+                addSpecialPrice(specialPriceMap);
+            }
+            catch(IllegalArgumentException e)
+            {
+                throw new InvalidAttributesException(e.getMessage());
+            }
+        }
     }
 
     @Override
@@ -57,6 +135,13 @@ public class ProductImpl implements Product
         return this.name;
     }
 
+    @Override
+    @JsonIgnore
+    public double getBasePrice()
+    {
+        return this.price;
+    }
+
     /**
      * Add special getPrice for the product, per product
      * Follow the following order of entry
@@ -69,52 +154,56 @@ public class ProductImpl implements Product
     @Override
     public double getPrice(Long productCount)
     {
-        if(productCount == 0 || productCount < 0)
-            return 0;
-
-        if(productCount == 1)
-            return price;
+        return getPrice(productCount.longValue());
+    }
 
-        if(!CollectionUtils.isEmpty(specialPriceMap))
-        {
-            ArrayList<Long> keys = Collections.list(specialPriceMap.keys());
+    /**
+     * Prices the quantity, allocating nothing once its quote is cached
+     * @param productCount
+     * @return
+     */
+    @Override
+    public double getPrice(long productCount)
+    {
+        if((ThreadLocalRandom.current().nextInt() & (PRICE_SAMPLING - 1)) != 0)
+            return price(productCount);
+
+        long start = System.nanoTime();
+        double total = price(productCount);
+        PRICING_NANOS.add(System.nanoTime() - start);
+        PRICINGS_TIMED.increment();
+        return total;
+    }
 
-            for(int i=0;i < keys.size();i++)
-            {
-                Long noOfProductsInDiscount = keys.get(i);
-
-                if(productCount.equals(noOfProductsInDiscount))
-                {
-                    return specialPriceMap.get(noOfProductsInDiscount) * productCount;
-                }
-                else if(noOfProductsInDiscount > productCount )
-                {
-
-                    if( i > 0) {
-                        noOfProductsInDiscount = keys.get(i - 1);
-                        long remainingProducts = productCount - noOfProductsInDiscount;
-                        return getPrice(remainingProducts) + noOfProductsInDiscount * specialPriceMap.get(noOfProductsInDiscount);
-                    }
-                    else
-                    {
-                        return price * productCount;
-                    }
-
-                }
-                else if( i == keys.size() -1)
-                {
-                    noOfProductsInDiscount = keys.get(i);
-
-                    long remainingProducts = productCount - noOfProductsInDiscount;
-
-                    return getPrice(remainingProducts) + noOfProductsInDiscount * specialPriceMap.get(noOfProductsInDiscount);
-                }
+    private double price(long productCount)
+    {
+        QuoteCache cache = quotes;
+        if(cache == null)
+            quotes = cache = new QuoteCache();
 
-            }
-        }
+        PriceTiers tiers = priceTiers.get();
+        if(tiers.version() != specialPriceVersion.get())
+            tiers = compileTiers();
 
-        return price * productCount;
+        return cache.price(productCount, tiers);
+    }
 
+    /**
+     * Compiles the special prices of the current version unless another thread already has,
+     * the new table has a new version which makes cached quotes stale. Compiles under the lock of the
+     * updates, so that only special prices checked as a whole are compiled
+     * @return
+     */
+    private synchronized PriceTiers compileTiers()
+    {
+        long version = specialPriceVersion.get();
+        PriceTiers current = priceTiers.get();
+        if(current.version() >= version)
+            return current;
+
+        PriceTiers compiled = PriceTiers.compile(specialPriceMap, price, version);
+        priceTiers.set(compiled);
+        return compiled;
     }
 
 
@@ -127,15 +216,27 @@ public class ProductImpl implements Product
      *         specialPrice.put(7L,5.0);
      * @param specialPriceUpdate
      * @return
+     * @throws IllegalArgumentException if the special prices once updated cannot be priced exactly, nothing is updated then
      */
     @Override
-    public Map<Long, Double> addSpecialPrice(Map<Long, Double> specialPriceUpdate)
+    public synchronized Map<Long, Double> addSpecialPrice(Map<Long, Double> specialPriceUpdate)
     {
+        Map<Long, Double> updated = new HashMap<>(specialPriceMap);
+        specialPriceUpdate.forEach((key,val)->
+        {
+            if(key > 0 && val > 0)
+                updated.put(key, val);
+        });
+        PriceTiers.check(updated, price);
+
         specialPriceUpdate.forEach((key,val)->
         {
             if(key > 0 && val > 0)
                 specialPriceMap.merge(key, val, (v1, v2) -> v1 = v2);
         });
+
+        // compiled when the product is next priced
+        specialPriceVersion.incrementAndGet();
         return Collections.unmodifiableMap(specialPriceMap);
     }
 
@@ -153,17 +254,13 @@ public class ProductImpl implements Product
 
         ProductImpl product = (ProductImpl) o;
 
-        return new EqualsBuilder()
-                .append(price, product.price)
-                .append(getName(), product.getName())
-                .isEquals();
+        // compared as EqualsBuilder would, without building one on every catalog lookup
+        return Double.doubleToLongBits(price) == Double.doubleToLongBits(product.price)
+                && Objects.equals(getName(), product.getName());
     }
 
     @Override
     public int hashCode() {
-        return new HashCodeBuilder(17, 37)
-                .append(getName())
-                .append(price)
-                .toHashCode();
+        return hashCode;
     }
 }
@@ -0,0 +1,106 @@
+package com.ubs.supermarket.products;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the prices of one product, by quantity.
+ *
+ * The cache is direct mapped, each quantity has a single slot and a quote for another quantity evicts the quote
+ * in it. Quantities up to SIZE never share a slot. A quote is only served for the special price version it was
+ * computed with, so a special price update makes every cached quote stale at once without touching the cache.
+ *
+ * Hits, misses and evictions over all products are published as product.price.quotes and
+ * product.price.quote.evictions.
+ */
+final class QuoteCache
+{
+    static final int SIZE = 64;
+
+    private static final LongAdder HITS = new LongAdder();
+
+    private static final LongAdder MISSES = new LongAdder();
+
+    private static final LongAdder EVICTIONS = new LongAdder();
+
+    static
+    {
+        FunctionCounter.builder("product.price.quotes", HITS, LongAdder::sum)
+                .description("Product prices served from the quote cache")
+                .tag("result", "hit")
+                .register(Metrics.globalRegistry);
+
+        FunctionCounter.builder("product.price.quotes", MISSES, LongAdder::sum)
+                .description("Product prices computed on a quote cache miss, stale quotes included")
+                .tag("result", "miss")
+                .register(Metrics.globalRegistry);
+
+        FunctionCounter.builder("product.price.quote.evictions", EVICTIONS, LongAdder::sum)
+                .description("Current quotes replaced by the quote of another quantity")
+                .register(Metrics.globalRegistry);
+    }
+
+    private final AtomicReferenceArray<Quote> quotes = new AtomicReferenceArray<>(SIZE);
+
+    /**
+     * Returns the cached price of the quantity, computing and caching it on a miss
+     * @param quantity
+     * @param tiers current special prices
+     * @return
+     */
+    double price(long quantity, PriceTiers tiers)
+    {
+        if(quantity <= 0)
+            return 0;
+
+        int slot = (int) (quantity ^ (quantity >>> 32)) & (SIZE - 1);
+        Quote quote = quotes.get(slot);
+        if(quote != null && quote.quantity == quantity && quote.version == tiers.version())
+        {
+            HITS.increment();
+            return quote.price;
+        }
+
+        MISSES.increment();
+        if(quote != null && quote.quantity != quantity && quote.version == tiers.version())
+            EVICTIONS.increment();
+
+        double price = tiers.price(quantity);
+        quotes.lazySet(slot, new Quote(quantity, tiers.version(), price));
+        return price;
+    }
+
+    static long hits()
+    {
+        return HITS.sum();
+    }
+
+    static long misses()
+    {
+        return MISSES.sum();
+    }
+
+    static long evictions()
+    {
+        return EVICTIONS.sum();
+    }
+
+    private static final class Quote
+    {
+        private final long quantity;
+
+        private final long version;
+
+        private final double price;
+
+        private Quote(long quantity, long version, double price)
+        {
+            this.quantity = quantity;
+            this.version = version;
+            this.price = price;
+        }
+    }
+}
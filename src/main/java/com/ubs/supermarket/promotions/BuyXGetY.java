@@ -0,0 +1,58 @@
+package com.ubs.supermarket.promotions;
+
+import com.ubs.supermarket.products.Product;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Buy some products, get more of the same product free. Every full group of buy + free products
+ * holds free products charged nothing, the others are priced with the special prices of the product.
+ * A special price cheaper than the free products is left as it is. Rules applied before take their share
+ * off the free products as well as the others.
+ */
+public final class BuyXGetY extends PromotionRule
+{
+    private final long buy;
+
+    private final long free;
+
+    /**
+     * @param product name of the product
+     * @param buy products paid for in a group
+     * @param free products given away in a group
+     */
+    public BuyXGetY(String product, long buy, long free)
+    {
+        super("buy " + buy + " " + product + " get " + free + " free", Collections.singleton(product), Collections.emptySet());
+
+        if(buy <= 0 || free <= 0)
+            throw new IllegalArgumentException("Products bought and given away of " + product + " must be positive");
+
+        this.buy = buy;
+        this.free = free;
+    }
+
+    @Override
+    public Map<Product, Double> discount(Map<Product, Long> lines, Map<Product, Double> prices)
+    {
+        Map<Product, Double> discounts = new HashMap<>();
+        for(Map.Entry<Product, Long> line : lines.entrySet())
+        {
+            Product product = line.getKey();
+            long count = line.getValue();
+            long freeCount = count / (buy + free) * free;
+            double linePrice = product.getPrice(count);
+            if(freeCount == 0 || linePrice <= 0)
+                continue;
+
+            // the same share of what is left to pay as of the line price
+            double share = Math.max(0, linePrice - product.getPrice(count - freeCount)) / linePrice;
+            double discount = prices.get(product) * Math.min(1, share);
+            if(discount > 0)
+                discounts.put(product, discount);
+        }
+        return discounts;
+    }
+}
@@ -0,0 +1,42 @@
+package com.ubs.supermarket.promotions;
+
+import com.ubs.supermarket.products.Product;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A percentage off every product of a category, taken from what is left to pay for the lines
+ */
+public final class CategoryDiscount extends PromotionRule
+{
+    private final double percent;
+
+    /**
+     * @param category
+     * @param percent between 0 excluded and 100
+     */
+    public CategoryDiscount(String category, double percent)
+    {
+        super(percent + "% off " + category, Collections.emptySet(), Collections.singleton(category));
+
+        if(!(percent > 0 && percent <= 100))
+            throw new IllegalArgumentException("Discount on " + category + " must be above 0% and at most 100%");
+
+        this.percent = percent;
+    }
+
+    @Override
+    public Map<Product, Double> discount(Map<Product, Long> lines, Map<Product, Double> prices)
+    {
+        Map<Product, Double> discounts = new HashMap<>();
+        for(Product product : lines.keySet())
+        {
+            double price = prices.get(product);
+            if(price > 0)
+                discounts.put(product, price * percent / 100);
+        }
+        return discounts;
+    }
+}
@@ -0,0 +1,101 @@
+package com.ubs.supermarket.promotions;
+
+import com.ubs.supermarket.products.Product;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Any products of a set for a fixed price, for instance any 3 of a sandwich, a drink or a snack for 5.
+ *
+ * Products are put in as many bundles as their quantity allows, the products paid the most for first,
+ * each bundle being charged the bundle price instead of what is left to pay for its products.
+ */
+public final class MixAndMatch extends PromotionRule
+{
+    private final long bundleSize;
+
+    private final double bundlePrice;
+
+    /**
+     * @param name
+     * @param products names of the products of the set
+     * @param categories categories of the products of the set
+     * @param bundleSize products in a bundle
+     * @param bundlePrice price of a whole bundle
+     */
+    public MixAndMatch(String name, Collection<String> products, Collection<String> categories, long bundleSize, double bundlePrice)
+    {
+        super(name, products, categories);
+
+        if(bundleSize < 2 || bundlePrice <= 0)
+            throw new IllegalArgumentException("Promotion " + name + " needs bundles of 2 products or more at a positive price");
+
+        this.bundleSize = bundleSize;
+        this.bundlePrice = bundlePrice;
+    }
+
+    @Override
+    public Map<Product, Double> discount(Map<Product, Long> lines, Map<Product, Double> prices)
+    {
+        long count = 0;
+        List<BundledLine> unitPrices = new ArrayList<>(lines.size());
+        for(Map.Entry<Product, Long> line : lines.entrySet())
+        {
+            count += line.getValue();
+            unitPrices.add(new BundledLine(line.getKey(), prices.get(line.getKey()) / line.getValue(), line.getValue()));
+        }
+
+        long bundles = count / bundleSize;
+        if(bundles == 0)
+            return Collections.emptyMap();
+
+        unitPrices.sort((a, b) -> Double.compare(b.unitPrice, a.unitPrice));
+
+        double bundled = 0;
+        long remaining = bundles * bundleSize;
+        for(BundledLine line : unitPrices)
+        {
+            line.taken = Math.min(remaining, line.count);
+            bundled += line.taken * line.unitPrice;
+            remaining -= line.taken;
+            if(remaining == 0)
+                break;
+        }
+
+        double discount = bundled - bundles * bundlePrice;
+        if(discount <= 0)
+            return Collections.emptyMap();
+
+        // shared by the bundled products in proportion to what they cost
+        Map<Product, Double> discounts = new HashMap<>();
+        for(BundledLine line : unitPrices)
+        {
+            if(line.taken > 0)
+                discounts.put(line.product, discount * line.taken * line.unitPrice / bundled);
+        }
+        return discounts;
+    }
+
+    private static final class BundledLine
+    {
+        private final Product product;
+
+        private final double unitPrice;
+
+        private final long count;
+
+        private long taken;
+
+        private BundledLine(Product product, double unitPrice, long count)
+        {
+            this.product = product;
+            this.unitPrice = unitPrice;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.ubs.supermarket.promotions;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.products.Product;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Basket taking the discounts of the promotion rules off the total of the basket it decorates.
+ *
+ * The basket keeps the lines of its promoted products and the discount of every rule applying to them, line by
+ * line. Rules stack in the order of the engine, each taking its discount off what the rules before it left to pay.
+ * A change of promoted products is applied and its rules re-evaluated under the basket monitor, the version
+ * is read under it too, so a version never counts a change whose discounts are not in the total yet.
+ * Changes of other products touch no rule and are applied without the monitor.
+ * A read of the total after prices are republished re-evaluates every rule first.
+ */
+final class PromotedBasket implements Basket
+{
+    private final Basket basket;
+
+    private final PromotionEngine engine;
+
+    private final LongSupplier priceVersion;
+
+    /**
+     * quantities of the promoted products in the basket, guarded by this
+     */
+    private final Map<Product, Long> promotedLines = new HashMap<>();
+
+    /**
+     * positive discounts of every line by rule, guarded by this
+     */
+    private final Map<PromotionRule, Map<Product, Double>> discounts = new HashMap<>();
+
+    private volatile double discount;
+
+    /**
+     * price version every rule has been evaluated at or after, written under this
+     */
+    private volatile long pricedVersion;
+
+    /**
+     * @param basket
+     * @param engine
+     * @param priceVersion version of the catalog prices, increasing whenever they are republished
+     */
+    PromotedBasket(Basket basket, PromotionEngine engine, LongSupplier priceVersion)
+    {
+        this.basket = basket;
+        this.engine = engine;
+        this.priceVersion = priceVersion;
+        this.pricedVersion = priceVersion.getAsLong();
+
+        Set<Product> promoted = promoted(basket.getAllProducts().keySet());
+        if(!promoted.isEmpty())
+        {
+            synchronized(this)
+            {
+                reprice(promoted);
+            }
+        }
+    }
+
+    @Override
+    public UUID getBasketID()
+    {
+        return basket.getBasketID();
+    }
+
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products)
+    {
+        return apply(products, () -> basket.addProducts(products));
+    }
+
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products)
+    {
+        return apply(products, () -> basket.removeProducts(products));
+    }
+
+    @Override
+    public Map<Product, Long> addProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        return apply(products, () -> basket.addProducts(products, expectedVersion));
+    }
+
+    @Override
+    public Map<Product, Long> removeProducts(Collection<? extends Product> products, long expectedVersion)
+    {
+        return apply(products, () -> basket.removeProducts(products, expectedVersion));
+    }
+
+    @Override
+    public void addAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        apply(products, () ->
+        {
+            basket.addAll(products, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public void removeAll(Collection<? extends Product> products, long expectedVersion)
+    {
+        apply(products, () ->
+        {
+            basket.removeAll(products, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public long addProduct(Product product, long count)
+    {
+        return applyOne(product, () -> basket.addProduct(product, count));
+    }
+
+    @Override
+    public long removeProduct(Product product, long count)
+    {
+        return applyOne(product, () -> basket.removeProduct(product, count));
+    }
+
+    /**
+     * Total of the lines less the discounts, which never take more than the price of a line
+     * @return
+     */
+    @Override
+    public double getTotalPrice()
+    {
+        long version = priceVersion.getAsLong();
+        if(version != pricedVersion)
+            repriceAll(version);
+
+        return Math.max(0, basket.getTotalPrice() - discount);
+    }
+
+    @Override
+    public Map<Product, Long> getAllProducts()
+    {
+        return basket.getAllProducts();
+    }
+
+    @Override
+    public Map<Product, Long> getQuantities(Collection<? extends Product> products)
+    {
+        return basket.getQuantities(products);
+    }
+
+    @Override
+    public int getLineCount()
+    {
+        return basket.getLineCount();
+    }
+
+    @Override
+    public synchronized long getVersion()
+    {
+        return basket.getVersion();
+    }
+
+    @Override
+    public synchronized void release()
+    {
+        basket.release();
+        promotedLines.clear();
+        discounts.clear();
+        discount = 0;
+    }
+
+    /**
+     * Sum of the discounts of the rules, taken off the total
+     * @return
+     */
+    double getDiscount()
+    {
+        return discount;
+    }
+
+    private <T> T apply(Collection<? extends Product> products, Supplier<T> change)
+    {
+        Set<Product> promoted = products == null ? null : promoted(products);
+        if(promoted == null || promoted.isEmpty())
+            return change.get();
+
+        synchronized(this)
+        {
+            T lines = change.get();
+            reprice(promoted);
+            return lines;
+        }
+    }
+
+    /**
+     * Changes the line of a single product, re-evaluating its rules if it is promoted
+     */
+    private long applyOne(Product product, LongSupplier change)
+    {
+        if(engine.rulesFor(product).isEmpty())
+            return change.getAsLong();
+
+        synchronized(this)
+        {
+            long quantity = change.getAsLong();
+            reprice(Collections.singleton(product));
+            return quantity;
+        }
+    }
+
+    private synchronized void repriceAll(long version)
+    {
+        if(pricedVersion >= version)
+            return;
+
+        pricedVersion = version;
+        if(!promotedLines.isEmpty())
+            reprice(new LinkedHashSet<>(promotedLines.keySet()));
+    }
+
+    private Set<Product> promoted(Collection<? extends Product> products)
+    {
+        Set<Product> promoted = new LinkedHashSet<>();
+        for(Product product : products)
+        {
+            if(!engine.rulesFor(product).isEmpty())
+                promoted.add(product);
+        }
+        return promoted;
+    }
+
+    /**
+     * Re-evaluates the rules of the changed products, in the order of the engine and each from what is left to
+     * pay for its lines after the rules before it. A rule whose discount of a product changes re-evaluates the
+     * later rules of the product too, the others keep their discounts
+     */
+    private void reprice(Set<Product> changed)
+    {
+        Set<Product> repriced = new HashSet<>();
+        basket.getQuantities(changed).forEach((product, count) ->
+        {
+            // the basket product replaces an older instance, it carries the special prices applied
+            promotedLines.remove(product);
+            if(count > 0)
+                promotedLines.put(product, count);
+            repriced.add(product);
+        });
+
+        Map<Product, Double> prices = new HashMap<>();
+        promotedLines.forEach((product, count) -> prices.put(product, product.getPrice(count)));
+
+        double total = 0;
+        for(PromotionRule rule : engine.getRules())
+        {
+            Map<Product, Double> ruleDiscounts = discounts.getOrDefault(rule, Collections.emptyMap());
+            if(takesPart(rule, repriced))
+            {
+                Map<Product, Long> lines = new HashMap<>();
+                promotedLines.forEach((product, count) ->
+                {
+                    if(engine.rulesFor(product).contains(rule))
+                        lines.put(product, count);
+                });
+
+                Map<Product, Double> evaluated = lines.isEmpty()
+                        ? Collections.emptyMap() : rule.discount(lines, Collections.unmodifiableMap(prices));
+                changedDiscounts(ruleDiscounts, evaluated, repriced);
+                if(evaluated.isEmpty())
+                    discounts.remove(rule);
+                else
+                    discounts.put(rule, evaluated);
+                ruleDiscounts = evaluated;
+            }
+
+            for(Map.Entry<Product, Double> lineDiscount : ruleDiscounts.entrySet())
+            {
+                prices.merge(lineDiscount.getKey(), -lineDiscount.getValue(), Double::sum);
+                total += lineDiscount.getValue();
+            }
+        }
+        discount = total;
+    }
+
+    private boolean takesPart(PromotionRule rule, Set<Product> products)
+    {
+        for(Product product : products)
+        {
+            if(engine.rulesFor(product).contains(rule))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds to the products the ones discounted differently, the price left to pay for them changes
+     */
+    private static void changedDiscounts(Map<Product, Double> before, Map<Product, Double> after, Set<Product> products)
+    {
+        before.forEach((product, amount) ->
+        {
+            if(!amount.equals(after.get(product)))
+                products.add(product);
+        });
+        after.forEach((product, amount) ->
+        {
+            if(!before.containsKey(product))
+                products.add(product);
+        });
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+
+        if(!(o instanceof PromotedBasket)) return false;
+
+        return getBasketID().equals(((PromotedBasket) o).getBasketID());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return basket.hashCode();
+    }
+}
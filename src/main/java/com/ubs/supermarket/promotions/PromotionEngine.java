@@ -0,0 +1,95 @@
+package com.ubs.supermarket.promotions;
+
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Promotion rules of the store, indexed by the name of the products they apply to.
+ *
+ * Rules naming a category are indexed under every product of the category when the engine is built,
+ * so finding the rules a basket line takes part in is a single lookup. Baskets made by decorate only
+ * re-evaluate the rules of the lines a change touched, and take the discounts off their total.
+ */
+public final class PromotionEngine
+{
+    public static final PromotionEngine NONE = new PromotionEngine(Collections.emptyMap(), Collections.emptyList());
+
+    private final List<PromotionRule> rules;
+
+    private final Map<String, List<PromotionRule>> rulesByProduct;
+
+    /**
+     * @param categories names of the products of every category
+     * @param rules
+     */
+    public PromotionEngine(Map<String, ? extends Collection<String>> categories, List<? extends PromotionRule> rules)
+    {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+
+        Map<String, Set<PromotionRule>> index = new HashMap<>();
+        for(PromotionRule rule : rules)
+        {
+            for(String product : rule.getProducts())
+                index.computeIfAbsent(product, name -> new LinkedHashSet<>()).add(rule);
+
+            for(String category : rule.getCategories())
+            {
+                Collection<String> products = categories.get(category);
+                if(products != null)
+                    products.forEach(product -> index.computeIfAbsent(product, name -> new LinkedHashSet<>()).add(rule));
+            }
+        }
+
+        Map<String, List<PromotionRule>> rulesByProduct = new HashMap<>();
+        index.forEach((product, productRules) ->
+                rulesByProduct.put(product, Collections.unmodifiableList(new ArrayList<>(productRules))));
+        this.rulesByProduct = rulesByProduct;
+    }
+
+    public List<PromotionRule> getRules()
+    {
+        return rules;
+    }
+
+    /**
+     * @return true if no product has a promotion
+     */
+    public boolean isEmpty()
+    {
+        return rulesByProduct.isEmpty();
+    }
+
+    /**
+     * Rules a product takes part in
+     * @param product
+     * @return
+     */
+    public List<PromotionRule> rulesFor(Product product)
+    {
+        return rulesByProduct.getOrDefault(product.getName(), Collections.emptyList());
+    }
+
+    /**
+     * Baskets of the storage with the promotions applied to their total
+     * @param storage
+     * @param catalog catalog the baskets are priced from, their discounts follow its published prices
+     * @return the storage itself if there are no promotions
+     */
+    public BasketFactory decorate(BasketFactory storage, ProductCatalog catalog)
+    {
+        if(isEmpty())
+            return storage;
+
+        return (basketID, lines, version) -> new PromotedBasket(storage.create(basketID, lines, version), this, catalog::getPriceVersion);
+    }
+}
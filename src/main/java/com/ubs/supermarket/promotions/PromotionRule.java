@@ -0,0 +1,90 @@
+package com.ubs.supermarket.promotions;
+
+import com.ubs.supermarket.products.Product;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A promotion applying across basket lines, on top of the special prices of every product.
+ *
+ * A rule names the products and the categories of products it applies to, it is only evaluated for
+ * baskets holding one of them and only given the lines of those products. Rules are immutable.
+ *
+ * Rules of a product stack in the order of the engine: each one is given what is left to pay for its lines
+ * after the rules before it, and takes its discount off that, so a product is never discounted twice
+ * from the same price.
+ */
+public abstract class PromotionRule
+{
+    private final String name;
+
+    private final Set<String> products;
+
+    private final Set<String> categories;
+
+    /**
+     * @param name
+     * @param products names of the products the rule applies to
+     * @param categories categories of the products the rule applies to
+     */
+    protected PromotionRule(String name, Collection<String> products, Collection<String> categories)
+    {
+        if(products.isEmpty() && categories.isEmpty())
+            throw new IllegalArgumentException("Promotion " + name + " applies to no product");
+
+        this.name = name;
+        this.products = Collections.unmodifiableSet(new LinkedHashSet<>(products));
+        this.categories = Collections.unmodifiableSet(new LinkedHashSet<>(categories));
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Set<String> getProducts()
+    {
+        return products;
+    }
+
+    public Set<String> getCategories()
+    {
+        return categories;
+    }
+
+    /**
+     * Amount the rule takes off the basket total, from the line prices after special prices
+     * @param lines quantity of every basket line the rule applies to, never empty
+     * @return a positive amount, or 0 if the lines do not qualify
+     */
+    public final double discount(Map<Product, Long> lines)
+    {
+        Map<Product, Double> prices = new HashMap<>();
+        lines.forEach((product, count) -> prices.put(product, product.getPrice(count)));
+
+        double discount = 0;
+        for(double lineDiscount : discount(lines, prices).values())
+            discount += lineDiscount;
+        return discount;
+    }
+
+    /**
+     * Amounts the rule takes off its lines
+     * @param lines quantity of every basket line the rule applies to, never empty
+     * @param prices what is left to pay for every line, after special prices and the rules applied before
+     * @return the positive amount taken off every line, at most what is left to pay for it,
+     * empty if the lines do not qualify
+     */
+    public abstract Map<Product, Double> discount(Map<Product, Long> lines, Map<Product, Double> prices);
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
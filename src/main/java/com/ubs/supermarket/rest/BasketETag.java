@@ -0,0 +1,96 @@
+package com.ubs.supermarket.rest;
+
+import com.ubs.supermarket.exception.VersionConflictException;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Entity tags of basket versions, for conditional requests.
+ *
+ * A tag is the basket version prefixed by an epoch drawn at startup. Versions start again from 0 when
+ * baskets are restored, the epoch keeps tags handed out before a restart from matching afterwards.
+ * The tag ends with the wire format of the body, the bytes of a version differ from one format to another.
+ */
+final class BasketETag
+{
+    static final String ANY = "*";
+
+    private static final String EPOCH = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+
+    private static final String PREFIX = "\"" + EPOCH + "-";
+
+    /**
+     * closing part of the tags, by format ordinal
+     */
+    private static final String[] SUFFIXES = new String[BasketWireFormat.values().length];
+
+    static
+    {
+        for(BasketWireFormat format : BasketWireFormat.values())
+            SUFFIXES[format.ordinal()] = "-" + format.name().toLowerCase(Locale.ROOT) + "\"";
+    }
+
+    private BasketETag()
+    {
+    }
+
+    /**
+     * @param version
+     * @param format
+     * @return the quoted entity tag of the version written in the format
+     */
+    static String of(long version, BasketWireFormat format)
+    {
+        return PREFIX + version + SUFFIXES[format.ordinal()];
+    }
+
+    /**
+     * Weak comparison of an If-None-Match header with the current version
+     * @param ifNoneMatch header value, may be null
+     * @param version
+     * @param format
+     * @return true if a tag of the header, or *, matches the version written in the format
+     */
+    static boolean matches(String ifNoneMatch, long version, BasketWireFormat format)
+    {
+        if(ifNoneMatch == null)
+            return false;
+
+        String current = of(version, format);
+        for(String tag : ifNoneMatch.split(","))
+        {
+            tag = tag.trim();
+            if(tag.startsWith("W/"))
+                tag = tag.substring(2);
+
+            if(tag.equals(ANY) || tag.equals(current))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Version an If-Match header expects
+     * @param ifMatch a single strong entity tag
+     * @param format format of the response, a tag of another format never matches
+     * @return
+     * @throws VersionConflictException if the tag cannot match any current version
+     */
+    static long expectedVersion(String ifMatch, BasketWireFormat format)
+    {
+        String tag = ifMatch.trim();
+        String suffix = SUFFIXES[format.ordinal()];
+        if(!tag.startsWith(PREFIX) || !tag.endsWith(suffix) || tag.length() <= PREFIX.length() + suffix.length())
+            throw new VersionConflictException("Basket has changed since " + tag);
+
+        try
+        {
+            return Long.parseLong(tag.substring(PREFIX.length(), tag.length() - suffix.length()));
+        }
+        catch(NumberFormatException e)
+        {
+            throw new VersionConflictException("Basket has changed since " + tag);
+        }
+    }
+}
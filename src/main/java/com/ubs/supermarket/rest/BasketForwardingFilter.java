@@ -0,0 +1,88 @@
+package com.ubs.supermarket.rest;
+
+import com.ubs.supermarket.cluster.ClusterMembership;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends the requests for a basket another node owns to that node.
+ *
+ * Only requests naming a basket in their path, /basket/{basketId} and below, are forwarded. Requests forwarded by
+ * another node, carrying the cluster secret, are always served here, a basket this node does not hold is then
+ * answered as not found.
+ */
+@Component
+public class BasketForwardingFilter extends OncePerRequestFilter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BasketForwardingFilter.class);
+
+    private static final Pattern BASKET_PATH = Pattern.compile("/basket/([0-9a-fA-F-]{36})(/.*)?");
+
+    private final ClusterMembership membership;
+
+    private final ClusterClient client;
+
+    @Autowired
+    public BasketForwardingFilter(ClusterMembership membership)
+    {
+        this.membership = membership;
+        this.client = new ClusterClient(membership);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException
+    {
+        UUID basketId = membership.isClustered() && !membership.isPeer(request.getHeader(ClusterMembership.SECRET_HEADER))
+                ? basketIdOf(request) : null;
+
+        String owner = basketId == null ? null : membership.owner(basketId);
+        if(owner == null || owner.equals(membership.getSelf()))
+        {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        try
+        {
+            client.forward(owner, request, response);
+        }
+        catch(IOException e)
+        {
+            LOGGER.warn("Basket {} could not be forwarded to {}", basketId, owner, e);
+            if(!response.isCommitted())
+                response.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Basket owner " + owner + " is unreachable");
+        }
+    }
+
+    /**
+     * @return the basket id of the path, null if the path names no basket
+     */
+    private static UUID basketIdOf(HttpServletRequest request)
+    {
+        Matcher matcher = BASKET_PATH.matcher(request.getRequestURI().substring(request.getContextPath().length()));
+        if(!matcher.matches())
+            return null;
+
+        try
+        {
+            return UUID.fromString(matcher.group(1));
+        }
+        catch(IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+}
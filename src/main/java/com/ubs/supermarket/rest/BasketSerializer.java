@@ -0,0 +1,89 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.products.Product;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Streams a basket as JSON, one object per product line followed by the total
+ *
+ * {"basketID":"...","lines":[{"name":"P1","price":10.0,"specialPriceMap":{"3":5.0},"count":4}],"total":25.0}
+ */
+public class BasketSerializer extends JsonSerializer<Basket>
+{
+
+    @Override
+    public void serialize(Basket basket, JsonGenerator jsonGenerator, SerializerProvider serializerProvider) throws IOException
+    {
+        writeBasket(jsonGenerator, basket.getBasketID(), basket.getAllProducts(), basket.getTotalPrice());
+    }
+
+    /**
+     * Writes the basket document for the given lines
+     * @param jsonGenerator
+     * @param basketID
+     * @param lines product quantities
+     * @param total
+     * @throws IOException
+     */
+    static void writeBasket(JsonGenerator jsonGenerator, UUID basketID, Map<Product, Long> lines, double total) throws IOException
+    {
+        jsonGenerator.writeStartObject();
+        jsonGenerator.writeStringField("basketID", basketID.toString());
+        writeLines(jsonGenerator, lines);
+        jsonGenerator.writeNumberField("total", total);
+        jsonGenerator.writeEndObject();
+    }
+
+    /**
+     * Writes the lines changed by a call with the version it was applied to, and the basket version and total
+     * after it, lines with a count of 0 have left the basket
+     *
+     * {"basketID":"...","baseVersion":6,"version":7,"lines":[{"name":"P1","price":10.0,"specialPriceMap":{},"count":0}],"total":25.0}
+     * @param jsonGenerator
+     * @param basketID
+     * @param baseVersion
+     * @param version
+     * @param lines new quantities of the changed products
+     * @param total
+     * @throws IOException
+     */
+    static void writeDelta(JsonGenerator jsonGenerator, UUID basketID, long baseVersion, long version,
+                           Map<Product, Long> lines, double total) throws IOException
+    {
+        jsonGenerator.writeStartObject();
+        jsonGenerator.writeStringField("basketID", basketID.toString());
+        jsonGenerator.writeNumberField("baseVersion", baseVersion);
+        jsonGenerator.writeNumberField("version", version);
+        writeLines(jsonGenerator, lines);
+        jsonGenerator.writeNumberField("total", total);
+        jsonGenerator.writeEndObject();
+    }
+
+    private static void writeLines(JsonGenerator jsonGenerator, Map<Product, Long> lines) throws IOException
+    {
+        jsonGenerator.writeArrayFieldStart("lines");
+        for(Map.Entry<Product, Long> data : lines.entrySet())
+        {
+            Product product = data.getKey();
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeStringField("name", product.getName());
+            jsonGenerator.writeNumberField("price", product.getBasePrice());
+
+            jsonGenerator.writeObjectFieldStart("specialPriceMap");
+            for(Map.Entry<Long, Double> specialPrice : product.getSpecialPriceMap().entrySet())
+                jsonGenerator.writeNumberField(specialPrice.getKey().toString(), specialPrice.getValue());
+            jsonGenerator.writeEndObject();
+
+            jsonGenerator.writeNumberField("count", data.getValue());
+            jsonGenerator.writeEndObject();
+        }
+        jsonGenerator.writeEndArray();
+    }
+}
@@ -0,0 +1,102 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.ubs.supermarket.basket.Basket;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.util.List;
+
+/**
+ * Encodings of the basket endpoint bodies.
+ *
+ * Binary formats carry the same documents as JSON, with field names, numbers and strings in binary form, so that
+ * scanners sending many changes skip text parsing on either side. A request body is read in the format of its
+ * Content-Type and a response is written in the first format the Accept header names, JSON by default.
+ */
+enum BasketWireFormat
+{
+    JSON(MediaType.APPLICATION_JSON_UTF8, new JsonFactory()),
+    CBOR(MediaType.valueOf("application/cbor"), new CBORFactory()),
+    SMILE(MediaType.valueOf("application/x-jackson-smile"), new SmileFactory());
+
+    private final MediaType mediaType;
+
+    private final ObjectMapper objectMapper;
+
+    BasketWireFormat(MediaType mediaType, JsonFactory factory)
+    {
+        this.mediaType = mediaType;
+        this.objectMapper = new ObjectMapper(factory)
+                .registerModule(new SimpleModule().addSerializer(Basket.class, new BasketSerializer()));
+    }
+
+    MediaType getMediaType()
+    {
+        return mediaType;
+    }
+
+    ObjectMapper getObjectMapper()
+    {
+        return objectMapper;
+    }
+
+    boolean isBinary()
+    {
+        return this != JSON;
+    }
+
+    /**
+     * @param accept Accept header, may be null
+     * @return the format of the most preferred media type of the header, JSON if it names no binary format
+     * or cannot be parsed
+     */
+    static BasketWireFormat forAccept(String accept)
+    {
+        if(accept == null || accept.isEmpty())
+            return JSON;
+
+        try
+        {
+            List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+            MediaType.sortBySpecificityAndQuality(mediaTypes);
+            for(MediaType mediaType : mediaTypes)
+            {
+                if(mediaType.getQualityValue() == 0)
+                    continue;
+
+                for(BasketWireFormat format : values())
+                {
+                    if(format.mediaType.isCompatibleWith(mediaType))
+                        return format;
+                }
+            }
+        }
+        catch(InvalidMediaTypeException e)
+        {
+            return JSON;
+        }
+        return JSON;
+    }
+
+    /**
+     * @param contentType Content-Type header, may be null
+     * @return the binary format of the content type, JSON for any other
+     */
+    static BasketWireFormat forContentType(MediaType contentType)
+    {
+        if(contentType != null)
+        {
+            for(BasketWireFormat format : values())
+            {
+                if(format.isBinary() && format.mediaType.isCompatibleWith(contentType))
+                    return format;
+            }
+        }
+        return JSON;
+    }
+}
@@ -0,0 +1,25 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.ubs.supermarket.service.BasketMutation;
+
+import java.util.List;
+
+public class BatchWrapper
+{
+    private List<BasketMutation> operations;
+
+    @JsonCreator
+    public BatchWrapper(@JsonProperty("operations") List<BasketMutation> operations) {
+        this.operations = operations;
+    }
+
+    public List<BasketMutation> getOperations() {
+        return operations;
+    }
+
+    public void setOperations(List<BasketMutation> operations) {
+        this.operations = operations;
+    }
+}
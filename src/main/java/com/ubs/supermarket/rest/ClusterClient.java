@@ -0,0 +1,164 @@
+package com.ubs.supermarket.rest;
+
+import com.ubs.supermarket.cluster.ClusterMembership;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.StreamUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Requests from this node to the other nodes of the cluster, all marked as forwarded by this node and carrying
+ * the cluster secret.
+ *
+ * Bodies are streamed both ways, a forwarded request never holds a whole basket in memory on its way through.
+ */
+class ClusterClient
+{
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * headers of a single connection, never passed on
+     */
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "te", "trailer", "upgrade",
+            "host", "content-length"));
+
+    private final ClusterMembership membership;
+
+    private final SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+
+    ClusterClient(ClusterMembership membership)
+    {
+        this.membership = membership;
+        requestFactory.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        requestFactory.setReadTimeout(READ_TIMEOUT_MILLIS);
+        requestFactory.setBufferRequestBody(false);
+    }
+
+    /**
+     * Sends a request received by this node to another node and the answer back to the client
+     * @param node base URL of the node
+     * @param request
+     * @param response
+     * @throws IOException if the node cannot be reached
+     */
+    void forward(String node, HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        String query = request.getQueryString();
+        URI uri = URI.create(node + path + (query == null ? "" : "?" + query));
+
+        ClientHttpRequest forwarded = requestFactory.createRequest(uri, HttpMethod.resolve(request.getMethod()));
+        for(Enumeration<String> names = request.getHeaderNames(); names.hasMoreElements(); )
+        {
+            String name = names.nextElement();
+            if(!HOP_BY_HOP.contains(name.toLowerCase()))
+                forwarded.getHeaders().put(name, Collections.list(request.getHeaders(name)));
+        }
+        membership.sign(forwarded.getHeaders());
+
+        if(request.getContentLengthLong() != 0 && permitsBody(forwarded.getMethod()))
+        {
+            try(InputStream in = request.getInputStream())
+            {
+                StreamUtils.copy(in, forwarded.getBody());
+            }
+        }
+
+        try(ClientHttpResponse answer = forwarded.execute())
+        {
+            response.setStatus(answer.getRawStatusCode());
+            for(Map.Entry<String, List<String>> header : answer.getHeaders().entrySet())
+            {
+                if(header.getKey() == null || HOP_BY_HOP.contains(header.getKey().toLowerCase()))
+                    continue;
+
+                for(String value : header.getValue())
+                    response.addHeader(header.getKey(), value);
+            }
+
+            try(InputStream in = answer.getBody(); OutputStream out = response.getOutputStream())
+            {
+                StreamUtils.copy(in, out);
+            }
+        }
+    }
+
+    /**
+     * Sends a JSON body to another node
+     * @param node base URL of the node
+     * @param method
+     * @param path
+     * @param body
+     * @return the status of the answer
+     * @throws IOException if the node cannot be reached
+     */
+    int send(String node, HttpMethod method, String path, BodyWriter body) throws IOException
+    {
+        return exchange(node, method, path, body, (status, answer) -> status);
+    }
+
+    /**
+     * Sends a request to another node and reads its answer
+     * @param node base URL of the node
+     * @param method
+     * @param path
+     * @param body JSON body, null to send none
+     * @param reader reads the status and body of the answer, the rest of the body is drained
+     * @return what the reader read
+     * @throws IOException if the node cannot be reached
+     */
+    <T> T exchange(String node, HttpMethod method, String path, BodyWriter body, AnswerReader<T> reader) throws IOException
+    {
+        ClientHttpRequest request = requestFactory.createRequest(URI.create(node + path), method);
+        membership.sign(request.getHeaders());
+        // a body is only opened when sent, opening it turns a GET into a POST
+        if(body != null)
+        {
+            request.getHeaders().setContentType(MediaType.APPLICATION_JSON_UTF8);
+            body.write(request.getBody());
+        }
+
+        try(ClientHttpResponse answer = request.execute(); InputStream in = answer.getBody())
+        {
+            T read = reader.read(answer.getRawStatusCode(), StreamUtils.nonClosing(in));
+            StreamUtils.drain(in);
+            return read;
+        }
+    }
+
+    private static boolean permitsBody(HttpMethod method)
+    {
+        return method == HttpMethod.POST || method == HttpMethod.PUT || method == HttpMethod.PATCH;
+    }
+
+    @FunctionalInterface
+    interface BodyWriter
+    {
+        void write(OutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface AnswerReader<T>
+    {
+        T read(int status, InputStream body) throws IOException;
+    }
+}
@@ -0,0 +1,14 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * Writes a response body with a JSON generator
+ */
+@FunctionalInterface
+interface JsonBody
+{
+    void write(JsonGenerator jsonGenerator) throws IOException;
+}
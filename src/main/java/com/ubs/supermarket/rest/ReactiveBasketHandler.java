@@ -0,0 +1,341 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.cluster.ClusterMembership;
+import com.ubs.supermarket.exception.DataNotFoundException;
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.persistence.BasketStore;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.BasketService;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.HandlerFunction;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.DELETE;
+import static org.springframework.web.reactive.function.server.RequestPredicates.GET;
+import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
+import static org.springframework.web.reactive.function.server.RequestPredicates.PUT;
+
+/**
+ * Non-blocking basket endpoints, the same resources and JSON as RestBasketController.
+ *
+ * Handlers never block their event loop thread. Lookups may reload a basket from its tier and reads or changes
+ * may wait for a basket lock, so they run on a bounded pool of worker threads; request bodies are read and
+ * responses written on the event loop. Journaled changes complete once the journal writer has forced them
+ * to disk and the response is then built on a worker, so no thread waits for an fsync.
+ *
+ * Conditional requests and delta=true on changes follow RestBasketController, with the basket version as ETag,
+ * as well as CBOR and Smile bodies.
+ *
+ * Only the baskets this node owns are served. A request for a basket of another node of the cluster is answered
+ * 421 Misdirected Request naming the owner, the servlet endpoints of the owner serve it.
+ */
+class ReactiveBasketHandler
+{
+    private static final DefaultDataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    private static final long NO_BASE_VERSION = -1;
+
+    /**
+     * answers a request for a basket another node owns, the client should send it to the owner
+     */
+    private static final int MISDIRECTED_REQUEST = 421;
+
+    private final BasketService basketService;
+
+    private final BasketStore basketStore;
+
+    private final ClusterMembership membership;
+
+    /**
+     * bounded pool running everything that may block
+     */
+    private final Scheduler workers;
+
+    ReactiveBasketHandler(BasketService basketService, BasketStore basketStore, Scheduler workers)
+    {
+        this(basketService, basketStore, new ClusterMembership("", "", ""), workers);
+    }
+
+    ReactiveBasketHandler(BasketService basketService, BasketStore basketStore, ClusterMembership membership,
+                          Scheduler workers)
+    {
+        this.basketService = basketService;
+        this.basketStore = basketStore;
+        this.membership = membership;
+        this.workers = workers;
+    }
+
+    RouterFunction<ServerResponse> routes()
+    {
+        return RouterFunctions.route(POST("/basket"), this::create)
+                .andRoute(GET("/basket/{basketId}"), this::basketDetails)
+                .andRoute(PUT("/basket/{basketId}/addProducts"), this::addProducts)
+                .andRoute(PUT("/basket/{basketId}/removeProducts"), this::removeProducts)
+                .andRoute(GET("/basket/{basketId}/total"), this::checkTotalPrice)
+                .andRoute(DELETE("/basket/{basketId}"), this::delete)
+                .filter(this::ownedHere);
+    }
+
+    /**
+     * Refuses the requests for a basket another node owns, these endpoints never forward a request
+     */
+    private Mono<ServerResponse> ownedHere(ServerRequest request, HandlerFunction<ServerResponse> next)
+    {
+        String basketId = request.pathVariables().get("basketId");
+        if(basketId == null || !membership.isClustered())
+            return next.handle(request);
+
+        UUID id = basketId(request);
+        if(membership.isLocal(id))
+            return next.handle(request);
+
+        return ServerResponse.status(MISDIRECTED_REQUEST)
+                .syncBody("Basket " + id + " is served by " + membership.owner(id));
+    }
+
+    Mono<ServerResponse> create(ServerRequest request)
+    {
+        return fromFuture(basketStore.createAsync())
+                .flatMap(basket -> ServerResponse.created(
+                        request.uriBuilder().path("/{basketId}").build(basket.getBasketID())).build());
+    }
+
+    Mono<ServerResponse> basketDetails(ServerRequest request)
+    {
+        return Mono.defer(() ->
+        {
+            Basket basket = findBasket(request);
+            try
+            {
+                long version = basket.getVersion();
+                if(notModified(request, version))
+                    return notModifiedResponse(request, version);
+
+                return json(request, version, jsonGenerator -> jsonGenerator.writeObject(basket));
+            }
+            finally
+            {
+                basketService.unpin(basket.getBasketID());
+            }
+        }).subscribeOn(workers);
+    }
+
+    Mono<ServerResponse> addProducts(ServerRequest request)
+    {
+        return mutate(request, Basket::addAllAsync);
+    }
+
+    Mono<ServerResponse> removeProducts(ServerRequest request)
+    {
+        return mutate(request, Basket::removeAllAsync);
+    }
+
+    Mono<ServerResponse> checkTotalPrice(ServerRequest request)
+    {
+        return Mono.defer(() ->
+        {
+            Basket basket = findBasket(request);
+            try
+            {
+                long version = basket.getVersion();
+                if(notModified(request, version))
+                    return notModifiedResponse(request, version);
+
+                return json(request, version, jsonGenerator ->
+                {
+                    jsonGenerator.writeStartObject();
+                    jsonGenerator.writeNumberField("total", basket.getTotalPrice());
+                    jsonGenerator.writeEndObject();
+                });
+            }
+            finally
+            {
+                basketService.unpin(basket.getBasketID());
+            }
+        }).subscribeOn(workers);
+    }
+
+    Mono<ServerResponse> delete(ServerRequest request)
+    {
+        return Mono.defer(() -> fromFuture(basketStore.deleteAsync(basketId(request))))
+                .subscribeOn(workers)
+                .flatMap(removed ->
+                {
+                    if(!removed.isPresent())
+                        return Mono.error(new DataNotFoundException("Basket ID not found"));
+                    return ServerResponse.noContent().build();
+                });
+    }
+
+    private Mono<ServerResponse> mutate(ServerRequest request, Mutation mutation)
+    {
+        // the basket stays pinned until the response is built, or the request fails or is cancelled
+        return Mono.using(() -> findBasket(request),
+                basket -> mutate(request, basket, mutation),
+                basket -> basketService.unpin(basket.getBasketID()))
+                .subscribeOn(workers);
+    }
+
+    private Mono<ServerResponse> mutate(ServerRequest request, Basket basket, Mutation mutation)
+    {
+        String ifMatch = request.headers().asHttpHeaders().getFirst(HttpHeaders.IF_MATCH);
+
+        long baseVersion = ifMatch == null || BasketETag.ANY.equals(ifMatch.trim())
+                ? NO_BASE_VERSION : BasketETag.expectedVersion(ifMatch, acceptedFormat(request));
+        long expectedVersion = baseVersion == NO_BASE_VERSION ? Basket.ANY_VERSION : baseVersion;
+        boolean delta = request.queryParam("delta").map(Boolean::parseBoolean).orElse(false);
+
+        return productList(request)
+                .switchIfEmpty(Mono.error(() -> new InvalidRequestException("Product list is required")))
+                .map(ProductWrapper::getProductList)
+                // the body is read on the event loop, the change may wait for the basket
+                .publishOn(workers)
+                // the change takes no snapshot, the body is written from the basket once it is applied
+                .flatMap(products -> fromFuture(mutation.apply(basket, products, expectedVersion)).then(Mono.just(products)))
+                .flatMap(products ->
+                {
+                    // version read before the basket, the tag never claims changes the body does not hold
+                    long version = basket.getVersion();
+                    if(!delta || baseVersion == NO_BASE_VERSION || version != baseVersion + 1)
+                        return json(request, version, jsonGenerator -> jsonGenerator.writeObject(basket));
+
+                    Map<Product, Long> quantities = basket.getQuantities(products);
+                    double total = basket.getTotalPrice();
+                    return json(request, version, jsonGenerator -> BasketSerializer.writeDelta(
+                            jsonGenerator, basket.getBasketID(), baseVersion, version, quantities, total));
+                });
+    }
+
+    /**
+     * Reads the product list in the format of the request Content-Type
+     */
+    private static Mono<ProductWrapper> productList(ServerRequest request)
+    {
+        BasketWireFormat format = BasketWireFormat.forContentType(request.headers().contentType().orElse(null));
+        if(!format.isBinary())
+            return request.bodyToMono(ProductWrapper.class);
+
+        return DataBufferUtils.join(request.body(BodyExtractors.toDataBuffers()))
+                .map(buffer ->
+                {
+                    try(InputStream in = buffer.asInputStream(true))
+                    {
+                        return format.getObjectMapper().readValue(in, ProductWrapper.class);
+                    }
+                    catch(IOException e)
+                    {
+                        throw new InvalidRequestException("Malformed product list", e);
+                    }
+                });
+    }
+
+    private static boolean notModified(ServerRequest request, long version)
+    {
+        return BasketETag.matches(request.headers().asHttpHeaders().getFirst(HttpHeaders.IF_NONE_MATCH), version,
+                acceptedFormat(request));
+    }
+
+    private static Mono<ServerResponse> notModifiedResponse(ServerRequest request, long version)
+    {
+        return ServerResponse.status(HttpStatus.NOT_MODIFIED).eTag(BasketETag.of(version, acceptedFormat(request))).build();
+    }
+
+    /**
+     * @return the format named by the Accept header of the request
+     */
+    private static BasketWireFormat acceptedFormat(ServerRequest request)
+    {
+        return BasketWireFormat.forAccept(request.headers().asHttpHeaders().getFirst(HttpHeaders.ACCEPT));
+    }
+
+    /**
+     * @return the basket of the request, pinned until the request unpins it
+     */
+    private Basket findBasket(ServerRequest request)
+    {
+        return basketService.pinBasket(basketId(request))
+                .orElseThrow(() -> new DataNotFoundException("Basket ID not found"));
+    }
+
+    private static UUID basketId(ServerRequest request)
+    {
+        try
+        {
+            return UUID.fromString(request.pathVariable("basketId"));
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new InvalidRequestException("Invalid basket id");
+        }
+    }
+
+    /**
+     * Writes a body into a single buffer in the format the request accepts, tagged with the basket version
+     * @param request pretty=true indents the JSON
+     * @param version
+     * @param body
+     * @return
+     */
+    private Mono<ServerResponse> json(ServerRequest request, long version, JsonBody body)
+    {
+        BasketWireFormat format = acceptedFormat(request);
+        DataBuffer buffer = BUFFER_FACTORY.allocateBuffer();
+        try(JsonGenerator jsonGenerator = format.getObjectMapper().getFactory().createGenerator(buffer.asOutputStream()))
+        {
+            if(!format.isBinary() && request.queryParam("pretty").map(Boolean::parseBoolean).orElse(false))
+                jsonGenerator.useDefaultPrettyPrinter();
+
+            body.write(jsonGenerator);
+        }
+        catch(IOException e)
+        {
+            DataBufferUtils.release(buffer);
+            return Mono.error(e);
+        }
+
+        return ServerResponse.ok()
+                .contentType(format.getMediaType())
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT)
+                .eTag(BasketETag.of(version, format))
+                .body(BodyInserters.fromDataBuffers(Mono.just(buffer)));
+    }
+
+    /**
+     * Pending futures are completed by the journal writer thread,
+     * the rest of the request then moves to the workers
+     */
+    private <T> Mono<T> fromFuture(CompletableFuture<T> future)
+    {
+        if(future.isDone())
+            return Mono.fromFuture(future);
+
+        return Mono.fromFuture(future).publishOn(workers);
+    }
+
+    @FunctionalInterface
+    private interface Mutation
+    {
+        CompletableFuture<Void> apply(Basket basket, List<ProductImpl> products, long expectedVersion);
+    }
+}
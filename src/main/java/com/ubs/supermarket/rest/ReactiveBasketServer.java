@@ -0,0 +1,110 @@
+package com.ubs.supermarket.rest;
+
+import com.ubs.supermarket.cluster.ClusterMembership;
+import com.ubs.supermarket.persistence.BasketStore;
+import com.ubs.supermarket.service.BasketService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.resources.LoopResources;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Serves the non-blocking basket endpoints on their own port, next to the servlet endpoints.
+ *
+ * Requests are handled by a fixed number of Netty event loop threads, however many clients are connected,
+ * and the basket work that may block by a fixed number of worker threads.
+ *
+ * The server does not start on a node sharing its baskets with other nodes. A node joining a cluster later keeps
+ * serving only the baskets it owns.
+ */
+@Component
+public class ReactiveBasketServer
+{
+    private final ReactiveBasketHandler handler;
+
+    private final ClusterMembership membership;
+
+    private final int port;
+
+    private final int eventLoopThreads;
+
+    private final Scheduler workers;
+
+    private LoopResources loops;
+
+    private DisposableServer server;
+
+    /**
+     * @param basketService
+     * @param basketStore
+     * @param membership
+     * @param port listening port, 0 for any free port, disabled if negative
+     * @param eventLoopThreads number of event loop threads, one per processor if 0
+     * @param workerThreads number of worker threads, two per processor if 0
+     */
+    @Autowired
+    public ReactiveBasketServer(BasketService basketService, BasketStore basketStore, ClusterMembership membership,
+                                @Value("${basket.reactive.port:8081}") int port,
+                                @Value("${basket.reactive.event-loop-threads:0}") int eventLoopThreads,
+                                @Value("${basket.reactive.worker-threads:0}") int workerThreads)
+    {
+        this.workers = Schedulers.newParallel("basket-reactive-worker",
+                workerThreads > 0 ? workerThreads : 2 * Runtime.getRuntime().availableProcessors(), true);
+        this.handler = new ReactiveBasketHandler(basketService, basketStore, membership, workers);
+        this.membership = membership;
+        this.port = port;
+        this.eventLoopThreads = eventLoopThreads > 0 ? eventLoopThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @throws IllegalStateException if the baskets are shared with other nodes
+     */
+    @PostConstruct
+    public void start()
+    {
+        if(port < 0)
+            return;
+
+        if(membership.isClustered())
+            throw new IllegalStateException("The non-blocking endpoints do not forward baskets to their owner,"
+                    + " set basket.reactive.port=-1 on the nodes of a cluster");
+
+        HttpHandler httpHandler = RouterFunctions.toHttpHandler(handler.routes());
+
+        loops = LoopResources.create("basket-reactive", eventLoopThreads, true);
+        server = HttpServer.create()
+                .port(port)
+                .tcpConfiguration(tcpServer -> tcpServer.runOn(loops))
+                .handle(new ReactorHttpHandlerAdapter(httpHandler))
+                .bindNow();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort()
+    {
+        return server.port();
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        if(server != null)
+        {
+            server.disposeNow();
+            loops.dispose();
+        }
+        workers.dispose();
+    }
+}
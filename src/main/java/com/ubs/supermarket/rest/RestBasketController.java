@@ -1,42 +1,67 @@
 package com.ubs.supermarket.rest;
 
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.ubs.supermarket.basket.Basket;
-import com.ubs.supermarket.basket.BasketImpl;
 import com.ubs.supermarket.exception.DataNotFoundException;
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.persistence.BasketStore;
 import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.BasketBatchService;
+import com.ubs.supermarket.service.BasketMutationResult;
 import com.ubs.supermarket.service.BasketService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.net.URI;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *  Basket Rest controller
+ *
+ *  Responses are streamed to the servlet output stream as compact JSON,
+ *  every endpoint writing JSON accepts pretty=true to indent it.
+ *  Bodies are also read and written as CBOR or Smile, following the Content-Type and Accept headers.
+ *
+ *  Basket responses carry the basket version as ETag. If-None-Match on reads answers 304 without
+ *  serializing anything, If-Match on changes applies them only to that version and answers 412 otherwise.
+ *  Changes answer with the whole basket, or with delta=true only with the lines they touched. A delta is only
+ *  sent for a change made with If-Match that left the basket at the next version, so that applying it to the
+ *  version the client named gives the basket the ETag claims; any other change answers with the whole basket.
  * @author Saumadip Mazumder
  */
 @RestController
 public class RestBasketController
 {
 
-    @Autowired
-    private BasketService basketService;
+    private final BasketService basketService;
+
+    private final BasketStore basketStore;
+
+    private final BasketBatchService basketBatchService;
 
-    private final Gson gson;
+    /**
+     * base version of an unconditional change, which the client may not hold
+     */
+    private static final long NO_BASE_VERSION = -1;
 
-    public RestBasketController()
+    @Autowired
+    public RestBasketController(BasketService basketService, BasketStore basketStore, BasketBatchService basketBatchService)
     {
-        this.gson = new GsonBuilder().enableComplexMapKeySerialization()
-                .setPrettyPrinting().create();
+        this.basketService = basketService;
+        this.basketStore = basketStore;
+        this.basketBatchService = basketBatchService;
     }
 
     /**
@@ -47,9 +72,7 @@ public class RestBasketController
     public ResponseEntity<Basket> create()
     {
 
-       Basket basket = new BasketImpl(new ConcurrentHashMap<>());
-
-        basketService.addBasket(basket);
+        Basket basket = basketStore.create();
 
         URI location = ServletUriComponentsBuilder.fromCurrentRequest().path(
                 "/{basketId}").buildAndExpand(basket.getBasketID()).toUri();
@@ -61,20 +84,28 @@ public class RestBasketController
     /**
      * Retrieval of basket details
      * @param basketId
-     * @return Basket
+     * @param pretty
+     * @param ifNoneMatch ETag of a basket version the client holds
+     * @param response
+     * @throws IOException
      */
     @GetMapping("/basket/{basketId}")
-    public ResponseEntity<String> basketDetails(@PathVariable UUID basketId)
+    public void basketDetails(@PathVariable UUID basketId, @RequestParam(defaultValue = "false") boolean pretty,
+                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                              HttpServletResponse response) throws IOException
     {
-        if(basketId == null)
-            throw new NullPointerException("Basket id cannot be null");
-
-        if(!basketService.getBasketByID(basketId).isPresent())
-            throw new DataNotFoundException("Basket ID not found");
-
-
-        String json = gson.toJson(basketService.getBasketByID(basketId).get());
-        return ResponseEntity.ok(json);
+        Basket basket = findBasket(basketId);
+        try
+        {
+            if(notModified(basket, ifNoneMatch, response))
+                return;
+
+            writeJson(response, pretty, jsonGenerator -> jsonGenerator.writeObject(basket));
+        }
+        finally
+        {
+            basketService.unpin(basketId);
+        }
     }
 
 
@@ -82,69 +113,245 @@ public class RestBasketController
      * Add product to the basket
      * @param basketId
      * @param product
-     * @return
-     * @throws JsonProcessingException
+     * @param pretty
+     * @param ifMatch ETag of the basket version the products are added to
+     * @param delta responds with the changed lines only, if the change had an If-Match
+     * @param response
+     * @throws IOException
      */
     @PutMapping("/basket/{basketId}/addProducts")
-    public ResponseEntity<String> addProducts(@PathVariable UUID basketId, @RequestBody ProductWrapper product) throws JsonProcessingException {
-        if(basketId == null)
-            throw new NullPointerException("Basket id cannot be null");
-
-        if(!basketService.getBasketByID(basketId).isPresent())
-            throw new DataNotFoundException("Basket ID not found");
-
-        Basket basket = basketService.getBasketByID(basketId).get();
+    public void addProducts(@PathVariable UUID basketId, @RequestBody ProductWrapper product,
+                            @RequestParam(defaultValue = "false") boolean pretty,
+                            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                            @RequestParam(defaultValue = "false") boolean delta,
+                            HttpServletResponse response) throws IOException
+    {
+        Basket basket = findBasket(basketId);
+        try
+        {
+            long baseVersion = isUnconditional(ifMatch)
+                    ? NO_BASE_VERSION : BasketETag.expectedVersion(ifMatch, acceptedFormat());
+            basket.addAll(product.getProductList(), baseVersion == NO_BASE_VERSION ? Basket.ANY_VERSION : baseVersion);
+
+            writeChange(response, pretty, basket, product.getProductList(), delta ? baseVersion : NO_BASE_VERSION);
+        }
+        finally
+        {
+            basketService.unpin(basketId);
+        }
+    }
 
-        Map<Product, Long> response = basket.addProducts(product.getProductList());
+    /**
+     * Removes product from the basket
+     * @param basketId
+     * @param products
+     * @param pretty
+     * @param ifMatch ETag of the basket version the products are removed from
+     * @param delta responds with the changed lines only, if the change had an If-Match
+     * @param response
+     * @throws IOException
+     */
+    @PutMapping("/basket/{basketId}/removeProducts")
+    public void removeProducts(@PathVariable UUID basketId, @RequestBody ProductWrapper products,
+                               @RequestParam(defaultValue = "false") boolean pretty,
+                               @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                               @RequestParam(defaultValue = "false") boolean delta,
+                               HttpServletResponse response) throws IOException
+    {
+        Basket basket = findBasket(basketId);
+        try
+        {
+            long baseVersion = isUnconditional(ifMatch)
+                    ? NO_BASE_VERSION : BasketETag.expectedVersion(ifMatch, acceptedFormat());
+            basket.removeAll(products.getProductList(), baseVersion == NO_BASE_VERSION ? Basket.ANY_VERSION : baseVersion);
+
+            writeChange(response, pretty, basket, products.getProductList(), delta ? baseVersion : NO_BASE_VERSION);
+        }
+        finally
+        {
+            basketService.unpin(basketId);
+        }
+    }
 
 
-        String json = gson.toJson(response);
-        return ResponseEntity.ok( json);
+    /**
+     * Total price rest API
+     * @param basketId
+     * @param pretty
+     * @param ifNoneMatch ETag of a basket version the client holds
+     * @param response
+     * @throws IOException
+     */
+    @GetMapping("/basket/{basketId}/total")
+    void checkTotalPrice(@PathVariable UUID basketId, @RequestParam(defaultValue = "false") boolean pretty,
+                         @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                         HttpServletResponse response) throws IOException
+    {
+        Basket basket = findBasket(basketId);
+        try
+        {
+            if(notModified(basket, ifNoneMatch, response))
+                return;
+
+            writeJson(response, pretty, jsonGenerator ->
+            {
+                jsonGenerator.writeStartObject();
+                jsonGenerator.writeNumberField("total", basket.getTotalPrice());
+                jsonGenerator.writeEndObject();
+            });
+        }
+        finally
+        {
+            basketService.unpin(basketId);
+        }
+    }
 
+    /**
+     * Adds and removes products on many baskets in one call.
+     * Mutations are applied per basket in the order sent, different baskets are updated in parallel.
+     * Responds with the status and new total of every basket in the batch
+     * @param batch
+     * @param pretty
+     * @param response
+     * @throws IOException
+     */
+    @PostMapping("/basket/batch")
+    public void applyBatch(@RequestBody BatchWrapper batch, @RequestParam(defaultValue = "false") boolean pretty,
+                           HttpServletResponse response) throws IOException
+    {
+        if(batch.getOperations() == null || batch.getOperations().isEmpty())
+            throw new InvalidRequestException("Batch has no operations");
+
+        List<BasketMutationResult> results = basketBatchService.apply(batch.getOperations());
+
+        writeJson(response, pretty, jsonGenerator ->
+        {
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeFieldName("results");
+            jsonGenerator.writeObject(results);
+            jsonGenerator.writeEndObject();
+        });
     }
 
     /**
-     * Removes product from the basket
+     * Removes the basket
      * @param basketId
-     * @param products
      * @return
      */
-    @PutMapping("/basket/{basketId}/removeProducts")
-    public ResponseEntity<String> removeProducts(@PathVariable UUID basketId, @RequestBody ProductWrapper products)
+    @DeleteMapping("/basket/{basketId}")
+    public ResponseEntity<Void> delete(@PathVariable UUID basketId)
     {
         if(basketId == null)
             throw new NullPointerException("Basket id cannot be null");
 
-        if(!basketService.getBasketByID(basketId).isPresent())
+        if(!basketStore.delete(basketId).isPresent())
             throw new DataNotFoundException("Basket ID not found");
 
-        Basket basket = basketService.getBasketByID(basketId).get();
-
-        return ResponseEntity.ok(gson.toJson(basket.removeProducts(products.getProductList())));
-
+        return ResponseEntity.noContent().build();
     }
 
-
     /**
-     * Total price rest API
+     * Single registry lookup for a request, the basket stays pinned in memory until the request unpins it
      * @param basketId
      * @return
      */
-    @GetMapping("/basket/{basketId}/total")
-    ResponseEntity<String> checkTotalPrice(@PathVariable UUID basketId)
+    private Basket findBasket(UUID basketId)
     {
         if(basketId == null)
             throw new NullPointerException("Basket id cannot be null");
 
-        if(!basketService.getBasketByID(basketId).isPresent())
-            throw new DataNotFoundException("Basket ID not found");
+        return basketService.pinBasket(basketId)
+                .orElseThrow(() -> new DataNotFoundException("Basket ID not found"));
+    }
+
+    /**
+     * Sets the ETag of the current basket version
+     * @param basket
+     * @param ifNoneMatch
+     * @param response
+     * @return true if the client holds that version, the response is then a 304
+     */
+    private static boolean notModified(Basket basket, String ifNoneMatch, HttpServletResponse response)
+    {
+        long version = basket.getVersion();
+        BasketWireFormat format = acceptedFormat();
+        response.setHeader(HttpHeaders.ETAG, BasketETag.of(version, format));
+
+        if(!BasketETag.matches(ifNoneMatch, version, format))
+            return false;
+
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    private static boolean isUnconditional(String ifMatch)
+    {
+        return ifMatch == null || BasketETag.ANY.equals(ifMatch.trim());
+    }
+
+    /**
+     * Writes the basket after a change with the ETag of its version, read before the basket so that the tag never
+     * claims changes the body does not hold.
+     * Only the current quantity of every product of the change is written, 0 for the ones that left the basket,
+     * if the change moved the basket from the base version to the next one, no other change is then missing
+     * @param response
+     * @param pretty
+     * @param basket
+     * @param products
+     * @param baseVersion version the change was applied to, NO_BASE_VERSION for the whole basket
+     * @throws IOException
+     */
+    private void writeChange(HttpServletResponse response, boolean pretty, Basket basket, List<ProductImpl> products,
+                             long baseVersion) throws IOException
+    {
+        long version = basket.getVersion();
+        response.setHeader(HttpHeaders.ETAG, BasketETag.of(version, acceptedFormat()));
+
+        if(baseVersion == NO_BASE_VERSION || version != baseVersion + 1)
+        {
+            writeJson(response, pretty, jsonGenerator -> jsonGenerator.writeObject(basket));
+            return;
+        }
 
-        Basket basket = basketService.getBasketByID(basketId).get();
+        Map<Product, Long> lines = basket.getQuantities(products);
+        double total = basket.getTotalPrice();
 
-        JsonObject obj = new JsonObject();
-        obj.addProperty("total", basket.getTotalPrice());
-        return ResponseEntity.ok(gson.toJson(obj));
+        writeJson(response, pretty, jsonGenerator ->
+                BasketSerializer.writeDelta(jsonGenerator, basket.getBasketID(), baseVersion, version, lines, total));
     }
 
+    /**
+     * Streams a body straight to the response, in the format the request accepts
+     * @param response
+     * @param pretty indents the JSON if true
+     * @param body
+     * @throws IOException
+     */
+    private void writeJson(HttpServletResponse response, boolean pretty, JsonBody body) throws IOException
+    {
+        BasketWireFormat format = acceptedFormat();
+        response.setContentType(format.getMediaType().toString());
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+
+        try(JsonGenerator jsonGenerator = format.getObjectMapper().getFactory().createGenerator(response.getOutputStream()))
+        {
+            if(pretty && !format.isBinary())
+                jsonGenerator.useDefaultPrettyPrinter();
+
+            body.write(jsonGenerator);
+        }
+    }
+
+    /**
+     * @return the format named by the Accept header of the current request, JSON outside a request
+     */
+    private static BasketWireFormat acceptedFormat()
+    {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if(!(attributes instanceof ServletRequestAttributes))
+            return BasketWireFormat.JSON;
+
+        return BasketWireFormat.forAccept(((ServletRequestAttributes) attributes).getRequest().getHeader(HttpHeaders.ACCEPT));
+    }
 
 }
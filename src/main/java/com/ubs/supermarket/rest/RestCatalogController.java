@@ -0,0 +1,312 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ubs.supermarket.cluster.ClusterMembership;
+import com.ubs.supermarket.exception.ForbiddenRequestException;
+import com.ubs.supermarket.service.PriceImport;
+import com.ubs.supermarket.service.PriceImportService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Catalog price feeds.
+ *
+ * A feed is streamed from the request body, the body is never held as a whole.
+ * Baskets price their lines with the published prices from their next change on.
+ *
+ * Feeds and rollbacks are only accepted with the feed secret, basket.catalog.feed-secret, in FEED_SECRET_HEADER and
+ * answered 403 otherwise, none is accepted if it is not set. Other nodes pass them on with the cluster secret instead.
+ * A feed or rollback sent to any node is passed on to every other node once applied. A feed is sent again to a node
+ * that cannot be reached or fails, up to MAX_ATTEMPTS times, publishing the same prices twice leaves them as they are.
+ * A rollback is sent once, rolling back twice would restore older prices. The answer holds the price version of every
+ * node, so that nodes left behind are seen, and names the nodes the change could not be passed on to, which must be
+ * sent it again. The price versions of the nodes can also be read at any time.
+ */
+@RestController
+public class RestCatalogController
+{
+    /**
+     * carries the feed secret on feeds, rollbacks and version reads
+     */
+    public static final String FEED_SECRET_HEADER = "X-Basket-Feed-Secret";
+
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY_MILLIS = 200;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RestCatalogController.class);
+
+    private final PriceImportService priceImportService;
+
+    private final ClusterMembership membership;
+
+    private final ClusterClient client;
+
+    /**
+     * empty when no feed secret is configured
+     */
+    private final String feedSecret;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * @param priceImportService
+     * @param membership
+     * @param feedSecret given by the sources of price feeds, empty to accept no feed
+     */
+    @Autowired
+    public RestCatalogController(PriceImportService priceImportService, ClusterMembership membership,
+                                 @Value("${basket.catalog.feed-secret:}") String feedSecret)
+    {
+        this.priceImportService = priceImportService;
+        this.membership = membership;
+        this.client = new ClusterClient(membership);
+        this.feedSecret = feedSecret == null ? "" : feedSecret;
+    }
+
+    /**
+     * Publishes the prices of a feed, a JSON array of products with their special prices
+     * @param request
+     * @param secret the feed secret
+     * @param clusterSecret the cluster secret, when another node passes the feed on
+     * @param forwardedBy set when another node passes the feed on, it is then not passed on again
+     * @return the price version of the catalog, the number of products published, the price version of every node,
+     * null for the nodes the feed could not be passed on to, and those nodes
+     * @throws IOException
+     */
+    @PutMapping(value = "/catalog/prices", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> importPrices(HttpServletRequest request,
+                                                            @RequestHeader(value = FEED_SECRET_HEADER, required = false) String secret,
+                                                            @RequestHeader(value = ClusterMembership.SECRET_HEADER, required = false) String clusterSecret,
+                                                            @RequestHeader(value = ClusterMembership.FORWARDED_HEADER, required = false) String forwardedBy) throws IOException
+    {
+        checkFeedSource(secret, clusterSecret, forwardedBy);
+        PriceImport priceImport = priceImportService.importPrices(request.getInputStream());
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("version", priceImport.getVersion());
+        body.put("products", priceImport.getProducts());
+        Map<String, Long> versions = forwardedBy == null
+                ? propagate(HttpMethod.PUT, "/catalog/prices", priceImport.getPublished(), priceImport.getVersion(), MAX_ATTEMPTS)
+                : Collections.singletonMap(membership.getSelf(), priceImport.getVersion());
+        body.put("versions", versions);
+        body.put("unreachable", unreachable(versions));
+        return ResponseEntity.ok(body);
+    }
+
+    /**
+     * Restores the prices replaced by the last feed
+     * @param secret the feed secret
+     * @param clusterSecret the cluster secret, when another node passes the rollback on
+     * @param forwardedBy set when another node passes the rollback on, it is then not passed on again
+     * @return the price version of the catalog, the price version of every node, null for the nodes the rollback
+     * could not be passed on to, and those nodes
+     * @throws IOException
+     */
+    @PostMapping("/catalog/prices/rollback")
+    public ResponseEntity<Map<String, Object>> rollback(@RequestHeader(value = FEED_SECRET_HEADER, required = false) String secret,
+                                                        @RequestHeader(value = ClusterMembership.SECRET_HEADER, required = false) String clusterSecret,
+                                                        @RequestHeader(value = ClusterMembership.FORWARDED_HEADER, required = false) String forwardedBy) throws IOException
+    {
+        checkFeedSource(secret, clusterSecret, forwardedBy);
+        long version = priceImportService.rollback();
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("version", version);
+        Map<String, Long> versions = forwardedBy == null
+                ? propagate(HttpMethod.POST, "/catalog/prices/rollback", null, version, 1)
+                : Collections.singletonMap(membership.getSelf(), version);
+        body.put("versions", versions);
+        body.put("unreachable", unreachable(versions));
+        return ResponseEntity.ok(body);
+    }
+
+    /**
+     * Reads the price version of the catalog
+     * @param secret the feed secret
+     * @param clusterSecret the cluster secret, when another node reads the version
+     * @param forwardedBy set when another node reads the version, the versions of the other nodes are then not read
+     * @return the price version of the catalog and, unless read by another node, the price version of every node,
+     * null for the nodes that could not be reached, and those nodes
+     */
+    @GetMapping("/catalog/prices/version")
+    public ResponseEntity<Map<String, Object>> version(@RequestHeader(value = FEED_SECRET_HEADER, required = false) String secret,
+                                                       @RequestHeader(value = ClusterMembership.SECRET_HEADER, required = false) String clusterSecret,
+                                                       @RequestHeader(value = ClusterMembership.FORWARDED_HEADER, required = false) String forwardedBy)
+    {
+        checkFeedSource(secret, clusterSecret, forwardedBy);
+        long version = priceImportService.getVersion();
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("version", version);
+        if(forwardedBy == null)
+        {
+            Map<String, Long> versions = new LinkedHashMap<>();
+            versions.put(membership.getSelf(), version);
+            for(String node : membership.getNodes())
+            {
+                if(!node.equals(membership.getSelf()))
+                    versions.put(node, readVersion(node));
+            }
+            body.put("versions", versions);
+            body.put("unreachable", unreachable(versions));
+        }
+        return ResponseEntity.ok(body);
+    }
+
+    /**
+     * Accepts the feed secret from a client, and the cluster secret from another node only
+     */
+    private void checkFeedSource(String secret, String clusterSecret, String forwardedBy)
+    {
+        boolean accepted = forwardedBy != null
+                ? membership.isPeer(clusterSecret)
+                : !feedSecret.isEmpty() && secret != null
+                        && MessageDigest.isEqual(feedSecret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+        if(!accepted)
+            throw new ForbiddenRequestException("Catalog price changes need the feed secret");
+    }
+
+    /**
+     * Passes the change on to every other node
+     * @param feed body of the change, null for none
+     * @param version price version of this node after the change
+     * @param attempts times a node is sent the change at most
+     * @return the price version of every node after the change, null for the nodes it could not be passed on to
+     */
+    private Map<String, Long> propagate(HttpMethod method, String path, Object feed, long version, int attempts)
+    {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put(membership.getSelf(), version);
+        for(String node : membership.getNodes())
+        {
+            if(!node.equals(membership.getSelf()))
+                versions.put(node, passOn(node, method, path, feed, attempts));
+        }
+        return versions;
+    }
+
+    /**
+     * Sends the change to a node again while it cannot be reached or fails, a refused change is not sent again
+     * @return the price version of the node after the change, null if it was not applied
+     */
+    private Long passOn(String node, HttpMethod method, String path, Object feed, int attempts)
+    {
+        for(int attempt = 1; ; attempt++)
+        {
+            try
+            {
+                Answer answer = client.exchange(node, method, path, out ->
+                {
+                    if(feed != null)
+                        objectMapper.writeValue(out, feed);
+                }, this::readAnswer);
+                if(answer.version != null)
+                    return answer.version;
+
+                LOGGER.warn("Catalog price change was answered {} by {}", answer.status, node);
+                if(answer.status / 100 != 5)
+                    return null;
+            }
+            catch(IOException e)
+            {
+                LOGGER.warn("Catalog price change could not be passed on to {}", node, e);
+            }
+
+            if(attempt >= attempts || !pause(attempt))
+                return null;
+        }
+    }
+
+    /**
+     * @return the price version of the node, null if it cannot be read
+     */
+    private Long readVersion(String node)
+    {
+        try
+        {
+            return client.exchange(node, HttpMethod.GET, "/catalog/prices/version", null, this::readAnswer).version;
+        }
+        catch(IOException e)
+        {
+            LOGGER.warn("Catalog price version of {} could not be read", node, e);
+            return null;
+        }
+    }
+
+    private Answer readAnswer(int status, InputStream body) throws IOException
+    {
+        if(status / 100 != 2)
+            return new Answer(status, null);
+
+        JsonNode version = objectMapper.readTree(body).get("version");
+        return new Answer(status, version != null && version.canConvertToLong() ? version.asLong() : null);
+    }
+
+    /**
+     * Waits before the next attempt, longer after every attempt
+     * @return false if interrupted, no attempt is made then
+     */
+    private static boolean pause(int attempt)
+    {
+        try
+        {
+            Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+            return true;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static List<String> unreachable(Map<String, Long> versions)
+    {
+        List<String> unreachable = new ArrayList<>();
+        versions.forEach((node, version) ->
+        {
+            if(version == null)
+                unreachable.add(node);
+        });
+        return unreachable;
+    }
+
+    /**
+     * Status of the answer of a node, with the price version it holds if the change was applied
+     */
+    private static final class Answer
+    {
+        private final int status;
+
+        private final Long version;
+
+        private Answer(int status, Long version)
+        {
+            this.status = status;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.cluster.ClusterMembership;
+import com.ubs.supermarket.exception.ForbiddenRequestException;
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.persistence.BasketStore;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.BasketService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Cluster membership and basket hand over between nodes.
+ *
+ * A membership change sent to any node is passed on to every node before and after the change. Every node then
+ * moves the baskets it no longer owns to their new owner, with consistent hashing about one node's share of the
+ * baskets moves. A basket is not served during its move, requests for it are answered as not found meanwhile.
+ *
+ * Changes of the membership and basket hand overs are only accepted with the cluster secret, from the nodes
+ * or an operator holding it, and answered 403 otherwise.
+ */
+@RestController
+public class RestClusterController
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RestClusterController.class);
+
+    private final BasketService basketService;
+
+    private final BasketStore basketStore;
+
+    private final ClusterMembership membership;
+
+    private final ClusterClient client;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    public RestClusterController(BasketService basketService, BasketStore basketStore, ClusterMembership membership)
+    {
+        this.basketService = basketService;
+        this.basketStore = basketStore;
+        this.membership = membership;
+        this.client = new ClusterClient(membership);
+    }
+
+    /**
+     * @return this node and the nodes of the cluster
+     */
+    @GetMapping("/cluster/nodes")
+    public ResponseEntity<Map<String, Object>> nodes()
+    {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("self", membership.getSelf());
+        body.put("nodes", membership.getNodes());
+        return ResponseEntity.ok(body);
+    }
+
+    /**
+     * Replaces the nodes of the cluster and moves the baskets this node no longer owns
+     * @param nodes base URLs of every node
+     * @param secret the cluster secret
+     * @param forwardedBy set when another node passes the change on, it is then not passed on again
+     * @return the nodes, the number of baskets moved and kept for want of reaching their owner, and the nodes
+     * the change could not be passed on to
+     */
+    @PutMapping("/cluster/nodes")
+    public synchronized ResponseEntity<Map<String, Object>> updateNodes(@RequestBody List<String> nodes,
+                                                                        @RequestHeader(value = ClusterMembership.SECRET_HEADER, required = false) String secret,
+                                                                        @RequestHeader(value = ClusterMembership.FORWARDED_HEADER, required = false) String forwardedBy)
+    {
+        checkPeer(secret);
+        if(nodes == null)
+            throw new InvalidRequestException("Cluster nodes are required");
+
+        List<String> previous = membership.update(nodes);
+        List<String> unreachable = forwardedBy == null ? propagate(previous, nodes) : new ArrayList<>();
+
+        List<UUID> leaving = new ArrayList<>();
+        basketService.forEachId(basketId ->
+        {
+            if(!membership.isLocal(basketId))
+                leaving.add(basketId);
+        });
+
+        int moved = 0;
+        for(UUID basketId : leaving)
+        {
+            if(basketStore.moveOut(basketId, basket -> transfer(membership.owner(basketId), basket)))
+                moved++;
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("nodes", membership.getNodes());
+        body.put("moved", moved);
+        body.put("kept", leaving.size() - moved);
+        body.put("unreachable", unreachable);
+        return ResponseEntity.ok(body);
+    }
+
+    /**
+     * Receives a basket moved from another node, in the JSON of the basket endpoints
+     * @param basketId
+     * @param body
+     * @param secret the cluster secret
+     * @return
+     */
+    @PutMapping("/cluster/baskets/{basketId}")
+    public ResponseEntity<Void> receive(@PathVariable UUID basketId, @RequestBody JsonNode body,
+                                        @RequestHeader(value = ClusterMembership.SECRET_HEADER, required = false) String secret)
+    {
+        checkPeer(secret);
+        JsonNode lines = body.get("lines");
+        if(lines == null || !lines.isArray())
+            throw new InvalidRequestException("Basket lines are required");
+
+        Map<Product, Long> products = new HashMap<>();
+        for(JsonNode line : lines)
+        {
+            Map<Long, Double> specialPrices = new HashMap<>();
+            line.path("specialPriceMap").fields().forEachRemaining(specialPrice ->
+                    specialPrices.put(Long.valueOf(specialPrice.getKey()), specialPrice.getValue().asDouble()));
+            try
+            {
+                products.merge(new ProductImpl(line.path("name").asText(null), line.path("price").asDouble(), specialPrices),
+                        line.path("count").asLong(), Math::addExact);
+            }
+            catch(InvalidAttributesException e)
+            {
+                throw new InvalidRequestException(e.getMessage());
+            }
+            catch(ArithmeticException e)
+            {
+                throw new InvalidRequestException("Basket line counts overflow");
+            }
+        }
+
+        basketStore.restore(basketId, products);
+        return ResponseEntity.noContent().build();
+    }
+
+    private void checkPeer(String secret)
+    {
+        if(!membership.isPeer(secret))
+            throw new ForbiddenRequestException("Cluster requests need the cluster secret");
+    }
+
+    /**
+     * @return the nodes the change could not be passed on to
+     */
+    private List<String> propagate(List<String> previous, List<String> nodes)
+    {
+        Set<String> others = new LinkedHashSet<>(previous);
+        others.addAll(membership.getNodes());
+        others.remove(membership.getSelf());
+
+        List<String> unreachable = new ArrayList<>();
+        for(String node : others)
+        {
+            try
+            {
+                int status = client.send(node, HttpMethod.PUT, "/cluster/nodes", out -> objectMapper.writeValue(out, nodes));
+                if(status / 100 != 2)
+                    unreachable.add(node);
+            }
+            catch(IOException e)
+            {
+                LOGGER.warn("Cluster change could not be passed on to {}", node, e);
+                unreachable.add(node);
+            }
+        }
+        return unreachable;
+    }
+
+    /**
+     * @return true once the owner holds the basket
+     */
+    private boolean transfer(String owner, Basket basket)
+    {
+        try
+        {
+            int status = client.send(owner, HttpMethod.PUT, "/cluster/baskets/" + basket.getBasketID(), out ->
+            {
+                try(JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator(out))
+                {
+                    BasketSerializer.writeBasket(jsonGenerator, basket.getBasketID(), basket.getAllProducts(), basket.getTotalPrice());
+                }
+            });
+            return status / 100 == 2;
+        }
+        catch(IOException e)
+        {
+            LOGGER.warn("Basket {} could not be moved to {}", basket.getBasketID(), owner, e);
+            return false;
+        }
+    }
+}
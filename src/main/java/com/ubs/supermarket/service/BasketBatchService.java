@@ -0,0 +1,166 @@
+package com.ubs.supermarket.service;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.exception.DataNotFoundException;
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.products.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Applies batches of basket mutations.
+ *
+ * Mutations are grouped per basket, every basket is looked up once and its mutations are applied
+ * in the order they were sent. Different baskets are updated in parallel.
+ *
+ * A basket whose mutations fail is reported FAILED with an error code and its total as the mutations applied
+ * before the failure left it, the other baskets of the batch are applied and reported as usual.
+ */
+@Component
+public class BasketBatchService
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BasketBatchService.class);
+
+    private final BasketService basketService;
+
+    private final ForkJoinPool executor;
+
+    @Autowired
+    public BasketBatchService(BasketService basketService)
+    {
+        this(basketService, new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    BasketBatchService(BasketService basketService, ForkJoinPool executor)
+    {
+        this.basketService = basketService;
+        this.executor = executor;
+    }
+
+    /**
+     * Applies the mutations
+     * @param mutations
+     * @return one result per basket, in the order the baskets first appear in the mutations, FAILED for a basket
+     * whose mutations threw
+     */
+    public List<BasketMutationResult> apply(List<BasketMutation> mutations)
+    {
+        Map<UUID, List<BasketMutation>> byBasket = new LinkedHashMap<>();
+        for(BasketMutation mutation : mutations)
+        {
+            if(mutation.getBasketId() == null || mutation.getType() == null)
+                throw new InvalidRequestException("Basket id and mutation type are required");
+
+            byBasket.computeIfAbsent(mutation.getBasketId(), id -> new ArrayList<>()).add(mutation);
+        }
+
+        if(byBasket.size() == 1)
+        {
+            Map.Entry<UUID, List<BasketMutation>> group = byBasket.entrySet().iterator().next();
+            List<BasketMutationResult> results = new ArrayList<>(1);
+            results.add(applyGroup(group.getKey(), group.getValue()));
+            return results;
+        }
+
+        List<CompletableFuture<BasketMutationResult>> pending = new ArrayList<>(byBasket.size());
+        byBasket.forEach((basketId, group) ->
+                pending.add(CompletableFuture.supplyAsync(() -> applyGroup(basketId, group), executor)));
+
+        List<BasketMutationResult> results = new ArrayList<>(pending.size());
+        for(CompletableFuture<BasketMutationResult> result : pending)
+            results.add(result.join());
+        return results;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    private BasketMutationResult applyGroup(UUID basketId, List<BasketMutation> group)
+    {
+        Basket basket = null;
+        try
+        {
+            Optional<Basket> found = basketService.pinBasket(basketId);
+            if(!found.isPresent())
+                return new BasketMutationResult(basketId, BasketMutationResult.Status.NOT_FOUND, 0);
+
+            basket = found.get();
+            applyAll(basket, group);
+            return new BasketMutationResult(basketId, BasketMutationResult.Status.APPLIED, basket.getTotalPrice());
+        }
+        catch(RuntimeException e)
+        {
+            return new BasketMutationResult(basketId, BasketMutationResult.Status.FAILED,
+                    basket == null ? 0 : basket.getTotalPrice(), errorCode(basketId, e));
+        }
+        finally
+        {
+            if(basket != null)
+                basketService.unpin(basketId);
+        }
+    }
+
+    /**
+     * @return stable code of the failure, failures other than request errors are logged and reported as internal
+     */
+    private static String errorCode(UUID basketId, RuntimeException e)
+    {
+        if(e instanceof DataNotFoundException)
+            return BasketMutationResult.NOT_FOUND;
+        if(e instanceof VersionConflictException)
+            return BasketMutationResult.VERSION_CONFLICT;
+        if(e instanceof InvalidRequestException)
+            return BasketMutationResult.INVALID_REQUEST;
+
+        LOGGER.error("Mutations of basket {} failed", basketId, e);
+        return BasketMutationResult.INTERNAL_ERROR;
+    }
+
+    /**
+     * Applies consecutive mutations of the same type in one call
+     */
+    private static void applyAll(Basket basket, List<BasketMutation> group)
+    {
+        List<Product> run = new ArrayList<>();
+        BasketMutation.Type runType = null;
+        for(BasketMutation mutation : group)
+        {
+            if(mutation.getType() != runType)
+            {
+                applyRun(basket, runType, run);
+                run.clear();
+                runType = mutation.getType();
+            }
+            if(mutation.getProductList() != null)
+                run.addAll(mutation.getProductList());
+        }
+        applyRun(basket, runType, run);
+    }
+
+    private static void applyRun(Basket basket, BasketMutation.Type type, List<Product> products)
+    {
+        if(products.isEmpty())
+            return;
+
+        if(type == BasketMutation.Type.ADD)
+            basket.addAll(products, Basket.ANY_VERSION);
+        else
+            basket.removeAll(products, Basket.ANY_VERSION);
+    }
+}
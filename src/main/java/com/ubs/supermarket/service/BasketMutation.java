@@ -0,0 +1,46 @@
+package com.ubs.supermarket.service;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.ubs.supermarket.products.ProductImpl;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Addition or removal of products on one basket, as sent in a batch
+ */
+public class BasketMutation
+{
+    public enum Type
+    {
+        ADD, REMOVE
+    }
+
+    private final UUID basketId;
+
+    private final Type type;
+
+    private final List<ProductImpl> productList;
+
+    @JsonCreator
+    public BasketMutation(@JsonProperty("basketId") UUID basketId, @JsonProperty("type") Type type,
+                          @JsonProperty("productlist") List<ProductImpl> productList)
+    {
+        this.basketId = basketId;
+        this.type = type;
+        this.productList = productList;
+    }
+
+    public UUID getBasketId() {
+        return basketId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public List<ProductImpl> getProductList() {
+        return productList;
+    }
+}
@@ -0,0 +1,71 @@
+package com.ubs.supermarket.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.UUID;
+
+/**
+ * Outcome of the mutations of one basket in a batch
+ */
+public class BasketMutationResult
+{
+    public enum Status
+    {
+        APPLIED, NOT_FOUND, FAILED
+    }
+
+    /**
+     * error codes of a FAILED result, the failure itself is only logged
+     */
+    public static final String NOT_FOUND = "NOT_FOUND";
+
+    public static final String VERSION_CONFLICT = "VERSION_CONFLICT";
+
+    public static final String INVALID_REQUEST = "INVALID_REQUEST";
+
+    public static final String INTERNAL_ERROR = "INTERNAL_ERROR";
+
+    private final UUID basketId;
+
+    private final Status status;
+
+    /**
+     * total price of the basket after the mutations, 0 if the basket was not found
+     */
+    private final double total;
+
+    /**
+     * error code of the failure, null unless FAILED
+     */
+    private final String error;
+
+    public BasketMutationResult(UUID basketId, Status status, double total)
+    {
+        this(basketId, status, total, null);
+    }
+
+    public BasketMutationResult(UUID basketId, Status status, double total, String error)
+    {
+        this.basketId = basketId;
+        this.status = status;
+        this.total = total;
+        this.error = error;
+    }
+
+    public UUID getBasketId() {
+        return basketId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getError() {
+        return error;
+    }
+}
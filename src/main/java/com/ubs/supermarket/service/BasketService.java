@@ -1,25 +1,732 @@
 package com.ubs.supermarket.service;
 
 import com.ubs.supermarket.basket.Basket;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
+/**
+ * Registry of the live baskets, indexed by basket id.
+ *
+ * Baskets are spread over a fixed number of hash shards so that lookups are O(1),
+ * creation never copies the existing baskets and spill and expiry sweeps can work one shard at a time.
+ *
+ * With a tier set, baskets idle for too long or least recently used past a maximum count are spilled to the tier
+ * and released, and a lookup missing the registry reloads the basket from the tier. The tier is read outside of the
+ * shard locks, one lookup reading a basket while the others of the same id wait for it, and a reload past the
+ * maximum count spills the least recently used of a few sampled baskets, so the count holds between sweeps as well.
+ * A basket being spilled is
+ * marked before it is unregistered and its last access time checked after, so that a lookup racing the spill
+ * either stops it or sees the mark and reloads the basket: a basket handed out by a lookup is never released.
+ * Operations holding a basket beyond its lookup, such as a request, a batch or a data loader, pin it meanwhile and
+ * pinned baskets are never spilled, so that no change reaches a released basket. Idle baskets are expired the same
+ * way, so that no change reaches a basket whose deletion is journaled.
+ * Lookup latencies are published as basket.lookups, tagged hit, reload or miss.
+ */
 @Component
 public class BasketService
 {
-    private final List<Basket> basketList = new CopyOnWriteArrayList<>();
+    private static final int DEFAULT_SHARD_COUNT = 16;
 
+    /**
+     * Last access times are only refreshed when older than this, so that concurrent
+     * readers of a hot basket do not keep writing the same entry
+     */
+    private static final long ACCESS_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * baskets a reload past the maximum count picks the least recently used one from, from consecutive shards
+     */
+    private static final int EVICTION_SAMPLE = 8;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BasketService.class);
+
+    private static final Timer HITS = lookupTimer("hit", "Lookups of baskets in memory");
+
+    private static final Timer RELOADS = lookupTimer("reload", "Lookups reloading a basket from its tier");
+
+    private static final Timer MISSES = lookupTimer("miss", "Lookups of baskets in neither memory nor the tier");
+
+    private static final Timer SPILLS = Timer.builder("basket.spills")
+            .description("Baskets written to their tier and released")
+            .register(Metrics.globalRegistry);
+
+    private final ConcurrentHashMap<UUID, BasketEntry>[] shards;
+
+    /**
+     * baskets unregistered and being written to the tier or expired, a lookup takes them back from here
+     */
+    private final ConcurrentHashMap<UUID, Basket> spilling = new ConcurrentHashMap<>();
+
+    /**
+     * ids of the baskets operations hold, with the number of holders
+     */
+    private final ConcurrentHashMap<UUID, Integer> pins = new ConcurrentHashMap<>();
+
+    /**
+     * reads of baskets from the tier in progress, completed with the registered entry or null if there was none
+     */
+    private final ConcurrentHashMap<UUID, CompletableFuture<BasketEntry>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * held while baskets are spilled or expired, a basket is never unregistered twice at once
+     */
+    private final ReentrantLock spills = new ReentrantLock();
+
+    private final int shardMask;
+
+    private final LongSupplier nanoClock;
+
+    /**
+     * null when every basket stays in memory
+     */
+    private volatile BasketTier tier;
+
+    /**
+     * baskets kept in memory at most by reloads
+     */
+    private volatile int maxBaskets = Integer.MAX_VALUE;
+
+    public BasketService()
+    {
+        this(DEFAULT_SHARD_COUNT, System::nanoTime);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BasketService(int shardCount, LongSupplier nanoClock)
+    {
+        if(shardCount <= 0 || Integer.bitCount(shardCount) != 1)
+            throw new IllegalArgumentException("Shard count must be a positive power of two");
+
+        this.shards = new ConcurrentHashMap[shardCount];
+        for(int i = 0; i < shardCount; i++)
+            shards[i] = new ConcurrentHashMap<>();
+
+        this.shardMask = shardCount - 1;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Sets the tier idle baskets are spilled to and reloaded from
+     * @param tier
+     */
+    public void setTier(BasketTier tier)
+    {
+        setTier(tier, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Sets the tier idle baskets are spilled to and reloaded from, a reload spills a basket if more than maxBaskets
+     * are in memory
+     * @param tier
+     * @param maxBaskets
+     */
+    public void setTier(BasketTier tier, int maxBaskets)
+    {
+        this.maxBaskets = maxBaskets;
+        this.tier = tier;
+    }
+
+    /**
+     * Returns the basket registered under the id, refreshing its last access time.
+     * A basket spilled to the tier is reloaded and registered again
+     * @param basketID
+     * @return
+     */
     public Optional<Basket> getBasketByID(UUID basketID)
     {
-        return basketList.stream().filter(basket -> basketID.equals(basket.getBasketID())).findAny();
+        ConcurrentHashMap<UUID, BasketEntry> shard = shardOf(basketID);
+        BasketEntry entry = shard.get(basketID);
+        BasketTier tier = this.tier;
+        if(tier == null)
+        {
+            if(entry != null)
+            {
+                entry.touch(nanoClock.getAsLong());
+                if(!entry.spilled)
+                    return Optional.of(entry.basket);
+            }
+
+            // being expired, taken back unless the expiry is done
+            entry = takeBack(shard, basketID);
+            return entry == null ? Optional.empty() : Optional.of(entry.basket);
+        }
+
+        long start = nanoClock.getAsLong();
+        if(entry != null)
+        {
+            entry.touch(start);
+            if(!entry.spilled)
+            {
+                HITS.record(nanoClock.getAsLong() - start, TimeUnit.NANOSECONDS);
+                return Optional.of(entry.basket);
+            }
+        }
+
+        entry = reload(shard, basketID, tier);
+        (entry == null ? MISSES : RELOADS).record(nanoClock.getAsLong() - start, TimeUnit.NANOSECONDS);
+        return entry == null ? Optional.empty() : Optional.of(entry.basket);
+    }
+
+    /**
+     * Looks a basket up like getBasketByID and pins it: the basket is not spilled until every holder unpinned it.
+     * A basket returned must be unpinned once the operation holding it is done
+     * @param basketID
+     * @return
+     */
+    public Optional<Basket> pinBasket(UUID basketID)
+    {
+        // pinned before the lookup, which reloads the basket if a spill already marked it
+        pins.merge(basketID, 1, Integer::sum);
+        Optional<Basket> basket;
+        try
+        {
+            basket = getBasketByID(basketID);
+        }
+        catch(RuntimeException e)
+        {
+            unpin(basketID);
+            throw e;
+        }
+
+        if(!basket.isPresent())
+            unpin(basketID);
+        return basket;
+    }
+
+    /**
+     * Releases a pin taken by pinBasket
+     * @param basketID
+     */
+    public void unpin(UUID basketID)
+    {
+        pins.computeIfPresent(basketID, (id, holders) -> holders == 1 ? null : holders - 1);
     }
 
+    /**
+     * Registers a basket, returns false if a basket with the same id already exists
+     * @param basket
+     * @return
+     */
     public boolean addBasket(Basket basket)
     {
-        return basketList.add(basket);
+        UUID basketID = basket.getBasketID();
+        return shardOf(basketID).putIfAbsent(basketID, new BasketEntry(basket, nanoClock.getAsLong())) == null;
+    }
+
+    /**
+     * Removes the basket from the registry, the caller releases it once done with it.
+     * A basket spilled to the tier is reloaded to be removed
+     * @param basketID
+     * @return the removed basket, empty if it was not registered
+     */
+    public Optional<Basket> removeBasket(UUID basketID)
+    {
+        ConcurrentHashMap<UUID, BasketEntry> shard = shardOf(basketID);
+        BasketEntry entry = shard.remove(basketID);
+        BasketTier tier = this.tier;
+        if(entry == null)
+        {
+            entry = tier == null ? takeBack(shard, basketID) : reload(shard, basketID, tier);
+            if(entry != null && !shard.remove(basketID, entry))
+                entry = null;
+        }
+        return entry == null ? Optional.empty() : Optional.of(entry.basket);
+    }
+
+    /**
+     * Removes every basket in memory that has not been looked up or created within the given idle time, the caller
+     * releases the baskets once done with them. Baskets looked up during the last access granularity, pinned
+     * baskets and baskets being spilled are kept, a basket looked up or pinned while being removed is kept as well
+     * @param maxIdle
+     * @param unit
+     * @return the removed baskets
+     */
+    public List<Basket> removeIdleBaskets(long maxIdle, TimeUnit unit)
+    {
+        spills.lock();
+        try
+        {
+            long deadline = nanoClock.getAsLong() - unit.toNanos(maxIdle);
+            List<Basket> removed = new ArrayList<>();
+
+            for(ConcurrentHashMap<UUID, BasketEntry> shard : shards)
+            {
+                for(BasketEntry entry : shard.values())
+                {
+                    long lastAccess = entry.lastAccessNanos;
+                    if(lastAccess - deadline < 0 && !entry.spilled && expire(shard, entry, lastAccess))
+                        removed.add(entry.basket);
+                }
+            }
+            return removed;
+        }
+        finally
+        {
+            spills.unlock();
+        }
+    }
+
+    /**
+     * Removes a basket spilled to the tier like removeBasket, unless a lookup has reloaded it meanwhile
+     * @param basketID
+     * @return the removed basket, empty if it is in memory or was not registered
+     */
+    public Optional<Basket> removeSpilledBasket(UUID basketID)
+    {
+        BasketEntry entry = shardOf(basketID).get(basketID);
+        if(entry != null && !entry.spilled)
+            return Optional.empty();
+
+        return removeBasket(basketID);
+    }
+
+    /**
+     * Spills to the tier the baskets that have not been looked up or created within the given idle time, and the
+     * least recently used ones while more than maxBaskets are in memory. Baskets looked up during the last access
+     * granularity and pinned baskets are never spilled
+     * @param maxIdle
+     * @param unit
+     * @param maxBaskets baskets kept in memory at most
+     * @return number of baskets spilled
+     */
+    public int spillIdleBaskets(long maxIdle, TimeUnit unit, int maxBaskets)
+    {
+        BasketTier tier = this.tier;
+        if(tier == null)
+            return 0;
+
+        spills.lock();
+        try
+        {
+            return spillIdleBaskets(maxIdle, unit, maxBaskets, tier);
+        }
+        finally
+        {
+            spills.unlock();
+        }
+    }
+
+    private int spillIdleBaskets(long maxIdle, TimeUnit unit, int maxBaskets, BasketTier tier)
+    {
+        long deadline = nanoClock.getAsLong() - unit.toNanos(maxIdle);
+
+        List<SpillCandidate> candidates = new ArrayList<>();
+        for(ConcurrentHashMap<UUID, BasketEntry> shard : shards)
+            shard.values().forEach(entry -> candidates.add(new SpillCandidate(entry, entry.lastAccessNanos)));
+
+        // least recently used first, on the access times sampled above since the entries keep being touched
+        int excess = candidates.size() - maxBaskets;
+        if(excess > 0)
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccessNanos));
+
+        int spilled = 0;
+        for(int i = 0; i < candidates.size(); i++)
+        {
+            SpillCandidate candidate = candidates.get(i);
+            if(i >= excess && candidate.lastAccessNanos - deadline >= 0)
+            {
+                if(excess > 0)
+                    break;
+                continue;
+            }
+
+            if(spill(candidate.entry, candidate.lastAccessNanos, tier))
+                spilled++;
+        }
+        return spilled;
+    }
+
+    /**
+     * Runs the action while no basket is spilled, reloads past the maximum count leave the extra baskets
+     * to the next sweep meanwhile
+     * @param action
+     */
+    public void withoutSpills(Runnable action)
+    {
+        spills.lock();
+        try
+        {
+            action.run();
+        }
+        finally
+        {
+            spills.unlock();
+        }
+    }
+
+    /**
+     * Visits every registered basket in memory, baskets added or removed during the visit may or may not be seen
+     * @param action
+     */
+    public void forEach(Consumer<? super Basket> action)
+    {
+        for(ConcurrentHashMap<UUID, BasketEntry> shard : shards)
+            shard.values().forEach(entry -> action.accept(entry.basket));
+    }
+
+    /**
+     * Visits the id of every basket, in memory or spilled to the tier.
+     * Baskets added, removed, spilled or reloaded during the visit may or may not be seen
+     * @param action
+     */
+    public void forEachId(Consumer<UUID> action)
+    {
+        for(ConcurrentHashMap<UUID, BasketEntry> shard : shards)
+            shard.keySet().forEach(action);
+
+        BasketTier tier = this.tier;
+        if(tier != null)
+            tier.forEachId(action);
+    }
+
+    /**
+     * Number of registered baskets in memory
+     * @return
+     */
+    public int size()
+    {
+        int size = 0;
+        for(ConcurrentHashMap<UUID, BasketEntry> shard : shards)
+            size += shard.size();
+        return size;
+    }
+
+    /**
+     * Number of baskets spilled to the tier
+     * @return
+     */
+    public int spilledSize()
+    {
+        BasketTier tier = this.tier;
+        return tier == null ? 0 : tier.size();
+    }
+
+    /**
+     * Registers again the basket being spilled, or else reads it from the tier.
+     * Only the lookup registering a basket being spilled runs under the shard lock, the tier is read without it
+     * @return the registered entry, null if there is no such basket
+     */
+    private BasketEntry reload(ConcurrentHashMap<UUID, BasketEntry> shard, UUID basketID, BasketTier tier)
+    {
+        BasketEntry entry = takeBack(shard, basketID);
+        if(entry != null)
+            return entry;
+
+        CompletableFuture<BasketEntry> read = new CompletableFuture<>();
+        CompletableFuture<BasketEntry> reading = loading.putIfAbsent(basketID, read);
+        if(reading != null)
+            return await(reading);
+
+        Optional<Basket> loaded;
+        try
+        {
+            loaded = load(tier, basketID);
+            // else read by a lookup done before this one started, the basket is registered or being spilled again
+            entry = loaded.isPresent() ? install(shard, loaded.get()) : takeBack(shard, basketID);
+            read.complete(entry);
+        }
+        catch(RuntimeException e)
+        {
+            read.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            loading.remove(basketID, read);
+        }
+
+        if(loaded.isPresent() && entry != null)
+            evict(entry, tier);
+        return entry;
+    }
+
+    /**
+     * @return the entry registered under the id, or a new one for the basket being spilled, null if there is neither
+     */
+    private BasketEntry takeBack(ConcurrentHashMap<UUID, BasketEntry> shard, UUID basketID)
+    {
+        BasketEntry entry = shard.compute(basketID, (id, current) ->
+        {
+            if(current != null && !current.spilled)
+                return current;
+
+            Basket basket = spilling.remove(id);
+            return basket == null ? current : new BasketEntry(basket, nanoClock.getAsLong());
+        });
+        return entry == null || entry.spilled ? null : entry;
+    }
+
+    /**
+     * Registers a basket read from the tier, unless a basket was registered under its id meanwhile
+     */
+    private BasketEntry install(ConcurrentHashMap<UUID, BasketEntry> shard, Basket basket)
+    {
+        BasketEntry loaded = new BasketEntry(basket, nanoClock.getAsLong());
+        BasketEntry entry = shard.compute(basket.getBasketID(),
+                (id, current) -> current != null && !current.spilled ? current : loaded);
+        if(entry != loaded)
+            basket.release();
+        return entry;
+    }
+
+    private static BasketEntry await(CompletableFuture<BasketEntry> reading)
+    {
+        try
+        {
+            return reading.join();
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Spills the least recently used of a few baskets of the shard while more than the maximum are in memory,
+     * the reloaded basket excepted. Baskets too recently used or pinned are not spilled, nor any while a sweep runs,
+     * the next sweep catches up
+     */
+    private void evict(BasketEntry reloaded, BasketTier tier)
+    {
+        if(size() <= maxBaskets || !spills.tryLock())
+            return;
+
+        try
+        {
+            spillLeastRecentlyUsed(reloaded, tier);
+        }
+        finally
+        {
+            spills.unlock();
+        }
+    }
+
+    private void spillLeastRecentlyUsed(BasketEntry reloaded, BasketTier tier)
+    {
+        BasketEntry victim = null;
+        long victimAccess = 0;
+        int seen = 0;
+        int first = ThreadLocalRandom.current().nextInt(shards.length);
+        for(int i = 0; i < shards.length && seen < EVICTION_SAMPLE; i++)
+        {
+            for(BasketEntry entry : shards[(first + i) & shardMask].values())
+            {
+                long lastAccess = entry.lastAccessNanos;
+                if(entry != reloaded && (victim == null || lastAccess - victimAccess < 0))
+                {
+                    victim = entry;
+                    victimAccess = lastAccess;
+                }
+                if(++seen == EVICTION_SAMPLE)
+                    break;
+            }
+        }
+
+        if(victim != null)
+            spill(victim, victimAccess, tier);
+    }
+
+    /**
+     * Unregisters the basket for good, unless a lookup takes it back meanwhile.
+     * An expiry is given up, the basket staying registered, if the basket was looked up since it was picked or is pinned
+     * @return true if the basket was removed
+     */
+    private boolean expire(ConcurrentHashMap<UUID, BasketEntry> shard, BasketEntry entry, long lastAccessNanos)
+    {
+        if(!unregister(shard, entry, lastAccessNanos))
+            return false;
+
+        // else taken back by a lookup that still held the entry
+        return spilling.remove(entry.basket.getBasketID(), entry.basket);
+    }
+
+    /**
+     * Unregisters the basket, writes it to the tier and releases it.
+     * A spill is given up, the basket staying registered, if the basket was looked up since it was picked or is pinned
+     * @param entry
+     * @param lastAccessNanos access time the basket was picked with
+     * @param tier
+     * @return true if the basket was spilled
+     */
+    private boolean spill(BasketEntry entry, long lastAccessNanos, BasketTier tier)
+    {
+        Basket basket = entry.basket;
+        UUID basketID = basket.getBasketID();
+        ConcurrentHashMap<UUID, BasketEntry> shard = shardOf(basketID);
+
+        long start = nanoClock.getAsLong();
+        if(!unregister(shard, entry, lastAccessNanos))
+            return false;
+
+        try
+        {
+            tier.spill(basket);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            LOGGER.warn("Basket {} could not be spilled, it is kept in memory", basketID, e);
+            unspill(shard, entry);
+            return false;
+        }
+
+        if(!spilling.remove(basketID, basket))
+        {
+            // taken back by a lookup while being written, the copy in the tier is stale
+            discard(tier, basketID);
+            return false;
+        }
+
+        basket.release();
+        SPILLS.record(nanoClock.getAsLong() - start, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * Marks the entry and unregisters it, its basket being kept in spilling for a lookup still holding the entry
+     * to take it back. Gives up, the basket staying registered, if the basket was looked up since it was picked
+     * or is pinned
+     * @return true if the basket was unregistered
+     */
+    private boolean unregister(ConcurrentHashMap<UUID, BasketEntry> shard, BasketEntry entry, long lastAccessNanos)
+    {
+        Basket basket = entry.basket;
+        UUID basketID = basket.getBasketID();
+
+        // a lookup within the granularity would not write its access time, so could not be noticed below
+        if(entry.lastAccessNanos != lastAccessNanos
+                || nanoClock.getAsLong() - lastAccessNanos <= 2 * ACCESS_GRANULARITY_NANOS
+                || pins.containsKey(basketID))
+            return false;
+
+        spilling.put(basketID, basket);
+        entry.spilled = true;
+        if(!shard.remove(basketID, entry))
+        {
+            // removed meanwhile, by its owner or a lookup taking it back
+            spilling.remove(basketID, basket);
+            return false;
+        }
+
+        // a lookup touches the entry and a pin is taken before checking the mark, this marks it before checking
+        if(entry.lastAccessNanos != lastAccessNanos || pins.containsKey(basketID))
+        {
+            unspill(shard, entry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Registers again a basket whose spill or expiry was given up, unless a lookup already took it back
+     */
+    private void unspill(ConcurrentHashMap<UUID, BasketEntry> shard, BasketEntry entry)
+    {
+        UUID basketID = entry.basket.getBasketID();
+        shard.compute(basketID, (id, current) ->
+        {
+            if(!spilling.remove(id, entry.basket))
+                return current;
+
+            entry.spilled = false;
+            return current == null ? entry : current;
+        });
+    }
+
+    private static Optional<Basket> load(BasketTier tier, UUID basketID)
+    {
+        try
+        {
+            return tier.load(basketID);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException("Basket " + basketID + " could not be reloaded", e);
+        }
+    }
+
+    private static void discard(BasketTier tier, UUID basketID)
+    {
+        try
+        {
+            tier.discard(basketID);
+        }
+        catch(IOException e)
+        {
+            LOGGER.warn("Stale copy of basket {} could not be discarded", basketID, e);
+        }
+    }
+
+    private static Timer lookupTimer(String result, String description)
+    {
+        return Timer.builder("basket.lookups")
+                .description(description)
+                .tag("result", result)
+                .register(Metrics.globalRegistry);
+    }
+
+    private ConcurrentHashMap<UUID, BasketEntry> shardOf(UUID basketID)
+    {
+        long bits = basketID.getMostSignificantBits() ^ basketID.getLeastSignificantBits();
+        int hash = (int) (bits ^ (bits >>> 32));
+        return shards[(hash ^ (hash >>> 16)) & shardMask];
+    }
+
+    private static final class BasketEntry
+    {
+        private final Basket basket;
+
+        private volatile long lastAccessNanos;
+
+        /**
+         * set before the entry is unregistered to be spilled or expired, a lookup still holding the entry takes the
+         * basket back
+         */
+        private volatile boolean spilled;
+
+        private BasketEntry(Basket basket, long now)
+        {
+            this.basket = basket;
+            this.lastAccessNanos = now;
+        }
+
+        private void touch(long now)
+        {
+            if(now - lastAccessNanos > ACCESS_GRANULARITY_NANOS)
+                lastAccessNanos = now;
+        }
+    }
+
+    private static final class SpillCandidate
+    {
+        private final BasketEntry entry;
+
+        private final long lastAccessNanos;
+
+        private SpillCandidate(BasketEntry entry, long lastAccessNanos)
+        {
+            this.entry = entry;
+            this.lastAccessNanos = lastAccessNanos;
+        }
     }
 }
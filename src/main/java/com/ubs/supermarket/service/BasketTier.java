@@ -0,0 +1,48 @@
+package com.ubs.supermarket.service;
+
+import com.ubs.supermarket.basket.Basket;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Store the basket registry moves idle baskets to, out of memory, and reloads them from on their next lookup
+ */
+public interface BasketTier
+{
+    /**
+     * Writes the basket to the tier, the registry releases it once written
+     * @param basket
+     * @throws IOException
+     */
+    void spill(Basket basket) throws IOException;
+
+    /**
+     * Reads a basket back from the tier and removes it from the tier
+     * @param basketID
+     * @return a basket ready to be registered, empty if the tier has no such basket
+     * @throws IOException
+     */
+    Optional<Basket> load(UUID basketID) throws IOException;
+
+    /**
+     * Removes a basket from the tier without reading it
+     * @param basketID
+     * @throws IOException
+     */
+    void discard(UUID basketID) throws IOException;
+
+    /**
+     * Visits the id of every basket in the tier, baskets spilled or loaded during the visit may or may not be seen
+     * @param action
+     */
+    void forEachId(Consumer<UUID> action);
+
+    /**
+     * Number of baskets in the tier
+     * @return
+     */
+    int size();
+}
@@ -0,0 +1,47 @@
+package com.ubs.supermarket.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.ubs.supermarket.products.Product;
+
+import java.util.List;
+
+/**
+ * Outcome of a published price feed
+ */
+public class PriceImport
+{
+    /**
+     * price version of the catalog once the feed is published
+     */
+    private final long version;
+
+    /**
+     * number of products in the feed
+     */
+    private final int products;
+
+    /**
+     * products of the feed, as published
+     */
+    private final List<Product> published;
+
+    public PriceImport(long version, List<Product> published)
+    {
+        this.version = version;
+        this.products = published.size();
+        this.published = published;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getProducts() {
+        return products;
+    }
+
+    @JsonIgnore
+    public List<Product> getPublished() {
+        return published;
+    }
+}
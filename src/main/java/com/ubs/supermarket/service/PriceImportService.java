@@ -0,0 +1,366 @@
+package com.ubs.supermarket.service;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.naming.directory.InvalidAttributesException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports price feeds into the product catalog.
+ *
+ * A feed is a JSON array of products with their special prices, in the JSON of the basket endpoints.
+ * It is streamed and every product is validated and built with its compiled special prices before
+ * anything is published, a feed holding an invalid product is rejected as a whole. The catalog then
+ * publishes the products at once. Imports run one at a time, pricing never waits for them.
+ *
+ * With a directory, the feed prices in force, the ones the last feed replaced and the price version are written
+ * to a file before they are published, and published again on restart before any basket is restored.
+ */
+@Component
+public class PriceImportService
+{
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    private static final String PRICES_FILE = "prices.json";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final Timer IMPORT_TIMER = Timer.builder("catalog.price.imports")
+            .description("Price feeds validated, built and published")
+            .register(Metrics.globalRegistry);
+
+    private final ProductCatalog catalog;
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    /**
+     * file the prices are persisted to, null to keep them in memory only
+     */
+    private final Path file;
+
+    /**
+     * feed prices in force by product, guarded by this
+     */
+    private Map<Product, Product> prices = new LinkedHashMap<>();
+
+    /**
+     * feed prices in force before the last feed, null once rolled back, guarded by this
+     */
+    private Map<Product, Product> replaced;
+
+    /**
+     * products of the last feed the catalog did not know, which keep their prices on rollback, guarded by this
+     */
+    private List<Product> added = new ArrayList<>();
+
+    public PriceImportService(ProductCatalog catalog)
+    {
+        this(catalog, "");
+    }
+
+    /**
+     * @param catalog
+     * @param directory directory of the price file, prices are kept in memory only if empty
+     */
+    @Autowired
+    public PriceImportService(ProductCatalog catalog,
+                              @Value("${basket.catalog.directory:${basket.journal.directory:}}") String directory)
+    {
+        this.catalog = catalog;
+        this.file = directory.isEmpty() ? null : Paths.get(directory).resolve(PRICES_FILE);
+    }
+
+    /**
+     * Publishes the prices persisted before a restart
+     * @throws IOException if the price file cannot be read or is corrupt
+     */
+    @PostConstruct
+    public synchronized void open() throws IOException
+    {
+        if(file == null || !Files.exists(file))
+            return;
+
+        PriceFile persisted;
+        try(InputStream in = Files.newInputStream(file))
+        {
+            persisted = objectMapper.readValue(in, PriceFile.class);
+        }
+        catch(JsonProcessingException e)
+        {
+            throw new IOException("Corrupt price file " + file, e);
+        }
+        if(persisted.prices == null)
+            throw new IOException("Corrupt price file " + file + ", prices are missing");
+
+        prices = persisted.products(persisted.prices);
+        replaced = persisted.replaced == null ? null : persisted.products(persisted.replaced);
+        added = new ArrayList<>();
+        for(Product product : prices.values())
+        {
+            if(replaced != null && !replaced.containsKey(product))
+                added.add(product);
+        }
+
+        catalog.restore(replaced == null ? null : replaced.values(), prices.values(), persisted.version);
+    }
+
+    /**
+     * Validates, builds and publishes a price feed
+     * @param feed JSON array of products
+     * @return
+     * @throws InvalidRequestException if the feed is malformed or holds invalid products, nothing is published then
+     * @throws IOException if the feed cannot be read
+     */
+    public synchronized PriceImport importPrices(InputStream feed) throws IOException
+    {
+        long start = System.nanoTime();
+
+        List<Product> products = new ArrayList<>();
+        Set<Product> listed = new HashSet<>();
+        List<String> errors = new ArrayList<>();
+        int invalid = 0;
+
+        try(JsonParser parser = objectMapper.getFactory().createParser(feed))
+        {
+            if(parser.nextToken() != JsonToken.START_ARRAY)
+                throw new InvalidRequestException("Price feed must be a JSON array of products");
+
+            for(int index = 0; parser.nextToken() == JsonToken.START_OBJECT; index++)
+            {
+                FeedProduct entry = parser.readValueAs(FeedProduct.class);
+
+                String error = entry.validate();
+                if(error == null)
+                {
+                    try
+                    {
+                        Product product = entry.build();
+                        if(listed.add(product))
+                            products.add(product);
+                        else
+                            error = "listed twice";
+                    }
+                    catch(InvalidAttributesException e)
+                    {
+                        error = entry.name + " " + e.getMessage();
+                    }
+                }
+
+                if(error != null && invalid++ < MAX_REPORTED_ERRORS)
+                    errors.add("product " + index + " " + error);
+            }
+
+            if(parser.currentToken() != JsonToken.END_ARRAY)
+                throw new InvalidRequestException("Price feed must be a JSON array of products");
+        }
+        catch(JsonProcessingException e)
+        {
+            throw new InvalidRequestException("Malformed price feed: " + e.getOriginalMessage(), e);
+        }
+
+        if(invalid > 0)
+            throw new InvalidRequestException(invalid + " invalid products in the price feed: " + String.join(", ", errors));
+
+        Map<Product, Product> next = new LinkedHashMap<>(prices);
+        List<Product> unknown = new ArrayList<>();
+        for(Product product : products)
+        {
+            next.put(product, product);
+            if(catalog.getSku(product) == ProductCatalog.NO_SKU)
+                unknown.add(product);
+        }
+
+        save(catalog.getPriceVersion() + 1, next.values(), prices.values());
+        long version = catalog.publish(products);
+        replaced = prices;
+        prices = next;
+        added = unknown;
+
+        IMPORT_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return new PriceImport(version, products);
+    }
+
+    /**
+     * @return price version of the catalog, bumped by every feed and rollback
+     */
+    public long getVersion()
+    {
+        return catalog.getPriceVersion();
+    }
+
+    /**
+     * Restores the prices the last published feed replaced
+     * @return price version of the catalog once restored
+     * @throws InvalidRequestException if there is no feed to roll back
+     * @throws IOException if the restored prices cannot be persisted, nothing is rolled back then
+     */
+    public synchronized long rollback() throws IOException
+    {
+        if(replaced == null)
+            throw new InvalidRequestException("No published prices to roll back");
+
+        // products the last feed brought into the catalog keep their prices, as in the catalog
+        Map<Product, Product> restored = new LinkedHashMap<>(replaced);
+        for(Product product : added)
+            restored.put(product, product);
+
+        save(catalog.getPriceVersion() + 1, restored.values(), null);
+        long version;
+        try
+        {
+            version = catalog.rollback();
+        }
+        catch(IllegalStateException e)
+        {
+            throw new InvalidRequestException(e.getMessage());
+        }
+
+        prices = restored;
+        replaced = null;
+        added = new ArrayList<>();
+        return version;
+    }
+
+    /**
+     * Writes the prices to a temporary file synced to disk, then replaces the price file with it
+     */
+    private void save(long version, Collection<Product> current, Collection<Product> before) throws IOException
+    {
+        if(file == null)
+            return;
+
+        Map<String, Object> persisted = new LinkedHashMap<>();
+        persisted.put("version", version);
+        persisted.put("prices", current);
+        persisted.put("replaced", before);
+
+        Files.createDirectories(file.getParent());
+        Path temporary = file.resolveSibling(PRICES_FILE + TEMPORARY_SUFFIX);
+        try(FileOutputStream out = new FileOutputStream(temporary.toFile()))
+        {
+            objectMapper.writeValue(out, persisted);
+            out.getFD().sync();
+        }
+        catch(IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Prices as persisted, products in the JSON of a feed
+     */
+    private static class PriceFile
+    {
+        @JsonProperty("version")
+        private long version;
+
+        @JsonProperty("prices")
+        private List<FeedProduct> prices = new ArrayList<>();
+
+        @JsonProperty("replaced")
+        private List<FeedProduct> replaced;
+
+        private Map<Product, Product> products(List<FeedProduct> entries) throws IOException
+        {
+            Map<Product, Product> products = new LinkedHashMap<>();
+            for(FeedProduct entry : entries)
+            {
+                String error = entry.validate();
+                if(error != null)
+                    throw new IOException("Corrupt price file, product " + error);
+
+                try
+                {
+                    Product product = entry.build();
+                    products.put(product, product);
+                }
+                catch(InvalidAttributesException e)
+                {
+                    throw new IOException("Corrupt price file, product " + entry.name + " " + e.getMessage(), e);
+                }
+            }
+            return products;
+        }
+    }
+
+    /**
+     * A product of a feed as read, checked before the product is built
+     */
+    private static class FeedProduct
+    {
+        @JsonProperty("name")
+        private String name;
+
+        @JsonProperty("price")
+        private Double price;
+
+        @JsonProperty("specialPriceMap")
+        private Map<Long, Double> specialPriceMap;
+
+        /**
+         * @return why the product is invalid, null if valid
+         */
+        private String validate()
+        {
+            if(name == null || name.trim().isEmpty())
+                return "has no name";
+
+            if(price == null || !(price > 0))
+                return name + " must have a positive price";
+
+            if(specialPriceMap != null)
+            {
+                for(Map.Entry<Long, Double> specialPrice : specialPriceMap.entrySet())
+                {
+                    if(specialPrice.getKey() == null || specialPrice.getKey() <= 0
+                            || specialPrice.getValue() == null || !(specialPrice.getValue() > 0))
+                        return name + " has an invalid special price " + specialPrice.getKey() + " for " + specialPrice.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @throws InvalidAttributesException if its special prices cannot be priced exactly
+         */
+        private Product build() throws InvalidAttributesException
+        {
+            return new ProductImpl(name, price, specialPriceMap);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.ubs.supermarket.basket;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap allocated by the calling thread, from the allocation counters of the JVM
+ */
+public final class Allocations
+{
+    private static final int OPERATIONS_PER_ROUND = 10_000;
+
+    private static final int MIN_WARM_UP_ROUNDS = 20;
+
+    private static final int MAX_WARM_UP_ROUNDS = 100;
+
+    private static final int MEASURED_ROUNDS = 10;
+
+    private Allocations()
+    {
+    }
+
+    /**
+     * Warms the operation up for at least MIN_WARM_UP_ROUNDS rounds and until a round allocates nothing, the first
+     * rounds run before the path is compiled and may allocate where compiled code does not. Then measures
+     * MEASURED_ROUNDS more rounds, every one of them must allocate nothing for the operation to count as allocation
+     * free. A test is skipped on a JVM without the counters
+     * @param operation
+     * @return bytes allocated per operation by the worst measured round, or by the last warm up round if none
+     * allocated nothing
+     */
+    public static double bytesPerOperation(Runnable operation)
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        long threadId = Thread.currentThread().getId();
+        long allocated = round(threads, threadId, operation);
+        for(int round = 1; round < MAX_WARM_UP_ROUNDS && (allocated != 0 || round < MIN_WARM_UP_ROUNDS); round++)
+            allocated = round(threads, threadId, operation);
+        if(allocated != 0)
+            return (double) allocated / OPERATIONS_PER_ROUND;
+
+        for(int round = 0; round < MEASURED_ROUNDS; round++)
+            allocated = Math.max(allocated, round(threads, threadId, operation));
+        return (double) allocated / OPERATIONS_PER_ROUND;
+    }
+
+    private static long round(com.sun.management.ThreadMXBean threads, long threadId, Runnable operation)
+    {
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for(int i = 0; i < OPERATIONS_PER_ROUND; i++)
+            operation.run();
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+}
@@ -1,6 +1,9 @@
 package com.ubs.supermarket.basket;
 
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.exception.VersionConflictException;
 import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
 import com.ubs.supermarket.products.ProductImpl;
 import org.junit.Before;
 import org.junit.Test;
@@ -8,9 +11,14 @@ import org.junit.Test;
 import javax.naming.directory.InvalidAttributesException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -254,4 +262,406 @@ public class BasketImplTest
         assertEquals(expectedTotalPrice,basket.getTotalPrice(),0);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void requestPricesNeverRepriceOtherBaskets() throws InvalidAttributesException
+    {
+        ProductCatalog catalog = new ProductCatalog();
+        Basket first = new BasketImpl(catalog);
+        Basket second = new BasketImpl(catalog);
+        ProductImpl product = new ProductImpl("y", 10);
+        first.addProducts(Arrays.asList(product, product, product));
+
+        second.addProducts(Collections.singletonList(new ProductImpl("y", 10, Collections.singletonMap(2L, 0.01))));
+        first.removeProducts(Collections.singletonList(product));
+
+        assertEquals(20, first.getTotalPrice(), 0);
+        assertEquals(10, second.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void concurrentAddAndRemoveOnSharedLine() throws Exception
+    {
+        ProductImpl shared = new ProductImpl("P1", 10);
+        shared.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        int threads = 8;
+        int rounds = 10_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    for(int i = 0; i < rounds; i++)
+                    {
+                        basket.addProducts(Arrays.asList(shared, shared));
+                        basket.removeProducts(Collections.singletonList(shared));
+                    }
+                }));
+            }
+            for(Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals((long) threads * rounds, (long) basket.getAllProducts().get(shared));
+        assertEquals(shared.getPrice((long) threads * rounds), basket.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void lineDisappearsAtZeroAndCanBeAddedAgain() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 10);
+
+        basket.addProducts(Arrays.asList(p1, p1));
+        Map<Product, Long> productLongMap = basket.removeProducts(Arrays.asList(p1, p1, p1));
+
+        assertFalse(productLongMap.containsKey(p1));
+        assertEquals(0, basket.getTotalPrice(), 0);
+        assertEquals(0, basket.getLineCount());
+
+        productLongMap = basket.addProducts(Collections.singletonList(p1));
+
+        assertEquals(1L, productLongMap.get(p1), 0);
+        assertEquals(1, basket.getLineCount());
+    }
+
+    @Test
+    public void totalIsExactAfterRepeatedChanges() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 0.1);
+        ProductImpl p2 = new ProductImpl("P2", 0.7, Collections.singletonMap(3L, 23.33));
+        List<Product> change = Arrays.asList(p1, p2, p2, p2, p1, p2);
+
+        for(int i = 0; i < 1000; i++)
+        {
+            basket.addProducts(change);
+            basket.removeProducts(change);
+        }
+        assertEquals(0, basket.getTotalPrice(), 0);
+
+        basket.addProducts(Arrays.asList(p1, p2));
+        assertEquals(0.8, basket.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void concurrentAddOfManyProducts() throws Exception
+    {
+        List<Product> catalog = new ArrayList<>();
+        for(int i = 0; i < 500; i++)
+            catalog.add(new ProductImpl("Product " + i, 1));
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < threads; t++)
+            {
+                int offset = t * 50;
+                futures.add(executor.submit(() ->
+                {
+                    for(int i = 0; i < catalog.size(); i++)
+                        basket.addProducts(Collections.singletonList(catalog.get((i + offset) % catalog.size())));
+                }));
+            }
+            for(Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        Map<Product, Long> productLongMap = basket.getAllProducts();
+
+        assertEquals(catalog.size(), productLongMap.size());
+        assertEquals(catalog.size(), basket.getLineCount());
+        productLongMap.values().forEach(count -> assertEquals(threads, (long) count));
+        assertEquals(threads * catalog.size(), basket.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void versionCountsChanges() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        assertEquals(0, basket.getVersion());
+
+        basket.addProducts(Arrays.asList(p1, p1));
+        basket.removeProducts(Collections.singletonList(p1));
+        basket.addProducts(Collections.emptyList());
+
+        assertEquals(2, basket.getVersion());
+    }
+
+    @Test
+    public void singleProductChangesAreChangesOfTheBasket() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        p1.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        ProductImpl p2 = new ProductImpl("P2", 15);
+
+        assertEquals(4, basket.addProduct(p1, 4));
+        assertEquals(1, basket.removeProduct(p1, 3));
+        assertEquals(0, basket.removeProduct(p2, 1));
+        assertEquals(1, basket.addProduct(p1, 0));
+        assertEquals(0, basket.addProduct(p2, -1));
+
+        assertEquals(Collections.singletonMap(p1, 1L), basket.getAllProducts());
+        assertEquals(10, basket.getTotalPrice(), 0);
+        assertEquals(3, basket.getVersion());
+    }
+
+    @Test
+    public void lineCountsPastLongMaxAreRejected() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        basket.addProduct(p1, Long.MAX_VALUE - 1);
+
+        try
+        {
+            basket.addProduct(p1, 2);
+            fail("An overflowing count must be rejected");
+        }
+        catch(InvalidRequestException e)
+        {
+            // expected
+        }
+        assertEquals(Long.MAX_VALUE - 1, basket.addProduct(p1, 0));
+        assertEquals(Long.MAX_VALUE, basket.addProduct(p1, 1));
+        assertEquals(2, basket.getVersion());
+    }
+
+    @Test
+    public void failedChangesOfSeveralProductsChangeNothing() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        ProductImpl p2 = new ProductImpl("P2", 15);
+        basket.addProduct(p2, Long.MAX_VALUE - 1);
+        double total = basket.getTotalPrice();
+
+        try
+        {
+            basket.addProducts(Arrays.asList(p1, p2, p2));
+            fail("An overflowing count must be rejected");
+        }
+        catch(InvalidRequestException e)
+        {
+            // expected
+        }
+        assertEquals(Collections.singletonMap(p2, Long.MAX_VALUE - 1), basket.getAllProducts());
+        assertEquals(1, basket.getVersion());
+
+        try
+        {
+            basket.addProducts(Arrays.asList(p1, p2, p2), 1);
+            fail("An overflowing count must be rejected");
+        }
+        catch(InvalidRequestException e)
+        {
+            // expected
+        }
+        assertEquals(Collections.singletonMap(p2, Long.MAX_VALUE - 1), basket.getAllProducts());
+        assertEquals(total, basket.getTotalPrice(), 0);
+        assertEquals(1, basket.getVersion());
+
+        basket.addProducts(Arrays.asList(p1, p2), 1);
+        assertEquals(2, basket.getVersion());
+    }
+
+    @Test
+    public void emptiedAndReleasedBasketsGiveTheirProductsBack() throws InvalidAttributesException
+    {
+        ProductCatalog catalog = new ProductCatalog(1);
+        Basket first = new BasketImpl(catalog);
+        Basket second = new BasketImpl(catalog);
+        first.addProducts(Collections.singletonList(new ProductImpl("P1", 10)));
+
+        try
+        {
+            second.addProduct(new ProductImpl("P2", 15), 1);
+            fail("P1 is held by the first basket");
+        }
+        catch(InvalidRequestException e)
+        {
+            assertEquals(0, second.getLineCount());
+        }
+
+        first.removeProduct(new ProductImpl("P1", 10), 1);
+        assertEquals(1, second.addProduct(new ProductImpl("P2", 15), 1));
+
+        first.release();
+        second.release();
+        assertEquals(0, second.getLineCount());
+        assertEquals(0, second.getTotalPrice(), 0);
+        first.addProducts(Collections.singletonList(new ProductImpl("P3", 20)));
+        assertTrue(first.getAllProducts().isEmpty());
+        assertEquals(1, new BasketImpl(catalog).addProduct(new ProductImpl("P3", 20), 1));
+    }
+
+    @Test
+    public void singleProductChangesAllocateNothing() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        p1.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        // an equal product of another instance, as read from a request
+        ProductImpl copy = new ProductImpl("P1", 10, Collections.singletonMap(3L, 5.0));
+        basket.addProducts(Arrays.asList(p1, p1, new ProductImpl("P2", 15)));
+
+        assertEquals(0, Allocations.bytesPerOperation(() ->
+        {
+            basket.addProduct(p1, 3);
+            basket.removeProduct(copy, 3);
+        }), 0);
+        assertEquals(2L, (long) basket.getAllProducts().get(p1));
+    }
+
+    @Test
+    public void productListChangesAllocateNothing() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        p1.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        ProductImpl p2 = new ProductImpl("P2", 15);
+        // an equal product of another instance, as read from a request
+        List<Product> changes = Arrays.asList(p1, p1, p2, new ProductImpl("P2", 15));
+        basket.addProducts(Arrays.asList(p1, p2));
+
+        assertEquals(0, Allocations.bytesPerOperation(() ->
+        {
+            basket.addAll(changes, Basket.ANY_VERSION);
+            basket.removeAll(changes, Basket.ANY_VERSION);
+            long version = basket.getVersion();
+            basket.addAll(changes, version);
+            basket.removeAll(changes, version + 1);
+        }), 0);
+        assertEquals(1L, (long) basket.getAllProducts().get(p1));
+        assertEquals(1L, (long) basket.getAllProducts().get(p2));
+    }
+
+    @Test
+    public void quantitiesOfGivenProducts() throws InvalidAttributesException
+    {
+        basket.addProducts(Arrays.asList(products.get(0), products.get(0), products.get(1)));
+        basket.removeProducts(Collections.singletonList(products.get(1)));
+
+        Map<Product, Long> quantities = basket.getQuantities(Arrays.asList(products.get(0), products.get(1), products.get(2)));
+
+        assertEquals(3, quantities.size());
+        assertEquals(2L, (long) quantities.get(products.get(0)));
+        assertEquals(0L, (long) quantities.get(products.get(1)));
+        assertEquals(0L, (long) quantities.get(products.get(2)));
+    }
+
+    @Test
+    public void conditionalChangeOnlyAppliesToTheExpectedVersion() throws InvalidAttributesException
+    {
+        ProductImpl p1 = new ProductImpl("P1", 10);
+
+        basket.addProducts(Collections.singletonList(p1), 0);
+        assertEquals(1, basket.getVersion());
+
+        try
+        {
+            basket.removeProducts(Collections.singletonList(p1), 0);
+            fail("stale version accepted");
+        }
+        catch(VersionConflictException expected)
+        {
+            assertEquals(1L, (long) basket.getAllProducts().get(p1));
+            assertEquals(1, basket.getVersion());
+        }
+
+        basket.removeProducts(Collections.singletonList(p1), 1);
+        assertTrue(basket.getAllProducts().isEmpty());
+        assertEquals(2, basket.getVersion());
+    }
+
+    @Test
+    public void concurrentConditionalChangesNeverOverwriteEachOther() throws Exception
+    {
+        ProductImpl shared = new ProductImpl("P1", 10);
+        int threads = 8;
+        int rounds = 2_000;
+        AtomicInteger applied = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    for(int i = 0; i < rounds; i++)
+                    {
+                        try
+                        {
+                            basket.addProducts(Collections.singletonList(shared), basket.getVersion());
+                            applied.incrementAndGet();
+                        }
+                        catch(VersionConflictException e)
+                        {
+                            // another thread changed the basket first
+                        }
+                    }
+                }));
+            }
+            for(Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(applied.get(), basket.getVersion());
+        assertEquals(applied.get(), (long) basket.getAllProducts().get(shared));
+    }
+
+    @Test
+    public void publishedPricesRepriceTheTotal() throws Exception
+    {
+        ProductCatalog catalog = new ProductCatalog();
+        Basket priced = BasketFactory.onHeap(catalog).create();
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        priced.addProducts(Arrays.asList(p1, p1, p1, new ProductImpl("P2", 15)));
+        assertEquals(45, priced.getTotalPrice(), 0);
+
+        ProductImpl promoted = new ProductImpl("P1", 10);
+        promoted.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        catalog.publish(Collections.singletonList(promoted));
+        assertEquals(15 + 15, priced.getTotalPrice(), 0);
+
+        catalog.rollback();
+        assertEquals(45, priced.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void latestUnitPricesItsLineUntilAFeedReplacesTheProduct() throws Exception
+    {
+        ProductCatalog catalog = new ProductCatalog();
+        Basket promoted = new BasketImpl(catalog);
+        Basket other = new BasketImpl(catalog);
+        ProductImpl plain = new ProductImpl("P1", 10);
+        promoted.addProducts(Arrays.asList(plain, plain, plain));
+        other.addProducts(Arrays.asList(plain, plain, plain));
+
+        ProductImpl withPromotion = new ProductImpl("P1", 10, Collections.singletonMap(3L, 5.0));
+        promoted.addProducts(Collections.singletonList(withPromotion));
+        assertEquals(15 + 10, promoted.getTotalPrice(), 0);
+        assertEquals(withPromotion.getSpecialPriceMap(), promoted.getAllProducts().keySet().iterator().next().getSpecialPriceMap());
+        assertEquals(30, other.getTotalPrice(), 0);
+        assertSame(plain, catalog.getProduct(catalog.getSku(plain)));
+
+        catalog.publish(Collections.singletonList(new ProductImpl("P1", 10, Collections.singletonMap(2L, 6.0))));
+        assertEquals(12 + 12, promoted.getTotalPrice(), 0);
+
+        catalog.rollback();
+        assertEquals(40, promoted.getTotalPrice(), 0);
+    }
+}
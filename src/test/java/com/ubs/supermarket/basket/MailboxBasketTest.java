@@ -0,0 +1,242 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MailboxBasketTest
+{
+
+    private ProductImpl p1;
+
+    private ProductImpl p2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        p1 = new ProductImpl("P1", 10);
+        p1.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        p2 = new ProductImpl("P2", 15);
+    }
+
+    @Test
+    public void mutationsApplyInOrder()
+    {
+        Basket basket = new MailboxBasket(new BasketImpl(new ProductCatalog()), Runnable::run);
+
+        basket.addProducts(Arrays.asList(p1, p1, p1, p1, p2));
+        Map<Product, Long> lines = basket.removeProducts(Collections.singletonList(p2));
+
+        assertEquals(Collections.singletonMap(p1, 4L), lines);
+        assertEquals(3 * 5 + 10, basket.getTotalPrice(), 0);
+        assertEquals(2, basket.getVersion());
+    }
+
+    @Test
+    public void singleProductChangesGoThroughTheMailbox()
+    {
+        Basket basket = new MailboxBasket(new BasketImpl(new ProductCatalog()), Runnable::run);
+
+        assertEquals(4, basket.addProduct(p1, 4));
+        assertEquals(1, basket.removeProduct(p1, 3));
+        assertEquals(0, basket.removeProduct(p2, 1));
+        assertEquals(1, basket.addProduct(p1, 0));
+
+        assertEquals(3, basket.getVersion());
+    }
+
+    @Test
+    public void queuedMutationsAreCoalesced() throws Exception
+    {
+        BlockingBasket blocking = new BlockingBasket();
+        MailboxBasket basket = new MailboxBasket(blocking, Runnable::run);
+
+        CompletableFuture<Map<Product, Long>> writer = CompletableFuture.supplyAsync(
+                () -> basket.addProducts(Collections.singletonList(p1)));
+        assertTrue(blocking.entered.await(10, TimeUnit.SECONDS));
+
+        List<CompletableFuture<Map<Product, Long>>> queued = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+            queued.add(basket.addProductsAsync(Arrays.asList(p1, p2)));
+        assertFalse(queued.get(0).isDone());
+
+        blocking.release.countDown();
+
+        assertEquals(Collections.singletonMap(p1, 1L), writer.get(10, TimeUnit.SECONDS));
+        for(CompletableFuture<Map<Product, Long>> result : queued)
+        {
+            assertEquals(11L, (long) result.get().get(p1));
+            assertEquals(10L, (long) result.get().get(p2));
+        }
+        assertEquals(2, blocking.adds.get());
+        assertEquals(2, basket.getVersion());
+    }
+
+    @Test
+    public void faultyMutationFailsAloneInItsBatch() throws Exception
+    {
+        BlockingBasket blocking = new BlockingBasket();
+        MailboxBasket basket = new MailboxBasket(blocking, Runnable::run);
+
+        CompletableFuture.runAsync(() -> basket.addProducts(Collections.singletonList(p1)));
+        assertTrue(blocking.entered.await(10, TimeUnit.SECONDS));
+
+        CompletableFuture<Map<Product, Long>> before = basket.addProductsAsync(Collections.singletonList(p2));
+        CompletableFuture<Map<Product, Long>> faulty = basket.addProductsAsync(Arrays.asList(p1, null));
+        CompletableFuture<Map<Product, Long>> after = basket.addProductsAsync(Collections.singletonList(p1));
+        blocking.release.countDown();
+
+        assertEquals(1L, (long) before.get(10, TimeUnit.SECONDS).get(p2));
+        assertEquals(2L, (long) after.get(10, TimeUnit.SECONDS).get(p1));
+        assertTrue(faulty.isCompletedExceptionally());
+        assertEquals(3, basket.getVersion());
+    }
+
+    @Test
+    public void conditionalMutationsAreNotCoalesced() throws Exception
+    {
+        BlockingBasket blocking = new BlockingBasket();
+        MailboxBasket basket = new MailboxBasket(blocking, Runnable::run);
+
+        CompletableFuture.runAsync(() -> basket.addProducts(Collections.singletonList(p1)));
+        assertTrue(blocking.entered.await(10, TimeUnit.SECONDS));
+
+        CompletableFuture<Map<Product, Long>> current = basket.addProductsAsync(Collections.singletonList(p2), 1);
+        CompletableFuture<Map<Product, Long>> stale = basket.addProductsAsync(Collections.singletonList(p2), 1);
+        blocking.release.countDown();
+
+        assertEquals(1L, (long) current.get(10, TimeUnit.SECONDS).get(p2));
+        try
+        {
+            stale.join();
+            fail("stale version accepted");
+        }
+        catch(CompletionException expected)
+        {
+            assertTrue(expected.getCause() instanceof VersionConflictException);
+        }
+        assertEquals(2, basket.getVersion());
+    }
+
+    @Test
+    public void writerHandsOverAfterItsTurn() throws Exception
+    {
+        BlockingBasket blocking = new BlockingBasket();
+        List<Runnable> handedOver = new ArrayList<>();
+        MailboxBasket basket = new MailboxBasket(blocking, handedOver::add);
+
+        CompletableFuture<Map<Product, Long>> writer = CompletableFuture.supplyAsync(
+                () -> basket.addProducts(Collections.singletonList(p1)));
+        assertTrue(blocking.entered.await(10, TimeUnit.SECONDS));
+
+        // alternating kinds are never coalesced, one change each
+        List<CompletableFuture<Map<Product, Long>>> queued = new ArrayList<>();
+        for(int i = 0; i < MailboxBasket.MAX_BATCHES_PER_TURN; i++)
+        {
+            queued.add(basket.addProductsAsync(Collections.singletonList(p2)));
+            queued.add(basket.removeProductsAsync(Collections.singletonList(p2)));
+        }
+        blocking.release.countDown();
+        writer.get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, handedOver.size());
+        assertFalse(queued.get(queued.size() - 1).isDone());
+
+        // each turn hands the rest over again
+        for(int i = 0; i < handedOver.size(); i++)
+            handedOver.get(i).run();
+        assertEquals(2, handedOver.size());
+        for(CompletableFuture<Map<Product, Long>> result : queued)
+            assertTrue(result.isDone());
+        assertEquals(Collections.singletonMap(p1, 1L), basket.getAllProducts());
+    }
+
+    @Test
+    public void concurrentMutationsOnOneBasket() throws Exception
+    {
+        int threads = 8;
+        int rounds = 5_000;
+        Basket basket = new MailboxBasket(new BasketImpl(new ProductCatalog()), Runnable::run);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    for(int i = 0; i < rounds; i++)
+                    {
+                        basket.addProducts(Arrays.asList(p1, p1, p2));
+                        basket.removeProducts(Arrays.asList(p1, p2));
+                    }
+                }));
+            }
+            for(Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(Collections.singletonMap(p1, (long) threads * rounds), basket.getAllProducts());
+        assertEquals(p1.getPrice((long) threads * rounds), basket.getTotalPrice(), 0);
+    }
+
+    /**
+     * Holds its first add until released, counting the adds it applies
+     */
+    private static final class BlockingBasket extends BasketImpl
+    {
+        private final CountDownLatch entered = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private final AtomicInteger adds = new AtomicInteger();
+
+        private BlockingBasket()
+        {
+            super(new ProductCatalog());
+        }
+
+        @Override
+        public Map<Product, Long> addProducts(Collection<? extends Product> products)
+        {
+            if(adds.getAndIncrement() == 0)
+            {
+                entered.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.addProducts(products);
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class OffHeapBasketTest
+{
+
+    private OffHeapBasketFactory factory;
+
+    private Basket basket;
+
+    private ProductImpl p1;
+
+    private ProductImpl p2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        factory = new OffHeapBasketFactory(new ProductCatalog(), 1 << 16);
+        basket = factory.create();
+
+        p1 = new ProductImpl("P1", 10);
+        p1.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        p2 = new ProductImpl("P2", 15);
+    }
+
+    @Test
+    public void restoredBasketCarriesOnFromItsVersion()
+    {
+        Basket restored = factory.create(UUID.randomUUID(), Collections.singletonMap(p1, 2L), 7);
+
+        assertEquals(7, restored.getVersion());
+        restored.addProducts(Collections.singletonList(p1), 7);
+        assertEquals(8, restored.getVersion());
+        assertEquals(Collections.singletonMap(p1, 3L), restored.getAllProducts());
+        restored.release();
+    }
+
+    @Test
+    public void releasedBasketGivesItsProductsBack() throws Exception
+    {
+        ProductCatalog catalog = new ProductCatalog(2);
+        OffHeapBasketFactory bounded = new OffHeapBasketFactory(catalog, 1 << 16);
+        Basket first = bounded.create();
+        first.addProducts(Arrays.asList(p1, p2));
+        Basket second = bounded.create();
+
+        try
+        {
+            second.addProducts(Collections.singletonList(new ProductImpl("P3", 20)));
+            fail("P1 and P2 are held by the first basket");
+        }
+        catch(InvalidRequestException e)
+        {
+            assertEquals(0, second.getLineCount());
+        }
+
+        first.release();
+        assertEquals(1, second.addProduct(new ProductImpl("P3", 20), 1));
+        second.release();
+    }
+
+    @Test
+    public void addAndRemoveProducts()
+    {
+        Map<Product, Long> lines = basket.addProducts(Arrays.asList(p1, p1, p1, p1, p2));
+
+        assertEquals(4L, (long) lines.get(p1));
+        assertEquals(1L, (long) lines.get(p2));
+        assertEquals(2, basket.getLineCount());
+        assertEquals(3 * 5 + 10 + 15, basket.getTotalPrice(), 0);
+
+        lines = basket.removeProducts(Arrays.asList(p1, p2, p2));
+
+        assertEquals(Collections.singletonMap(p1, 3L), lines);
+        assertEquals(1, basket.getLineCount());
+        assertEquals(3 * 5, basket.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void quantitiesOfGivenProducts() throws Exception
+    {
+        assertEquals(Collections.singletonMap(p1, 0L), basket.getQuantities(Collections.singletonList(p1)));
+
+        basket.addProducts(Arrays.asList(p1, p1, p2));
+        basket.removeProducts(Collections.singletonList(p2));
+
+        ProductImpl p3 = new ProductImpl("P3", 1);
+        Map<Product, Long> quantities = basket.getQuantities(Arrays.asList(p1, p2, p3));
+
+        assertEquals(3, quantities.size());
+        assertEquals(2L, (long) quantities.get(p1));
+        assertEquals(0L, (long) quantities.get(p2));
+        assertEquals(0L, (long) quantities.get(p3));
+    }
+
+    @Test
+    public void emptyBasketHoldsNoMemory() throws Exception
+    {
+        basket.removeProducts(Collections.singletonList(p1));
+
+        assertTrue(basket.getAllProducts().isEmpty());
+        assertEquals(0, basket.getTotalPrice(), 0);
+        assertEquals(0, factory.getUsedBytes());
+    }
+
+    @Test
+    public void lineDisappearsAtZeroAndCanBeAddedAgain()
+    {
+        basket.addProducts(Arrays.asList(p1, p1));
+        Map<Product, Long> lines = basket.removeProducts(Arrays.asList(p1, p1, p1));
+
+        assertFalse(lines.containsKey(p1));
+        assertEquals(0, basket.getTotalPrice(), 0);
+        assertEquals(0, basket.getLineCount());
+
+        lines = basket.addProducts(Collections.singletonList(p1));
+
+        assertEquals(1L, (long) lines.get(p1));
+        assertEquals(1, basket.getLineCount());
+    }
+
+    @Test
+    public void totalIsExactAfterRepeatedChanges() throws Exception
+    {
+        ProductImpl p3 = new ProductImpl("P3", 0.1);
+        ProductImpl p4 = new ProductImpl("P4", 0.7, Collections.singletonMap(3L, 23.33));
+        List<Product> change = Arrays.asList(p3, p4, p4, p4, p3, p4);
+
+        for(int i = 0; i < 1000; i++)
+        {
+            basket.addProducts(change);
+            basket.removeProducts(change);
+        }
+        assertEquals(0, basket.getTotalPrice(), 0);
+
+        basket.addProducts(Arrays.asList(p3, p4));
+        assertEquals(0.8, basket.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void basketGrowsBeyondItsFirstSlot() throws Exception
+    {
+        List<Product> products = new ArrayList<>();
+        for(int i = 0; i < 500; i++)
+            products.add(new ProductImpl("Product " + i, 1));
+
+        basket.addProducts(products);
+        basket.removeProducts(products.subList(0, 250));
+        basket.addProducts(products);
+
+        Map<Product, Long> lines = basket.getAllProducts();
+        assertEquals(500, lines.size());
+        assertEquals(500, basket.getLineCount());
+        assertEquals(250 + 2 * 250, basket.getTotalPrice(), 0);
+        assertEquals(1L, (long) lines.get(products.get(0)));
+        assertEquals(2L, (long) lines.get(products.get(499)));
+    }
+
+    @Test
+    public void restoredBasketHoldsItsLines()
+    {
+        Map<Product, Long> lines = new HashMap<>();
+        lines.put(p1, 4L);
+        lines.put(p2, 2L);
+        UUID basketID = UUID.randomUUID();
+
+        Basket restored = factory.create(basketID, lines);
+
+        assertEquals(basketID, restored.getBasketID());
+        assertEquals(lines, restored.getAllProducts());
+        assertEquals(3 * 5 + 10 + 2 * 15, restored.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void releasedSlotsAreReused()
+    {
+        basket.addProducts(Arrays.asList(p1, p2));
+        long used = factory.getUsedBytes();
+        long reserved = factory.getReservedBytes();
+        assertTrue(used > 0);
+
+        basket.release();
+
+        assertEquals(0, factory.getUsedBytes());
+        assertTrue(basket.getAllProducts().isEmpty());
+        assertTrue(basket.addProducts(Collections.singletonList(p1)).isEmpty());
+
+        for(int i = 0; i < 100; i++)
+        {
+            Basket next = factory.create();
+            next.addProducts(Arrays.asList(p1, p2));
+            next.release();
+        }
+
+        assertEquals(0, factory.getUsedBytes());
+        assertEquals(reserved, factory.getReservedBytes());
+    }
+
+    @Test
+    public void concurrentAddAndRemoveOnSharedLine() throws Exception
+    {
+        int threads = 8;
+        int rounds = 10_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    for(int i = 0; i < rounds; i++)
+                    {
+                        basket.addProducts(Arrays.asList(p1, p1, p2));
+                        basket.removeProducts(Arrays.asList(p1, p2));
+                    }
+                }));
+            }
+            for(Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(Collections.singletonMap(p1, (long) threads * rounds), basket.getAllProducts());
+        assertEquals(p1.getPrice((long) threads * rounds), basket.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void conditionalChangeOnlyAppliesToTheExpectedVersion()
+    {
+        basket.addProducts(Arrays.asList(p1, p2));
+        assertEquals(1, basket.getVersion());
+
+        try
+        {
+            basket.addProducts(Collections.singletonList(p1), 0);
+            fail("stale version accepted");
+        }
+        catch(VersionConflictException expected)
+        {
+            assertEquals(1L, (long) basket.getAllProducts().get(p1));
+        }
+
+        basket.removeProducts(Collections.singletonList(p2), 1);
+        assertEquals(Collections.singletonMap(p1, 1L), basket.getAllProducts());
+        assertEquals(2, basket.getVersion());
+    }
+
+    @Test
+    public void singleProductChangesAreChangesOfTheBasket()
+    {
+        assertEquals(4, basket.addProduct(p1, 4));
+        assertEquals(1, basket.removeProduct(p1, 3));
+        assertEquals(0, basket.removeProduct(p2, 1));
+        assertEquals(1, basket.addProduct(p1, 0));
+
+        assertEquals(Collections.singletonMap(p1, 1L), basket.getAllProducts());
+        assertEquals(10, basket.getTotalPrice(), 0);
+        assertEquals(3, basket.getVersion());
+    }
+
+    @Test
+    public void singleProductChangesAllocateNothing()
+    {
+        basket.addProducts(Arrays.asList(p1, p1, p2));
+
+        assertEquals(0, Allocations.bytesPerOperation(() ->
+        {
+            basket.addProduct(p1, 3);
+            basket.removeProduct(p1, 3);
+        }), 0);
+        assertEquals(2L, (long) basket.getAllProducts().get(p1));
+    }
+
+    @Test
+    public void productListChangesAllocateNothing()
+    {
+        List<Product> changes = Arrays.asList(p1, p1, p2);
+        basket.addProducts(Arrays.asList(p1, p2));
+
+        assertEquals(0, Allocations.bytesPerOperation(() ->
+        {
+            basket.addAll(changes, Basket.ANY_VERSION);
+            basket.removeAll(changes, Basket.ANY_VERSION);
+            long version = basket.getVersion();
+            basket.addAll(changes, version);
+            basket.removeAll(changes, version + 1);
+        }), 0);
+        assertEquals(1L, (long) basket.getAllProducts().get(p1));
+        assertEquals(1L, (long) basket.getAllProducts().get(p2));
+    }
+
+    @Test
+    public void equalityFollowsTheBasketId()
+    {
+        UUID basketID = UUID.randomUUID();
+
+        assertEquals(factory.create(basketID, Collections.emptyMap()), factory.create(basketID, Collections.emptyMap()));
+        assertNotEquals(basket, factory.create());
+    }
+
+    @Test
+    public void publishedPricesRepriceTheTotal() throws Exception
+    {
+        ProductCatalog catalog = new ProductCatalog();
+        Basket priced = new OffHeapBasketFactory(catalog, 1 << 16).create();
+        priced.addProducts(Arrays.asList(p2, p2, p1));
+        assertEquals(40, priced.getTotalPrice(), 0);
+
+        ProductImpl promoted = new ProductImpl("P2", 15);
+        promoted.addSpecialPrice(Collections.singletonMap(2L, 12.0));
+        catalog.publish(Collections.singletonList(promoted));
+        assertEquals(24 + 10, priced.getTotalPrice(), 0);
+
+        catalog.rollback();
+        assertEquals(40, priced.getTotalPrice(), 0);
+        priced.release();
+    }
+
+    @Test
+    public void lineCountsPastLongMaxAreRejected()
+    {
+        basket.addProduct(p2, Long.MAX_VALUE - 1);
+
+        try
+        {
+            basket.addProduct(p2, 2);
+            fail("An overflowing count must be rejected");
+        }
+        catch(InvalidRequestException e)
+        {
+            // expected
+        }
+        assertEquals(Collections.singletonMap(p2, Long.MAX_VALUE - 1), basket.getAllProducts());
+        assertEquals(1, basket.getLineCount());
+    }
+
+    @Test
+    public void failedChangesOfSeveralProductsChangeNothing() throws Exception
+    {
+        basket.addProduct(p2, Long.MAX_VALUE - 1);
+
+        try
+        {
+            basket.addProducts(Arrays.asList(p1, p2, p2), 1);
+            fail("An overflowing count must be rejected");
+        }
+        catch(InvalidRequestException e)
+        {
+            // expected
+        }
+        assertEquals(Collections.singletonMap(p2, Long.MAX_VALUE - 1), basket.getAllProducts());
+        assertEquals(1, basket.getVersion());
+
+        // a slot of the smallest capacity holds three lines, a fourth one exceeds the line limit
+        Basket small = new OffHeapBasketFactory(new ProductCatalog(), OffHeapArena.slotBytes(OffHeapArena.MIN_CAPACITY)).create();
+        small.addProduct(p1, 1);
+        try
+        {
+            small.addProducts(Arrays.asList(p1, p2, new ProductImpl("P3", 20), new ProductImpl("P4", 30)));
+            fail("Lines past the off-heap line limit must be rejected");
+        }
+        catch(IllegalStateException e)
+        {
+            // expected
+        }
+        assertEquals(Collections.singletonMap(p1, 1L), small.getAllProducts());
+        assertEquals(1, small.getLineCount());
+        assertEquals(1, small.getVersion());
+    }
+
+    @Test
+    public void latestUnitPricesItsLineUntilAFeedReplacesTheProduct() throws Exception
+    {
+        ProductCatalog catalog = new ProductCatalog();
+        OffHeapBasketFactory shared = new OffHeapBasketFactory(catalog, 1 << 16);
+        Basket promoted = shared.create();
+        Basket other = shared.create();
+        promoted.addProducts(Arrays.asList(p2, p2));
+        other.addProducts(Arrays.asList(p2, p2));
+
+        promoted.addProducts(Collections.singletonList(new ProductImpl("P2", 15, Collections.singletonMap(3L, 8.0))));
+        assertEquals(24, promoted.getTotalPrice(), 0);
+        assertEquals(30, other.getTotalPrice(), 0);
+
+        catalog.publish(Collections.singletonList(new ProductImpl("P2", 15, Collections.singletonMap(3L, 9.0))));
+        assertEquals(27, promoted.getTotalPrice(), 0);
+        assertEquals(Collections.singletonMap(3L, 9.0), promoted.getAllProducts().keySet().iterator().next().getSpecialPriceMap());
+
+        promoted.release();
+        other.release();
+    }
+}
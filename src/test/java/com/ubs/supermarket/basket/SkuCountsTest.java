@@ -0,0 +1,143 @@
+package com.ubs.supermarket.basket;
+
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SkuCountsTest
+{
+
+    private ProductCatalog catalog;
+
+    private ProductImpl p1;
+
+    private ProductImpl p2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        catalog = new ProductCatalog();
+        p1 = new ProductImpl("P1", 10);
+        p2 = new ProductImpl("P2", 15);
+    }
+
+    @Test
+    public void unitsAreGroupedInTheOrderOfTheirFirstUnit()
+    {
+        SkuCounts counts = SkuCounts.acquire().addAll(Arrays.asList(p2, p1, p2, p2), catalog, true);
+        try
+        {
+            assertEquals(2, counts.size());
+            assertEquals(catalog.getSku(p2), counts.sku(0));
+            assertEquals(3, counts.count(0));
+            assertEquals(catalog.getSku(p1), counts.sku(1));
+            assertEquals(1, counts.count(1));
+        }
+        finally
+        {
+            counts.release();
+        }
+    }
+
+    @Test
+    public void unknownProductsAreSkippedWithoutRegistering()
+    {
+        catalog.register(p1);
+
+        SkuCounts counts = SkuCounts.acquire().addAll(new HashSet<>(Arrays.asList(p1, p2)), catalog, false);
+        try
+        {
+            assertEquals(1, counts.size());
+            assertEquals(catalog.getSku(p1), counts.sku(0));
+            assertEquals(ProductCatalog.NO_SKU, catalog.getSku(p2));
+        }
+        finally
+        {
+            counts.release();
+        }
+    }
+
+    @Test
+    public void groupingGrowsAndIsEmptyOnceReleased() throws Exception
+    {
+        List<Product> products = new ArrayList<>();
+        for(int i = 0; i < 2000; i++)
+            products.add(new ProductImpl("Product " + i, 1));
+        products.addAll(products);
+
+        SkuCounts counts = SkuCounts.acquire().addAll(products, catalog, true);
+        assertEquals(2000, counts.size());
+        for(int i = 0; i < counts.size(); i++)
+            assertEquals(2, counts.count(i));
+        counts.release();
+
+        counts = SkuCounts.acquire().addAll(Arrays.asList(p1, p1), catalog, true);
+        assertEquals(1, counts.size());
+        assertEquals(2, counts.count(0));
+        counts.release();
+    }
+
+    @Test
+    public void failedGroupingHandsTheInstanceBack()
+    {
+        SkuCounts local = SkuCounts.acquire();
+        local.release();
+
+        List<Basket> baskets = Arrays.asList(new BasketImpl(catalog),
+                new OffHeapBasketFactory(catalog, 1 << 16).create());
+        for(Basket basket : baskets)
+        {
+            basket.addProducts(Arrays.asList(p1, p2));
+            for(boolean add : new boolean[] {true, false})
+            {
+                try
+                {
+                    if(add)
+                        basket.addProducts(Arrays.asList(p1, null));
+                    else
+                        basket.removeProducts(Arrays.asList(p1, null));
+                    fail("A null product must be rejected");
+                }
+                catch(NullPointerException expected)
+                {
+                }
+
+                SkuCounts counts = SkuCounts.acquire();
+                assertSame(local, counts);
+                assertEquals(0, counts.size());
+                counts.release();
+            }
+            basket.release();
+        }
+    }
+
+    @Test
+    public void nestedGroupingGetsItsOwnInstance()
+    {
+        SkuCounts outer = SkuCounts.acquire();
+        SkuCounts inner = SkuCounts.acquire();
+        assertNotSame(outer, inner);
+        inner.release();
+        outer.release();
+
+        assertSame(outer, SkuCounts.acquire());
+        outer.release();
+    }
+
+    @Test
+    public void groupingAllocatesNothing()
+    {
+        List<Product> products = Arrays.asList(p1, p2, p1, p1);
+
+        assertEquals(0, Allocations.bytesPerOperation(() -> SkuCounts.acquire().addAll(products, catalog, true).release()), 0);
+    }
+}
@@ -0,0 +1,91 @@
+package com.ubs.supermarket.cluster;
+
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.products.ProductCatalog;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ClusterMembershipTest
+{
+
+    private static final List<String> NODES = Arrays.asList("http://localhost:8080/", "http://localhost:8081");
+
+    private static final String SECRET = "s3cret";
+
+    @Test
+    public void nodeAloneOwnsEveryBasket()
+    {
+        ClusterMembership membership = new ClusterMembership("", "", "");
+
+        assertFalse(membership.isClustered());
+        assertTrue(membership.isLocal(UUID.randomUUID()));
+    }
+
+    @Test
+    public void nodeNamesIgnoreTrailingSlash()
+    {
+        ClusterMembership membership = new ClusterMembership("http://localhost:8080", " http://localhost:8080/ , http://localhost:8081", SECRET);
+
+        assertTrue(membership.isClustered());
+        assertEquals(Arrays.asList("http://localhost:8080", "http://localhost:8081"), membership.getNodes());
+    }
+
+    @Test
+    public void createdBasketsAreLocal()
+    {
+        ClusterMembership membership = new ClusterMembership("http://localhost:8081", NODES, SECRET);
+        BasketFactory factory = membership.decorate(BasketFactory.onHeap(new ProductCatalog()));
+
+        for(int i = 0; i < 100; i++)
+            assertEquals("http://localhost:8081", membership.owner(factory.create().getBasketID()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodesMustIncludeThisNode()
+    {
+        new ClusterMembership("http://localhost:9090", NODES, SECRET);
+    }
+
+    @Test
+    public void nodeLeavingTheClusterOwnsNothing()
+    {
+        ClusterMembership membership = new ClusterMembership("http://localhost:8081", NODES, SECRET);
+
+        List<String> previous = membership.update(Collections.singletonList("http://localhost:8080"));
+
+        assertEquals(Arrays.asList("http://localhost:8080", "http://localhost:8081"), previous);
+        assertFalse(membership.isMember());
+        assertFalse(membership.isLocal(UUID.randomUUID()));
+        assertNotNull(membership.decorate(BasketFactory.onHeap(new ProductCatalog())).create());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sharedBasketsNeedASecret()
+    {
+        new ClusterMembership("http://localhost:8081", NODES, "");
+    }
+
+    @Test
+    public void onlyRequestsWithTheSecretComeFromPeers()
+    {
+        ClusterMembership membership = new ClusterMembership("http://localhost:8081", NODES, SECRET);
+
+        assertTrue(membership.isPeer(SECRET));
+        assertFalse(membership.isPeer(null));
+        assertFalse(membership.isPeer("guess"));
+        assertFalse(new ClusterMembership("", "", "").isPeer(""));
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(ClusterMembership.SECRET_HEADER, "guess");
+        membership.sign(headers);
+        assertEquals(SECRET, headers.getFirst(ClusterMembership.SECRET_HEADER));
+        assertEquals("http://localhost:8081", headers.getFirst(ClusterMembership.FORWARDED_HEADER));
+    }
+}
@@ -0,0 +1,105 @@
+package com.ubs.supermarket.cluster;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class HashRingTest
+{
+
+    private static final List<String> NODES = Arrays.asList("http://localhost:8080", "http://localhost:8081", "http://localhost:8082");
+
+    private static final int IDS = 30_000;
+
+    @Test
+    public void nodeOrderDoesNotChangeOwners()
+    {
+        List<String> reversed = new ArrayList<>(NODES);
+        Collections.reverse(reversed);
+
+        HashRing ring = new HashRing(NODES);
+        HashRing other = new HashRing(reversed);
+        for(UUID basketID : ids())
+            assertEquals(ring.owner(basketID), other.owner(basketID));
+    }
+
+    @Test
+    public void basketsAreSpreadEvenly()
+    {
+        Map<String, Integer> owned = new HashMap<>();
+        HashRing ring = new HashRing(NODES);
+        for(UUID basketID : ids())
+            owned.merge(ring.owner(basketID), 1, Integer::sum);
+
+        assertEquals(NODES.size(), owned.size());
+        for(int count : owned.values())
+            assertEquals(IDS / NODES.size(), count, IDS / NODES.size() * 0.15);
+    }
+
+    @Test
+    public void addedNodeOnlyTakesItsShare()
+    {
+        List<String> grown = new ArrayList<>(NODES);
+        grown.add("http://localhost:8083");
+
+        HashRing ring = new HashRing(NODES);
+        HashRing larger = new HashRing(grown);
+        int moved = 0;
+        for(UUID basketID : ids())
+        {
+            String owner = larger.owner(basketID);
+            if(!owner.equals(ring.owner(basketID)))
+            {
+                assertEquals("http://localhost:8083", owner);
+                moved++;
+            }
+        }
+        assertEquals(IDS / 4, moved, IDS / 4 * 0.15);
+    }
+
+    @Test
+    public void removedNodeOnlyGivesAwayItsBaskets()
+    {
+        HashRing ring = new HashRing(NODES);
+        HashRing smaller = new HashRing(NODES.subList(0, 2));
+        for(UUID basketID : ids())
+        {
+            String owner = ring.owner(basketID);
+            if(!owner.equals(NODES.get(2)))
+                assertEquals(owner, smaller.owner(basketID));
+        }
+    }
+
+    @Test
+    public void duplicateNodesAreIgnored()
+    {
+        HashRing ring = new HashRing(Arrays.asList("a", "b", "a"), 4);
+
+        assertEquals(Arrays.asList("a", "b"), ring.getNodes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void emptyRingHasNoOwner()
+    {
+        new HashRing(Collections.emptyList()).owner(UUID.randomUUID());
+    }
+
+    private static List<UUID> ids()
+    {
+        // fixed ids, the balance checks must not depend on the run
+        List<UUID> ids = new ArrayList<>(IDS);
+        Random random = new Random(42);
+        for(int i = 0; i < IDS; i++)
+            ids.add(new UUID(random.nextLong(), random.nextLong()));
+        return ids;
+    }
+}
@@ -0,0 +1,174 @@
+package com.ubs.supermarket.graphql;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.BasketService;
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.execution.instrumentation.dataloader.DataLoaderDispatcherInstrumentation;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BasketQueryTest
+{
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private final AtomicInteger pricings = new AtomicInteger();
+
+    private BasketService basketService;
+
+    private BasketContextBuilder contextBuilder;
+
+    private GraphQL graphQL;
+
+    private Basket first;
+
+    private Basket second;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        basketService = new BasketService()
+        {
+            @Override
+            public Optional<Basket> getBasketByID(UUID basketID)
+            {
+                lookups.incrementAndGet();
+                return super.getBasketByID(basketID);
+            }
+        };
+        contextBuilder = new BasketContextBuilder(basketService);
+
+        graphQL = GraphQL.newGraphQL(BasketSchema.load())
+                .instrumentation(new DataLoaderDispatcherInstrumentation())
+                .build();
+
+        ProductImpl milk = new ProductImpl("Milk", 10);
+        milk.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        ProductImpl bread = new ProductImpl("Bread", 2);
+
+        first = new CountingBasket();
+        first.addProducts(Arrays.asList(milk, milk, milk, bread));
+        second = new CountingBasket();
+        second.addProducts(Collections.singletonList(bread));
+        basketService.addBasket(first);
+        basketService.addBasket(second);
+    }
+
+    @Test
+    public void basketWithLinesAndTotal()
+    {
+        Map<String, Object> basket = cast(data("{ basket(basketID: \"" + first.getBasketID() + "\") "
+                + "{ basketID version lineCount total lines { quantity price product { name basePrice specialPrices { quantity price } price(quantity: 6) } } } }")
+                .get("basket"));
+
+        assertEquals(first.getBasketID().toString(), basket.get("basketID"));
+        assertEquals(1L, basket.get("version"));
+        assertEquals(2, basket.get("lineCount"));
+        assertEquals(17.0, basket.get("total"));
+
+        List<Map<String, Object>> lines = cast(basket.get("lines"));
+        assertEquals(1L, lines.get(0).get("quantity"));
+        assertEquals(2.0, lines.get(0).get("price"));
+
+        Map<String, Object> milk = cast(lines.get(1).get("product"));
+        assertEquals("Milk", milk.get("name"));
+        assertEquals(10.0, milk.get("basePrice"));
+        assertEquals(30.0, milk.get("price"));
+
+        Map<String, Object> specialPrice = cast(this.<List<Object>>cast(milk.get("specialPrices")).get(0));
+        assertEquals(3L, specialPrice.get("quantity"));
+        assertEquals(5.0, specialPrice.get("price"));
+    }
+
+    @Test
+    public void unknownBasketsAreNull()
+    {
+        Map<String, Object> data = data("{ basket(basketID: \"" + UUID.randomUUID() + "\") { total } "
+                + "baskets(basketIDs: [\"not a basket\", \"" + second.getBasketID() + "\"]) { total } }");
+
+        assertNull(data.get("basket"));
+        List<Map<String, Object>> baskets = cast(data.get("baskets"));
+        assertNull(baskets.get(0));
+        assertEquals(2.0, baskets.get(1).get("total"));
+    }
+
+    @Test
+    public void eachBasketIsLookedUpAndPricedOncePerQuery()
+    {
+        String firstID = "\"" + first.getBasketID() + "\"";
+        String secondID = "\"" + second.getBasketID() + "\"";
+
+        Map<String, Object> data = data("{ a: basket(basketID: " + firstID + ") { total } "
+                + "b: basket(basketID: " + firstID + ") { version total } "
+                + "all: baskets(basketIDs: [" + secondID + ", " + firstID + ", " + secondID + "]) { basketID total lines { quantity } } }");
+
+        List<Map<String, Object>> all = cast(data.get("all"));
+        assertEquals(3, all.size());
+        assertEquals(second.getBasketID().toString(), all.get(0).get("basketID"));
+        assertEquals(first.getBasketID().toString(), all.get(1).get("basketID"));
+        assertEquals(17.0, this.<Map<String, Object>>cast(data.get("a")).get("total"));
+
+        assertEquals(2, lookups.get());
+        assertEquals(2, pricings.get());
+    }
+
+    @Test
+    public void loadersAreNotSharedBetweenRequests() throws Exception
+    {
+        String query = "{ basket(basketID: \"" + second.getBasketID() + "\") { total } }";
+
+        data(query);
+        second.addProducts(Collections.singletonList(new ProductImpl("Bread", 2)));
+        Map<String, Object> basket = cast(data(query).get("basket"));
+
+        assertEquals(4.0, basket.get("total"));
+        assertEquals(2, lookups.get());
+    }
+
+    private Map<String, Object> data(String query)
+    {
+        ExecutionResult result = graphQL.execute(ExecutionInput.newExecutionInput()
+                .query(query)
+                .dataLoaderRegistry(contextBuilder.newRegistry())
+                .build());
+
+        assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+        return result.getData();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T cast(Object value)
+    {
+        return (T) value;
+    }
+
+    private class CountingBasket extends BasketImpl
+    {
+        private CountingBasket()
+        {
+            super(new ConcurrentHashMap<>());
+        }
+
+        @Override
+        public double getTotalPrice()
+        {
+            pricings.incrementAndGet();
+            return super.getTotalPrice();
+        }
+    }
+}
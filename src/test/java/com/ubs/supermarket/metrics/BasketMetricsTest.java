@@ -0,0 +1,72 @@
+package com.ubs.supermarket.metrics;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.basket.OffHeapBasketFactory;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.BasketService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class BasketMetricsTest
+{
+
+    private BasketService basketService;
+
+    private SimpleMeterRegistry registry;
+
+    @Before
+    public void setUp()
+    {
+        basketService = new BasketService();
+        registry = new SimpleMeterRegistry();
+        new BasketMetrics(basketService).bindTo(registry);
+    }
+
+    @Test
+    public void gaugesFollowTheRegistry() throws Exception
+    {
+        ProductCatalog catalog = new ProductCatalog();
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        ProductImpl p2 = new ProductImpl("P2", 15);
+
+        Basket first = new BasketImpl(catalog);
+        first.addProducts(Arrays.asList(p1, p1, p2));
+        Basket second = new BasketImpl(catalog);
+        second.addProducts(Collections.singletonList(p2));
+
+        basketService.addBasket(first);
+        basketService.addBasket(second);
+
+        assertEquals(2, registry.get("baskets.active").gauge().value(), 0);
+        assertEquals(3, registry.get("baskets.lines").gauge().value(), 0);
+
+        basketService.removeBasket(first.getBasketID());
+
+        assertEquals(1, registry.get("baskets.active").gauge().value(), 0);
+        assertEquals(1, registry.get("baskets.lines").gauge().value(), 0);
+    }
+
+    @Test
+    public void offHeapMemoryIsGaugedForOffHeapBaskets() throws Exception
+    {
+        OffHeapBasketFactory offHeap = new OffHeapBasketFactory(new ProductCatalog(), 1 << 16);
+        SimpleMeterRegistry offHeapRegistry = new SimpleMeterRegistry();
+        new BasketMetrics(basketService, offHeap).bindTo(offHeapRegistry);
+
+        Basket basket = offHeap.create();
+        basket.addProducts(Collections.singletonList(new ProductImpl("P1", 10)));
+        basketService.addBasket(basket);
+
+        assertEquals(offHeap.getUsedBytes(), offHeapRegistry.get("baskets.off-heap.used").gauge().value(), 0);
+        assertEquals(1 << 16, offHeapRegistry.get("baskets.off-heap.reserved").gauge().value(), 0);
+        assertNull(registry.find("baskets.off-heap.used").gauge());
+    }
+}
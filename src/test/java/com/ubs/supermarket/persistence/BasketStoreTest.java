@@ -0,0 +1,549 @@
+package com.ubs.supermarket.persistence;
+
+import com.ubs.supermarket.basket.Allocations;
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.basket.MailboxBasket;
+import com.ubs.supermarket.basket.OffHeapBasketFactory;
+import com.ubs.supermarket.exception.DataNotFoundException;
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.BasketService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BasketStoreTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BasketService basketService;
+
+    private BasketStore store;
+
+    private ProductImpl p1;
+
+    private ProductImpl p2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        p1 = new ProductImpl("P1", 10);
+        p1.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        p2 = new ProductImpl("P2", 15);
+
+        store = open();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if(store != null)
+            store.close();
+    }
+
+    @Test
+    public void basketsSurviveRestartFromJournal() throws Exception
+    {
+        Basket kept = store.create();
+        kept.addProducts(Arrays.asList(p1, p1, p1, p1, p2));
+        kept.removeProducts(Collections.singletonList(p2));
+
+        Basket deleted = store.create();
+        deleted.addProducts(Collections.singletonList(p2));
+        store.delete(deleted.getBasketID());
+
+        Map<Product, Long> lines = kept.getAllProducts();
+
+        crash();
+        store = open();
+
+        Basket restored = basketService.getBasketByID(kept.getBasketID()).get();
+        assertEquals(lines, restored.getAllProducts());
+        assertEquals(25, restored.getTotalPrice(), 0);
+        assertEquals(5.0, restored.getAllProducts().keySet().iterator().next().getSpecialPriceMap().get(3L), 0);
+
+        assertFalse(basketService.getBasketByID(deleted.getBasketID()).isPresent());
+        assertEquals(1, basketService.size());
+    }
+
+    @Test
+    public void restartReplaysOnlyTheJournalAfterTheSnapshot() throws Exception
+    {
+        Basket basket = store.create();
+        basket.addProducts(Arrays.asList(p1, p1));
+
+        store.snapshot();
+
+        basket.addProducts(Collections.singletonList(p1));
+        Basket created = store.create();
+        created.addProducts(Collections.singletonList(p2));
+
+        crash();
+        store = open();
+
+        assertEquals(15, basketService.getBasketByID(basket.getBasketID()).get().getTotalPrice(), 0);
+        assertEquals(15, basketService.getBasketByID(created.getBasketID()).get().getTotalPrice(), 0);
+        assertEquals(1, files("snapshot-").length);
+    }
+
+    @Test
+    public void largeRunsAreJournaledAndReplayedAtOnce() throws Exception
+    {
+        Basket basket = store.create();
+        assertEquals(3_000_000_000L, basket.addProduct(p2, 3_000_000_000L));
+        assertEquals(2_999_999_999L, basket.removeProduct(p2, 1));
+        basket.addProduct(p1, 4);
+
+        crash();
+        store = open();
+
+        Basket restored = basketService.getBasketByID(basket.getBasketID()).get();
+        assertEquals(2_999_999_999L, (long) restored.getAllProducts().get(p2));
+        assertEquals(2_999_999_999L * 15 + 3 * 5 + 10, restored.getTotalPrice(), 0);
+        assertEquals(3, restored.getVersion());
+    }
+
+    @Test
+    public void snapshotDeletesTheJournalItCovers() throws Exception
+    {
+        Basket basket = store.create();
+        basket.addProducts(Collections.singletonList(p1));
+
+        store.snapshot();
+        basket.addProducts(Collections.singletonList(p1));
+        store.snapshot();
+        basket.addProducts(Collections.singletonList(p1));
+
+        assertEquals(1, files("journal-").length);
+        assertEquals(1, files("snapshot-").length);
+
+        store.close();
+        store = open();
+
+        assertEquals(3L, (long) basketService.getBasketByID(basket.getBasketID()).get().getAllProducts().get(p1));
+    }
+
+    @Test
+    public void tornJournalTailIsIgnored() throws Exception
+    {
+        Basket basket = store.create();
+        basket.addProducts(Collections.singletonList(p1));
+        basket.addProducts(Collections.singletonList(p2));
+
+        crash();
+
+        File segment = files("journal-")[0];
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+        {
+            // corrupt the body of the last record
+            long end = lastRecordEnd(file);
+            file.seek(end - 1);
+            int last = file.read();
+            file.seek(end - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        store = open();
+
+        Basket restored = basketService.getBasketByID(basket.getBasketID()).get();
+        assertEquals(10, restored.getTotalPrice(), 0);
+
+        restored.addProducts(Collections.singletonList(p1));
+
+        crash();
+        store = open();
+
+        assertEquals(2L, (long) basketService.getBasketByID(basket.getBasketID()).get().getAllProducts().get(p1));
+    }
+
+    @Test
+    public void offHeapBasketsSurviveRestartAndAreReleasedOnDelete() throws Exception
+    {
+        store.close();
+        OffHeapBasketFactory offHeap = new OffHeapBasketFactory(new ProductCatalog(), 1 << 16);
+        store = open(offHeap);
+
+        Basket kept = store.create();
+        kept.addProducts(Arrays.asList(p1, p1, p1, p2));
+        Basket deleted = store.create();
+        deleted.addProducts(Collections.singletonList(p2));
+        long used = offHeap.getUsedBytes();
+
+        store.delete(deleted.getBasketID());
+        assertTrue(offHeap.getUsedBytes() < used);
+
+        crash();
+        offHeap = new OffHeapBasketFactory(new ProductCatalog(), 1 << 16);
+        store = open(offHeap);
+
+        Basket restored = basketService.getBasketByID(kept.getBasketID()).get();
+        assertEquals(kept.getAllProducts(), restored.getAllProducts());
+        assertEquals(30, restored.getTotalPrice(), 0);
+        assertEquals(1, basketService.size());
+        assertEquals(used / 2, offHeap.getUsedBytes());
+    }
+
+    @Test
+    public void conflictingConditionalChangeIsNotJournaled() throws Exception
+    {
+        Basket basket = store.create();
+        basket.addProducts(Collections.singletonList(p1), basket.getVersion());
+
+        try
+        {
+            basket.addProducts(Collections.singletonList(p2), 0);
+            fail("stale version accepted");
+        }
+        catch(VersionConflictException expected)
+        {
+            // the basket was changed at version 0
+        }
+
+        crash();
+        store = open();
+
+        assertEquals(Collections.singletonMap(p1, 1L), basketService.getBasketByID(basket.getBasketID()).get().getAllProducts());
+    }
+
+    @Test
+    public void movedInBasketSurvivesRestart() throws Exception
+    {
+        Map<ProductImpl, Long> lines = new HashMap<>();
+        lines.put(p1, 4L);
+        lines.put(p2, 1L);
+        UUID basketID = UUID.randomUUID();
+
+        Basket restored = store.restore(basketID, lines);
+        assertEquals(3 * 5 + 10 + 15, restored.getTotalPrice(), 0);
+
+        crash();
+        store = open();
+
+        assertEquals(lines, basketService.getBasketByID(basketID).get().getAllProducts());
+    }
+
+    @Test
+    public void movedInCountsAreAddedAtOnceAndValidated() throws Exception
+    {
+        UUID basketID = UUID.randomUUID();
+        long count = 3_000_000_000L;
+
+        Basket restored = store.restore(basketID, Collections.singletonMap(p2, count));
+        assertEquals(15.0 * count, restored.getTotalPrice(), 0);
+
+        try
+        {
+            store.restore(basketID, Collections.singletonMap(p1, -1L));
+            fail("A negative count must be rejected");
+        }
+        catch(InvalidRequestException expected)
+        {
+        }
+
+        crash();
+        store = open();
+
+        assertEquals(Collections.singletonMap(p2, count), basketService.getBasketByID(basketID).get().getAllProducts());
+    }
+
+    @Test
+    public void basketMovedOutIsGoneAndKeptOnFailedTransfer() throws Exception
+    {
+        Basket kept = store.create();
+        kept.addProducts(Collections.singletonList(p1));
+        Basket moved = store.create();
+        moved.addProducts(Collections.singletonList(p2));
+
+        assertFalse(store.moveOut(kept.getBasketID(), basket -> false));
+        assertTrue(store.moveOut(moved.getBasketID(), basket ->
+        {
+            assertFalse(basketService.getBasketByID(basket.getBasketID()).isPresent());
+            return Collections.singletonMap(p2, 1L).equals(basket.getAllProducts());
+        }));
+        assertFalse(store.moveOut(moved.getBasketID(), basket -> true));
+
+        crash();
+        store = open();
+
+        assertTrue(basketService.getBasketByID(kept.getBasketID()).isPresent());
+        assertFalse(basketService.getBasketByID(moved.getBasketID()).isPresent());
+    }
+
+    @Test
+    public void basketsBehindMailboxesSurviveRestart() throws Exception
+    {
+        store.close();
+        basketService = new BasketService();
+        store = new BasketStore(basketService, BasketFactory.onHeap(new ProductCatalog()), folder.getRoot().getPath(), 1 << 16, 0, true);
+        store.open();
+
+        Basket kept = store.create();
+        assertTrue(BasketStore.unwrap(kept) instanceof JournaledBasket);
+        assertTrue(((FencedBasket) kept).getBasket() instanceof MailboxBasket);
+        kept.addProducts(Arrays.asList(p1, p1, p1, p2));
+        kept.removeProducts(Collections.singletonList(p2));
+        Basket deleted = store.create();
+        store.delete(deleted.getBasketID());
+
+        store.snapshot();
+        kept.addProducts(Collections.singletonList(p1));
+
+        crash();
+        store = open();
+
+        assertEquals(Collections.singletonMap(p1, 4L), basketService.getBasketByID(kept.getBasketID()).get().getAllProducts());
+        assertEquals(1, basketService.size());
+    }
+
+    @Test
+    public void basketBeingMovedOutRejectsTheCallersStillHoldingIt() throws Exception
+    {
+        Basket held = store.create();
+        held.addProducts(Collections.singletonList(p1));
+        Basket kept = store.create();
+
+        assertFalse(store.moveOut(kept.getBasketID(), basket -> false));
+        kept.addProducts(Collections.singletonList(p2));
+        assertEquals(Collections.singletonMap(p2, 1L), kept.getAllProducts());
+
+        Map<Product, Long> sent = new HashMap<>();
+        assertTrue(store.moveOut(held.getBasketID(), basket ->
+        {
+            try
+            {
+                held.addProducts(Collections.singletonList(p2));
+                fail("A basket being moved must reject its mutations");
+            }
+            catch(DataNotFoundException expected)
+            {
+            }
+            assertTrue(held.addProductsAsync(Collections.singletonList(p2)).isCompletedExceptionally());
+            sent.putAll(basket.getAllProducts());
+            return true;
+        }));
+
+        assertEquals(Collections.singletonMap(p1, 1L), sent);
+    }
+
+    @Test
+    public void spilledBasketsAreReloadedAndSurviveRestart() throws Exception
+    {
+        store.close();
+        basketService = new BasketService();
+        ColdBasketStore coldStore = new ColdBasketStore(folder.newFolder("tier").getPath(), 0, 0, 60);
+        store = new BasketStore(basketService, BasketFactory.onHeap(new ProductCatalog()), folder.getRoot().getPath(), 1 << 16, 0, true, coldStore);
+        store.open();
+
+        Basket reloaded = store.create();
+        reloaded.addProducts(Arrays.asList(p1, p1, p2));
+        Basket spilled = store.create();
+        spilled.addProducts(Collections.singletonList(p2));
+
+        // baskets used within the last access granularity are kept in memory
+        Thread.sleep(250);
+        assertEquals(2, store.spillIdleBaskets());
+        assertEquals(0, basketService.size());
+        assertEquals(2, basketService.spilledSize());
+
+        Basket basket = basketService.getBasketByID(reloaded.getBasketID()).get();
+        assertTrue(((FencedBasket) basket).getBasket() instanceof MailboxBasket);
+        basket.removeProducts(Collections.singletonList(p2));
+        assertEquals(1, basketService.spilledSize());
+
+        store.snapshot();
+        basket.addProducts(Collections.singletonList(p1));
+
+        crash();
+        store = open();
+
+        assertEquals(Collections.singletonMap(p1, 3L), basketService.getBasketByID(reloaded.getBasketID()).get().getAllProducts());
+        assertEquals(Collections.singletonMap(p2, 1L), basketService.getBasketByID(spilled.getBasketID()).get().getAllProducts());
+        assertEquals(2, basketService.size());
+    }
+
+    @Test
+    public void snapshotBasketsStayInTheTierUntilLookedUp() throws Exception
+    {
+        store.close();
+        String tier = folder.newFolder("tier").getPath();
+        store = openTiered(tier);
+
+        Basket changed = store.create();
+        changed.addProducts(Arrays.asList(p1, p1));
+        Basket untouched = store.create();
+        untouched.addProducts(Collections.singletonList(p2));
+        store.snapshot();
+        changed.addProducts(Collections.singletonList(p1));
+
+        crash();
+        store = openTiered(tier);
+
+        // only the basket the journal changed since the snapshot is read into memory
+        assertEquals(1, basketService.size());
+        assertEquals(1, basketService.spilledSize());
+        assertEquals(Collections.singletonMap(p1, 3L), basketService.getBasketByID(changed.getBasketID()).get().getAllProducts());
+        assertEquals(Collections.singletonMap(p2, 1L), basketService.getBasketByID(untouched.getBasketID()).get().getAllProducts());
+        assertEquals(2, basketService.size());
+        assertEquals(0, basketService.spilledSize());
+    }
+
+    @Test
+    public void idleBasketsExpireForGood() throws Exception
+    {
+        Basket idle = store.create();
+        idle.addProducts(Collections.singletonList(p1));
+        Basket active = store.create();
+        active.addProducts(Collections.singletonList(p2));
+
+        Thread.sleep(300);
+        basketService.getBasketByID(active.getBasketID());
+        assertEquals(1, store.expireIdleBaskets(200, TimeUnit.MILLISECONDS));
+        assertFalse(basketService.getBasketByID(idle.getBasketID()).isPresent());
+
+        crash();
+        store = open();
+
+        assertFalse(basketService.getBasketByID(idle.getBasketID()).isPresent());
+        assertEquals(Collections.singletonMap(p2, 1L), basketService.getBasketByID(active.getBasketID()).get().getAllProducts());
+    }
+
+    @Test
+    public void spilledBasketsExpireToo() throws Exception
+    {
+        store.close();
+        basketService = new BasketService();
+        ColdBasketStore coldStore = new ColdBasketStore(folder.newFolder("tier").getPath(), 0, 0, 60);
+        store = new BasketStore(basketService, BasketFactory.onHeap(new ProductCatalog()), folder.getRoot().getPath(), 1 << 16, 0, false, coldStore);
+        store.open();
+
+        Basket idle = store.create();
+        idle.addProducts(Collections.singletonList(p1));
+        Basket reloaded = store.create();
+        reloaded.addProducts(Collections.singletonList(p2));
+        Thread.sleep(250);
+        assertEquals(2, store.spillIdleBaskets());
+
+        Thread.sleep(300);
+        basketService.getBasketByID(reloaded.getBasketID());
+        assertEquals(1, store.expireIdleBaskets(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, basketService.spilledSize());
+
+        crash();
+        store = open();
+
+        assertFalse(basketService.getBasketByID(idle.getBasketID()).isPresent());
+        assertEquals(Collections.singletonMap(p2, 1L), basketService.getBasketByID(reloaded.getBasketID()).get().getAllProducts());
+    }
+
+    @Test
+    public void inMemoryStoreKeepsNothing() throws Exception
+    {
+        BasketService inMemory = new BasketService();
+        BasketStore memoryStore = new BasketStore(inMemory, new ProductCatalog());
+        memoryStore.open();
+
+        Basket basket = memoryStore.create();
+        assertTrue(inMemory.getBasketByID(basket.getBasketID()).isPresent());
+        assertTrue(memoryStore.delete(basket.getBasketID()).isPresent());
+        assertFalse(memoryStore.delete(UUID.randomUUID()).isPresent());
+
+        memoryStore.close();
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void requestChangesAllocateNothing() throws Exception
+    {
+        BasketStore memoryStore = new BasketStore(new BasketService(), new ProductCatalog());
+        memoryStore.open();
+        // the basket as registered for requests, behind its fence
+        Basket basket = memoryStore.create();
+        // an equal product of another instance, as read from a request
+        List<Product> changes = Arrays.asList(p1, p1, p2, new ProductImpl("P2", 15));
+        basket.addProducts(Arrays.asList(p1, p2));
+
+        assertEquals(0, Allocations.bytesPerOperation(() ->
+        {
+            basket.addAll(changes, Basket.ANY_VERSION);
+            basket.removeAll(changes, Basket.ANY_VERSION);
+            long version = basket.getVersion();
+            basket.addAll(changes, version);
+            basket.removeAll(changes, version + 1);
+        }), 0);
+        assertEquals(1L, (long) basket.getAllProducts().get(p1));
+        assertEquals(1L, (long) basket.getAllProducts().get(p2));
+        memoryStore.close();
+    }
+
+    private BasketStore open() throws IOException
+    {
+        return open(BasketFactory.onHeap(new ProductCatalog()));
+    }
+
+    private BasketStore open(BasketFactory basketFactory) throws IOException
+    {
+        basketService = new BasketService();
+        BasketStore opened = new BasketStore(basketService, basketFactory, folder.getRoot().getPath(), 1 << 16, 0);
+        opened.open();
+        return opened;
+    }
+
+    /**
+     * Abandons the store without its shutdown snapshot, acknowledged mutations are already on disk
+     */
+    private BasketStore openTiered(String tier) throws IOException
+    {
+        basketService = new BasketService();
+        ColdBasketStore coldStore = new ColdBasketStore(tier, 600, 10, 60);
+        BasketStore tiered = new BasketStore(basketService, BasketFactory.onHeap(new ProductCatalog()), folder.getRoot().getPath(), 1 << 16, 0, false, coldStore);
+        tiered.open();
+        return tiered;
+    }
+
+    private void crash()
+    {
+        store = null;
+    }
+
+    private File[] files(String prefix)
+    {
+        return folder.getRoot().listFiles((dir, name) -> name.startsWith(prefix) && !name.endsWith(".tmp"));
+    }
+
+    private static long lastRecordEnd(RandomAccessFile file) throws IOException
+    {
+        long position = 0;
+        long end = 0;
+        while(position + 8 <= file.length())
+        {
+            file.seek(position);
+            int length = file.readInt();
+            if(length <= 0)
+                break;
+            position += 8 + length;
+            end = position;
+        }
+        return end;
+    }
+}
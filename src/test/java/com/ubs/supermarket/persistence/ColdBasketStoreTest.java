@@ -0,0 +1,193 @@
+package com.ubs.supermarket.persistence;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ColdBasketStoreTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BasketFactory basketFactory;
+
+    private ColdBasketStore store;
+
+    private Map<UUID, Long> sequences;
+
+    private ProductImpl p1;
+
+    private ProductImpl p2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        p1 = new ProductImpl("P1", 10);
+        p1.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        p2 = new ProductImpl("P2", 15);
+
+        basketFactory = BasketFactory.onHeap(new ProductCatalog());
+        sequences = new HashMap<>();
+        store = new ColdBasketStore(folder.getRoot().getPath(), 600, 100, 10);
+        store.open((basketId, sequence, version, lines) ->
+        {
+            sequences.put(basketId, sequence);
+            return basketFactory.create(basketId, lines, version);
+        });
+    }
+
+    @Test
+    public void spilledBasketIsLoadedOnce() throws Exception
+    {
+        Basket basket = new BasketImpl(new ProductCatalog());
+        basket.addProducts(Arrays.asList(p1, p1, p1, p1, p2));
+
+        store.spill(basket);
+        assertEquals(1, store.size());
+
+        Basket loaded = store.load(basket.getBasketID()).get();
+        assertEquals(basket.getBasketID(), loaded.getBasketID());
+        assertEquals(basket.getAllProducts(), loaded.getAllProducts());
+        assertEquals(3 * 5 + 10 + 15, loaded.getTotalPrice(), 0);
+        assertEquals(0L, (long) sequences.get(basket.getBasketID()));
+        // tags of the versions handed out before the spill keep matching their own content only
+        assertEquals(1, loaded.getVersion());
+
+        assertEquals(0, store.size());
+        assertFalse(store.load(basket.getBasketID()).isPresent());
+    }
+
+    @Test
+    public void journaledBasketKeepsItsSequence() throws Exception
+    {
+        Path journalDirectory = folder.newFolder("journal").toPath();
+        BasketJournal journal = new BasketJournal(journalDirectory, 1 << 16, 0);
+        try
+        {
+            JournaledBasket basket = new JournaledBasket(new BasketImpl(new ProductCatalog()), journal, 0);
+            basket.addProducts(Collections.singletonList(p2));
+            basket.addProducts(Collections.singletonList(p1));
+
+            store.spill(basket);
+            Basket loaded = store.load(basket.getBasketID()).get();
+
+            assertEquals(2L, (long) sequences.get(basket.getBasketID()));
+            assertEquals(2, loaded.getVersion());
+            loaded.addProducts(Collections.singletonList(p1));
+            assertEquals(3, loaded.getVersion());
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void discardedAndListedBaskets() throws Exception
+    {
+        List<UUID> spilled = new ArrayList<>();
+        for(int i = 0; i < 3; i++)
+        {
+            Basket basket = new BasketImpl(new ProductCatalog());
+            basket.addProducts(Collections.singletonList(p1));
+            store.spill(basket);
+            spilled.add(basket.getBasketID());
+        }
+
+        store.discard(spilled.get(0));
+        store.discard(spilled.get(0));
+
+        List<UUID> listed = new ArrayList<>();
+        store.forEachId(listed::add);
+        assertEquals(spilled.subList(1, 3).stream().sorted().collect(Collectors.toList()),
+                listed.stream().sorted().collect(Collectors.toList()));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void spilledBasketsAreWrittenToSnapshots() throws Exception
+    {
+        Basket basket = new BasketImpl(new ProductCatalog());
+        basket.addProducts(Arrays.asList(p1, p2));
+        store.spill(basket);
+
+        Path snapshotDirectory = folder.newFolder("snapshots").toPath();
+        try(BasketSnapshot snapshot = BasketSnapshot.create(snapshotDirectory, 7))
+        {
+            store.writeTo(snapshot);
+            snapshot.commit();
+        }
+
+        Map<UUID, Map<Product, Long>> restored = new HashMap<>();
+        assertEquals(7, BasketSnapshot.load(snapshotDirectory, (basketId, sequence, lines) -> restored.put(basketId, lines)));
+        assertEquals(Collections.singletonMap(basket.getBasketID(), basket.getAllProducts()), restored);
+    }
+
+    @Test
+    public void openForgetsTheBasketsOfTheLastRun() throws Exception
+    {
+        Basket basket = new BasketImpl(new ProductCatalog());
+        store.spill(basket);
+
+        store.open((basketId, sequence, version, lines) -> basketFactory.create(basketId, lines, version));
+
+        assertEquals(0, store.size());
+        assertFalse(store.load(basket.getBasketID()).isPresent());
+    }
+
+    @Test
+    public void corruptBasketIsNotLoaded() throws Exception
+    {
+        Basket basket = new BasketImpl(new ProductCatalog());
+        basket.addProducts(Collections.singletonList(p1));
+        store.spill(basket);
+
+        Path file;
+        try(Stream<Path> files = Files.walk(folder.getRoot().toPath()))
+        {
+            file = files.filter(Files::isRegularFile).findFirst().get();
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"))
+        {
+            long position = raf.length() - 12;
+            raf.seek(position);
+            byte flipped = (byte) (raf.readByte() ^ 0xff);
+            raf.seek(position);
+            raf.writeByte(flipped);
+        }
+
+        try
+        {
+            store.load(basket.getBasketID());
+            fail("corrupt basket loaded");
+        }
+        catch(IOException expected)
+        {
+            assertEquals(1, store.size());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.ubs.supermarket.products;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PriceTiersTest
+{
+
+    @Test
+    public void pricesAreTheCheapestCombination()
+    {
+        Random random = new Random(42);
+        for(int run = 0; run < 200; run++)
+        {
+            double basePrice = 1 + random.nextInt(20);
+            Map<Long, Double> specialPrices = new HashMap<>();
+            int tierCount = 1 + random.nextInt(4);
+            for(int i = 0; i < tierCount; i++)
+                specialPrices.put(2L + random.nextInt(30), (double) (1 + random.nextInt(25)));
+
+            PriceTiers tiers = PriceTiers.compile(specialPrices, PriceTiers.none(basePrice));
+            double[] expected = cheapest(specialPrices, basePrice, 2_000);
+
+            for(int quantity = 0; quantity < expected.length; quantity++)
+                assertEquals(specialPrices + " x " + quantity, expected[quantity], tiers.price(quantity), 1e-6);
+        }
+    }
+
+    @Test
+    public void largeAndCoprimeBundlesArePricedExactly()
+    {
+        Random random = new Random(7);
+        int compiled = 0;
+        for(int run = 0; run < 40; run++)
+        {
+            double basePrice = 1 + random.nextInt(20);
+            Map<Long, Double> specialPrices = new HashMap<>();
+            int tierCount = 1 + random.nextInt(4);
+            for(int i = 0; i < tierCount; i++)
+                specialPrices.put(1000L + random.nextInt(6000), basePrice * (0.3 + random.nextDouble() * 0.7));
+
+            PriceTiers tiers;
+            try
+            {
+                tiers = PriceTiers.compile(specialPrices, PriceTiers.none(basePrice));
+            }
+            catch(IllegalArgumentException tooManyCombinations)
+            {
+                continue;
+            }
+            compiled++;
+
+            double[] expected = cheapest(specialPrices, basePrice, 60_000);
+            for(int quantity = 0; quantity < expected.length; quantity += 1 + random.nextInt(20))
+                assertEquals(specialPrices + " x " + quantity, expected[quantity], tiers.price(quantity), 1e-6);
+        }
+        assertTrue(compiled + " compiled", compiled > 30);
+    }
+
+    @Test
+    public void cheapestCombinationIsFoundAmongOversizedBundles()
+    {
+        Map<Long, Double> specialPrices = new HashMap<>();
+        specialPrices.put(6000L, 0.5);
+        specialPrices.put(5000L, 0.5);
+
+        assertEquals(10_500, PriceTiers.compile(specialPrices, PriceTiers.none(1)).price(21_000), 1e-6);
+    }
+
+    @Test
+    public void cheapestCombinationIsFoundAmongCoprimeBundles()
+    {
+        Map<Long, Double> specialPrices = new HashMap<>();
+        specialPrices.put(2552L, 0.3091);
+        specialPrices.put(2614L, 0.3222);
+        specialPrices.put(3218L, 0.6202);
+        specialPrices.put(3788L, 0.7324);
+
+        PriceTiers tiers = PriceTiers.compile(specialPrices, PriceTiers.none(1));
+
+        // 3 bundles of 2552 and 1 of 2614
+        assertEquals(3 * 2552 * 0.3091 + 2614 * 0.3222, tiers.price(10_270), 1e-6);
+        assertEquals(cheapest(specialPrices, 1, 10_271)[10_270], tiers.price(10_270), 1e-6);
+    }
+
+    @Test
+    public void remaindersCheapestWithManyBundlesArePricedExactly()
+    {
+        Map<Long, Double> specialPrices = new HashMap<>();
+        // remainders are cheapest with up to a hundred bundles of 4091, far past any table of quantities
+        specialPrices.put(4093L, 1.0);
+        specialPrices.put(4091L, 1.0001);
+        specialPrices.put(2L, 1.005);
+
+        PriceTiers tiers = PriceTiers.compile(specialPrices, PriceTiers.none(1.01));
+
+        double[] expected = cheapest(specialPrices, 1.01, 3 * PriceTiers.MAX_TABLE_SIZE);
+        for(int quantity = 0; quantity < expected.length; quantity += 97)
+            assertEquals(quantity + "", expected[quantity], tiers.price(quantity), 1e-6);
+        assertEquals(4091 * 1.0001, tiers.price(4091), 1e-6);
+        assertEquals(2 * 4091 * 1.0001, tiers.price(2 * 4091), 1e-6);
+    }
+
+    @Test
+    public void periodOverflowingTheTableKeepsEveryBundle()
+    {
+        Map<Long, Double> specialPrices = new HashMap<>();
+        specialPrices.put(1000L, 1.0);
+        specialPrices.put(999L, 1.001);
+
+        PriceTiers tiers = PriceTiers.compile(specialPrices, PriceTiers.none(10));
+
+        assertEquals(999 * 1.001, tiers.price(999), 1e-6);
+        assertEquals(1000, tiers.price(1000), 1e-6);
+        assertEquals(1000 + 999 * 1.001, tiers.price(1999), 1e-6);
+        assertEquals(5 * 999 * 1.001, tiers.price(5 * 999), 1e-6);
+    }
+
+    @Test
+    public void largeQuantitiesArePricedExactly()
+    {
+        Map<Long, Double> specialPrices = new HashMap<>();
+        specialPrices.put(4096L, 0.5);
+        specialPrices.put(4095L, 0.50001);
+
+        PriceTiers tiers = PriceTiers.compile(specialPrices, PriceTiers.none(1));
+
+        // bundles of 4096 are cheapest per product, every count of bundles of 4095 is tried
+        long quantity = 15_000_000;
+        double expected = Double.POSITIVE_INFINITY;
+        for(long bundles = 0; bundles * 4095 <= quantity; bundles++)
+        {
+            long left = quantity - bundles * 4095;
+            expected = Math.min(expected, bundles * 4095 * 0.50001 + left / 4096 * 2048 + left % 4096);
+        }
+        assertEquals(expected, tiers.price(quantity), 1e-6);
+    }
+
+    @Test
+    public void oversizedBundlesArePriced()
+    {
+        PriceTiers tiers = PriceTiers.compile(Collections.singletonMap(10_000L, 5.0), PriceTiers.none(10));
+
+        assertEquals(50_000, tiers.price(10_000), 0);
+        assertEquals(50_010, tiers.price(10_001), 0);
+        assertEquals(100_000, tiers.price(20_000), 0);
+        assertEquals(99_990, tiers.price(9_999), 0);
+    }
+
+    @Test
+    public void specialPricesNeedingTooManyCombinationsAreRejected()
+    {
+        Map<Long, Double> specialPrices = Collections.singletonMap(100_000L, 5.0);
+
+        try
+        {
+            PriceTiers.check(specialPrices, 10);
+            fail("period past the table accepted");
+        }
+        catch(IllegalArgumentException expected)
+        {
+        }
+
+        // small bundles are accepted without being compiled, large ones once compiled
+        PriceTiers.check(Collections.singletonMap(3L, 5.0), 10);
+        PriceTiers.check(Collections.singletonMap(10_000L, 5.0), 10);
+    }
+
+    @Test
+    public void versionFollowsThePreviousTable()
+    {
+        PriceTiers none = PriceTiers.none(10);
+        PriceTiers first = PriceTiers.compile(Collections.singletonMap(3L, 5.0), none);
+        PriceTiers second = PriceTiers.compile(Collections.emptyMap(), first);
+
+        assertEquals(0, none.version());
+        assertEquals(1, first.version());
+        assertEquals(2, second.version());
+        assertEquals(30, second.price(3), 0);
+    }
+
+    /**
+     * Reference prices of every quantity up to a limit
+     */
+    private static double[] cheapest(Map<Long, Double> specialPrices, double basePrice, int limit)
+    {
+        double[] prices = new double[limit];
+        for(int quantity = 1; quantity < limit; quantity++)
+        {
+            prices[quantity] = prices[quantity - 1] + basePrice;
+            for(Map.Entry<Long, Double> tier : specialPrices.entrySet())
+            {
+                int size = tier.getKey().intValue();
+                if(size <= quantity)
+                    prices[quantity] = Math.min(prices[quantity], prices[quantity - size] + size * tier.getValue());
+            }
+        }
+        return prices;
+    }
+}
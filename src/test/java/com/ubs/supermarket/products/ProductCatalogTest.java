@@ -0,0 +1,242 @@
+package com.ubs.supermarket.products;
+
+import com.ubs.supermarket.exception.InvalidRequestException;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ProductCatalogTest
+{
+
+    private ProductCatalog catalog;
+
+    @Before
+    public void setUp()
+    {
+        catalog = new ProductCatalog();
+    }
+
+    @Test
+    public void equalProductsShareOneSku() throws InvalidAttributesException
+    {
+        Product first = new ProductImpl("P1", 10);
+        Product second = new ProductImpl("P1", 10);
+
+        int sku = catalog.register(first);
+
+        assertNotEquals(ProductCatalog.NO_SKU, sku);
+        assertEquals(sku, catalog.register(second));
+        assertSame(first, catalog.getProduct(sku));
+        assertEquals(1, catalog.size());
+    }
+
+    @Test
+    public void distinctProductsGetDistinctSkus() throws InvalidAttributesException
+    {
+        int p1 = catalog.register(new ProductImpl("P1", 10));
+        int p2 = catalog.register(new ProductImpl("P1", 11));
+
+        assertNotEquals(p1, p2);
+        assertEquals("P1", catalog.getProduct(p2).getName());
+        assertEquals(11, catalog.getProduct(p2).getPrice(1L), 0);
+    }
+
+    @Test
+    public void registeringDoesNotChangeTheSpecialPrices() throws InvalidAttributesException
+    {
+        ProductImpl registered = new ProductImpl("P1", 10);
+        registered.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        ProductImpl repriced = new ProductImpl("P1", 10);
+        repriced.addSpecialPrice(Collections.singletonMap(2L, 0.01));
+
+        int sku = catalog.register(registered);
+
+        assertEquals(sku, catalog.register(repriced));
+        assertEquals(sku, catalog.register(new ProductImpl("P1", 10)));
+        assertSame(registered, catalog.getProduct(sku));
+        assertEquals(15, catalog.getProduct(sku).getPrice(3L), 0);
+        assertEquals(0, catalog.getPriceVersion());
+    }
+
+    @Test
+    public void registrationsPastTheMaximumAreRejected() throws InvalidAttributesException
+    {
+        ProductCatalog bounded = new ProductCatalog(2);
+        int p1 = bounded.register(new ProductImpl("P1", 10));
+        bounded.register(new ProductImpl("P2", 10));
+
+        try
+        {
+            bounded.register(new ProductImpl("P3", 10));
+            fail("The catalog is full");
+        }
+        catch(InvalidRequestException e)
+        {
+            assertEquals(2, bounded.size());
+        }
+        assertEquals(p1, bounded.register(new ProductImpl("P1", 10)));
+    }
+
+    @Test
+    public void releasedProductsAreReclaimedOnceTheCatalogIsFull() throws InvalidAttributesException
+    {
+        ProductCatalog bounded = new ProductCatalog(2);
+        Product p1 = new ProductImpl("P1", 10);
+        int sku = bounded.acquire(p1, true);
+        bounded.acquire(new ProductImpl("P2", 10), true);
+
+        try
+        {
+            bounded.acquire(new ProductImpl("P3", 10), true);
+            fail("Every product is held");
+        }
+        catch(InvalidRequestException e)
+        {
+            assertEquals(2, bounded.size());
+        }
+
+        bounded.release(sku);
+        Product p3 = new ProductImpl("P3", 10);
+        assertEquals(sku, bounded.acquire(p3, true));
+        assertSame(p3, bounded.getProduct(sku));
+        assertEquals(ProductCatalog.NO_SKU, bounded.getSku(p1));
+        assertEquals(2, bounded.size());
+    }
+
+    @Test
+    public void candidatesHeldAgainAreSkippedUntilTheirNextRelease() throws InvalidAttributesException
+    {
+        ProductCatalog bounded = new ProductCatalog(2);
+        Product p1 = new ProductImpl("P1", 10);
+        Product p2 = new ProductImpl("P2", 10);
+        int sku1 = bounded.acquire(p1, true);
+        int sku2 = bounded.acquire(p2, true);
+
+        // released and held again, the queued candidate is dropped
+        bounded.release(sku1);
+        assertEquals(sku1, bounded.acquire(p1, true));
+        bounded.release(sku2);
+        bounded.release(sku2 = bounded.acquire(p2, false));
+
+        Product p3 = new ProductImpl("P3", 10);
+        assertEquals(sku2, bounded.acquire(p3, true));
+        assertEquals(sku1, bounded.getSku(p1));
+        assertEquals(ProductCatalog.NO_SKU, bounded.getSku(p2));
+
+        bounded.release(sku1);
+        Product p4 = new ProductImpl("P4", 10);
+        assertEquals(sku1, bounded.acquire(p4, true));
+        assertSame(p4, bounded.getProduct(sku1));
+        assertEquals(2, bounded.size());
+    }
+
+    @Test
+    public void registeredAndPublishedProductsAreNeverReclaimed() throws InvalidAttributesException
+    {
+        ProductCatalog bounded = new ProductCatalog(2);
+        Product registered = new ProductImpl("P1", 10);
+        Product published = new ProductImpl("P2", 10);
+        int p1 = bounded.acquire(registered, true);
+        int p2 = bounded.acquire(published, true);
+        assertEquals(p1, bounded.register(registered));
+        bounded.publish(Collections.singletonList(published));
+        bounded.release(p1);
+        bounded.release(p2);
+
+        try
+        {
+            bounded.acquire(new ProductImpl("P3", 10), true);
+            fail("No product is reclaimable");
+        }
+        catch(InvalidRequestException e)
+        {
+            assertEquals(p1, bounded.getSku(registered));
+            assertEquals(p2, bounded.getSku(published));
+        }
+    }
+
+    @Test
+    public void acquireWithoutRegisteringSkipsUnknownProducts() throws InvalidAttributesException
+    {
+        assertEquals(ProductCatalog.NO_SKU, catalog.acquire(new ProductImpl("P1", 10), false));
+        assertEquals(0, catalog.size());
+    }
+
+    @Test
+    public void getSkuDoesNotRegister() throws InvalidAttributesException
+    {
+        assertEquals(ProductCatalog.NO_SKU, catalog.getSku(new ProductImpl("P1", 10)));
+        assertEquals(0, catalog.size());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() throws InvalidAttributesException
+    {
+        for(int i = 0; i < 1000; i++)
+            assertEquals(i + 1, catalog.register(new ProductImpl("P" + i, 1)));
+
+        assertEquals("P999", catalog.getProduct(1000).getName());
+    }
+
+    @Test
+    public void publishReplacesProductsAndRegistersNewOnes() throws InvalidAttributesException
+    {
+        Product plain = new ProductImpl("P1", 10);
+        int sku = catalog.register(plain);
+
+        ProductImpl promoted = new ProductImpl("P1", 10);
+        promoted.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        Product added = new ProductImpl("P2", 4);
+
+        long version = catalog.publish(Arrays.asList(promoted, added));
+
+        assertEquals(1, version);
+        assertEquals(version, catalog.getPriceVersion());
+        assertSame(promoted, catalog.getProduct(sku));
+        assertSame(added, catalog.getProduct(catalog.getSku(added)));
+        assertEquals(2, catalog.size());
+    }
+
+    @Test
+    public void publishGrowsPastInitialCapacity() throws InvalidAttributesException
+    {
+        Product[] feed = new Product[1000];
+        for(int i = 0; i < feed.length; i++)
+            feed[i] = new ProductImpl("P" + i, 1);
+
+        catalog.publish(Arrays.asList(feed));
+
+        assertEquals(1000, catalog.size());
+        assertEquals("P999", catalog.getProduct(catalog.getSku(feed[999])).getName());
+        assertEquals(1001, catalog.register(new ProductImpl("P1000", 1)));
+    }
+
+    @Test
+    public void rollbackRestoresTheReplacedProducts() throws InvalidAttributesException
+    {
+        Product plain = new ProductImpl("P1", 10);
+        int sku = catalog.register(plain);
+
+        ProductImpl promoted = new ProductImpl("P1", 10);
+        promoted.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        Product added = new ProductImpl("P2", 4);
+        catalog.publish(Arrays.asList(promoted, added));
+
+        assertEquals(2, catalog.rollback());
+
+        assertSame(plain, catalog.getProduct(sku));
+        // products first seen in the feed keep their SKU
+        assertSame(added, catalog.getProduct(catalog.getSku(added)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rollbackNeedsAPublishedFeed()
+    {
+        catalog.rollback();
+    }
+}
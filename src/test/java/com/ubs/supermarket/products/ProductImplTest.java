@@ -1,9 +1,12 @@
 package com.ubs.supermarket.products;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.naming.directory.InvalidAttributesException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -96,4 +99,137 @@ public class ProductImplTest {
 
         assertEquals(5,upDatedMap.get(7L),0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getPrice_cachedQuoteIsNotServedAfterSpecialPriceUpdate()
+    {
+        assertEquals(30,product.getPrice(3L),0);
+        assertEquals(30,product.getPrice(3L),0);
+
+        Map<Long, Double> specialPrice = new ConcurrentHashMap<>();
+        specialPrice.put(3L,5.0);
+        product.addSpecialPrice(specialPrice);
+
+        assertEquals(15,product.getPrice(3L),0);
+
+        specialPrice.put(3L,4.0);
+        product.addSpecialPrice(specialPrice);
+
+        assertEquals(12,product.getPrice(3L),0);
+    }
+
+    @Test
+    public void getPrice_tiersCombinedWhateverTheInsertionOrder()
+    {
+        Map<Long, Double> specialPrice = new LinkedHashMap<>();
+        specialPrice.put(64L,3.0);
+        specialPrice.put(17L,5.0);
+        specialPrice.put(33L,4.0);
+
+        product.addSpecialPrice(specialPrice);
+
+        // 64 for 3, 33 for 4, 17 for 5 and 2 for 10 is the cheapest combination
+        assertEquals(64 * 3 + 33 * 4 + 17 * 5 + 2 * 10, product.getPrice(116L),0);
+    }
+
+    @Test
+    public void getPrice_cheapestCombinationRatherThanLargestBundleFirst()
+    {
+        Map<Long, Double> specialPrice = new ConcurrentHashMap<>();
+        specialPrice.put(4L,4.0);
+        specialPrice.put(3L,3.0);
+
+        product.addSpecialPrice(specialPrice);
+
+        // two bundles of 3 rather than a bundle of 4 and 2 for 10
+        assertEquals(18,product.getPrice(6L),0);
+        // two bundles of 4 and one of 3
+        assertEquals(41,product.getPrice(11L),0);
+        assertEquals(16,product.getPrice(4L),0);
+    }
+
+    @Test
+    public void getPrice_specialPriceAboveBasePriceIsNotCharged()
+    {
+        Map<Long, Double> specialPrice = new ConcurrentHashMap<>();
+        specialPrice.put(2L,12.0);
+
+        product.addSpecialPrice(specialPrice);
+
+        assertEquals(40,product.getPrice(4L),0);
+    }
+
+    @Test
+    public void getPrice_wholesaleQuantities()
+    {
+        Map<Long, Double> specialPrice = new ConcurrentHashMap<>();
+        specialPrice.put(6L,4.0);
+        specialPrice.put(100L,3.5);
+        specialPrice.put(1000L,3.0);
+
+        product.addSpecialPrice(specialPrice);
+
+        assertEquals(100_000 * 3.0,product.getPrice(100_000L),0);
+        // 1000 for 3 and a single one for 10
+        assertEquals(1_000_000_000_000L * 3.0 + 10,product.getPrice(1_000_000_000_001L),0);
+        // 99 1000 bundles, 9 of 100 and 16 of 6
+        assertEquals(99_000 * 3.0 + 900 * 3.5 + 96 * 4.0,product.getPrice(99_996L),0);
+    }
+
+    @Test
+    public void getPrice_largeProductCount()
+    {
+        Map<Long, Double> specialPrice = new ConcurrentHashMap<>();
+        specialPrice.put(3L,5.0);
+
+        product.addSpecialPrice(specialPrice);
+
+        assertEquals(5.0 * 3_000_000 + 10, product.getPrice(3_000_001L),0);
+    }
+
+    @Test
+    public void deserializedSpecialPricesAreApplied() throws Exception
+    {
+        Product fromJson = new ObjectMapper().readValue(
+                "{\"name\":\"TestProduct\",\"price\":10,\"specialPriceMap\":{\"3\":5.0}}", ProductImpl.class);
+
+        assertEquals(product, fromJson);
+        assertEquals(25,fromJson.getPrice(4L),0);
+    }
+
+    @Test
+    public void getPrice_updatesSincePricedAreCompiledTogether()
+    {
+        assertEquals(30,product.getPrice(3L),0);
+
+        product.addSpecialPrice(Collections.singletonMap(3L,5.0));
+        product.addSpecialPrice(Collections.singletonMap(2L,4.0));
+
+        assertEquals(15 + 8,product.getPrice(5L),0);
+        assertEquals(15 + 8,product.getPrice(5L),0);
+    }
+
+    @Test
+    public void specialPricesThatCannotBePricedExactlyAreRejected() throws Exception
+    {
+        product.addSpecialPrice(Collections.singletonMap(3L,5.0));
+
+        try
+        {
+            product.addSpecialPrice(Collections.singletonMap(100_000L,1.0));
+            fail("special prices past the table accepted");
+        }
+        catch(IllegalArgumentException expected)
+        {
+        }
+
+        assertEquals(Collections.singletonMap(3L,5.0),product.getSpecialPriceMap());
+        assertEquals(15,product.getPrice(3L),0);
+    }
+
+    @Test(expected = InvalidAttributesException.class)
+    public void productWithSpecialPricesThatCannotBePricedExactlyIsRejected() throws Exception
+    {
+        new ProductImpl("TestProduct",10,Collections.singletonMap(100_000L,1.0));
+    }
+}
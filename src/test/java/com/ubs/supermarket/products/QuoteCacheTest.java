@@ -0,0 +1,84 @@
+package com.ubs.supermarket.products;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class QuoteCacheTest
+{
+
+    private QuoteCache cache;
+
+    private PriceTiers tiers;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    @Before
+    public void setUp()
+    {
+        cache = new QuoteCache();
+        tiers = PriceTiers.compile(Collections.singletonMap(3L, 5.0), PriceTiers.none(10));
+
+        hits = QuoteCache.hits();
+        misses = QuoteCache.misses();
+        evictions = QuoteCache.evictions();
+    }
+
+    @Test
+    public void repeatedQuantitiesAreServedFromTheCache()
+    {
+        assertEquals(25, cache.price(4, tiers), 0);
+        assertEquals(25, cache.price(4, tiers), 0);
+        assertEquals(15, cache.price(3, tiers), 0);
+        assertEquals(25, cache.price(4, tiers), 0);
+
+        assertStats(2, 2, 0);
+    }
+
+    @Test
+    public void quotesOfAnOlderVersionAreRecomputed()
+    {
+        cache.price(3, tiers);
+
+        PriceTiers updated = PriceTiers.compile(Collections.singletonMap(3L, 4.0), tiers);
+
+        assertEquals(tiers.version() + 1, updated.version());
+        assertEquals(12, cache.price(3, updated), 0);
+        assertEquals(12, cache.price(3, updated), 0);
+
+        assertStats(1, 2, 0);
+    }
+
+    @Test
+    public void quantitiesSharingASlotEvictEachOther()
+    {
+        cache.price(1, tiers);
+        assertEquals(63 * 5 + 2 * 10, cache.price(QuoteCache.SIZE + 1, tiers), 0);
+        cache.price(1, tiers);
+
+        assertStats(0, 3, 2);
+    }
+
+    @Test
+    public void emptyQuantitiesAreNotCached()
+    {
+        assertEquals(0, cache.price(0, tiers), 0);
+        assertEquals(0, cache.price(-2, tiers), 0);
+
+        assertStats(0, 0, 0);
+    }
+
+    private void assertStats(long hitCount, long missCount, long evictionCount)
+    {
+        assertEquals(hitCount, QuoteCache.hits() - hits);
+        assertEquals(missCount, QuoteCache.misses() - misses);
+        assertEquals(evictionCount, QuoteCache.evictions() - evictions);
+    }
+}
@@ -0,0 +1,260 @@
+package com.ubs.supermarket.promotions;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.basket.OffHeapBasketFactory;
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PromotedBasketTest
+{
+
+    private final Map<String, AtomicInteger> evaluations = new HashMap<>();
+
+    private PromotionEngine engine;
+
+    private ProductCatalog catalog;
+
+    private BasketFactory factory;
+
+    private ProductImpl milk;
+
+    private ProductImpl cheese;
+
+    private ProductImpl bread;
+
+    private ProductImpl soap;
+
+    private ProductImpl towel;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Map<String, List<String>> categories = new HashMap<>();
+        categories.put("dairy", Arrays.asList("Milk", "Cheese"));
+        categories.put("bakery", Collections.singletonList("Bread"));
+
+        engine = new PromotionEngine(categories, Arrays.asList(
+                counted(new CategoryDiscount("dairy", 10)),
+                counted(new BuyXGetY("Soap", 1, 1)),
+                counted(new MixAndMatch("breakfast", Collections.singleton("Milk"), Collections.singleton("bakery"), 2, 2))));
+        catalog = new ProductCatalog();
+        factory = engine.decorate(BasketFactory.onHeap(catalog), catalog);
+
+        milk = new ProductImpl("Milk", 1);
+        cheese = new ProductImpl("Cheese", 4);
+        bread = new ProductImpl("Bread", 2);
+        soap = new ProductImpl("Soap", 3);
+        towel = new ProductImpl("Towel", 3);
+    }
+
+    @Test
+    public void rulesAreIndexedByProductAndCategory()
+    {
+        assertEquals(Arrays.asList("dairy", "breakfast"), names(engine.rulesFor(milk)));
+        assertEquals(Collections.singletonList("dairy"), names(engine.rulesFor(cheese)));
+        assertEquals(Collections.singletonList("breakfast"), names(engine.rulesFor(bread)));
+        assertEquals(Collections.singletonList("soap"), names(engine.rulesFor(soap)));
+        assertTrue(engine.rulesFor(towel).isEmpty());
+    }
+
+    @Test
+    public void discountsAreTakenOffTheTotal()
+    {
+        Basket basket = factory.create();
+
+        basket.addProducts(Arrays.asList(cheese, cheese, soap));
+        assertEquals(8 * 0.9 + 3, basket.getTotalPrice(), 1e-9);
+
+        // a free soap, both breads make a breakfast bundle for 2 and the milk is charged 10% off
+        basket.addProducts(Arrays.asList(bread, bread, milk, soap));
+        assertEquals((8 + 1) * 0.9 + 3 + 2, basket.getTotalPrice(), 1e-9);
+
+        basket.removeProducts(Arrays.asList(bread, milk));
+        assertEquals(8 * 0.9 + 3 + 2, basket.getTotalPrice(), 1e-9);
+    }
+
+    @Test
+    public void onlyTheRulesOfChangedProductsAreEvaluated()
+    {
+        Basket basket = factory.create();
+
+        basket.addProducts(Collections.singletonList(cheese));
+        assertEvaluations(1, 0, 0);
+
+        basket.addProducts(Arrays.asList(towel, towel));
+        assertEvaluations(1, 0, 0);
+
+        basket.addProducts(Arrays.asList(soap, towel));
+        assertEvaluations(1, 1, 0);
+
+        basket.addProducts(Collections.singletonList(bread));
+        assertEvaluations(1, 1, 1);
+
+        basket.removeProducts(Collections.singletonList(milk));
+        assertEvaluations(2, 1, 2);
+    }
+
+    @Test
+    public void restoredBasketsArePromoted()
+    {
+        Map<Product, Long> lines = new HashMap<>();
+        lines.put(cheese, 2L);
+        lines.put(bread, 2L);
+
+        Basket basket = factory.create(UUID.randomUUID(), lines);
+
+        assertEquals(8 * 0.9 + 2, basket.getTotalPrice(), 1e-9);
+    }
+
+    @Test
+    public void offHeapBasketsArePromoted()
+    {
+        Basket basket = engine.decorate(new OffHeapBasketFactory(catalog, 1 << 16), catalog).create();
+
+        basket.addProducts(Arrays.asList(bread, bread, bread, cheese));
+        assertEquals(4 * 0.9 + 6 - 2, basket.getTotalPrice(), 1e-9);
+
+        basket.release();
+        assertEquals(0, basket.getTotalPrice(), 0);
+    }
+
+    @Test
+    public void conflictingChangeLeavesTheDiscountsUnchanged()
+    {
+        Basket basket = factory.create();
+        basket.addProducts(Arrays.asList(bread, bread));
+
+        try
+        {
+            basket.removeProducts(Collections.singletonList(bread), 0);
+            fail("stale version accepted");
+        }
+        catch(VersionConflictException expected)
+        {
+            assertEquals(2, basket.getTotalPrice(), 0);
+        }
+    }
+
+    @Test
+    public void concurrentChangesEndWithTheDiscountsOfTheFinalLines() throws Exception
+    {
+        Basket basket = factory.create();
+        int threads = 4;
+        int rounds = 2_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    for(int i = 0; i < rounds; i++)
+                    {
+                        basket.addProducts(Arrays.asList(bread, milk, towel));
+                        basket.removeProducts(Collections.singletonList(milk));
+                    }
+                }));
+            }
+            for(Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        long breads = (long) threads * rounds;
+        assertEquals(breads * 2 - breads / 2 * 2 + breads * 3, basket.getTotalPrice(), 1e-6);
+    }
+
+    @Test
+    public void overlappingRulesStackOnWhatIsLeftToPay()
+    {
+        Map<String, List<String>> categories = Collections.singletonMap("dairy", Arrays.asList("Milk", "Cheese"));
+        Basket basket = new PromotionEngine(categories, Arrays.asList(
+                new CategoryDiscount("dairy", 10),
+                new BuyXGetY("Milk", 1, 1),
+                new MixAndMatch("two cheeses", Collections.singleton("Cheese"), Collections.emptySet(), 2, 5)))
+                .decorate(BasketFactory.onHeap(catalog), catalog).create();
+
+        // a free milk out of two at 0.9 each, not 10% of 2 and one more at its full price
+        basket.addProducts(Arrays.asList(milk, milk));
+        assertEquals(0.9, basket.getTotalPrice(), 1e-9);
+
+        // the cheese bundle costs 5 whatever the dairy discount took off the cheeses before
+        basket.addProducts(Arrays.asList(cheese, cheese));
+        assertEquals(0.9 + 5, basket.getTotalPrice(), 1e-9);
+
+        basket.removeProducts(Collections.singletonList(milk));
+        assertEquals(0.9 + 5, basket.getTotalPrice(), 1e-9);
+    }
+
+    private PromotionRule counted(PromotionRule rule)
+    {
+        AtomicInteger count = new AtomicInteger();
+        String name = rule.getName().startsWith("buy") ? "soap" : rule.getName().startsWith("10") ? "dairy" : rule.getName();
+        evaluations.put(name, count);
+
+        return new PromotionRule(name, rule.getProducts(), rule.getCategories())
+        {
+            @Override
+            public Map<Product, Double> discount(Map<Product, Long> lines, Map<Product, Double> prices)
+            {
+                count.incrementAndGet();
+                return rule.discount(lines, prices);
+            }
+        };
+    }
+
+    private void assertEvaluations(int dairy, int soap, int breakfast)
+    {
+        assertEquals(dairy, evaluations.get("dairy").get());
+        assertEquals(soap, evaluations.get("soap").get());
+        assertEquals(breakfast, evaluations.get("breakfast").get());
+    }
+
+    private static List<String> names(Collection<PromotionRule> rules)
+    {
+        List<String> names = new ArrayList<>();
+        rules.forEach(rule -> names.add(rule.getName()));
+        return names;
+    }
+
+    @Test
+    public void publishedPricesReevaluateTheDiscounts() throws Exception
+    {
+        Basket basket = factory.create();
+        basket.addProducts(Arrays.asList(cheese, cheese));
+        assertEquals(8 * 0.9, basket.getTotalPrice(), 1e-9);
+
+        ProductImpl cheaper = new ProductImpl("Cheese", 4);
+        cheaper.addSpecialPrice(Collections.singletonMap(2L, 3.0));
+        catalog.publish(Collections.singletonList(cheaper));
+        assertEquals(6 * 0.9, basket.getTotalPrice(), 1e-9);
+
+        catalog.rollback();
+        assertEquals(8 * 0.9, basket.getTotalPrice(), 1e-9);
+    }
+}
@@ -0,0 +1,97 @@
+package com.ubs.supermarket.promotions;
+
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PromotionRuleTest
+{
+
+    private ProductImpl milk;
+
+    private ProductImpl cheese;
+
+    private ProductImpl bread;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        milk = new ProductImpl("Milk", 1);
+        cheese = new ProductImpl("Cheese", 4);
+        bread = new ProductImpl("Bread", 2);
+    }
+
+    @Test
+    public void categoryDiscountIsTakenFromTheLinePrices()
+    {
+        cheese.addSpecialPrice(Collections.singletonMap(2L, 3.0));
+
+        Map<Product, Long> lines = new HashMap<>();
+        lines.put(milk, 4L);
+        lines.put(cheese, 2L);
+
+        assertEquals((4 + 6) * 0.1, new CategoryDiscount("dairy", 10).discount(lines), 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void categoryDiscountAboveTheWholePriceIsRejected()
+    {
+        new CategoryDiscount("dairy", 120);
+    }
+
+    @Test
+    public void buyXGetYGivesAwayEveryFullGroup()
+    {
+        BuyXGetY rule = new BuyXGetY("Milk", 2, 1);
+
+        assertEquals(0, rule.discount(Collections.singletonMap(milk, 2L)), 0);
+        assertEquals(1, rule.discount(Collections.singletonMap(milk, 3L)), 0);
+        assertEquals(2, rule.discount(Collections.singletonMap(milk, 8L)), 0);
+    }
+
+    @Test
+    public void buyXGetYNeverChargesMoreThanTheSpecialPrice()
+    {
+        // 3 for 2.5 each is cheaper than 2 charged at 4 each with a free one
+        cheese.addSpecialPrice(Collections.singletonMap(3L, 2.5));
+
+        assertEquals(0, new BuyXGetY("Cheese", 2, 1).discount(Collections.singletonMap(cheese, 3L)), 0);
+    }
+
+    @Test
+    public void mixAndMatchBundlesTheDearestProducts()
+    {
+        MixAndMatch rule = new MixAndMatch("any 3 for 5", Arrays.asList("Milk", "Cheese", "Bread"),
+                Collections.emptySet(), 3, 5);
+
+        Map<Product, Long> lines = new HashMap<>();
+        lines.put(milk, 2L);
+        lines.put(cheese, 1L);
+        assertEquals(4 + 1 + 1 - 5, rule.discount(lines), 0);
+
+        // cheese and both breads make the bundle, the milk is charged as usual
+        lines.put(bread, 2L);
+        assertEquals(4 + 2 + 2 - 5, rule.discount(lines), 0);
+
+        lines.clear();
+        lines.put(milk, 3L);
+        assertEquals(0, rule.discount(lines), 0);
+
+        lines.put(milk, 2L);
+        assertEquals(0, rule.discount(lines), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ruleWithoutProductsIsRejected()
+    {
+        new MixAndMatch("nothing", Collections.emptySet(), Collections.emptySet(), 2, 1);
+    }
+}
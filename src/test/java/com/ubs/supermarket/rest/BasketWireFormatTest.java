@@ -0,0 +1,54 @@
+package com.ubs.supermarket.rest;
+
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class BasketWireFormatTest
+{
+
+    @Test
+    public void acceptHeaderPicksTheFormat()
+    {
+        assertEquals(BasketWireFormat.JSON, BasketWireFormat.forAccept(null));
+        assertEquals(BasketWireFormat.JSON, BasketWireFormat.forAccept("*/*"));
+        assertEquals(BasketWireFormat.JSON, BasketWireFormat.forAccept("text/html, application/json"));
+        assertEquals(BasketWireFormat.CBOR, BasketWireFormat.forAccept("application/cbor"));
+        assertEquals(BasketWireFormat.SMILE, BasketWireFormat.forAccept("application/json;q=0.1, application/x-jackson-smile"));
+        assertEquals(BasketWireFormat.JSON, BasketWireFormat.forAccept("application/cbor;q=0, application/json"));
+        assertEquals(BasketWireFormat.JSON, BasketWireFormat.forAccept("not a media type;;"));
+    }
+
+    @Test
+    public void contentTypePicksTheFormat()
+    {
+        assertEquals(BasketWireFormat.JSON, BasketWireFormat.forContentType(null));
+        assertEquals(BasketWireFormat.JSON, BasketWireFormat.forContentType(MediaType.APPLICATION_JSON));
+        assertEquals(BasketWireFormat.CBOR, BasketWireFormat.forContentType(MediaType.valueOf("application/cbor")));
+        assertEquals(BasketWireFormat.SMILE, BasketWireFormat.forContentType(MediaType.valueOf("application/x-jackson-smile")));
+    }
+
+    @Test
+    public void binaryProductListsAreSmallerAndReadBack() throws Exception
+    {
+        ProductImpl product = new ProductImpl("P1", 10);
+        product.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+        ProductWrapper products = new ProductWrapper(Arrays.asList(product, product, product));
+
+        int json = BasketWireFormat.JSON.getObjectMapper().writeValueAsBytes(products).length;
+        for(BasketWireFormat format : Arrays.asList(BasketWireFormat.CBOR, BasketWireFormat.SMILE))
+        {
+            byte[] encoded = format.getObjectMapper().writeValueAsBytes(products);
+            assertTrue(format + " is " + encoded.length + " bytes", encoded.length < json);
+
+            ProductWrapper read = format.getObjectMapper().readValue(encoded, ProductWrapper.class);
+            assertEquals(products.getProductList(), read.getProductList());
+            assertEquals(5.0, read.getProductList().get(0).getSpecialPriceMap().get(3L), 0);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketFactory;
+import com.ubs.supermarket.cluster.ClusterMembership;
+import com.ubs.supermarket.persistence.BasketStore;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.service.BasketService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class ReactiveBasketHandlerTest
+{
+
+    private static final String PRODUCTS =
+            "{\"productlist\":[{\"name\":\"P1\",\"price\":10,\"specialPriceMap\":{\"3\":5}},"
+                    + "{\"name\":\"P1\",\"price\":10,\"specialPriceMap\":{\"3\":5}},"
+                    + "{\"name\":\"P1\",\"price\":10,\"specialPriceMap\":{\"3\":5}},"
+                    + "{\"name\":\"P2\",\"price\":15}]}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BasketService basketService;
+
+    private BasketStore basketStore;
+
+    private Scheduler workers;
+
+    private WebTestClient client;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        basketService = new BasketService();
+        basketStore = new BasketStore(basketService, BasketFactory.onHeap(new ProductCatalog()), folder.getRoot().getPath(), 1 << 16, 0);
+        basketStore.open();
+
+        workers = Schedulers.newParallel("test-worker", 2);
+        client = WebTestClient.bindToRouterFunction(new ReactiveBasketHandler(basketService, basketStore, workers).routes()).build();
+    }
+
+    @After
+    public void tearDown()
+    {
+        workers.dispose();
+        basketStore.close();
+    }
+
+    @Test
+    public void basketLifecycle() throws Exception
+    {
+        URI location = client.post().uri("/basket").exchange()
+                .expectStatus().isCreated()
+                .returnResult(Void.class).getResponseHeaders().getLocation();
+        assertNotNull(location);
+
+        String basket = location.getPath();
+        assertEquals(1, basketService.size());
+
+        String added = client.put().uri(basket + "/addProducts")
+                .contentType(MediaType.APPLICATION_JSON).syncBody(PRODUCTS).exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody();
+
+        JsonNode body = new ObjectMapper().readTree(added);
+        assertEquals(2, body.get("lines").size());
+        assertEquals(30, body.get("total").asDouble(), 0);
+
+        client.put().uri(basket + "/removeProducts")
+                .contentType(MediaType.APPLICATION_JSON).syncBody("{\"productlist\":[{\"name\":\"P2\",\"price\":15}]}").exchange()
+                .expectStatus().isOk();
+
+        client.get().uri(basket + "/total").exchange()
+                .expectStatus().isOk()
+                .expectBody().json("{\"total\":15.0}");
+
+        client.get().uri(basket).exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.lines[0].count").isEqualTo(3);
+
+        client.delete().uri(basket).exchange().expectStatus().isNoContent();
+        client.delete().uri(basket).exchange().expectStatus().isNotFound();
+        assertEquals(0, basketService.size());
+    }
+
+    @Test
+    public void conditionalRequests()
+    {
+        String basket = client.post().uri("/basket").exchange()
+                .returnResult(Void.class).getResponseHeaders().getLocation().getPath();
+
+        String eTag = client.get().uri(basket).exchange()
+                .expectStatus().isOk()
+                .returnResult(String.class).getResponseHeaders().getETag();
+        assertNotNull(eTag);
+
+        client.get().uri(basket + "/total").header("If-None-Match", eTag).exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals("ETag", eTag);
+
+        // the same version written in another format is another representation
+        String cborTag = client.get().uri(basket).header("If-None-Match", eTag).accept(MediaType.valueOf("application/cbor"))
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(byte[].class).getResponseHeaders().getETag();
+        assertNotEquals(eTag, cborTag);
+
+        String changed = client.put().uri(basket + "/addProducts").header("If-Match", eTag)
+                .contentType(MediaType.APPLICATION_JSON).syncBody(PRODUCTS).exchange()
+                .expectStatus().isOk()
+                .returnResult(String.class).getResponseHeaders().getETag();
+        assertNotEquals(eTag, changed);
+
+        client.put().uri(basket + "/removeProducts").header("If-Match", eTag)
+                .contentType(MediaType.APPLICATION_JSON).syncBody(PRODUCTS).exchange()
+                .expectStatus().isEqualTo(412);
+
+        client.get().uri(basket).header("If-None-Match", eTag).exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.total").isEqualTo(30.0);
+    }
+
+    @Test
+    public void deltaResponses()
+    {
+        String basket = client.post().uri("/basket").exchange()
+                .returnResult(Void.class).getResponseHeaders().getLocation().getPath();
+
+        client.put().uri(basket + "/addProducts?delta=true").header("If-Match", BasketETag.of(0, BasketWireFormat.JSON))
+                .contentType(MediaType.APPLICATION_JSON).syncBody(PRODUCTS).exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.baseVersion").isEqualTo(0)
+                .jsonPath("$.version").isEqualTo(1)
+                .jsonPath("$.lines.length()").isEqualTo(2)
+                .jsonPath("$.total").isEqualTo(30.0);
+
+        client.put().uri(basket + "/removeProducts?delta=true").header("If-Match", BasketETag.of(1, BasketWireFormat.JSON))
+                .contentType(MediaType.APPLICATION_JSON).syncBody("{\"productlist\":[{\"name\":\"P2\",\"price\":15}]}").exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals("ETag", BasketETag.of(2, BasketWireFormat.JSON))
+                .expectBody()
+                .jsonPath("$.lines.length()").isEqualTo(1)
+                .jsonPath("$.lines[0].name").isEqualTo("P2")
+                .jsonPath("$.lines[0].count").isEqualTo(0)
+                .jsonPath("$.total").isEqualTo(15.0);
+
+        // without If-Match the version the caller holds is unknown
+        client.put().uri(basket + "/addProducts?delta=true")
+                .contentType(MediaType.APPLICATION_JSON).syncBody("{\"productlist\":[{\"name\":\"P2\",\"price\":15}]}").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.baseVersion").doesNotExist()
+                .jsonPath("$.lines.length()").isEqualTo(2);
+    }
+
+    @Test
+    public void unknownAndInvalidBaskets()
+    {
+        client.get().uri("/basket/" + UUID.randomUUID()).exchange().expectStatus().isNotFound();
+        client.get().uri("/basket/not-a-uuid/total").exchange().expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void prettyPrintingOnRequest()
+    {
+        String basket = client.post().uri("/basket").exchange()
+                .returnResult(Void.class).getResponseHeaders().getLocation().getPath();
+
+        String compact = client.get().uri(basket + "/total").exchange()
+                .expectBody(String.class).returnResult().getResponseBody();
+        String pretty = client.get().uri(basket + "/total?pretty=true").exchange()
+                .expectBody(String.class).returnResult().getResponseBody();
+
+        assertFalse(compact.contains("\n"));
+        assertTrue(pretty.contains("\n"));
+    }
+
+    @Test
+    public void binaryBodies() throws Exception
+    {
+        String basket = client.post().uri("/basket").exchange()
+                .returnResult(Void.class).getResponseHeaders().getLocation().getPath();
+
+        ObjectMapper cbor = BasketWireFormat.CBOR.getObjectMapper();
+        byte[] products = cbor.writeValueAsBytes(new ObjectMapper().readTree(PRODUCTS));
+
+        byte[] added = client.put().uri(basket + "/addProducts")
+                .contentType(BasketWireFormat.CBOR.getMediaType()).accept(BasketWireFormat.SMILE.getMediaType())
+                .syncBody(products).exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(BasketWireFormat.SMILE.getMediaType())
+                .expectBody(byte[].class).returnResult().getResponseBody();
+
+        JsonNode body = BasketWireFormat.SMILE.getObjectMapper().readTree(added);
+        assertEquals(2, body.get("lines").size());
+        assertEquals(30, body.get("total").asDouble(), 0);
+
+        client.put().uri(basket + "/removeProducts")
+                .contentType(BasketWireFormat.CBOR.getMediaType()).syncBody(new byte[]{(byte) 0xff, 0x00}).exchange()
+                .expectStatus().isBadRequest();
+
+        client.get().uri(basket + "/total").exchange()
+                .expectStatus().isOk()
+                .expectBody().json("{\"total\":30.0}");
+    }
+
+    @Test
+    public void basketsOfOtherNodesAreRefused()
+    {
+        ClusterMembership membership = new ClusterMembership("http://localhost:8080",
+                Arrays.asList("http://localhost:8080", "http://localhost:8090"), "secret");
+        WebTestClient clusterClient = WebTestClient.bindToRouterFunction(
+                new ReactiveBasketHandler(basketService, basketStore, membership, workers).routes()).build();
+        UUID remote = UUID.randomUUID();
+        while(membership.isLocal(remote))
+            remote = UUID.randomUUID();
+
+        clusterClient.get().uri("/basket/" + remote).exchange()
+                .expectStatus().isEqualTo(421)
+                .expectBody(String.class).isEqualTo("Basket " + remote + " is served by http://localhost:8090");
+        clusterClient.delete().uri("/basket/" + remote).exchange().expectStatus().isEqualTo(421);
+
+        UUID local = UUID.randomUUID();
+        while(!membership.isLocal(local))
+            local = UUID.randomUUID();
+        basketStore.restore(local, Collections.emptyMap());
+        clusterClient.get().uri("/basket/" + local).exchange().expectStatus().isOk();
+    }
+
+    @Test
+    public void lookupsRunOnTheWorkers()
+    {
+        List<String> lookupThreads = new CopyOnWriteArrayList<>();
+        BasketService recordingService = new BasketService()
+        {
+            @Override
+            public Optional<Basket> getBasketByID(UUID basketID)
+            {
+                lookupThreads.add(Thread.currentThread().getName());
+                return super.getBasketByID(basketID);
+            }
+        };
+        BasketStore store = new BasketStore(recordingService, new ProductCatalog());
+        WebTestClient recordingClient = WebTestClient.bindToRouterFunction(
+                new ReactiveBasketHandler(recordingService, store, workers).routes()).build();
+
+        String basket = recordingClient.post().uri("/basket").exchange()
+                .returnResult(Void.class).getResponseHeaders().getLocation().getPath();
+        recordingClient.put().uri(basket + "/addProducts").contentType(MediaType.APPLICATION_JSON)
+                .syncBody(PRODUCTS).exchange().expectStatus().isOk();
+        recordingClient.get().uri(basket).exchange().expectStatus().isOk();
+        recordingClient.get().uri(basket + "/total").exchange().expectStatus().isOk();
+
+        assertEquals(3, lookupThreads.size());
+        for(String thread : lookupThreads)
+            assertTrue(thread, thread.startsWith("test-worker"));
+    }
+}
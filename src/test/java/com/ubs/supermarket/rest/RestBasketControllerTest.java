@@ -0,0 +1,291 @@
+package com.ubs.supermarket.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.exception.DataNotFoundException;
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.persistence.BasketStore;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.BasketBatchService;
+import com.ubs.supermarket.service.BasketService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RestBasketControllerTest
+{
+
+    private BasketBatchService basketBatchService;
+
+    private RestBasketController controller;
+
+    private Basket basket;
+
+    private ProductImpl p1;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        BasketService basketService = new BasketService();
+        ProductCatalog catalog = new ProductCatalog();
+        basketBatchService = new BasketBatchService(basketService);
+        controller = new RestBasketController(basketService, new BasketStore(basketService, catalog), basketBatchService);
+
+        basket = new BasketImpl(catalog);
+        basketService.addBasket(basket);
+
+        p1 = new ProductImpl("P1", 10);
+        p1.addSpecialPrice(Collections.singletonMap(3L, 5.0));
+    }
+
+    @After
+    public void tearDown()
+    {
+        RequestContextHolder.resetRequestAttributes();
+        basketBatchService.shutdown();
+    }
+
+    @Test
+    public void basketDetailsAreCompactJson() throws Exception
+    {
+        basket.addProducts(Arrays.asList(p1, p1, p1, p1));
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.basketDetails(basket.getBasketID(), false, null, response);
+
+        String json = response.getContentAsString();
+        assertFalse(json.contains("\n"));
+
+        JsonNode body = new ObjectMapper().readTree(json);
+        assertEquals(basket.getBasketID().toString(), body.get("basketID").asText());
+        assertEquals(1, body.get("lines").size());
+
+        JsonNode line = body.get("lines").get(0);
+        assertEquals("P1", line.get("name").asText());
+        assertEquals(10, line.get("price").asDouble(), 0);
+        assertEquals(5.0, line.get("specialPriceMap").get("3").asDouble(), 0);
+        assertEquals(4, line.get("count").asLong());
+        assertEquals(25, body.get("total").asDouble(), 0);
+    }
+
+    @Test
+    public void prettyPrintingOnRequest() throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.checkTotalPrice(basket.getBasketID(), true, null, response);
+
+        assertTrue(response.getContentAsString().contains("\n"));
+        assertEquals(0, new ObjectMapper().readTree(response.getContentAsString()).get("total").asDouble(), 0);
+    }
+
+    @Test
+    public void binaryResponseOnRequest() throws Exception
+    {
+        basket.addProducts(Arrays.asList(p1, p1, p1, p1));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Accept", "application/json;q=0.5, application/cbor");
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.basketDetails(basket.getBasketID(), true, null, response);
+
+        assertEquals("application/cbor", response.getContentType());
+        JsonNode body = BasketWireFormat.CBOR.getObjectMapper().readTree(response.getContentAsByteArray());
+        assertEquals(4, body.get("lines").get(0).get("count").asLong());
+        assertEquals(25, body.get("total").asDouble(), 0);
+    }
+
+    @Test
+    public void addProductsRespondsWithLinesAndTotal() throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.addProducts(basket.getBasketID(), new ProductWrapper(Arrays.asList(p1, p1, p1)), false, null, false, response);
+
+        JsonNode body = new ObjectMapper().readTree(response.getContentAsString());
+        assertEquals(3, body.get("lines").get(0).get("count").asLong());
+        assertEquals(15, body.get("total").asDouble(), 0);
+    }
+
+    @Test
+    public void unchangedBasketIsNotSerializedAgain() throws Exception
+    {
+        basket.addProducts(Arrays.asList(p1, p1));
+
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        controller.basketDetails(basket.getBasketID(), false, null, first);
+        String eTag = first.getHeader("ETag");
+        assertNotNull(eTag);
+
+        MockHttpServletResponse unchanged = new MockHttpServletResponse();
+        controller.basketDetails(basket.getBasketID(), false, eTag, unchanged);
+        assertEquals(304, unchanged.getStatus());
+        assertEquals(eTag, unchanged.getHeader("ETag"));
+        assertEquals("", unchanged.getContentAsString());
+
+        MockHttpServletResponse total = new MockHttpServletResponse();
+        controller.checkTotalPrice(basket.getBasketID(), false, "W/" + eTag, total);
+        assertEquals(304, total.getStatus());
+
+        basket.addProducts(Collections.singletonList(p1));
+
+        MockHttpServletResponse changed = new MockHttpServletResponse();
+        controller.basketDetails(basket.getBasketID(), false, eTag, changed);
+        assertEquals(200, changed.getStatus());
+        assertNotEquals(eTag, changed.getHeader("ETag"));
+        assertEquals(15, new ObjectMapper().readTree(changed.getContentAsString()).get("total").asDouble(), 0);
+    }
+
+    @Test
+    public void changesAreOnlyAppliedToTheMatchingVersion() throws Exception
+    {
+        MockHttpServletResponse read = new MockHttpServletResponse();
+        controller.basketDetails(basket.getBasketID(), false, null, read);
+        String eTag = read.getHeader("ETag");
+
+        MockHttpServletResponse added = new MockHttpServletResponse();
+        controller.addProducts(basket.getBasketID(), new ProductWrapper(Arrays.asList(p1, p1)), false, eTag, false, added);
+        assertEquals(200, added.getStatus());
+        assertNotEquals(eTag, added.getHeader("ETag"));
+
+        try
+        {
+            controller.removeProducts(basket.getBasketID(), new ProductWrapper(Collections.singletonList(p1)), false, eTag, false,
+                    new MockHttpServletResponse());
+            fail("stale If-Match accepted");
+        }
+        catch(VersionConflictException expected)
+        {
+            assertEquals(2L, (long) basket.getAllProducts().get(p1));
+        }
+
+        MockHttpServletResponse removed = new MockHttpServletResponse();
+        controller.removeProducts(basket.getBasketID(), new ProductWrapper(Collections.singletonList(p1)), false,
+                added.getHeader("ETag"), false, removed);
+        assertEquals(1L, (long) basket.getAllProducts().get(p1));
+    }
+
+    @Test(expected = VersionConflictException.class)
+    public void ifMatchFromAnotherStartIsRejected() throws Exception
+    {
+        controller.addProducts(basket.getBasketID(), new ProductWrapper(Collections.singletonList(p1)), false, "\"0\"", false,
+                new MockHttpServletResponse());
+    }
+
+    @Test
+    public void deltaHoldsOnlyTheChangedLines() throws Exception
+    {
+        ProductImpl p2 = new ProductImpl("P2", 15);
+        ProductImpl p3 = new ProductImpl("P3", 20);
+        basket.addProducts(Arrays.asList(p1, p2, p2, p3));
+
+        long baseVersion = basket.getVersion();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.removeProducts(basket.getBasketID(), new ProductWrapper(Arrays.asList(p2, p2, p1, new ProductImpl("P4", 1))),
+                false, BasketETag.of(baseVersion, BasketWireFormat.JSON), true, response);
+
+        JsonNode body = new ObjectMapper().readTree(response.getContentAsString());
+        assertEquals(basket.getBasketID().toString(), body.get("basketID").asText());
+        assertEquals(baseVersion, body.get("baseVersion").asLong());
+        assertEquals(basket.getVersion(), body.get("version").asLong());
+        assertEquals(BasketETag.of(basket.getVersion(), BasketWireFormat.JSON), response.getHeader("ETag"));
+        assertEquals(20, body.get("total").asDouble(), 0);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("P1", 0L);
+        expected.put("P2", 0L);
+        expected.put("P4", 0L);
+        assertEquals(expected, counts(body));
+    }
+
+    @Test
+    public void appliedDeltaGivesTheFullBasket() throws Exception
+    {
+        ProductImpl p2 = new ProductImpl("P2", 15);
+        basket.addProducts(Arrays.asList(p1, p2, p2));
+
+        MockHttpServletResponse before = new MockHttpServletResponse();
+        controller.basketDetails(basket.getBasketID(), false, null, before);
+        Map<String, Long> lines = counts(new ObjectMapper().readTree(before.getContentAsString()));
+
+        MockHttpServletResponse added = new MockHttpServletResponse();
+        controller.addProducts(basket.getBasketID(), new ProductWrapper(Arrays.asList(p1, p1, new ProductImpl("P3", 20))),
+                false, before.getHeader("ETag"), true, added);
+        applyDelta(lines, new ObjectMapper().readTree(added.getContentAsString()));
+
+        MockHttpServletResponse removed = new MockHttpServletResponse();
+        controller.removeProducts(basket.getBasketID(), new ProductWrapper(Arrays.asList(p2, p2, p1)),
+                false, added.getHeader("ETag"), true, removed);
+        JsonNode delta = new ObjectMapper().readTree(removed.getContentAsString());
+        applyDelta(lines, delta);
+
+        MockHttpServletResponse after = new MockHttpServletResponse();
+        controller.basketDetails(basket.getBasketID(), false, null, after);
+        JsonNode full = new ObjectMapper().readTree(after.getContentAsString());
+
+        assertEquals(counts(full), lines);
+        assertEquals(full.get("total").asDouble(), delta.get("total").asDouble(), 0);
+        assertEquals(after.getHeader("ETag"), removed.getHeader("ETag"));
+    }
+
+    @Test
+    public void unconditionalChangeAnswersTheWholeBasket() throws Exception
+    {
+        ProductImpl p2 = new ProductImpl("P2", 15);
+        basket.addProducts(Arrays.asList(p1, p2));
+
+        // another client's change the caller has not seen
+        basket.addProducts(Collections.singletonList(p2));
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.addProducts(basket.getBasketID(), new ProductWrapper(Collections.singletonList(p1)),
+                false, null, true, response);
+
+        JsonNode body = new ObjectMapper().readTree(response.getContentAsString());
+        assertNull(body.get("baseVersion"));
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("P1", 2L);
+        expected.put("P2", 2L);
+        assertEquals(expected, counts(body));
+        assertEquals(BasketETag.of(basket.getVersion(), BasketWireFormat.JSON), response.getHeader("ETag"));
+    }
+
+    private static Map<String, Long> counts(JsonNode body)
+    {
+        Map<String, Long> counts = new HashMap<>();
+        body.get("lines").forEach(line -> counts.put(line.get("name").asText(), line.get("count").asLong()));
+        return counts;
+    }
+
+    private static void applyDelta(Map<String, Long> lines, JsonNode delta)
+    {
+        counts(delta).forEach((name, count) ->
+        {
+            if(count == 0)
+                lines.remove(name);
+            else
+                lines.put(name, count);
+        });
+    }
+
+    @Test(expected = DataNotFoundException.class)
+    public void unknownBasket() throws Exception
+    {
+        controller.basketDetails(UUID.randomUUID(), false, null, new MockHttpServletResponse());
+    }
+}
@@ -0,0 +1,148 @@
+package com.ubs.supermarket.rest;
+
+import com.ubs.supermarket.cluster.ClusterMembership;
+import com.ubs.supermarket.exception.ForbiddenRequestException;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import com.ubs.supermarket.service.PriceImportService;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RestCatalogControllerTest
+{
+    private static final String SECRET = "secret";
+
+    private static final String FEED_SECRET = "feed-secret";
+
+    private static final String SELF = "http://localhost:8080";
+
+    private ProductCatalog catalog;
+
+    private RestCatalogController controller;
+
+    @Before
+    public void setUp()
+    {
+        catalog = new ProductCatalog();
+        controller = new RestCatalogController(new PriceImportService(catalog),
+                new ClusterMembership(SELF, Collections.emptyList(), SECRET), FEED_SECRET);
+    }
+
+    @Test
+    public void feedWithoutTheSecretIsRefused() throws Exception
+    {
+        try
+        {
+            controller.importPrices(feed("[{\"name\":\"Bread\",\"price\":2}]"), "guess", null, null);
+            fail("feed accepted without the feed secret");
+        }
+        catch(ForbiddenRequestException expected)
+        {
+        }
+
+        try
+        {
+            controller.importPrices(feed("[{\"name\":\"Bread\",\"price\":2}]"), null, SECRET, null);
+            fail("feed accepted from a client with the cluster secret");
+        }
+        catch(ForbiddenRequestException expected)
+        {
+        }
+
+        try
+        {
+            controller.importPrices(feed("[{\"name\":\"Bread\",\"price\":2}]"), FEED_SECRET, null, "http://localhost:8090");
+            fail("feed accepted from another node without the cluster secret");
+        }
+        catch(ForbiddenRequestException expected)
+        {
+        }
+
+        try
+        {
+            controller.rollback(null, null, null);
+            fail("rollback accepted without the feed secret");
+        }
+        catch(ForbiddenRequestException expected)
+        {
+        }
+
+        try
+        {
+            controller.version("guess", null, null);
+            fail("version read without the feed secret");
+        }
+        catch(ForbiddenRequestException expected)
+        {
+        }
+
+        assertEquals(0, catalog.getPriceVersion());
+        assertEquals(ProductCatalog.NO_SKU, catalog.getSku(new ProductImpl("Bread", 2)));
+    }
+
+    @Test
+    public void feedWithTheSecretIsPublished() throws Exception
+    {
+        Map<String, Object> body = controller.importPrices(feed("[{\"name\":\"Bread\",\"price\":2}]"), FEED_SECRET, null, null).getBody();
+
+        assertEquals(catalog.getPriceVersion(), body.get("version"));
+        assertEquals(1, body.get("products"));
+        assertEquals(Collections.singletonMap(SELF, catalog.getPriceVersion()), body.get("versions"));
+        assertEquals(Collections.emptyList(), body.get("unreachable"));
+        assertNotEquals(ProductCatalog.NO_SKU, catalog.getSku(new ProductImpl("Bread", 2)));
+
+        Map<String, Object> rolledBack = controller.rollback(FEED_SECRET, null, null).getBody();
+        assertEquals(catalog.getPriceVersion(), rolledBack.get("version"));
+        assertEquals(Collections.emptyList(), rolledBack.get("unreachable"));
+
+        Map<String, Object> version = controller.version(FEED_SECRET, null, null).getBody();
+        assertEquals(catalog.getPriceVersion(), version.get("version"));
+        assertEquals(Collections.singletonMap(SELF, catalog.getPriceVersion()), version.get("versions"));
+    }
+
+    @Test
+    public void feedPassedOnByAnotherNodeIsPublishedWithTheClusterSecret() throws Exception
+    {
+        Map<String, Object> body = controller.importPrices(feed("[{\"name\":\"Bread\",\"price\":2}]"), null, SECRET,
+                "http://localhost:8090").getBody();
+
+        assertEquals(catalog.getPriceVersion(), body.get("version"));
+        assertEquals(Collections.singletonMap(SELF, catalog.getPriceVersion()), body.get("versions"));
+        assertEquals(catalog.getPriceVersion(), controller.version(null, SECRET, "http://localhost:8090").getBody().get("version"));
+    }
+
+    @Test
+    public void nodesTheFeedCannotReachAreRetriedAndHaveNoVersion() throws Exception
+    {
+        // nothing listens on the discard port
+        String down = "http://localhost:9";
+        controller = new RestCatalogController(new PriceImportService(catalog),
+                new ClusterMembership(SELF, Arrays.asList(SELF, down), SECRET), FEED_SECRET);
+
+        Map<String, Object> body = controller.importPrices(feed("[{\"name\":\"Bread\",\"price\":2}]"), FEED_SECRET, null, null).getBody();
+
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put(SELF, catalog.getPriceVersion());
+        versions.put(down, null);
+        assertEquals(versions, body.get("versions"));
+        assertEquals(Collections.singletonList(down), body.get("unreachable"));
+        assertEquals(versions, controller.version(FEED_SECRET, null, null).getBody().get("versions"));
+    }
+
+    private static MockHttpServletRequest feed(String json)
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/catalog/prices");
+        request.setContentType("application/json");
+        request.setContent(json.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+}
@@ -0,0 +1,191 @@
+package com.ubs.supermarket.service;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.exception.VersionConflictException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BasketBatchServiceTest
+{
+
+    private BasketService basketService;
+
+    private BasketBatchService batchService;
+
+    private ProductCatalog catalog;
+
+    private ProductImpl p1;
+
+    private ProductImpl p2;
+
+    @Before
+    public void setUp() throws InvalidAttributesException
+    {
+        basketService = new BasketService();
+        batchService = new BasketBatchService(basketService);
+        catalog = new ProductCatalog();
+
+        p1 = new ProductImpl("P1", 10);
+        p2 = new ProductImpl("P2", 15);
+    }
+
+    @After
+    public void tearDown()
+    {
+        batchService.shutdown();
+    }
+
+    @Test
+    public void appliesMutationsPerBasketInOrder()
+    {
+        Basket first = newBasket();
+        Basket second = newBasket();
+
+        List<BasketMutation> mutations = Arrays.asList(
+                new BasketMutation(first.getBasketID(), BasketMutation.Type.ADD, Arrays.asList(p1, p1, p2)),
+                new BasketMutation(second.getBasketID(), BasketMutation.Type.ADD, Collections.singletonList(p2)),
+                new BasketMutation(first.getBasketID(), BasketMutation.Type.REMOVE, Collections.singletonList(p1)),
+                new BasketMutation(first.getBasketID(), BasketMutation.Type.ADD, Collections.singletonList(p2)));
+
+        List<BasketMutationResult> results = batchService.apply(mutations);
+
+        assertEquals(2, results.size());
+
+        assertEquals(first.getBasketID(), results.get(0).getBasketId());
+        assertEquals(BasketMutationResult.Status.APPLIED, results.get(0).getStatus());
+        assertEquals(10 + 15 + 15, results.get(0).getTotal(), 0);
+
+        assertEquals(second.getBasketID(), results.get(1).getBasketId());
+        assertEquals(15, results.get(1).getTotal(), 0);
+
+        assertEquals(2L, (long) first.getAllProducts().get(p2));
+    }
+
+    @Test
+    public void reportsUnknownBaskets()
+    {
+        Basket basket = newBasket();
+        UUID unknown = UUID.randomUUID();
+
+        List<BasketMutationResult> results = batchService.apply(Arrays.asList(
+                new BasketMutation(unknown, BasketMutation.Type.ADD, Collections.singletonList(p1)),
+                new BasketMutation(basket.getBasketID(), BasketMutation.Type.ADD, Collections.singletonList(p1))));
+
+        assertEquals(BasketMutationResult.Status.NOT_FOUND, results.get(0).getStatus());
+        assertEquals(BasketMutationResult.Status.APPLIED, results.get(1).getStatus());
+        assertEquals(10, results.get(1).getTotal(), 0);
+    }
+
+    @Test
+    public void appliesManyBaskets()
+    {
+        List<Basket> baskets = new ArrayList<>();
+        List<BasketMutation> mutations = new ArrayList<>();
+        for(int i = 0; i < 100; i++)
+        {
+            Basket basket = newBasket();
+            baskets.add(basket);
+            for(int j = 0; j < 10; j++)
+                mutations.add(new BasketMutation(basket.getBasketID(), BasketMutation.Type.ADD, Collections.singletonList(p1)));
+        }
+
+        List<BasketMutationResult> results = batchService.apply(mutations);
+
+        assertEquals(100, results.size());
+        for(int i = 0; i < 100; i++)
+        {
+            assertEquals(baskets.get(i).getBasketID(), results.get(i).getBasketId());
+            assertEquals(100, results.get(i).getTotal(), 0);
+        }
+    }
+
+    @Test
+    public void reportsFailedBasketsAndAppliesTheOthers()
+    {
+        Basket failing = new BasketImpl(catalog)
+        {
+            @Override
+            public void removeAll(Collection<? extends Product> products, long expectedVersion)
+            {
+                throw new IllegalStateException("Basket is read only");
+            }
+        };
+        basketService.addBasket(failing);
+        Basket basket = newBasket();
+
+        List<BasketMutationResult> results = batchService.apply(Arrays.asList(
+                new BasketMutation(failing.getBasketID(), BasketMutation.Type.ADD, Arrays.asList(p1, p2)),
+                new BasketMutation(basket.getBasketID(), BasketMutation.Type.ADD, Collections.singletonList(p1)),
+                new BasketMutation(failing.getBasketID(), BasketMutation.Type.REMOVE, Collections.singletonList(p1))));
+
+        assertEquals(BasketMutationResult.Status.FAILED, results.get(0).getStatus());
+        assertEquals(BasketMutationResult.INTERNAL_ERROR, results.get(0).getError());
+        // the addition before the failing removal was applied
+        assertEquals(10 + 15, results.get(0).getTotal(), 0);
+
+        assertEquals(BasketMutationResult.Status.APPLIED, results.get(1).getStatus());
+        assertNull(results.get(1).getError());
+        assertEquals(10, results.get(1).getTotal(), 0);
+    }
+
+    @Test
+    public void reportsRequestErrorsWithTheirCode()
+    {
+        Basket conflicting = new BasketImpl(catalog)
+        {
+            @Override
+            public void addAll(Collection<? extends Product> products, long expectedVersion)
+            {
+                throw new VersionConflictException("Basket has changed since version 3");
+            }
+        };
+        Basket invalid = new BasketImpl(catalog)
+        {
+            @Override
+            public void addAll(Collection<? extends Product> products, long expectedVersion)
+            {
+                throw new InvalidRequestException("Basket line of SKU 1 cannot hold more units");
+            }
+        };
+        basketService.addBasket(conflicting);
+        basketService.addBasket(invalid);
+
+        List<BasketMutationResult> results = batchService.apply(Arrays.asList(
+                new BasketMutation(conflicting.getBasketID(), BasketMutation.Type.ADD, Collections.singletonList(p1)),
+                new BasketMutation(invalid.getBasketID(), BasketMutation.Type.ADD, Collections.singletonList(p1))));
+
+        assertEquals(BasketMutationResult.Status.FAILED, results.get(0).getStatus());
+        assertEquals(BasketMutationResult.VERSION_CONFLICT, results.get(0).getError());
+        assertEquals(BasketMutationResult.Status.FAILED, results.get(1).getStatus());
+        assertEquals(BasketMutationResult.INVALID_REQUEST, results.get(1).getError());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void rejectsMutationWithoutBasket()
+    {
+        batchService.apply(Collections.singletonList(new BasketMutation(null, BasketMutation.Type.ADD, Collections.singletonList(p1))));
+    }
+
+    private Basket newBasket()
+    {
+        Basket basket = new BasketImpl(catalog);
+        basketService.addBasket(basket);
+        return basket;
+    }
+}
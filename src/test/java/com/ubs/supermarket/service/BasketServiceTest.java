@@ -0,0 +1,472 @@
+package com.ubs.supermarket.service;
+
+import com.ubs.supermarket.basket.Basket;
+import com.ubs.supermarket.basket.BasketImpl;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class BasketServiceTest
+{
+
+    private AtomicLong clock;
+
+    private BasketService basketService;
+
+    @Before
+    public void setUp()
+    {
+        clock = new AtomicLong();
+        basketService = new BasketService(4, clock::get);
+    }
+
+    @Test
+    public void addAndGetBasket()
+    {
+        Basket basket = new BasketImpl(new ConcurrentHashMap<>());
+
+        assertTrue(basketService.addBasket(basket));
+        assertFalse(basketService.addBasket(basket));
+
+        assertSame(basket, basketService.getBasketByID(basket.getBasketID()).get());
+        assertFalse(basketService.getBasketByID(UUID.randomUUID()).isPresent());
+        assertEquals(1, basketService.size());
+    }
+
+    @Test
+    public void removeBasket()
+    {
+        Basket basket = new BasketImpl(new ConcurrentHashMap<>());
+        basketService.addBasket(basket);
+
+        assertSame(basket, basketService.removeBasket(basket.getBasketID()).get());
+        assertFalse(basketService.removeBasket(basket.getBasketID()).isPresent());
+        assertFalse(basketService.getBasketByID(basket.getBasketID()).isPresent());
+        assertEquals(0, basketService.size());
+    }
+
+    @Test
+    public void removeIdleBaskets()
+    {
+        Basket idle = new BasketImpl(new ConcurrentHashMap<>());
+        Basket pinned = new BasketImpl(new ConcurrentHashMap<>());
+        Basket active = new BasketImpl(new ConcurrentHashMap<>());
+        basketService.addBasket(idle);
+        basketService.addBasket(pinned);
+        basketService.addBasket(active);
+        basketService.pinBasket(pinned.getBasketID());
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        basketService.getBasketByID(active.getBasketID());
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+        assertEquals(Collections.singletonList(idle), basketService.removeIdleBaskets(15, TimeUnit.MINUTES));
+
+        assertFalse(basketService.getBasketByID(idle.getBasketID()).isPresent());
+        assertTrue(basketService.getBasketByID(pinned.getBasketID()).isPresent());
+        assertTrue(basketService.getBasketByID(active.getBasketID()).isPresent());
+    }
+
+    @Test
+    public void basketPinnedWhileBeingExpiredIsKept() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            for(int run = 0; run < 2_000; run++)
+            {
+                List<ReleasedBasket> baskets = new ArrayList<>();
+                for(int i = 0; i < 4; i++)
+                {
+                    ReleasedBasket basket = new ReleasedBasket();
+                    baskets.add(basket);
+                    basketService.addBasket(basket);
+                }
+                clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+                CountDownLatch start = new CountDownLatch(1);
+                Future<List<Basket>> expiry = executor.submit(() ->
+                {
+                    start.await();
+                    return basketService.removeIdleBaskets(1, TimeUnit.MINUTES);
+                });
+                List<Future<Set<Basket>>> pinning = new ArrayList<>();
+                for(int thread = 0; thread < 3; thread++)
+                {
+                    int first = thread;
+                    pinning.add(executor.submit(() ->
+                    {
+                        start.await();
+                        Set<Basket> pinned = new HashSet<>();
+                        for(int i = first; !expiry.isDone(); i++)
+                        {
+                            UUID basketID = baskets.get(i % baskets.size()).getBasketID();
+                            Optional<Basket> basket = basketService.pinBasket(basketID);
+                            if(basket.isPresent())
+                            {
+                                pinned.add(basket.get());
+                                basketService.unpin(basketID);
+                            }
+                        }
+                        return pinned;
+                    }));
+                }
+                start.countDown();
+
+                List<Basket> expired = expiry.get();
+                expired.forEach(Basket::release);
+                Set<Basket> pinned = new HashSet<>();
+                for(Future<Set<Basket>> holder : pinning)
+                    pinned.addAll(holder.get());
+
+                for(ReleasedBasket basket : baskets)
+                {
+                    // a basket handed out to a holder is never expired, the others are
+                    assertTrue(pinned.contains(basket) != expired.contains(basket));
+                    if(pinned.contains(basket))
+                    {
+                        assertFalse(basket.released);
+                        assertSame(basket, basketService.removeBasket(basket.getBasketID()).get());
+                    }
+                }
+                assertEquals(0, basketService.size());
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void idleBasketIsSpilledAndReloadedOnLookup() throws Exception
+    {
+        MemoryTier tier = new MemoryTier();
+        basketService.setTier(tier);
+
+        ProductImpl p1 = new ProductImpl("P1", 10);
+        Basket idle = new ReleasedBasket();
+        idle.addProducts(Arrays.asList(p1, p1));
+        Basket active = new ReleasedBasket();
+        basketService.addBasket(idle);
+        basketService.addBasket(active);
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        basketService.getBasketByID(active.getBasketID());
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+        assertEquals(1, basketService.spillIdleBaskets(15, TimeUnit.MINUTES, 10));
+        assertTrue(((ReleasedBasket) idle).released);
+        assertEquals(1, basketService.size());
+        assertEquals(1, basketService.spilledSize());
+
+        Basket reloaded = basketService.getBasketByID(idle.getBasketID()).get();
+        assertNotSame(idle, reloaded);
+        assertEquals(Collections.singletonMap(p1, 2L), reloaded.getAllProducts());
+        assertSame(reloaded, basketService.getBasketByID(idle.getBasketID()).get());
+        assertEquals(2, basketService.size());
+        assertEquals(0, basketService.spilledSize());
+
+        assertFalse(basketService.getBasketByID(UUID.randomUUID()).isPresent());
+    }
+
+    @Test
+    public void leastRecentlyUsedBasketsAreSpilledPastTheMaximum()
+    {
+        basketService.setTier(new MemoryTier());
+
+        List<Basket> baskets = new ArrayList<>();
+        for(int i = 0; i < 4; i++)
+        {
+            Basket basket = new BasketImpl(new ConcurrentHashMap<>());
+            basketService.addBasket(basket);
+            baskets.add(basket);
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        }
+        // the first basket becomes the most recently used
+        basketService.getBasketByID(baskets.get(0).getBasketID());
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+        assertEquals(2, basketService.spillIdleBaskets(1, TimeUnit.HOURS, 2));
+
+        Set<UUID> spilled = new HashSet<>();
+        basketService.forEachId(spilled::add);
+        assertEquals(4, spilled.size());
+        assertEquals(2, basketService.size());
+        assertEquals(2, basketService.spilledSize());
+
+        Set<Basket> hot = new HashSet<>();
+        basketService.forEach(hot::add);
+        assertEquals(new HashSet<>(Arrays.asList(baskets.get(0), baskets.get(3))), hot);
+    }
+
+    @Test
+    public void reloadPastTheMaximumSpillsTheLeastRecentlyUsed()
+    {
+        basketService.setTier(new MemoryTier(), 2);
+
+        List<Basket> baskets = new ArrayList<>();
+        for(int i = 0; i < 3; i++)
+        {
+            Basket basket = new BasketImpl(new ConcurrentHashMap<>());
+            basketService.addBasket(basket);
+            baskets.add(basket);
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(1, basketService.spillIdleBaskets(1, TimeUnit.HOURS, 2));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+        assertTrue(basketService.getBasketByID(baskets.get(0).getBasketID()).isPresent());
+
+        Set<UUID> hot = new HashSet<>();
+        basketService.forEach(basket -> hot.add(basket.getBasketID()));
+        assertEquals(new HashSet<>(Arrays.asList(baskets.get(0).getBasketID(), baskets.get(2).getBasketID())), hot);
+        assertEquals(1, basketService.spilledSize());
+    }
+
+    @Test
+    public void concurrentLookupsReadTheTierOnce() throws Exception
+    {
+        Basket basket = new BasketImpl(new ConcurrentHashMap<>());
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        MemoryTier tier = new MemoryTier()
+        {
+            @Override
+            public Optional<Basket> load(UUID basketID)
+            {
+                if(!basketID.equals(basket.getBasketID()))
+                    return super.load(basketID);
+
+                loads.incrementAndGet();
+                reading.countDown();
+                try
+                {
+                    read.await();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return super.load(basketID);
+            }
+        };
+        basketService.setTier(tier);
+        basketService.addBasket(basket);
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        basketService.spillIdleBaskets(1, TimeUnit.MINUTES, 10);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<Optional<Basket>> first = executor.submit(() -> basketService.getBasketByID(basket.getBasketID()));
+            reading.await();
+            Future<Optional<Basket>> second = executor.submit(() -> basketService.getBasketByID(basket.getBasketID()));
+
+            // the shard is not locked while the tier is read
+            assertFalse(basketService.getBasketByID(UUID.randomUUID()).isPresent());
+            read.countDown();
+
+            assertSame(first.get().get(), second.get().get());
+            assertEquals(1, loads.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void recentlyUsedBasketsAreNeverSpilled()
+    {
+        basketService.setTier(new MemoryTier());
+        basketService.addBasket(new BasketImpl(new ConcurrentHashMap<>()));
+
+        assertEquals(0, basketService.spillIdleBaskets(0, TimeUnit.SECONDS, 0));
+        assertEquals(1, basketService.size());
+    }
+
+    @Test
+    public void basketLookedUpWhileBeingSpilledStaysInMemory()
+    {
+        MemoryTier tier = new MemoryTier();
+        List<Optional<Basket>> lookups = new ArrayList<>();
+        tier.onSpill = basket -> lookups.add(basketService.getBasketByID(basket.getBasketID()));
+        basketService.setTier(tier);
+
+        ReleasedBasket basket = new ReleasedBasket();
+        basketService.addBasket(basket);
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+        assertEquals(0, basketService.spillIdleBaskets(1, TimeUnit.MINUTES, 10));
+
+        assertSame(basket, lookups.get(0).get());
+        assertSame(basket, basketService.getBasketByID(basket.getBasketID()).get());
+        assertFalse(basket.released);
+        assertEquals(0, tier.size());
+    }
+
+    @Test
+    public void pinnedBasketIsNotSpilled()
+    {
+        MemoryTier tier = new MemoryTier();
+        basketService.setTier(tier);
+
+        ReleasedBasket basket = new ReleasedBasket();
+        basketService.addBasket(basket);
+        assertSame(basket, basketService.pinBasket(basket.getBasketID()).get());
+        assertSame(basket, basketService.pinBasket(basket.getBasketID()).get());
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+        assertEquals(0, basketService.spillIdleBaskets(1, TimeUnit.MINUTES, 0));
+        basketService.unpin(basket.getBasketID());
+        assertEquals(0, basketService.spillIdleBaskets(1, TimeUnit.MINUTES, 0));
+        assertFalse(basket.released);
+
+        basketService.unpin(basket.getBasketID());
+        assertEquals(1, basketService.spillIdleBaskets(1, TimeUnit.MINUTES, 0));
+        assertTrue(basket.released);
+        assertFalse(basketService.pinBasket(UUID.randomUUID()).isPresent());
+    }
+
+    @Test
+    public void basketPinnedWhileBeingSpilledStaysInMemory()
+    {
+        MemoryTier tier = new MemoryTier();
+        List<Optional<Basket>> pinned = new ArrayList<>();
+        tier.onSpill = basket -> pinned.add(basketService.pinBasket(basket.getBasketID()));
+        basketService.setTier(tier);
+
+        ReleasedBasket basket = new ReleasedBasket();
+        basketService.addBasket(basket);
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+        assertEquals(0, basketService.spillIdleBaskets(1, TimeUnit.MINUTES, 10));
+
+        assertSame(basket, pinned.get(0).get());
+        assertFalse(basket.released);
+        basketService.unpin(basket.getBasketID());
+    }
+
+    @Test
+    public void failedSpillKeepsTheBasket()
+    {
+        MemoryTier tier = new MemoryTier();
+        tier.onSpill = basket ->
+        {
+            throw new IllegalStateException("disk full");
+        };
+        basketService.setTier(tier);
+
+        ReleasedBasket basket = new ReleasedBasket();
+        basketService.addBasket(basket);
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+        assertEquals(0, basketService.spillIdleBaskets(1, TimeUnit.MINUTES, 10));
+
+        assertSame(basket, basketService.getBasketByID(basket.getBasketID()).get());
+        assertFalse(basket.released);
+    }
+
+    @Test
+    public void spilledBasketIsRemovedFromTheTier()
+    {
+        MemoryTier tier = new MemoryTier();
+        basketService.setTier(tier);
+
+        Basket basket = new BasketImpl(new ConcurrentHashMap<>());
+        basketService.addBasket(basket);
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        basketService.spillIdleBaskets(1, TimeUnit.MINUTES, 10);
+
+        assertEquals(basket.getBasketID(), basketService.removeBasket(basket.getBasketID()).get().getBasketID());
+        assertFalse(basketService.getBasketByID(basket.getBasketID()).isPresent());
+        assertEquals(0, basketService.size());
+        assertEquals(0, tier.size());
+    }
+
+    /**
+     * Keeps the lines of the spilled baskets in a map
+     */
+    private static class MemoryTier implements BasketTier
+    {
+        private final Map<UUID, Map<Product, Long>> baskets = new ConcurrentHashMap<>();
+
+        private Consumer<Basket> onSpill = basket -> {};
+
+        @Override
+        public void spill(Basket basket)
+        {
+            baskets.put(basket.getBasketID(), new HashMap<>(basket.getAllProducts()));
+            onSpill.accept(basket);
+        }
+
+        @Override
+        public Optional<Basket> load(UUID basketID)
+        {
+            Map<Product, Long> lines = baskets.remove(basketID);
+            return lines == null ? Optional.empty() : Optional.of(new BasketImpl(new ProductCatalog(), basketID, lines));
+        }
+
+        @Override
+        public void discard(UUID basketID) throws IOException
+        {
+            baskets.remove(basketID);
+        }
+
+        @Override
+        public void forEachId(Consumer<UUID> action)
+        {
+            baskets.keySet().forEach(action);
+        }
+
+        @Override
+        public int size()
+        {
+            return baskets.size();
+        }
+    }
+
+    private static final class ReleasedBasket extends BasketImpl
+    {
+        private boolean released;
+
+        private ReleasedBasket()
+        {
+            super(new ProductCatalog());
+        }
+
+        @Override
+        public void release()
+        {
+            released = true;
+            super.release();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.ubs.supermarket.service;
+
+import com.ubs.supermarket.exception.InvalidRequestException;
+import com.ubs.supermarket.products.Product;
+import com.ubs.supermarket.products.ProductCatalog;
+import com.ubs.supermarket.products.ProductImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PriceImportServiceTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProductCatalog catalog;
+
+    private PriceImportService service;
+
+    private int milk;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        catalog = new ProductCatalog();
+        service = new PriceImportService(catalog);
+
+        ProductImpl product = new ProductImpl("Milk", 10);
+        product.addSpecialPrice(Collections.singletonMap(2L, 8.0));
+        milk = catalog.register(product);
+    }
+
+    @Test
+    public void feedIsPublishedAtOnce() throws Exception
+    {
+        PriceImport result = service.importPrices(feed(
+                "[{\"name\":\"Milk\",\"price\":10,\"specialPriceMap\":{\"3\":5}},"
+                        + "{\"name\":\"Bread\",\"price\":2,\"category\":\"bakery\"}]"));
+
+        assertEquals(2, result.getProducts());
+        assertEquals(catalog.getPriceVersion(), result.getVersion());
+        assertEquals(2, catalog.size());
+
+        assertEquals(15, catalog.getProduct(milk).getPrice(3L), 0);
+        assertEquals(2, catalog.getProduct(catalog.getSku(new ProductImpl("Bread", 2))).getPrice(1L), 0);
+    }
+
+    @Test
+    public void invalidFeedIsRejectedAsAWhole() throws Exception
+    {
+        Product before = catalog.getProduct(milk);
+        long version = catalog.getPriceVersion();
+
+        try
+        {
+            service.importPrices(feed("[{\"name\":\"Milk\",\"price\":10,\"specialPriceMap\":{\"3\":5}},"
+                    + "{\"name\":\"Bread\",\"price\":0},"
+                    + "{\"name\":\"Milk\",\"price\":10},"
+                    + "{\"price\":3},"
+                    + "{\"name\":\"Cheese\",\"price\":4,\"specialPriceMap\":{\"2\":-1}}]"));
+            fail("invalid feed accepted");
+        }
+        catch(InvalidRequestException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("4 invalid products"));
+            assertTrue(e.getMessage(), e.getMessage().contains("product 2 listed twice"));
+        }
+
+        assertSame(before, catalog.getProduct(milk));
+        assertEquals(version, catalog.getPriceVersion());
+        assertEquals(1, catalog.size());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void malformedFeedIsRejected() throws Exception
+    {
+        service.importPrices(feed("[{\"name\":\"Milk\",\"price\":10},"));
+    }
+
+    @Test
+    public void lastFeedIsRolledBack() throws Exception
+    {
+        service.importPrices(feed("[{\"name\":\"Milk\",\"price\":10,\"specialPriceMap\":{\"3\":5}}]"));
+        assertEquals(15, catalog.getProduct(milk).getPrice(3L), 0);
+
+        service.rollback();
+
+        assertEquals(26, catalog.getProduct(milk).getPrice(3L), 0);
+
+        try
+        {
+            service.rollback();
+            fail("rolled back twice");
+        }
+        catch(InvalidRequestException expected)
+        {
+        }
+    }
+
+    @Test
+    public void publishedPricesSurviveARestart() throws Exception
+    {
+        String directory = folder.getRoot().getPath();
+        PriceImportService persisted = new PriceImportService(catalog, directory);
+        persisted.importPrices(feed("[{\"name\":\"Bread\",\"price\":2,\"specialPriceMap\":{\"2\":1.5}}]"));
+        persisted.importPrices(feed("[{\"name\":\"Bread\",\"price\":2,\"specialPriceMap\":{\"2\":1}},"
+                + "{\"name\":\"Eggs\",\"price\":3}]"));
+        long version = catalog.getPriceVersion();
+
+        ProductCatalog restarted = new ProductCatalog();
+        PriceImportService restored = new PriceImportService(restarted, directory);
+        restored.open();
+
+        assertEquals(version, restarted.getPriceVersion());
+        int bread = restarted.getSku(new ProductImpl("Bread", 2));
+        assertEquals(2, restarted.getProduct(bread).getPrice(2L), 0);
+        assertEquals(3, restarted.getProduct(restarted.getSku(new ProductImpl("Eggs", 3))).getPrice(1L), 0);
+
+        assertEquals(version + 1, restored.rollback());
+        assertEquals(3, restarted.getProduct(bread).getPrice(2L), 0);
+
+        ProductCatalog rolledBack = new ProductCatalog();
+        PriceImportService again = new PriceImportService(rolledBack, directory);
+        again.open();
+
+        assertEquals(version + 1, rolledBack.getPriceVersion());
+        assertEquals(3, rolledBack.getProduct(rolledBack.getSku(new ProductImpl("Bread", 2))).getPrice(2L), 0);
+        try
+        {
+            again.rollback();
+            fail("rolled back twice across a restart");
+        }
+        catch(InvalidRequestException expected)
+        {
+        }
+    }
+
+    @Test
+    public void unpersistedFeedIsNotPublished() throws Exception
+    {
+        // a file in place of the directory makes the price file unwritable
+        PriceImportService persisted = new PriceImportService(catalog, folder.newFile().getPath());
+        long version = catalog.getPriceVersion();
+
+        try
+        {
+            persisted.importPrices(feed("[{\"name\":\"Bread\",\"price\":2}]"));
+            fail("feed published without being persisted");
+        }
+        catch(IOException expected)
+        {
+        }
+
+        assertEquals(version, catalog.getPriceVersion());
+        assertEquals(ProductCatalog.NO_SKU, catalog.getSku(new ProductImpl("Bread", 2)));
+    }
+
+    @Test
+    public void readersNeverSeeAPartOfAFeed() throws Exception
+    {
+        service.importPrices(feed(productsAt(9)));
+        int first = catalog.getSku(new ProductImpl("P0", 10));
+        int last = catalog.getSku(new ProductImpl("P99", 10));
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> torn = new AtomicReference<>();
+        Thread reader = new Thread(() ->
+        {
+            while(!done.get())
+            {
+                // the feeds lower the special prices, a later read never sees an older feed
+                double firstPrice = catalog.getProduct(first).getPrice(2L);
+                double lastPrice = catalog.getProduct(last).getPrice(2L);
+                if(lastPrice > firstPrice)
+                    torn.set(firstPrice + " then " + lastPrice);
+            }
+        });
+        reader.start();
+
+        for(int price = 8; price > 0; price--)
+            service.importPrices(feed(productsAt(price)));
+
+        done.set(true);
+        reader.join();
+        assertNull(torn.get());
+    }
+
+    /**
+     * @return feed of 100 products sold at the special price by 2
+     */
+    private static String productsAt(int specialPrice)
+    {
+        StringBuilder products = new StringBuilder("[");
+        for(int i = 0; i < 100; i++)
+            products.append(i == 0 ? "" : ",")
+                    .append("{\"name\":\"P").append(i).append("\",\"price\":10,\"specialPriceMap\":{\"2\":")
+                    .append(specialPrice).append("}}");
+        return products.append("]").toString();
+    }
+
+    private static InputStream feed(String json)
+    {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}